@@ -0,0 +1,345 @@
+package com.masonsoft.imsdk.core;
+
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.idonans.core.Progress;
+
+@RunWith(AndroidJUnit4.class)
+public class ChunkedFileUploaderTest {
+
+    private static final long CHUNK_SIZE = 64 * 1024L;
+
+    private LocalHttpServer mServer;
+    private File mFile;
+    private byte[] mFileContent;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LocalHttpServer();
+        mServer.start();
+
+        mFileContent = new byte[(int) (CHUNK_SIZE * 16 + 123)];
+        new Random(20210520L).nextBytes(mFileContent);
+        mFile = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(), "chunked_upload_test.bin");
+        try (OutputStream os = new FileOutputStream(mFile)) {
+            os.write(mFileContent);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.stop();
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+
+        // 服务端处理请求时的异常也是测试失败
+        final Throwable serverError = mServer.mErrors.peek();
+        if (serverError != null) {
+            throw new AssertionError("local http server error, count:" + mServer.mErrors.size(), serverError);
+        }
+    }
+
+    @Test
+    public void testResumeAfterChunkFail() throws Throwable {
+        final MemoryJournalStore journalStore = new MemoryJournalStore();
+        final ChunkedFileUploader uploader = new ChunkedFileUploader(journalStore, 3);
+        final LocalHttpChunkedFileUploadProvider provider = new LocalHttpChunkedFileUploadProvider(mServer.getPort());
+        final int failChunkIndex = 5;
+        mServer.mFailOnceChunkIndexSet.add(failChunkIndex);
+
+        try {
+            uploader.upload(provider, mFile.getAbsolutePath(), null, "test_hash", new Progress() {
+            });
+            Assert.fail("upload should fail");
+        } catch (IOException expected) {
+            // ignore
+        }
+        Assert.assertEquals(1, journalStore.mValues.size());
+
+        final String accessUrl = uploader.upload(provider, mFile.getAbsolutePath(), null, "test_hash", new Progress() {
+        });
+        Assert.assertNotNull(accessUrl);
+        Assert.assertArrayEquals(mFileContent, mServer.mCompletedFiles.get(accessUrl));
+        // 继续使用同一个 uploadId, 已经完成的分片没有重复上传
+        Assert.assertEquals(1, mServer.mInitCount.get());
+        final int chunkCount = (int) ((mFileContent.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int i = 0; i < chunkCount; i++) {
+            final AtomicInteger putCount = mServer.mChunkPutCount.get(i);
+            Assert.assertNotNull(putCount);
+            Assert.assertEquals("chunk " + i, i == failChunkIndex ? 2 : 1, putCount.get());
+        }
+        Assert.assertTrue(journalStore.mValues.isEmpty());
+    }
+
+    private static class MemoryJournalStore implements ChunkedFileUploader.JournalStore {
+
+        private final Map<String, String> mValues = new ConcurrentHashMap<>();
+
+        @Nullable
+        @Override
+        public String get(@NonNull String key) {
+            return mValues.get(key);
+        }
+
+        @Override
+        public void set(@NonNull String key, @Nullable String value) {
+            if (value == null) {
+                mValues.remove(key);
+            } else {
+                mValues.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * 通过本地的 http 服务实现的分片上传
+     */
+    private static class LocalHttpChunkedFileUploadProvider implements ChunkedFileUploadProvider {
+
+        private final int mPort;
+
+        private LocalHttpChunkedFileUploadProvider(int port) {
+            mPort = port;
+        }
+
+        @Override
+        public long getChunkSize() {
+            return CHUNK_SIZE;
+        }
+
+        @NonNull
+        @Override
+        public String uploadFile(@NonNull String filePath, @Nullable String mimeType, @NonNull Progress progress) throws Throwable {
+            final byte[] data;
+            try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
+                data = new byte[(int) file.length()];
+                file.readFully(data);
+            }
+            return LocalHttpServer.request(mPort, "POST", "/file", data);
+        }
+
+        @NonNull
+        @Override
+        public String initChunkedUpload(@NonNull String filePath, @Nullable String mimeType, long fileLength) throws Throwable {
+            return LocalHttpServer.request(mPort, "POST", "/init", new byte[0]);
+        }
+
+        @NonNull
+        @Override
+        public String uploadChunk(@NonNull String uploadId, @NonNull String filePath, int chunkIndex, long offset, long length) throws Throwable {
+            final byte[] data = new byte[(int) length];
+            try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
+                file.seek(offset);
+                file.readFully(data);
+            }
+            return LocalHttpServer.request(mPort, "PUT", "/chunk/" + uploadId + "/" + chunkIndex, data);
+        }
+
+        @NonNull
+        @Override
+        public String completeChunkedUpload(@NonNull String uploadId, @NonNull List<String> chunkTags) throws Throwable {
+            final String body = TextUtils.join("\n", chunkTags);
+            return LocalHttpServer.request(mPort, "POST", "/complete/" + uploadId, body.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * 一个最简单的 http 服务，每一个连接只处理一个请求
+     */
+    private static class LocalHttpServer {
+
+        private ServerSocket mServerSocket;
+        private final AtomicInteger mInitCount = new AtomicInteger();
+        private final AtomicInteger mFileCount = new AtomicInteger();
+        private final ConcurrentHashMap<Integer, AtomicInteger> mChunkPutCount = new ConcurrentHashMap<>();
+        private final Set<Integer> mFailOnceChunkIndexSet = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        private final Map<String, Map<Integer, byte[]>> mChunks = new ConcurrentHashMap<>();
+        private final Map<String, byte[]> mCompletedFiles = new ConcurrentHashMap<>();
+        private final Queue<Throwable> mErrors = new ConcurrentLinkedQueue<>();
+
+        private void start() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            final Thread thread = new Thread(() -> {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        new Thread(() -> handle(socket)).start();
+                    } catch (IOException e) {
+                        // server closed
+                    }
+                }
+            });
+            thread.start();
+        }
+
+        private int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        private void stop() throws IOException {
+            mServerSocket.close();
+        }
+
+        private void handle(Socket socket) {
+            try (Socket s = socket) {
+                final InputStream is = s.getInputStream();
+                final String requestLine = readLine(is);
+                final Map<String, String> headers = readHeaders(is);
+                final byte[] body = readBody(is, headers);
+                final String[] parts = requestLine.split(" ");
+                final String[] path = parts[1].split("/");
+
+                int code = 200;
+                String response = "";
+                if ("/init".equals(parts[1])) {
+                    response = "upload-" + mInitCount.incrementAndGet();
+                    mChunks.put(response, new ConcurrentHashMap<>());
+                } else if ("/file".equals(parts[1])) {
+                    response = "http://127.0.0.1/files/file-" + mFileCount.incrementAndGet();
+                    mCompletedFiles.put(response, body);
+                } else if ("chunk".equals(path[1])) {
+                    final int chunkIndex = Integer.parseInt(path[3]);
+                    final AtomicInteger putCount = new AtomicInteger();
+                    final AtomicInteger existsPutCount = mChunkPutCount.putIfAbsent(chunkIndex, putCount);
+                    (existsPutCount != null ? existsPutCount : putCount).incrementAndGet();
+                    if (mFailOnceChunkIndexSet.remove(chunkIndex)) {
+                        code = 500;
+                    } else {
+                        //noinspection ConstantConditions
+                        mChunks.get(path[2]).put(chunkIndex, body);
+                        response = "etag-" + chunkIndex + "-" + body.length;
+                    }
+                } else if ("complete".equals(path[1])) {
+                    final Map<Integer, byte[]> chunks = mChunks.get(path[2]);
+                    final String[] chunkTags = new String(body, StandardCharsets.UTF_8).split("\n");
+                    final ByteArrayOutputStream file = new ByteArrayOutputStream();
+                    for (int i = 0; i < chunkTags.length; i++) {
+                        //noinspection ConstantConditions
+                        final byte[] chunk = chunks.get(i);
+                        if (chunk == null || !chunkTags[i].equals("etag-" + i + "-" + chunk.length)) {
+                            code = 400;
+                            break;
+                        }
+                        file.write(chunk);
+                    }
+                    if (code == 200) {
+                        response = "http://127.0.0.1/files/" + path[2];
+                        mCompletedFiles.put(response, file.toByteArray());
+                    }
+                } else {
+                    code = 404;
+                }
+
+                final byte[] responseBody = response.getBytes(StandardCharsets.UTF_8);
+                final OutputStream os = s.getOutputStream();
+                os.write(("HTTP/1.1 " + code + " " + (code == 200 ? "OK" : "ERROR") + "\r\n"
+                        + "Content-Length: " + responseBody.length + "\r\n"
+                        + "Connection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                os.write(responseBody);
+                os.flush();
+            } catch (Throwable e) {
+                mErrors.add(e);
+            }
+        }
+
+        /**
+         * 发送请求，响应码不是 200 时抛出 IOException
+         */
+        @NonNull
+        private static String request(int port, String method, String path, byte[] body) throws IOException {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                final OutputStream os = socket.getOutputStream();
+                os.write((method + " " + path + " HTTP/1.1\r\n"
+                        + "Host: 127.0.0.1:" + port + "\r\n"
+                        + "Content-Length: " + body.length + "\r\n"
+                        + "Connection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                os.write(body);
+                os.flush();
+
+                final InputStream is = socket.getInputStream();
+                final String statusLine = readLine(is);
+                final Map<String, String> headers = readHeaders(is);
+                final byte[] responseBody = readBody(is, headers);
+                final int code = Integer.parseInt(statusLine.split(" ")[1]);
+                if (code != 200) {
+                    throw new IOException("unexpected response " + statusLine + " for " + method + " " + path);
+                }
+                return new String(responseBody, StandardCharsets.UTF_8);
+            }
+        }
+
+        private static String readLine(InputStream is) throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = is.read()) != -1) {
+                if (b == '\n') {
+                    break;
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return new String(line.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        private static Map<String, String> readHeaders(InputStream is) throws IOException {
+            final Map<String, String> headers = new HashMap<>();
+            String line;
+            while (!(line = readLine(is)).isEmpty()) {
+                final int index = line.indexOf(':');
+                if (index > 0) {
+                    headers.put(line.substring(0, index).trim().toLowerCase(), line.substring(index + 1).trim());
+                }
+            }
+            return headers;
+        }
+
+        private static byte[] readBody(InputStream is, Map<String, String> headers) throws IOException {
+            final String contentLength = headers.get("content-length");
+            final byte[] body = new byte[contentLength == null ? 0 : Integer.parseInt(contentLength)];
+            int offset = 0;
+            while (offset < body.length) {
+                final int read = is.read(body, offset, body.length - offset);
+                if (read == -1) {
+                    throw new IOException("unexpected end of stream");
+                }
+                offset += read;
+            }
+            return body;
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.masonsoft.imsdk.core;
+
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class TimingWheelTest {
+
+    private static final long TICK_MS = 10L;
+
+    @Test
+    public void testExpireNotEarly() throws InterruptedException {
+        // 槽位数量较少，使得定时任务需要经过多圈
+        final TimingWheel timingWheel = new TimingWheel("TimingWheelTest", TICK_MS, 8);
+        final long[] delays = new long[]{0L, 5L, 35L, 80L, 200L, 333L};
+        final CountDownLatch latch = new CountDownLatch(delays.length);
+        final AtomicInteger earlyCount = new AtomicInteger();
+
+        for (long delay : delays) {
+            final long scheduleTimeMs = SystemClock.uptimeMillis();
+            timingWheel.schedule(() -> {
+                final long actualDelay = SystemClock.uptimeMillis() - scheduleTimeMs;
+                System.out.println("delay:" + delay + ", actual delay:" + actualDelay);
+                if (actualDelay < delay) {
+                    earlyCount.incrementAndGet();
+                }
+                latch.countDown();
+            }, delay);
+        }
+
+        Assert.assertTrue("定时任务没有全部执行", latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("定时任务提前执行", 0, earlyCount.get());
+        Assert.assertEquals(0, timingWheel.getPendingCount());
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        final TimingWheel timingWheel = new TimingWheel("TimingWheelTest", TICK_MS, 64);
+        final AtomicInteger runCount = new AtomicInteger();
+
+        final TimingWheel.Timeout cancelled = timingWheel.schedule(runCount::incrementAndGet, 50L);
+        final TimingWheel.Timeout kept = timingWheel.schedule(runCount::incrementAndGet, 50L);
+        Assert.assertEquals(2, timingWheel.getPendingCount());
+
+        Assert.assertTrue(cancelled.cancel());
+        Assert.assertFalse(cancelled.cancel());
+        Assert.assertEquals(1, timingWheel.getPendingCount());
+
+        Thread.sleep(300L);
+        Assert.assertEquals(1, runCount.get());
+        Assert.assertTrue(kept.isExpired());
+        Assert.assertFalse(kept.cancel());
+        Assert.assertTrue(cancelled.isCancelled());
+        Assert.assertFalse(cancelled.isExpired());
+        Assert.assertEquals(0, timingWheel.getPendingCount());
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.masonsoft.imsdk;
 
 import com.masonsoft.imsdk.core.IMConstants;
+import com.masonsoft.imsdk.core.SendLatencyTracker;
 
 /**
  * @since 1.0
@@ -116,4 +117,68 @@ public class MSIMConstants {
         }
     }
 
+    /**
+     * 消息发送的阶段
+     */
+    public static class SendLatencyStage {
+        /**
+         * 调用发送接口，进入发送队列
+         */
+        public static final int ENQUEUE = SendLatencyTracker.STAGE_ENQUEUE;
+        /**
+         * 写入数据库
+         */
+        public static final int DB_WRITE = SendLatencyTracker.STAGE_DB_WRITE;
+        /**
+         * 开始执行发送任务
+         */
+        public static final int SCHEDULED = SendLatencyTracker.STAGE_SCHEDULED;
+        /**
+         * 开始上传文件
+         */
+        public static final int UPLOAD_START = SendLatencyTracker.STAGE_UPLOAD_START;
+        /**
+         * 文件上传结束
+         */
+        public static final int UPLOAD_END = SendLatencyTracker.STAGE_UPLOAD_END;
+        /**
+         * 写入长连接
+         */
+        public static final int WIRE_WRITE = SendLatencyTracker.STAGE_WIRE_WRITE;
+        /**
+         * 收到服务器的响应
+         */
+        public static final int ACK = SendLatencyTracker.STAGE_ACK;
+    }
+
+    /**
+     * 消息发送耗时的分段
+     */
+    public static class SendLatencySegment {
+        /**
+         * 从调用发送接口到收到服务器响应的总耗时
+         */
+        public static final int TOTAL = SendLatencyTracker.SEGMENT_TOTAL;
+        /**
+         * 在发送队列中等待并写入数据库
+         */
+        public static final int DB_WRITE = SendLatencyTracker.SEGMENT_DB_WRITE;
+        /**
+         * 写入数据库之后等待调度
+         */
+        public static final int SCHEDULE = SendLatencyTracker.SEGMENT_SCHEDULE;
+        /**
+         * 文件上传(包括压缩等预处理)
+         */
+        public static final int UPLOAD = SendLatencyTracker.SEGMENT_UPLOAD;
+        /**
+         * 等待写入长连接
+         */
+        public static final int WIRE_WRITE = SendLatencyTracker.SEGMENT_WIRE_WRITE;
+        /**
+         * 写入长连接之后等待服务器响应
+         */
+        public static final int ACK = SendLatencyTracker.SEGMENT_ACK;
+    }
+
 }
@@ -6,11 +6,16 @@ import androidx.annotation.Nullable;
 import com.masonsoft.imsdk.core.IMConversation;
 import com.masonsoft.imsdk.core.IMConversationManager;
 import com.masonsoft.imsdk.core.IMMessageQueueManager;
+import com.masonsoft.imsdk.core.LastMessagePrefetchManager;
+import com.masonsoft.imsdk.core.db.Conversation;
 import com.masonsoft.imsdk.core.db.TinyPage;
 import com.masonsoft.imsdk.core.observable.ConversationObservable;
 import com.masonsoft.imsdk.lang.GeneralResult;
 import com.masonsoft.imsdk.util.WeakObservable;
 
+import java.util.Collection;
+import java.util.List;
+
 import io.github.idonans.core.Singleton;
 import io.github.idonans.core.util.Preconditions;
 
@@ -51,6 +56,22 @@ public class MSIMConversationManager {
                 }
             });
         }
+
+        @Override
+        public void onMultiConversationChanged(long sessionUserId, @NonNull List<Conversation> conversationList) {
+            // 批量写入的会话逐个通知为会话变更
+            mConversationListeners.forEach(listener -> {
+                if (listener != null) {
+                    for (Conversation conversation : conversationList) {
+                        listener.onConversationChanged(
+                                sessionUserId,
+                                conversation.localId.get(),
+                                conversation.localConversationType.get(),
+                                conversation.targetUserId.get());
+                    }
+                }
+            });
+        }
     };
 
     private MSIMConversationManager() {
@@ -125,4 +146,18 @@ public class MSIMConversationManager {
         });
     }
 
+    /**
+     * 会话被打开时调用，如果该会话的最新一页消息还在等待预取，则优先预取
+     */
+    public void boostLastMessagePrefetch(final long sessionUserId, final int conversationType, final long targetUserId) {
+        LastMessagePrefetchManager.getInstance().boostPrefetch(sessionUserId, conversationType, targetUserId);
+    }
+
+    /**
+     * 设置会话列表中当前可见的会话，可见的会话优先预取最新一页消息
+     */
+    public void setVisibleConversations(final long sessionUserId, final int conversationType, @NonNull final Collection<Long> targetUserIdList) {
+        LastMessagePrefetchManager.getInstance().setVisibleConversations(sessionUserId, conversationType, targetUserIdList);
+    }
+
 }
@@ -6,9 +6,11 @@ import androidx.annotation.WorkerThread;
 
 import com.masonsoft.imsdk.core.IMManager;
 import com.masonsoft.imsdk.core.IMSessionManager;
+import com.masonsoft.imsdk.core.SendLatencyTracker;
 import com.masonsoft.imsdk.core.message.packet.MessagePacket;
 import com.masonsoft.imsdk.core.message.packet.SignInMessagePacket;
 import com.masonsoft.imsdk.core.message.packet.SignOutMessagePacket;
+import com.masonsoft.imsdk.core.observable.SendLatencyObservable;
 import com.masonsoft.imsdk.core.observable.SessionObservable;
 import com.masonsoft.imsdk.core.observable.SessionTcpClientObservable;
 import com.masonsoft.imsdk.core.observable.TokenOfflineObservable;
@@ -18,6 +20,9 @@ import com.masonsoft.imsdk.lang.GeneralResult;
 import com.masonsoft.imsdk.util.RxJavaUtil;
 import com.masonsoft.imsdk.util.WeakObservable;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import io.github.idonans.core.Singleton;
 import io.github.idonans.core.thread.Threads;
 
@@ -162,12 +167,32 @@ public class MSIMManager {
         }
     };
 
+    @NonNull
+    private final WeakObservable<MSIMSendLatencyListener> mSendLatencyListeners = new WeakObservable<>();
+
+    @SuppressWarnings("FieldCanBeLocal")
+    private final SendLatencyObservable.SendLatencyObserver mSendLatencyObserver = new SendLatencyObservable.SendLatencyObserver() {
+        @Override
+        public void onSendLatency(@NonNull SendLatencyTracker.Record record) {
+            if (mSendLatencyListeners.isEmpty()) {
+                return;
+            }
+            final MSIMSendLatency sendLatency = new MSIMSendLatency(record);
+            mSendLatencyListeners.forEach(listener -> {
+                if (listener != null) {
+                    listener.onSendLatency(sendLatency);
+                }
+            });
+        }
+    };
+
     private MSIMManager() {
         RxJavaUtil.setErrorHandler();
 
         TokenOfflineObservable.DEFAULT.registerObserver(mTokenOfflineObserver);
         SessionTcpClientObservable.DEFAULT.registerObserver(mSessionTcpClientObserver);
         SessionObservable.DEFAULT.registerObserver(mSessionObserver);
+        SendLatencyObservable.DEFAULT.registerObserver(mSendLatencyObserver);
     }
 
     public void initSdk(String appId, @Nullable MSIMSdkListener listener) {
@@ -201,6 +226,48 @@ public class MSIMManager {
         }
     }
 
+    public void addSendLatencyListener(@Nullable MSIMSendLatencyListener listener) {
+        if (listener != null) {
+            mSendLatencyListeners.registerObserver(listener);
+        }
+    }
+
+    public void removeSendLatencyListener(@Nullable MSIMSendLatencyListener listener) {
+        if (listener != null) {
+            mSendLatencyListeners.unregisterObserver(listener);
+        }
+    }
+
+    /**
+     * 获取当前进程中已经发送成功的消息的耗时分布(按照消息类型与分段统计)
+     */
+    @NonNull
+    public List<MSIMSendLatencyStats> getSendLatencyStatsList() {
+        final List<MSIMSendLatencyStats> statsList = new ArrayList<>();
+        for (SendLatencyTracker.Stats stats : SendLatencyTracker.getInstance().getStatsList()) {
+            statsList.add(new MSIMSendLatencyStats(stats));
+        }
+        return statsList;
+    }
+
+    /**
+     * 获取指定消息类型与分段的耗时分布, 没有记录时返回 null.
+     *
+     * @see MSIMConstants.SendLatencySegment
+     */
+    @Nullable
+    public MSIMSendLatencyStats getSendLatencyStats(int messageType, int segment) {
+        final SendLatencyTracker.Stats stats = SendLatencyTracker.getInstance().getStats(messageType, segment);
+        if (stats == null) {
+            return null;
+        }
+        return new MSIMSendLatencyStats(stats);
+    }
+
+    public void resetSendLatencyStats() {
+        SendLatencyTracker.getInstance().resetStats();
+    }
+
     public void signIn(@NonNull String token, @NonNull String tcpServerAndPort, @Nullable MSIMCallback<GeneralResult> callback) {
         final Object signInOrSignOutTag = resetSignInOrSignOutTag();
         final MSIMCallback<GeneralResult> proxy = new MSIMCallbackProxy<>(callback);
@@ -7,6 +7,7 @@ import androidx.annotation.WorkerThread;
 import com.masonsoft.imsdk.core.IMMessage;
 import com.masonsoft.imsdk.core.IMMessageManager;
 import com.masonsoft.imsdk.core.IMMessageQueueManager;
+import com.masonsoft.imsdk.core.IMSessionMessageUploadManager;
 import com.masonsoft.imsdk.core.db.TinyPage;
 import com.masonsoft.imsdk.core.observable.MessageObservable;
 import com.masonsoft.imsdk.lang.GeneralResult;
@@ -121,6 +122,21 @@ public class MSIMMessageManager {
         );
     }
 
+    /**
+     * 取消还没有开始上传的消息，取消之后消息为发送失败的状态，可以重新发送
+     *
+     * @return 取消成功返回 true, 消息已经开始上传或者已经发送时返回 false
+     */
+    @WorkerThread
+    public boolean cancelSendMessage(long sessionUserId, @NonNull MSIMMessage message) {
+        return IMSessionMessageUploadManager.getInstance().cancelSendMessage(
+                sessionUserId,
+                message.getConversationType(),
+                message.getTargetUserId(),
+                message.getMessageId()
+        );
+    }
+
     public void markAsRead(long sessionUserId, long targetUserId) {
         markAsRead(sessionUserId, targetUserId, null);
     }
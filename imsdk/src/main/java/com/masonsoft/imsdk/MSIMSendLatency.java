@@ -0,0 +1,53 @@
+package com.masonsoft.imsdk;
+
+import androidx.annotation.NonNull;
+
+import com.masonsoft.imsdk.core.SendLatencyTracker;
+
+/**
+ * 单个消息的发送耗时
+ *
+ * @since 1.0
+ */
+public class MSIMSendLatency {
+
+    @NonNull
+    private final SendLatencyTracker.Record mRecord;
+
+    MSIMSendLatency(@NonNull SendLatencyTracker.Record record) {
+        mRecord = record;
+    }
+
+    public long getSign() {
+        return mRecord.getSign();
+    }
+
+    public int getMessageType() {
+        return mRecord.getMessageType();
+    }
+
+    /**
+     * 到达指定阶段的时间点(SystemClock.elapsedRealtime), 没有经过该阶段时返回 0.
+     *
+     * @see MSIMConstants.SendLatencyStage
+     */
+    public long getStageTimeMs(int stage) {
+        return mRecord.getStageTimeMs(stage);
+    }
+
+    /**
+     * 指定分段的耗时(ms), 没有经过该分段时返回 -1.
+     *
+     * @see MSIMConstants.SendLatencySegment
+     */
+    public long getSegmentMs(int segment) {
+        return mRecord.getSegmentMs(segment);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "MSIMSendLatency{" + mRecord + '}';
+    }
+
+}
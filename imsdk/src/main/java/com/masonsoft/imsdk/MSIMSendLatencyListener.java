@@ -0,0 +1,14 @@
+package com.masonsoft.imsdk;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 消息发送成功(收到服务器响应)之后回调该消息的发送耗时, 在 sdk 内部的线程上回调.
+ *
+ * @since 1.0
+ */
+public interface MSIMSendLatencyListener {
+
+    void onSendLatency(@NonNull MSIMSendLatency sendLatency);
+
+}
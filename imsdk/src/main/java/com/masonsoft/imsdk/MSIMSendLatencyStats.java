@@ -0,0 +1,61 @@
+package com.masonsoft.imsdk;
+
+import androidx.annotation.NonNull;
+
+import com.masonsoft.imsdk.core.SendLatencyTracker;
+
+/**
+ * 某一个消息类型的某一个分段的发送耗时分布
+ *
+ * @since 1.0
+ */
+public class MSIMSendLatencyStats {
+
+    @NonNull
+    private final SendLatencyTracker.Stats mStats;
+
+    MSIMSendLatencyStats(@NonNull SendLatencyTracker.Stats stats) {
+        mStats = stats;
+    }
+
+    public int getMessageType() {
+        return mStats.messageType;
+    }
+
+    /**
+     * @see MSIMConstants.SendLatencySegment
+     */
+    public int getSegment() {
+        return mStats.segment;
+    }
+
+    /**
+     * 统计的消息数量
+     */
+    public long getCount() {
+        return mStats.count;
+    }
+
+    public long getP50Ms() {
+        return mStats.p50Ms;
+    }
+
+    public long getP95Ms() {
+        return mStats.p95Ms;
+    }
+
+    public long getP99Ms() {
+        return mStats.p99Ms;
+    }
+
+    public long getMaxMs() {
+        return mStats.maxMs;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "MSIMSendLatencyStats{" + mStats + '}';
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.masonsoft.imsdk.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.util.List;
+
+/**
+ * 支持分片上传的文件上传服务. 较大的文件会被拆分为多个分片并行上传，上传中断后已经完成的分片不会重复上传.
+ * 分片上传的 uploadId 会被持久化，在应用重启之后继续使用，服务端需要保证 uploadId 在一定时间内有效.
+ *
+ * @since 1.0
+ */
+public interface ChunkedFileUploadProvider extends FileUploadProvider {
+
+    /**
+     * 分片大小(字节). 文件大小不超过一个分片时使用 {@linkplain #uploadFile(String, String, io.github.idonans.core.Progress)} 上传.
+     */
+    long getChunkSize();
+
+    /**
+     * 开始一个分片上传
+     *
+     * @param filePath   待上传的文件地址
+     * @param mimeType   待上传的文件 mime 类型, 可能为空
+     * @param fileLength 文件大小
+     * @return 分片上传的 uploadId
+     * @throws Throwable 失败时抛出异常
+     */
+    @WorkerThread
+    @NonNull
+    String initChunkedUpload(@NonNull final String filePath, @Nullable final String mimeType, final long fileLength) throws Throwable;
+
+    /**
+     * 上传一个分片，可能在多个线程上同时调用
+     *
+     * @param uploadId   {@linkplain #initChunkedUpload(String, String, long)} 返回的 uploadId
+     * @param filePath   待上传的文件地址
+     * @param chunkIndex 分片的序号，从 0 开始
+     * @param offset     分片在文件中的起始位置
+     * @param length     分片的长度
+     * @return 服务端对该分片的标识(如 etag), 合并分片时使用
+     * @throws Throwable 失败时抛出异常
+     */
+    @WorkerThread
+    @NonNull
+    String uploadChunk(@NonNull final String uploadId,
+                       @NonNull final String filePath,
+                       final int chunkIndex,
+                       final long offset,
+                       final long length) throws Throwable;
+
+    /**
+     * 所有分片上传完成之后，合并分片
+     *
+     * @param uploadId  {@linkplain #initChunkedUpload(String, String, long)} 返回的 uploadId
+     * @param chunkTags 按照分片序号排列的 {@linkplain #uploadChunk(String, String, int, long, long)} 的返回值
+     * @return 上传成功后的可访问网络地址.
+     * @throws Throwable 失败时抛出异常
+     */
+    @WorkerThread
+    @NonNull
+    String completeChunkedUpload(@NonNull final String uploadId, @NonNull final List<String> chunkTags) throws Throwable;
+
+}
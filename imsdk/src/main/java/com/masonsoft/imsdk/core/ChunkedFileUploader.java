@@ -0,0 +1,235 @@
+package com.masonsoft.imsdk.core;
+
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.masonsoft.imsdk.lang.SafetyRunnable;
+import com.masonsoft.imsdk.util.Objects;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.github.idonans.core.Progress;
+import io.github.idonans.core.thread.TaskQueue;
+import io.github.idonans.core.util.Preconditions;
+
+/**
+ * 使用 {@linkplain ChunkedFileUploadProvider} 分片并行上传文件. 每一个文件的上传进度记录在 journal 中(以文件内容的 hash 为 key),
+ * 上传中断之后(包括应用重启)再次上传相同内容的文件时，只上传没有完成的分片.
+ *
+ * @since 1.0
+ */
+class ChunkedFileUploader {
+
+    /**
+     * journal 的持久化存储
+     */
+    interface JournalStore {
+        @Nullable
+        String get(@NonNull String key);
+
+        /**
+         * @param value 为 null 时删除
+         */
+        void set(@NonNull String key, @Nullable String value);
+    }
+
+    /**
+     * journal 的有效期，超过有效期的 uploadId 不再继续使用
+     */
+    private static final long JOURNAL_EXPIRE_MS = 24 * 60 * 60 * 1000L;
+
+    @NonNull
+    private final JournalStore mJournalStore;
+    // 所有文件共享的分片上传队列，限制同时上传的分片数量
+    @NonNull
+    private final TaskQueue mChunkQueue;
+
+    ChunkedFileUploader(@NonNull JournalStore journalStore, int maxParallelChunkCount) {
+        Preconditions.checkArgument(maxParallelChunkCount > 0);
+        mJournalStore = journalStore;
+        mChunkQueue = new TaskQueue(maxParallelChunkCount);
+    }
+
+    /**
+     * @param contentHash 文件内容的 hash, 作为 journal 的 key
+     * @return 上传成功后的可访问网络地址
+     */
+    @WorkerThread
+    @NonNull
+    String upload(@NonNull final ChunkedFileUploadProvider provider,
+                  @NonNull final String filePath,
+                  @Nullable final String mimeType,
+                  @NonNull final String contentHash,
+                  @NonNull final Progress progress) throws Throwable {
+        final long fileLength = new File(filePath).length();
+        final long chunkSize = provider.getChunkSize();
+        Preconditions.checkArgument(fileLength > 0);
+        Preconditions.checkArgument(chunkSize > 0);
+
+        final String journalKey = "journal_" + contentHash;
+        Journal journal = Journal.fromJson(mJournalStore.get(journalKey));
+        if (journal != null && !journal.isValid(fileLength, chunkSize)) {
+            IMLog.v(Objects.defaultObjectTag(this) + " discard journal %s, fileLength:%s, chunkSize:%s", journalKey, fileLength, chunkSize);
+            journal = null;
+        }
+        if (journal == null) {
+            final String uploadId = provider.initChunkedUpload(filePath, mimeType, fileLength);
+            final int chunkCount = (int) ((fileLength + chunkSize - 1) / chunkSize);
+            journal = new Journal(uploadId, fileLength, chunkSize, System.currentTimeMillis(), new String[chunkCount]);
+            mJournalStore.set(journalKey, journal.toJson());
+        }
+
+        final Journal targetJournal = journal;
+        final List<Integer> pendingChunkIndexList = new ArrayList<>();
+        synchronized (targetJournal) {
+            for (int i = 0; i < targetJournal.mChunkTags.length; i++) {
+                if (targetJournal.mChunkTags[i] == null) {
+                    pendingChunkIndexList.add(i);
+                }
+            }
+            progress.set(fileLength, targetJournal.getCompletedLength());
+        }
+        IMLog.v(Objects.defaultObjectTag(this) + " upload %s, uploadId:%s, chunk count:%s, pending chunk count:%s",
+                filePath, targetJournal.mUploadId, targetJournal.mChunkTags.length, pendingChunkIndexList.size());
+
+        final CountDownLatch latch = new CountDownLatch(pendingChunkIndexList.size());
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        for (final int chunkIndex : pendingChunkIndexList) {
+            mChunkQueue.enqueue(new SafetyRunnable(() -> {
+                try {
+                    if (error.get() != null) {
+                        // 其它分片已经失败，不再继续上传
+                        return;
+                    }
+                    final long offset = chunkIndex * chunkSize;
+                    final long length = Math.min(chunkSize, fileLength - offset);
+                    final String chunkTag = provider.uploadChunk(targetJournal.mUploadId, filePath, chunkIndex, offset, length);
+                    Preconditions.checkArgument(!TextUtils.isEmpty(chunkTag));
+                    synchronized (targetJournal) {
+                        targetJournal.mChunkTags[chunkIndex] = chunkTag;
+                        mJournalStore.set(journalKey, targetJournal.toJson());
+                        progress.set(fileLength, targetJournal.getCompletedLength());
+                    }
+                } catch (Throwable e) {
+                    IMLog.e(e, "upload chunk %s fail, uploadId:%s", chunkIndex, targetJournal.mUploadId);
+                    error.compareAndSet(null, e);
+                } finally {
+                    latch.countDown();
+                }
+            }));
+        }
+        latch.await();
+
+        final Throwable e = error.get();
+        if (e != null) {
+            // 保留 journal, 下一次上传时继续
+            throw e;
+        }
+
+        final List<String> chunkTags;
+        synchronized (targetJournal) {
+            chunkTags = Arrays.asList(targetJournal.mChunkTags.clone());
+        }
+        try {
+            return provider.completeChunkedUpload(targetJournal.mUploadId, chunkTags);
+        } finally {
+            // 合并成功或者失败之后都不再使用当前的 uploadId
+            mJournalStore.set(journalKey, null);
+        }
+    }
+
+    private static class Journal {
+        @NonNull
+        private final String mUploadId;
+        private final long mFileLength;
+        private final long mChunkSize;
+        private final long mCreateTimeMs;
+        // 已经上传完成的分片的标识，没有完成的为 null
+        @NonNull
+        private final String[] mChunkTags;
+
+        private Journal(@NonNull String uploadId, long fileLength, long chunkSize, long createTimeMs, @NonNull String[] chunkTags) {
+            mUploadId = uploadId;
+            mFileLength = fileLength;
+            mChunkSize = chunkSize;
+            mCreateTimeMs = createTimeMs;
+            mChunkTags = chunkTags;
+        }
+
+        private boolean isValid(long fileLength, long chunkSize) {
+            final long timeDiff = System.currentTimeMillis() - mCreateTimeMs;
+            return mFileLength == fileLength
+                    && mChunkSize == chunkSize
+                    && mChunkTags.length == (int) ((fileLength + chunkSize - 1) / chunkSize)
+                    && timeDiff >= 0
+                    && timeDiff < JOURNAL_EXPIRE_MS;
+        }
+
+        private long getCompletedLength() {
+            long completedLength = 0L;
+            for (int i = 0; i < mChunkTags.length; i++) {
+                if (mChunkTags[i] != null) {
+                    completedLength += Math.min(mChunkSize, mFileLength - i * mChunkSize);
+                }
+            }
+            return completedLength;
+        }
+
+        @NonNull
+        private String toJson() {
+            final JSONObject jsonObject = new JSONObject();
+            try {
+                jsonObject.put("uploadId", mUploadId);
+                jsonObject.put("fileLength", mFileLength);
+                jsonObject.put("chunkSize", mChunkSize);
+                jsonObject.put("createTimeMs", mCreateTimeMs);
+                final JSONArray chunkTags = new JSONArray();
+                for (String chunkTag : mChunkTags) {
+                    chunkTags.put(chunkTag == null ? JSONObject.NULL : chunkTag);
+                }
+                jsonObject.put("chunkTags", chunkTags);
+            } catch (Throwable e) {
+                IMLog.e(e);
+                RuntimeMode.fixme(e);
+            }
+            return jsonObject.toString();
+        }
+
+        @Nullable
+        private static Journal fromJson(@Nullable String json) {
+            if (TextUtils.isEmpty(json)) {
+                return null;
+            }
+            try {
+                final JSONObject jsonObject = new JSONObject(json);
+                final JSONArray chunkTagsArray = jsonObject.getJSONArray("chunkTags");
+                final String[] chunkTags = new String[chunkTagsArray.length()];
+                for (int i = 0; i < chunkTags.length; i++) {
+                    chunkTags[i] = chunkTagsArray.isNull(i) ? null : chunkTagsArray.getString(i);
+                }
+                return new Journal(
+                        jsonObject.getString("uploadId"),
+                        jsonObject.getLong("fileLength"),
+                        jsonObject.getLong("chunkSize"),
+                        jsonObject.getLong("createTimeMs"),
+                        chunkTags
+                );
+            } catch (Throwable e) {
+                IMLog.e(e);
+                return null;
+            }
+        }
+    }
+
+}
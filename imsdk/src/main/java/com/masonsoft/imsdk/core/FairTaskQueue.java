@@ -0,0 +1,264 @@
+package com.masonsoft.imsdk.core;
+
+import androidx.annotation.NonNull;
+
+import com.masonsoft.imsdk.util.Objects;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.github.idonans.core.thread.TaskQueue;
+import io.github.idonans.core.util.Preconditions;
+
+/**
+ * 按照优先级与公平性调度的任务队列. 优先级数值越小越先执行；相同优先级内，不同的 flow(如不同的会话)之间按照
+ * deficit round robin 轮流执行，每一个任务按照 cost 消耗所在 flow 的额度，某一个 flow 中大量的任务不会阻塞其它 flow.
+ * 同一个 flow 内按照添加的顺序执行. 尚未开始执行的任务可以取消.
+ *
+ * @since 1.0
+ */
+public class FairTaskQueue {
+
+    /**
+     * 单个任务的 cost 上限(以 quantum 为单位), 避免一个任务需要等待过多的轮次
+     */
+    private static final long MAX_COST_QUANTUM = 16L;
+
+    private final Object mLock = new Object();
+    private final int mMaxRunningCount;
+    private final long mQuantum;
+    private final TaskQueue mExecutor;
+
+    // key 为优先级, 升序
+    private final TreeMap<Integer, PriorityClass> mPriorityClasses = new TreeMap<>();
+    private int mPendingCount;
+    private int mRunningCount;
+
+    /**
+     * @param maxRunningCount 同时执行的任务数量上限
+     * @param quantum         每一个 flow 每一轮获得的额度
+     */
+    public FairTaskQueue(int maxRunningCount, long quantum) {
+        Preconditions.checkArgument(maxRunningCount > 0);
+        Preconditions.checkArgument(quantum > 0);
+        mMaxRunningCount = maxRunningCount;
+        mQuantum = quantum;
+        mExecutor = new TaskQueue(maxRunningCount);
+    }
+
+    /**
+     * 添加一个任务
+     *
+     * @param flowKey  任务所属的 flow, 相同 flow 内按照添加的顺序执行
+     * @param priority 优先级，数值越小越先执行
+     * @param cost     任务消耗的额度，如需要上传的字节数
+     */
+    @NonNull
+    public Task enqueue(@NonNull String flowKey, int priority, long cost, @NonNull Runnable runnable) {
+        final Task task = new Task(flowKey, priority, Math.max(1L, Math.min(cost, mQuantum * MAX_COST_QUANTUM)), runnable);
+        synchronized (mLock) {
+            PriorityClass priorityClass = mPriorityClasses.get(priority);
+            if (priorityClass == null) {
+                priorityClass = new PriorityClass();
+                mPriorityClasses.put(priority, priorityClass);
+            }
+            priorityClass.add(task);
+            mPendingCount++;
+        }
+        schedule();
+        return task;
+    }
+
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPendingCount;
+        }
+    }
+
+    public int getRunningCount() {
+        synchronized (mLock) {
+            return mRunningCount;
+        }
+    }
+
+    private void schedule() {
+        synchronized (mLock) {
+            while (mRunningCount < mMaxRunningCount) {
+                Task next = null;
+                for (PriorityClass priorityClass : mPriorityClasses.values()) {
+                    next = priorityClass.poll();
+                    if (next != null) {
+                        break;
+                    }
+                }
+                if (next == null) {
+                    return;
+                }
+
+                next.mStarted = true;
+                mPendingCount--;
+                mRunningCount++;
+                final Task task = next;
+                mExecutor.enqueue(() -> runTask(task));
+            }
+        }
+    }
+
+    private void runTask(@NonNull Task task) {
+        try {
+            task.mRunnable.run();
+        } catch (Throwable e) {
+            IMLog.e(e);
+            RuntimeMode.fixme(e);
+        } finally {
+            synchronized (mLock) {
+                mRunningCount--;
+            }
+            schedule();
+        }
+    }
+
+    public void printDetail(@NonNull StringBuilder builder) {
+        synchronized (mLock) {
+            builder.append(Objects.defaultObjectTag(this))
+                    .append(" pending count:").append(mPendingCount)
+                    .append(", running count:").append(mRunningCount)
+                    .append(", max running count:").append(mMaxRunningCount)
+                    .append(", quantum:").append(mQuantum).append("\n");
+            for (Map.Entry<Integer, PriorityClass> entry : mPriorityClasses.entrySet()) {
+                builder.append("priority:").append(entry.getKey())
+                        .append(" flow count:").append(entry.getValue().mActiveFlows.size()).append("\n");
+            }
+        }
+    }
+
+    /**
+     * 队列中的一个任务
+     */
+    public class Task {
+
+        @NonNull
+        private final String mFlowKey;
+        private final int mPriority;
+        private final long mCost;
+        @NonNull
+        private final Runnable mRunnable;
+
+        private boolean mStarted;
+        private boolean mCancelled;
+
+        private Task(@NonNull String flowKey, int priority, long cost, @NonNull Runnable runnable) {
+            mFlowKey = flowKey;
+            mPriority = priority;
+            mCost = cost;
+            mRunnable = runnable;
+        }
+
+        /**
+         * 取消尚未开始执行的任务. 如果任务已经开始执行或者已经取消，返回 false.
+         */
+        public boolean cancel() {
+            synchronized (mLock) {
+                if (mStarted || mCancelled) {
+                    return false;
+                }
+                mCancelled = true;
+                final PriorityClass priorityClass = mPriorityClasses.get(mPriority);
+                if (priorityClass != null) {
+                    priorityClass.remove(this);
+                }
+                mPendingCount--;
+                return true;
+            }
+        }
+
+        public boolean isStarted() {
+            synchronized (mLock) {
+                return mStarted;
+            }
+        }
+    }
+
+    private static class Flow {
+        @NonNull
+        private final String mKey;
+        private final ArrayDeque<Task> mTasks = new ArrayDeque<>();
+        private long mDeficit;
+
+        private Flow(@NonNull String key) {
+            mKey = key;
+        }
+    }
+
+    /**
+     * 相同优先级的任务，在 flow 之间按照 deficit round robin 调度. 所有操作都在 mLock 中执行.
+     */
+    private class PriorityClass {
+
+        // 有待执行任务的 flow, 队首是当前轮到的 flow
+        private final ArrayDeque<Flow> mActiveFlows = new ArrayDeque<>();
+        private final Map<String, Flow> mFlows = new HashMap<>();
+
+        private void add(@NonNull Task task) {
+            Flow flow = mFlows.get(task.mFlowKey);
+            if (flow == null) {
+                flow = new Flow(task.mFlowKey);
+                mFlows.put(flow.mKey, flow);
+                mActiveFlows.addLast(flow);
+                if (mActiveFlows.size() == 1) {
+                    // 开始新的一轮
+                    flow.mDeficit += mQuantum;
+                }
+            }
+            flow.mTasks.addLast(task);
+        }
+
+        private Task poll() {
+            while (true) {
+                final Flow flow = mActiveFlows.peekFirst();
+                if (flow == null) {
+                    return null;
+                }
+                final Task task = flow.mTasks.peekFirst();
+                if (flow.mDeficit >= task.mCost) {
+                    flow.mDeficit -= task.mCost;
+                    flow.mTasks.pollFirst();
+                    if (flow.mTasks.isEmpty()) {
+                        removeFlow(flow);
+                    }
+                    return task;
+                }
+
+                // 当前 flow 本轮的额度不足，轮到下一个 flow
+                mActiveFlows.pollFirst();
+                mActiveFlows.addLast(flow);
+                //noinspection ConstantConditions
+                mActiveFlows.peekFirst().mDeficit += mQuantum;
+            }
+        }
+
+        private void remove(@NonNull Task task) {
+            final Flow flow = mFlows.get(task.mFlowKey);
+            if (flow == null) {
+                return;
+            }
+            flow.mTasks.remove(task);
+            if (flow.mTasks.isEmpty()) {
+                removeFlow(flow);
+            }
+        }
+
+        private void removeFlow(@NonNull Flow flow) {
+            final boolean head = mActiveFlows.peekFirst() == flow;
+            mActiveFlows.remove(flow);
+            mFlows.remove(flow.mKey);
+            final Flow next = mActiveFlows.peekFirst();
+            if (head && next != null) {
+                next.mDeficit += mQuantum;
+            }
+        }
+    }
+
+}
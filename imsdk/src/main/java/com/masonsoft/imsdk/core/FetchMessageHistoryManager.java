@@ -12,18 +12,21 @@ import com.masonsoft.imsdk.core.db.DatabaseSessionWriteLock;
 import com.masonsoft.imsdk.core.db.Message;
 import com.masonsoft.imsdk.core.db.MessageDatabaseProvider;
 import com.masonsoft.imsdk.core.db.MessageFactory;
+import com.masonsoft.imsdk.core.message.ProtoRepeatedFieldStream;
 import com.masonsoft.imsdk.core.message.SessionProtoByteMessageWrapper;
 import com.masonsoft.imsdk.core.message.packet.MessagePacket;
 import com.masonsoft.imsdk.core.message.packet.NotNullTimeoutMessagePacket;
 import com.masonsoft.imsdk.core.observable.FetchMessageHistoryObservable;
 import com.masonsoft.imsdk.core.observable.MessagePacketStateObservable;
 import com.masonsoft.imsdk.core.proto.ProtoMessage;
+import com.masonsoft.imsdk.core.session.InFlightRequestLimiter;
 import com.masonsoft.imsdk.core.session.SessionTcpClient;
 import com.masonsoft.imsdk.lang.GeneralErrorCode;
 import com.masonsoft.imsdk.lang.GeneralErrorCodeException;
 import com.masonsoft.imsdk.lang.SafetyRunnable;
 import com.masonsoft.imsdk.util.Objects;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -51,6 +54,11 @@ public class FetchMessageHistoryManager {
         return INSTANCE.get();
     }
 
+    /**
+     * 每个登录用户同时等待响应结果的历史消息请求数量上限
+     */
+    static final int MAX_IN_FLIGHT_COUNT = 4;
+
     private final Map<Long, SessionWorker> mSessionWorkerMap = new HashMap<>();
 
     private FetchMessageHistoryManager() {
@@ -81,16 +89,16 @@ public class FetchMessageHistoryManager {
         getSessionWorker(sessionUserId).enqueueFetchMessageHistory(sign, conversationType, targetUserId, blockId, history);
     }
 
-    public boolean dispatchTcpResponse(final long sign, @NonNull final SessionProtoByteMessageWrapper wrapper) {
-        return getSessionWorker(wrapper.getSessionUserId()).dispatchTcpResponse(sign, wrapper);
-    }
-
     private static class SessionWorker implements DebugManager.DebugInfoProvider {
 
         private final long mSessionUserId;
         private final List<FetchMessageObjectWrapperTask> mAllRunningTasks = new ArrayList<>();
         private final TaskQueue mActionQueue = new TaskQueue(1);
         private final TaskQueue mQueue = new TaskQueue(1);
+        /**
+         * 同时等待响应结果的历史消息请求数量上限. 响应(ChatRBatch)的处理成本较高，上限较小.
+         */
+        private final InFlightRequestLimiter mInFlightRequestLimiter = new InFlightRequestLimiter(MAX_IN_FLIGHT_COUNT);
 
         private SessionWorker(long sessionUserId) {
             mSessionUserId = sessionUserId;
@@ -110,6 +118,7 @@ public class FetchMessageHistoryManager {
             builder.append("mQueue --:").append("\n");
             mQueue.printDetail(builder);
             builder.append("mQueue -- end").append("\n");
+            mInFlightRequestLimiter.printDetail(builder);
             builder.append(tag).append(" -- end\n");
         }
 
@@ -127,27 +136,7 @@ public class FetchMessageHistoryManager {
                         blockId,
                         history
                 );
-                final FetchMessageObjectWrapperTask task = new FetchMessageObjectWrapperTask(fetchMessageObjectWrapper) {
-                    @Override
-                    public void run() {
-                        try {
-                            super.run();
-                        } catch (Throwable e) {
-                            IMLog.e(e, "unexpected");
-                        }
-                        fetchMessageObjectWrapper.onTaskEnd();
-                        synchronized (mAllRunningTasks) {
-                            final FetchMessageObjectWrapperTask existsTask = removeTask(sign);
-                            if (existsTask == null) {
-                                IMLog.e("unexpected removeTask return null sign:%s", sign);
-                            } else if (existsTask != this) {
-                                IMLog.e("unexpected removeTask return another value sign:%s", sign);
-                            } else {
-                                IMLog.v("success remove task sign:%s", sign);
-                            }
-                        }
-                    }
-                };
+                final FetchMessageObjectWrapperTask task = new FetchMessageObjectWrapperTask(fetchMessageObjectWrapper);
 
                 synchronized (mAllRunningTasks) {
                     mAllRunningTasks.add(task);
@@ -156,31 +145,6 @@ public class FetchMessageHistoryManager {
             }));
         }
 
-        private boolean dispatchTcpResponse(final long sign, @NonNull final SessionProtoByteMessageWrapper wrapper) {
-            synchronized (mAllRunningTasks) {
-                final FetchMessageObjectWrapperTask task = getTask(sign);
-                if (task == null) {
-                    return false;
-                }
-                if (task.mFetchMessageObjectWrapper.dispatchTcpResponse(sign, wrapper)) {
-                    return true;
-                }
-            }
-            return false;
-        }
-
-        @Nullable
-        private FetchMessageObjectWrapperTask getTask(final long sign) {
-            synchronized (mAllRunningTasks) {
-                for (FetchMessageObjectWrapperTask task : mAllRunningTasks) {
-                    if (task.mFetchMessageObjectWrapper.mSign == sign) {
-                        return task;
-                    }
-                }
-            }
-            return null;
-        }
-
         @Nullable
         private FetchMessageObjectWrapperTask removeTask(final long sign) {
             synchronized (mAllRunningTasks) {
@@ -232,11 +196,9 @@ public class FetchMessageHistoryManager {
                         return;
                     }
 
-                    boolean notify = false;
                     final FetchMessageHistoryMessagePacket fetchMessageHistoryMessagePacket = (FetchMessageHistoryMessagePacket) packet;
                     if (newState == MessagePacket.STATE_FAIL) {
                         // 消息发送失败
-                        notify = true;
                         IMLog.v("onStateChanged STATE_FAIL fetchMessageHistoryMessagePacket errorCode:%s, errorMessage:%s, timeout:%s",
                                 fetchMessageHistoryMessagePacket.getErrorCode(),
                                 fetchMessageHistoryMessagePacket.getErrorMessage(),
@@ -249,17 +211,8 @@ public class FetchMessageHistoryManager {
                         notifySendStatus(IMConstants.SendStatus.FAIL);
                     } else if (newState == MessagePacket.STATE_SUCCESS) {
                         // 消息发送成功
-                        notify = true;
                         notifySendStatus(IMConstants.SendStatus.SUCCESS);
                     }
-
-                    if (notify) {
-                        // @see FetchMessageObjectWrapperTask#run -> "// wait message packet result"
-                        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-                        synchronized (fetchMessageHistoryMessagePacket) {
-                            fetchMessageHistoryMessagePacket.notify();
-                        }
-                    }
                 }
             };
 
@@ -533,23 +486,6 @@ public class FetchMessageHistoryManager {
                 return fetchMessageHistoryMessagePacket;
             }
 
-            private boolean dispatchTcpResponse(final long sign, @NonNull final SessionProtoByteMessageWrapper wrapper) {
-                final FetchMessageHistoryMessagePacket fetchMessageHistoryMessagePacket = mFetchMessageHistoryMessagePacket;
-                if (fetchMessageHistoryMessagePacket == null) {
-                    final Throwable e = new IllegalStateException(Objects.defaultObjectTag(this) + " unexpected mFetchMessageHistoryMessagePacket is null");
-                    IMLog.e(e);
-                    return false;
-                }
-                if (mSign != sign) {
-                    final Throwable e = new IllegalStateException(Objects.defaultObjectTag(this) + " unexpected sign not match mSign:" + mSign + ", sign:" + sign);
-                    IMLog.e(e);
-                    return false;
-                }
-                final boolean result = fetchMessageHistoryMessagePacket.doProcess(wrapper);
-                IMLog.v(Objects.defaultObjectTag(this) + " dispatchTcpResponse fetchMessageHistoryMessagePacket.doProcess result:%s", result);
-                return result;
-            }
-
             private class FetchMessageHistoryMessagePacket extends NotNullTimeoutMessagePacket {
 
                 public FetchMessageHistoryMessagePacket(ProtoByteMessage protoByteMessage, long sign) {
@@ -608,9 +544,14 @@ public class FetchMessageHistoryManager {
                                     return false;
                                 }
 
-                                if (!doNotNullProcessChatRBatchInternal(chatRBatch)) {
+                                if (!doNotNullProcessChatRBatchInternal(target, chatRBatch)) {
+                                    // 消息没有完整入库，结束为失败，由调用方重试
                                     final Throwable e = new IllegalStateException("unexpected. doNotNullProcessChatRBatchInternal return false. sign:" + getSign());
                                     IMLog.e(e);
+                                    setErrorCode(GeneralErrorCode.ERROR_CODE_UNKNOWN);
+                                    setErrorMessage(GeneralErrorCode.findDefaultErrorMessage(GeneralErrorCode.ERROR_CODE_UNKNOWN));
+                                    moveToState(STATE_FAIL);
+                                    return true;
                                 }
                                 moveToState(STATE_SUCCESS);
                             }
@@ -622,23 +563,157 @@ public class FetchMessageHistoryManager {
                 }
 
                 private boolean doNotNullProcessChatRBatchInternal(
+                        @NonNull SessionProtoByteMessageWrapper target,
                         @NonNull ProtoMessage.ChatRBatch chatRBatch) {
-                    final List<Message> messageList = new ArrayList<>();
-                    final List<ProtoMessage.ChatR> chatRList = chatRBatch.getMsgsList();
-                    if (chatRList != null) {
-                        for (ProtoMessage.ChatR chatR : chatRList) {
-                            if (chatR != null) {
-                                messageList.add(MessageFactory.create(chatR));
+                    // 较大的 ChatRBatch 以流的方式解析，消息按批转换并入库. 只顺序读取一次，第一条和最后一条消息在读取的过程中记录.
+                    final ProtoRepeatedFieldStream<ProtoMessage.ChatR> stream = target.getProtoByteMessageWrapper()
+                            .getRepeatedFieldStream(ProtoMessage.ChatR.class);
+                    final ProtoRepeatedFieldStream.ChunkReader<ProtoMessage.ChatR> chunkReader;
+                    if (stream != null) {
+                        chunkReader = stream.newChunkReader(ProtoRepeatedFieldStream.DEFAULT_CHUNK_SIZE);
+                    } else {
+                        chunkReader = ProtoRepeatedFieldStream.newChunkReader(
+                                chatRBatch.getMsgsList(), ProtoRepeatedFieldStream.DEFAULT_CHUNK_SIZE);
+                    }
+
+                    final long sessionUserId = mSessionUserId;
+                    final int conversationType = IMConstants.ConversationType.C2C;
+                    final DatabaseHelper databaseHelper = DatabaseProvider.getInstance().getDBHelper(sessionUserId);
+
+                    long bestBlockId = 0L;
+                    if (mRemoteMessageEnd > 0) {
+                        // 使用与 mRemoteMessageEnd 相同的 blockId
+                        final Message message = MessageDatabaseProvider.getInstance().getMessageWithRemoteMessageId(
+                                mSessionUserId,
+                                mConversationType,
+                                mTargetUserId,
+                                mRemoteMessageEnd
+                        );
+                        if (message == null) {
+                            IMLog.e("unexpected. message is null, mRemoteMessageEnd:%s", mRemoteMessageEnd);
+                        } else {
+                            bestBlockId = message.localBlockId.get();
+                        }
+                    }
+
+                    int batchSize = 0;
+                    // messageList 中的所有消息是连续的，并且是有序的(按照 msg id 有序), 只需要记录第一条和最后一条
+                    Message firstMessage = null;
+                    Message lastMessage = null;
+                    long targetUserId = 0L;
+                    // 写入过程中使用的 block id, 只与第一条消息相邻的 block 连通. 全部写入成功之后再与 bestBlockId 以及两端的 block 连通.
+                    long blockId = 0L;
+                    Message conversationBestShowMessage = null;
+                    try {
+                        List<ProtoMessage.ChatR> chatRList;
+                        while ((chatRList = chunkReader.nextChunk()) != null) {
+                            final List<Message> messageList = new ArrayList<>(chatRList.size());
+                            for (ProtoMessage.ChatR chatR : chatRList) {
+                                if (chatR != null) {
+                                    messageList.add(MessageFactory.create(chatR));
+                                }
+                            }
+                            if (messageList.isEmpty()) {
+                                continue;
+                            }
+
+                            if (firstMessage == null) {
+                                firstMessage = messageList.get(0);
+
+                                final long fromUserId = firstMessage.fromUserId.get();
+                                final long toUserId = firstMessage.toUserId.get();
+                                if (fromUserId != sessionUserId && toUserId != sessionUserId) {
+                                    IMLog.e("unexpected. sessionUserId:%s invalid fromUserId and toUserId %s", sessionUserId, firstMessage);
+                                    return false;
+                                }
+
+                                final boolean received = fromUserId != sessionUserId;
+                                targetUserId = received ? fromUserId : toUserId;
+
+                                blockId = MessageBlock.generateBlockId(
+                                        sessionUserId,
+                                        conversationType,
+                                        targetUserId,
+                                        firstMessage.remoteMessageId.get()
+                                );
+                                Preconditions.checkArgument(blockId > 0);
+                            }
+                            lastMessage = messageList.get(messageList.size() - 1);
+                            batchSize += messageList.size();
+
+                            for (Message message : messageList) {
+                                message.applyLogicField(sessionUserId, conversationType, targetUserId);
+
+                                final int messageType = message.messageType.get();
+                                if (messageType == IMConstants.MessageType.REVOKE_MESSAGE) {
+                                    // 撤回了一条消息，如果目标消息在本地，则需要将目标消息的类型修改为已撤回
+                                    final long targetMessageId = Long.parseLong(message.body.get().trim());
+                                    final Message dbMessage = MessageDatabaseProvider.getInstance().getMessageWithRemoteMessageId(
+                                            sessionUserId,
+                                            conversationType,
+                                            targetUserId,
+                                            targetMessageId);
+                                    if (dbMessage != null) {
+                                        if (dbMessage.messageType.get() != IMConstants.MessageType.REVOKED) {
+                                            // 将本地目标消息修改为已撤回
+                                            synchronized (DatabaseSessionWriteLock.getInstance().getSessionWriteLock(databaseHelper)) {
+                                                final Message messageUpdate = new Message();
+                                                messageUpdate.localId.apply(dbMessage.localId);
+                                                messageUpdate.messageType.set(IMConstants.MessageType.REVOKED);
+                                                MessageDatabaseProvider.getInstance().updateMessage(
+                                                        sessionUserId,
+                                                        conversationType,
+                                                        targetUserId,
+                                                        messageUpdate);
+                                            }
+                                        }
+                                    }
+                                }
+                            }
+
+                            // 每一批消息单独持有写锁，避免长时间阻塞其它写操作
+                            synchronized (DatabaseSessionWriteLock.getInstance().getSessionWriteLock(databaseHelper)) {
+                                for (Message message : messageList) {
+                                    // 设置 block id
+                                    message.localBlockId.set(blockId);
+                                }
+
+                                // 已经存在的消息会回写 localId, 必要时更新 message type 与 block id
+                                final List<Message> insertedMessageList = MessageDatabaseProvider.getInstance().upsertMessages(
+                                        sessionUserId,
+                                        conversationType,
+                                        targetUserId,
+                                        messageList);
+                                if (insertedMessageList == null) {
+                                    // 这一批消息已经回滚，不能扩展 block id
+                                    final Throwable e = new IllegalStateException("unexpected upsertMessages return null, size:" + messageList.size());
+                                    IMLog.e(e);
+                                    return false;
+                                }
+                                for (Message message : insertedMessageList) {
+                                    // 新消息入库成功
+                                    if (message.localActionMessage.get() > 0) {
+                                        continue;
+                                    }
+                                    if (conversationBestShowMessage == null
+                                            || conversationBestShowMessage.localSeq.get() < message.localSeq.get()) {
+                                        conversationBestShowMessage = message;
+                                    }
+                                }
                             }
                         }
+                    } catch (IOException e) {
+                        // 消息没有完整读取，已经写入的消息只与第一条消息相邻的 block 连通，不扩展 block id
+                        IMLog.e(e, "fail to read ChatRBatch, read size:%s, stream:%s", batchSize, stream);
+                        return false;
                     }
 
-                    if (messageList.isEmpty()) {
+                    if (firstMessage == null) {
                         IMLog.w(new IllegalArgumentException("unexpected ChatRBatch is empty"));
 
                         // mRemoteMessageStart 与 mRemoteMessageEnd 直接连通
                         if (mRemoteMessageStart > 0 && mRemoteMessageEnd > 0) {
-                            long blockId = 0L;
+                            long emptyBlockId = 0L;
                             {
                                 final Message message = MessageDatabaseProvider.getInstance().getMessageWithRemoteMessageId(
                                         mSessionUserId,
@@ -649,10 +724,10 @@ public class FetchMessageHistoryManager {
                                 if (message == null) {
                                     IMLog.e(new IllegalArgumentException("unexpected message[mRemoteMessageEnd:" + mRemoteMessageEnd + "] not found"));
                                 } else {
-                                    blockId = message.localBlockId.get();
+                                    emptyBlockId = message.localBlockId.get();
                                 }
                             }
-                            if (blockId > 0) {
+                            if (emptyBlockId > 0) {
                                 final Message message = MessageDatabaseProvider.getInstance().getMessageWithRemoteMessageId(
                                         mSessionUserId,
                                         mConversationType,
@@ -663,20 +738,19 @@ public class FetchMessageHistoryManager {
                                     IMLog.e(new IllegalArgumentException("unexpected message[mRemoteMessageStart:" + mRemoteMessageStart + "] not found"));
                                 } else {
                                     final long preBlockId = message.localBlockId.get();
-                                    if (preBlockId == blockId) {
+                                    if (preBlockId == emptyBlockId) {
                                         IMLog.e(new IllegalArgumentException("unexpected message[mRemoteMessageStart:" + mRemoteMessageStart
                                                 + ", mRemoteMessageEnd:" + mRemoteMessageEnd + "] already has same block id:" + preBlockId));
                                     } else {
                                         IMLog.v("start update block id %s -> %s. mRemoteMessageStart:%s, mRemoteMessageEnd:%s",
-                                                preBlockId, blockId, mRemoteMessageStart, mRemoteMessageEnd);
-                                        final DatabaseHelper databaseHelper = DatabaseProvider.getInstance().getDBHelper(mSessionUserId);
+                                                preBlockId, emptyBlockId, mRemoteMessageStart, mRemoteMessageEnd);
                                         synchronized (DatabaseSessionWriteLock.getInstance().getSessionWriteLock(databaseHelper)) {
                                             if (!MessageDatabaseProvider.getInstance().updateBlockId(
                                                     mSessionUserId,
                                                     mConversationType,
                                                     mTargetUserId,
                                                     preBlockId,
-                                                    blockId)) {
+                                                    emptyBlockId)) {
                                                 IMLog.e(Objects.defaultObjectTag(this) + " unexpected. updateBlockId return false");
                                             }
                                         }
@@ -687,174 +761,28 @@ public class FetchMessageHistoryManager {
                         return true;
                     }
 
-                    IMLog.v("[%s] doNotNullProcessChatRBatchInternal batch size:%s", Objects.defaultObjectTag(this), messageList.size());
-                    // messageList 中的所有消息是连续的，并且是有序的(按照 msg id 有序)
+                    IMLog.v("[%s] doNotNullProcessChatRBatchInternal batch size:%s, stream:%s", Objects.defaultObjectTag(this), batchSize, stream != null);
 
                     // server message id 最大和最小的那一条(对比第一条和最后一条)
-                    final Message minMessage, maxMessage;
-                    {
-                        final Message firstMessage = messageList.get(0);
-                        final Message lastMessage = messageList.get(messageList.size() - 1);
-                        if (firstMessage.remoteMessageId.get() < lastMessage.remoteMessageId.get()) {
-                            minMessage = firstMessage;
-                            maxMessage = lastMessage;
-                        } else {
-                            minMessage = lastMessage;
-                            maxMessage = firstMessage;
-                        }
-                    }
+                    final long minRemoteMessageId = Math.min(firstMessage.remoteMessageId.get(), lastMessage.remoteMessageId.get());
+                    final long maxRemoteMessageId = Math.max(firstMessage.remoteMessageId.get(), lastMessage.remoteMessageId.get());
 
-                    final long sessionUserId = mSessionUserId;
-                    final long targetUserId;
-                    {
-                        final long fromUserId = maxMessage.fromUserId.get();
-                        final long toUserId = maxMessage.toUserId.get();
-                        if (fromUserId != sessionUserId && toUserId != sessionUserId) {
-                            IMLog.e("unexpected. sessionUserId:%s invalid fromUserId and toUserId %s", sessionUserId, maxMessage);
-                            return false;
-                        }
-
-                        final boolean received = fromUserId != sessionUserId;
-                        targetUserId = received ? fromUserId : toUserId;
-                    }
-                    final int conversationType = IMConstants.ConversationType.C2C;
-
-                    for (Message message : messageList) {
-                        message.applyLogicField(sessionUserId, conversationType, targetUserId);
-
-                        final int messageType = message.messageType.get();
-                        if (messageType == IMConstants.MessageType.REVOKE_MESSAGE) {
-                            // 撤回了一条消息，如果目标消息在本地，则需要将目标消息的类型修改为已撤回
-                            final long targetMessageId = Long.parseLong(message.body.get().trim());
-                            final Message dbMessage = MessageDatabaseProvider.getInstance().getMessageWithRemoteMessageId(
-                                    sessionUserId,
-                                    conversationType,
-                                    targetUserId,
-                                    targetMessageId);
-                            if (dbMessage != null) {
-                                if (dbMessage.messageType.get() != IMConstants.MessageType.REVOKED) {
-                                    // 将本地目标消息修改为已撤回
-                                    final DatabaseHelper databaseHelper = DatabaseProvider.getInstance().getDBHelper(sessionUserId);
-                                    synchronized (DatabaseSessionWriteLock.getInstance().getSessionWriteLock(databaseHelper)) {
-                                        final Message messageUpdate = new Message();
-                                        messageUpdate.localId.apply(dbMessage.localId);
-                                        messageUpdate.messageType.set(IMConstants.MessageType.REVOKED);
-                                        MessageDatabaseProvider.getInstance().updateMessage(
-                                                sessionUserId,
-                                                conversationType,
-                                                targetUserId,
-                                                messageUpdate);
-                                    }
-                                }
-                            }
-                        }
-                    }
-
-                    long bestBlockId = 0L;
-                    if (mRemoteMessageEnd > 0) {
-                        // 使用与 mRemoteMessageEnd 相同的 blockId
-                        final Message message = MessageDatabaseProvider.getInstance().getMessageWithRemoteMessageId(
-                                mSessionUserId,
-                                mConversationType,
-                                mTargetUserId,
-                                mRemoteMessageEnd
-                        );
-                        if (message == null) {
-                            IMLog.e("unexpected. message is null, mRemoteMessageEnd:%s", mRemoteMessageEnd);
-                        } else {
-                            bestBlockId = message.localBlockId.get();
-                        }
-                    }
-
-                    final long blockId;
-                    if (bestBlockId > 0) {
-                        blockId = bestBlockId;
-                    } else {
-                        blockId = MessageBlock.generateBlockId(
-                                sessionUserId,
-                                conversationType,
-                                targetUserId,
-                                maxMessage.remoteMessageId.get()
-                        );
-                    }
-                    Preconditions.checkArgument(blockId > 0);
-
-                    final DatabaseHelper databaseHelper = DatabaseProvider.getInstance().getDBHelper(sessionUserId);
                     synchronized (DatabaseSessionWriteLock.getInstance().getSessionWriteLock(databaseHelper)) {
-                        Message conversationBestShowMessage = null;
-
-                        for (Message message : messageList) {
-                            final boolean actionMessage = message.localActionMessage.get() > 0;
-                            final long remoteMessageId = message.remoteMessageId.get();
-                            // 设置 block id
-                            message.localBlockId.set(blockId);
-
-                            final Message dbMessage = MessageDatabaseProvider.getInstance().getMessageWithRemoteMessageId(
+                        if (bestBlockId > 0 && bestBlockId != blockId) {
+                            // 全部写入成功，与 mRemoteMessageEnd 所在的 block 连通
+                            if (!MessageDatabaseProvider.getInstance().updateBlockId(
                                     sessionUserId,
                                     conversationType,
                                     targetUserId,
-                                    remoteMessageId);
-                            if (dbMessage == null) {
-                                // 如果消息在本地不存在，则入库
-                                if (!MessageDatabaseProvider.getInstance().insertMessage(
-                                        sessionUserId,
-                                        conversationType,
-                                        targetUserId,
-                                        message)) {
-                                    final Throwable e = new IllegalStateException("unexpected insertMessage return false " + message);
-                                    IMLog.e(e);
-                                } else {
-                                    // 新消息入库成功
-                                    if (!actionMessage) {
-                                        if (conversationBestShowMessage == null
-                                                || conversationBestShowMessage.localSeq.get() < message.localSeq.get()) {
-                                            conversationBestShowMessage = message;
-                                        }
-                                    }
-                                }
-                            } else {
-                                // 消息已经存在
-                                // 回写 localId
-                                message.localId.set(dbMessage.localId.get());
-
-                                // 更新必要字段
-                                boolean requireUpdate = false;
-                                final Message messageUpdate = new Message();
-                                messageUpdate.applyLogicField(sessionUserId, conversationType, targetUserId);
-                                messageUpdate.localId.set(dbMessage.localId.get());
-
-                                {
-                                    // 校验是否需要更新 message type
-                                    final int dbMessageType = dbMessage.messageType.get();
-                                    final int newMessageType = message.messageType.get();
-                                    if (dbMessageType != newMessageType) {
-                                        requireUpdate = true;
-                                        messageUpdate.messageType.set(newMessageType);
-                                    }
-                                }
-                                {
-                                    // 校验是否需要更新 block id
-                                    final long dbMessageBlockId = dbMessage.localBlockId.get();
-                                    final long newMessageBlockId = message.localBlockId.get();
-                                    Preconditions.checkArgument(newMessageBlockId > 0);
-                                    if (dbMessageBlockId != newMessageBlockId) {
-                                        requireUpdate = true;
-                                        messageUpdate.localBlockId.set(newMessageBlockId);
-                                    }
-                                }
-
-                                if (requireUpdate) {
-                                    if (!MessageDatabaseProvider.getInstance().updateMessage(
-                                            sessionUserId, conversationType, targetUserId, messageUpdate)) {
-                                        final Throwable e = new IllegalStateException("unexpected updateMessage return false " + messageUpdate);
-                                        IMLog.e(e);
-                                    }
-                                }
+                                    blockId,
+                                    bestBlockId)) {
+                                IMLog.e(Objects.defaultObjectTag(this) + " unexpected. updateBlockId return false");
                             }
                         }
 
                         // expand block id
-                        MessageBlock.expandBlockId(sessionUserId, conversationType, targetUserId, minMessage.remoteMessageId.get());
+                        MessageBlock.expandBlockId(sessionUserId, conversationType, targetUserId, minRemoteMessageId);
+                        MessageBlock.expandBlockId(sessionUserId, conversationType, targetUserId, maxRemoteMessageId);
 
                         try {
                             // 更新对应会话的最后一条关联消息
@@ -881,6 +809,9 @@ public class FetchMessageHistoryManager {
             @NonNull
             private final FetchMessageObjectWrapper mFetchMessageObjectWrapper;
 
+            private final AtomicBoolean mInFlight = new AtomicBoolean(false);
+            private final AtomicBoolean mEnd = new AtomicBoolean(false);
+
             private FetchMessageObjectWrapperTask(@NonNull FetchMessageObjectWrapper fetchMessageObjectWrapper) {
                 mFetchMessageObjectWrapper = fetchMessageObjectWrapper;
             }
@@ -921,6 +852,7 @@ public class FetchMessageHistoryManager {
 
             @Override
             public void run() {
+                boolean async = false;
                 try {
                     if (mFetchMessageObjectWrapper.hasError()) {
                         return;
@@ -942,31 +874,19 @@ public class FetchMessageHistoryManager {
                         return;
                     }
 
+                    // 等待响应结果的请求数量达到上限时在此等待
+                    mInFlightRequestLimiter.acquire();
+                    mInFlight.set(true);
+
                     // 通过长连接发送 proto buf
                     final SessionTcpClient sessionTcpClient = this.waitTcpClientConnected();
                     if (sessionTcpClient == null) {
                         return;
                     }
 
-                    sessionTcpClient.sendMessagePacketQuietly(messagePacket);
-                    if (messagePacket.getState() != MessagePacket.STATE_WAIT_RESULT) {
-                        mFetchMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_MESSAGE_PACKET_SEND_FAIL);
-                        return;
-                    }
-
-                    // wait message packet result
-                    while (messagePacket.getState() == MessagePacket.STATE_WAIT_RESULT) {
-                        IMLog.v(Objects.defaultObjectTag(this) + " wait message packet result %s", messagePacket);
-                        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-                        synchronized (messagePacket) {
-                            try {
-                                messagePacket.wait(2000L);
-                            } catch (InterruptedException e) {
-                                IMLog.v("messagePacket wait interrupted %s", messagePacket);
-                            }
-                        }
-                    }
-                    IMLog.v(Objects.defaultObjectTag(this) + " body run end. %s", messagePacket);
+                    // 不在当前线程等待响应结果，消息包结束时回调 onMessagePacketEnd
+                    sessionTcpClient.sendMessagePacketAsync(messagePacket, this::onMessagePacketEnd);
+                    async = true;
                 } catch (Throwable e) {
                     IMLog.e(e);
                     if (e instanceof GeneralErrorCodeException) {
@@ -974,6 +894,43 @@ public class FetchMessageHistoryManager {
                     } else if (mFetchMessageObjectWrapper.mErrorCode == 0) {
                         mFetchMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_UNKNOWN);
                     }
+                } finally {
+                    if (!async) {
+                        end();
+                    }
+                }
+            }
+
+            private void onMessagePacketEnd(@NonNull MessagePacket messagePacket) {
+                IMLog.v(Objects.defaultObjectTag(this) + " message packet end. %s", messagePacket);
+                if (!messagePacket.isSuccess() && !mFetchMessageObjectWrapper.hasError()) {
+                    mFetchMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_MESSAGE_PACKET_SEND_FAIL);
+                }
+                end();
+            }
+
+            /**
+             * 任务结束，至多执行一次
+             */
+            private void end() {
+                if (!mEnd.compareAndSet(false, true)) {
+                    return;
+                }
+                if (mInFlight.compareAndSet(true, false)) {
+                    mInFlightRequestLimiter.release();
+                }
+
+                mFetchMessageObjectWrapper.onTaskEnd();
+                final long sign = mFetchMessageObjectWrapper.mSign;
+                synchronized (mAllRunningTasks) {
+                    final FetchMessageObjectWrapperTask existsTask = removeTask(sign);
+                    if (existsTask == null) {
+                        IMLog.e("unexpected removeTask return null sign:%s", sign);
+                    } else if (existsTask != this) {
+                        IMLog.e("unexpected removeTask return another value sign:%s", sign);
+                    } else {
+                        IMLog.v("success remove task sign:%s", sign);
+                    }
                 }
             }
         }
@@ -1,27 +1,20 @@
 package com.masonsoft.imsdk.core;
 
-import android.net.Uri;
+import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.collection.LruCache;
 
-import com.masonsoft.imsdk.lang.ImageInfo;
-import com.masonsoft.imsdk.lang.MediaInfo;
-import com.masonsoft.imsdk.util.BitmapUtil;
-import com.masonsoft.imsdk.util.MediaUtil;
 import com.masonsoft.imsdk.util.Objects;
 
+import org.json.JSONObject;
+
 import java.io.File;
-import java.io.InputStream;
 
 import io.github.idonans.core.Progress;
 import io.github.idonans.core.Singleton;
-import io.github.idonans.core.manager.TmpFileManager;
-import io.github.idonans.core.util.ContextUtil;
-import io.github.idonans.core.util.FileUtil;
-import io.github.idonans.core.util.IOUtil;
-import top.zibin.luban.Luban;
+import io.github.idonans.core.manager.StorageManager;
 
 /**
  * 文件上传管理
@@ -81,6 +74,80 @@ public class FileUploadManager {
         }
     }
 
+    /**
+     * 以文件内容的 hash 为 key 的上传结果缓存，持久化存储. 相同内容的文件只上传一次.
+     */
+    private static class DiskHashCache {
+
+        private static final DiskHashCache DEFAULT = new DiskHashCache();
+
+        private static final String NAMESPACE = "imsdk_file_upload_hash_cache_20210520";
+        /**
+         * 缓存的有效期
+         */
+        private static final long CACHE_EXPIRE_MS = 30 * 24 * 60 * 60 * 1000L;
+
+        private void addHashCache(@NonNull String contentHash, @NonNull CacheEntity cacheEntity) {
+            try {
+                final JSONObject jsonObject = new JSONObject();
+                jsonObject.put("mimeType", cacheEntity.mimeType);
+                jsonObject.put("accessUrl", cacheEntity.accessUrl);
+                jsonObject.put("timeMs", System.currentTimeMillis());
+                StorageManager.getInstance().set(NAMESPACE, contentHash, jsonObject.toString());
+            } catch (Throwable e) {
+                IMLog.e(e);
+                RuntimeMode.fixme(e);
+            }
+        }
+
+        @Nullable
+        private CacheEntity getHashCache(@NonNull String contentHash) {
+            final String json = StorageManager.getInstance().get(NAMESPACE, contentHash);
+            if (TextUtils.isEmpty(json)) {
+                return null;
+            }
+            try {
+                final JSONObject jsonObject = new JSONObject(json);
+                final long timeDiff = System.currentTimeMillis() - jsonObject.getLong("timeMs");
+                if (timeDiff < 0 || timeDiff > CACHE_EXPIRE_MS) {
+                    return null;
+                }
+                final String accessUrl = jsonObject.getString("accessUrl");
+                if (TextUtils.isEmpty(accessUrl)) {
+                    return null;
+                }
+                return new CacheEntity(jsonObject.isNull("mimeType") ? null : jsonObject.getString("mimeType"), accessUrl);
+            } catch (Throwable e) {
+                IMLog.e(e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 分片上传的 journal 存储
+     */
+    private static class StorageJournalStore implements ChunkedFileUploader.JournalStore {
+
+        private static final String NAMESPACE = "imsdk_file_upload_journal_20210520";
+
+        @Nullable
+        @Override
+        public String get(@NonNull String key) {
+            return StorageManager.getInstance().get(NAMESPACE, key);
+        }
+
+        @Override
+        public void set(@NonNull String key, @Nullable String value) {
+            StorageManager.getInstance().set(NAMESPACE, key, value);
+        }
+    }
+
+    /**
+     * 同时上传的分片数量上限
+     */
+    private static final int MAX_PARALLEL_CHUNK_COUNT = 3;
+
     @NonNull
     private final FileUploadProviderProxy mProviderProxy = new FileUploadProviderProxy();
 
@@ -101,6 +168,8 @@ public class FileUploadManager {
         @Nullable
         private FileUploadProvider mProvider;
 
+        private final ChunkedFileUploader mChunkedFileUploader = new ChunkedFileUploader(new StorageJournalStore(), MAX_PARALLEL_CHUNK_COUNT);
+
         public void setProvider(@Nullable FileUploadProvider provider) {
             mProvider = provider;
         }
@@ -115,93 +184,43 @@ public class FileUploadManager {
                 return cache.accessUrl;
             }
 
-            final String[] outMimeType = new String[1];
-            final String compressFilePath = compressFile(filePath, outMimeType);
-            IMLog.v(Objects.defaultObjectTag(this) + " compress file %s -> %s, mimeType:%s",
-                    filePath, compressFilePath, outMimeType[0]);
-
             final FileUploadProvider provider = mProvider;
-            if (provider != null) {
-                final String accessUrl = provider.uploadFile(compressFilePath, outMimeType[0], progress);
-                MemoryFullCache.DEFAULT.addFullCache(filePath, new CacheEntity(outMimeType[0], accessUrl));
-                return accessUrl;
+            if (provider == null) {
+                throw new IllegalStateException("provider not found");
             }
-            throw new IllegalStateException("provider not found");
-        }
 
-        /**
-         * 压缩文件。如果成功压缩，返回压缩后的文件路径。否则返回原始路径。
-         */
-        @NonNull
-        private String compressFile(@NonNull String fileUri, @NonNull String[] outMimeType) throws Throwable {
-            outMimeType[0] = null;
-
-            final Uri uri = Uri.parse(fileUri);
-            final String scheme = uri.getScheme();
-            File tmpFile = null;
-            String filePath = null;
-            if ("content".equalsIgnoreCase(scheme)) {
-                InputStream is = null;
-                try {
-                    tmpFile = TmpFileManager.getInstance().createNewTmpFileQuietly("__compress_file_copy_", null);
-                    if (tmpFile == null) {
-                        throw new IllegalStateException("tmp file create fail");
-                    }
-                    is = ContextUtil.getContext().getContentResolver().openInputStream(uri);
-                    IOUtil.copy(is, tmpFile, null, null);
-                    filePath = tmpFile.getAbsolutePath();
-                } catch (Throwable e) {
-                    FileUtil.deleteFileQuietly(tmpFile);
-                    tmpFile = null;
-                    throw e;
-                } finally {
-                    IOUtil.closeQuietly(is);
-                }
-            } else if ("file".equalsIgnoreCase(scheme)) {
-                filePath = fileUri.substring(7);
-            } else {
-                filePath = fileUri;
-            }
+            // 预处理(压缩等)通常在选择文件之后已经提前开始
+            final MediaPreprocessManager.Result preprocessResult = MediaPreprocessManager.getInstance().get(filePath);
 
-            final File file = new File(filePath);
-            if (!FileUtil.isFile(file)) {
-                throw new IllegalStateException(filePath + " is not a exists file");
-            }
-            final Uri targetFileUri = Uri.fromFile(file);
-
-            {
-                // 先猜测该文件是否是图片
-                final ImageInfo imageInfo = BitmapUtil.decodeImageInfo(targetFileUri);
-                if (imageInfo != null) {
-                    // 是图片
-                    outMimeType[0] = imageInfo.mimeType;
-
-                    if (imageInfo.isGif()) {
-                        // gif 图不压缩
-                        return filePath;
-                    }
-
-                    // 压缩图片
-                    final File compressedFile = Luban.with(ContextUtil.getContext())
-                            .get(filePath);
-                    return compressedFile.getAbsolutePath();
-                }
+            // 相同内容的文件只上传一次
+            final CacheEntity hashCache = DiskHashCache.DEFAULT.getHashCache(preprocessResult.contentHash);
+            if (hashCache != null) {
+                IMLog.v(Objects.defaultObjectTag(this) + " uploadFile hash cache hit. %s -> %s",
+                        filePath, hashCache);
+                MemoryFullCache.DEFAULT.addFullCache(filePath, hashCache);
+                return hashCache.accessUrl;
             }
 
-            {
-                // 猜测该文件是否是视频或者音频
-                final MediaInfo mediaInfo = MediaUtil.decodeMediaInfo(targetFileUri);
-                if (mediaInfo != null) {
-                    // 是视频或者音频
-                    outMimeType[0] = mediaInfo.mimeType;
-                    // 视频或者音频不压缩
-                    return filePath;
-                }
+            IMLog.v(Objects.defaultObjectTag(this) + " preprocess file %s -> %s",
+                    filePath, preprocessResult);
+
+            final String accessUrl;
+            if (provider instanceof ChunkedFileUploadProvider
+                    && new File(preprocessResult.filePath).length() > ((ChunkedFileUploadProvider) provider).getChunkSize()) {
+                // 较大的文件分片上传，中断之后可以继续
+                accessUrl = mChunkedFileUploader.upload(
+                        (ChunkedFileUploadProvider) provider,
+                        preprocessResult.filePath,
+                        preprocessResult.mimeType,
+                        preprocessResult.fileHash,
+                        progress);
+            } else {
+                accessUrl = provider.uploadFile(preprocessResult.filePath, preprocessResult.mimeType, progress);
             }
-
-            // 其它文件格式不压缩
-            // 返回原始文件内容
-            return filePath;
+            final CacheEntity cacheEntity = new CacheEntity(preprocessResult.mimeType, accessUrl);
+            DiskHashCache.DEFAULT.addHashCache(preprocessResult.contentHash, cacheEntity);
+            MemoryFullCache.DEFAULT.addFullCache(filePath, cacheEntity);
+            return accessUrl;
         }
 
     }
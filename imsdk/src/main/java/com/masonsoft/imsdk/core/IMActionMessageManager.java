@@ -15,6 +15,7 @@ import com.masonsoft.imsdk.core.observable.MessagePacketStateObservable;
 import com.masonsoft.imsdk.core.processor.TinyChatRProcessor;
 import com.masonsoft.imsdk.core.processor.TinyConversationUpdateProcessor;
 import com.masonsoft.imsdk.core.proto.ProtoMessage;
+import com.masonsoft.imsdk.core.session.InFlightRequestLimiter;
 import com.masonsoft.imsdk.core.session.SessionTcpClient;
 import com.masonsoft.imsdk.lang.GeneralErrorCode;
 import com.masonsoft.imsdk.lang.GeneralErrorCodeException;
@@ -75,18 +76,33 @@ public class IMActionMessageManager {
         getSessionWorker(actionMessage.getSessionUserId()).enqueueActionMessage(sign, actionMessage);
     }
 
-    public boolean dispatchTcpResponse(
-            final long sign,
-            @NonNull final SessionProtoByteMessageWrapper wrapper) {
-        return getSessionWorker(wrapper.getSessionUserId()).dispatchTcpResponse(sign, wrapper);
-    }
-
     private static class SessionWorker implements DebugManager.DebugInfoProvider {
 
+        private static final int MAX_IN_FLIGHT_COUNT = 8;
+
+        /**
+         * 回执消息已读的合并等待时间. 同一个会话在此时间内的多次已读只发送最后一次.
+         */
+        private static final long MARK_AS_READ_DEBOUNCE_MS = 300L;
+        /**
+         * 回执消息已读从第一次入队到开始发送的最长等待时间，避免持续入队时一直不发送.
+         */
+        private static final long MARK_AS_READ_MAX_DELAY_MS = 1000L;
+
         private final long mSessionUserId;
         private final List<ActionMessageObjectWrapperTask> mAllRunningTasks = new ArrayList<>();
         private final TaskQueue mActionQueue = new TaskQueue(1);
         private final TaskQueue mQueue = new TaskQueue(1);
+        /**
+         * 同时等待响应结果的指令消息数量上限. mQueue 中的任务发送之后不等待响应结果.
+         */
+        private final InFlightRequestLimiter mInFlightRequestLimiter = new InFlightRequestLimiter(MAX_IN_FLIGHT_COUNT);
+
+        private final Object mMarkAsReadLock = new Object();
+        /**
+         * 每一个会话(target user id)最新的还没有开始发送的回执消息已读
+         */
+        private final Map<Long, ActionMessageObjectWrapperTask> mPendingMarkAsReadTasks = new HashMap<>();
 
         private SessionWorker(long sessionUserId) {
             mSessionUserId = sessionUserId;
@@ -106,6 +122,10 @@ public class IMActionMessageManager {
             builder.append("mQueue --:").append("\n");
             mQueue.printDetail(builder);
             builder.append("mQueue -- end").append("\n");
+            mInFlightRequestLimiter.printDetail(builder);
+            synchronized (mMarkAsReadLock) {
+                builder.append("mPendingMarkAsReadTasks size:").append(this.mPendingMarkAsReadTasks.size()).append("\n");
+            }
             builder.append(tag).append(" -- end\n");
         }
 
@@ -120,60 +140,62 @@ public class IMActionMessageManager {
                         sign,
                         actionMessage
                 );
-                final ActionMessageObjectWrapperTask task = new ActionMessageObjectWrapperTask(actionMessageObjectWrapper) {
-                    @Override
-                    public void run() {
-                        try {
-                            super.run();
-                        } catch (Throwable e) {
-                            IMLog.e(e, "unexpected");
-                        }
-                        actionMessageObjectWrapper.onTaskEnd();
-                        synchronized (mAllRunningTasks) {
-                            final ActionMessageObjectWrapperTask existsTask = removeTask(sign);
-                            if (existsTask == null) {
-                                IMLog.e("unexpected removeTask return null sign:%s", sign);
-                            } else if (existsTask != this) {
-                                IMLog.e("unexpected removeTask return another value sign:%s", sign);
-                            } else {
-                                IMLog.v("success remove task sign:%s", sign);
-                            }
-                        }
-                    }
-                };
+                final ActionMessageObjectWrapperTask task = new ActionMessageObjectWrapperTask(actionMessageObjectWrapper);
 
                 synchronized (mAllRunningTasks) {
                     mAllRunningTasks.add(task);
-                    mQueue.enqueue(task);
+                    if (actionMessage.getActionType() == IMActionMessage.ACTION_TYPE_MARK_AS_READ) {
+                        enqueueMarkAsReadTask(task);
+                    } else {
+                        mQueue.enqueue(task);
+                    }
                 }
             }));
         }
 
-        private boolean dispatchTcpResponse(
-                final long sign,
-                @NonNull final SessionProtoByteMessageWrapper wrapper) {
-            synchronized (mAllRunningTasks) {
-                final ActionMessageObjectWrapperTask task = getTask(sign);
-                if (task == null) {
-                    return false;
-                }
-                if (task.mActionMessageObjectWrapper.dispatchTcpResponse(sign, wrapper)) {
-                    return true;
+        /**
+         * 回执消息已读是幂等的，合并之后延迟发送. 同一个会话还没有开始发送的旧的已读被新的已读取代，
+         * 旧的已读的 sign 合并到新的已读中，跟随新的已读通知发送结果.
+         */
+        private void enqueueMarkAsReadTask(@NonNull final ActionMessageObjectWrapperTask task) {
+            final long targetUserId = task.mActionMessageObjectWrapper.getMarkAsReadTargetUserId();
+            final long now = System.currentTimeMillis();
+            ActionMessageObjectWrapperTask supersededTask = null;
+            synchronized (mMarkAsReadLock) {
+                task.mFirstEnqueueTimeMs = now;
+                final ActionMessageObjectWrapperTask pendingTask = mPendingMarkAsReadTasks.put(targetUserId, task);
+                if (pendingTask != null && !pendingTask.mSendStarted) {
+                    pendingTask.mActionMessageObjectWrapper.mSuperseded = true;
+                    if (pendingTask.mDebounceTimeout != null) {
+                        pendingTask.mDebounceTimeout.cancel();
+                        pendingTask.mDebounceTimeout = null;
+                    }
+                    task.mFirstEnqueueTimeMs = pendingTask.mFirstEnqueueTimeMs;
+                    task.mActionMessageObjectWrapper.mergeSigns(pendingTask.mActionMessageObjectWrapper);
+                    supersededTask = pendingTask;
                 }
+
+                final long delayMs = Math.min(MARK_AS_READ_DEBOUNCE_MS, task.mFirstEnqueueTimeMs + MARK_AS_READ_MAX_DELAY_MS - now);
+                task.mDebounceTimeout = TimingWheel.getInstance().schedule(() -> flushMarkAsReadTask(task), delayMs);
+            }
+
+            if (supersededTask != null) {
+                IMLog.v(Objects.defaultObjectTag(this) + " mark as read superseded targetUserId:%s, sign:%s -> %s",
+                        targetUserId,
+                        supersededTask.mActionMessageObjectWrapper.mSign,
+                        task.mActionMessageObjectWrapper.mSign);
+                supersededTask.end();
             }
-            return false;
         }
 
-        @Nullable
-        private ActionMessageObjectWrapperTask getTask(final long sign) {
-            synchronized (mAllRunningTasks) {
-                for (ActionMessageObjectWrapperTask task : mAllRunningTasks) {
-                    if (task.mActionMessageObjectWrapper.mSign == sign) {
-                        return task;
-                    }
+        private void flushMarkAsReadTask(@NonNull final ActionMessageObjectWrapperTask task) {
+            synchronized (mMarkAsReadLock) {
+                if (task.mActionMessageObjectWrapper.mSuperseded) {
+                    return;
                 }
+                task.mDebounceTimeout = null;
             }
-            return null;
+            mQueue.enqueue(task);
         }
 
         @Nullable
@@ -199,6 +221,15 @@ public class IMActionMessageManager {
             public int mErrorCode;
             public String mErrorMessage;
 
+            /**
+             * 被当前指令取代的同类指令的 sign, 与当前指令一起通知发送状态
+             */
+            private final List<Long> mMergedSigns = new ArrayList<>();
+            /**
+             * 当前指令已经被新的同类指令取代，不再发送，也不再通知发送状态
+             */
+            private volatile boolean mSuperseded;
+
             private final AtomicBoolean mBuildActionMessagePacket = new AtomicBoolean(false);
             @Nullable
             private ActionMessagePacket mActionMessagePacket;
@@ -214,11 +245,9 @@ public class IMActionMessageManager {
                         return;
                     }
 
-                    boolean notify = false;
                     final ActionMessagePacket actionMessagePacket = (ActionMessagePacket) packet;
                     if (newState == MessagePacket.STATE_FAIL) {
                         // 消息发送失败
-                        notify = true;
                         IMLog.v("onStateChanged STATE_FAIL actionMessagePacket errorCode:%s, errorMessage:%s, timeout:%s",
                                 actionMessagePacket.getErrorCode(),
                                 actionMessagePacket.getErrorMessage(),
@@ -231,17 +260,8 @@ public class IMActionMessageManager {
                         notifySendStatus(IMConstants.SendStatus.FAIL);
                     } else if (newState == MessagePacket.STATE_SUCCESS) {
                         // 消息发送成功
-                        notify = true;
                         notifySendStatus(IMConstants.SendStatus.SUCCESS);
                     }
-
-                    if (notify) {
-                        // @see ActionMessageObjectWrapperTask#run -> "// wait message packet result"
-                        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-                        synchronized (actionMessagePacket) {
-                            actionMessagePacket.notify();
-                        }
-                    }
                 }
             };
 
@@ -267,17 +287,37 @@ public class IMActionMessageManager {
                 this.mErrorMessage = errorMessage;
             }
 
+            private long getMarkAsReadTargetUserId() {
+                Preconditions.checkArgument(mActionMessage.getActionType() == IMActionMessage.ACTION_TYPE_MARK_AS_READ);
+                return (long) mActionMessage.getActionObject();
+            }
+
+            private void mergeSigns(@NonNull ActionMessageObjectWrapper superseded) {
+                mMergedSigns.add(superseded.mSign);
+                mMergedSigns.addAll(superseded.mMergedSigns);
+            }
+
             private void notifySendStatus(int sendStatus) {
+                if (mSuperseded) {
+                    return;
+                }
+                notifySendStatus(mSign, sendStatus);
+                for (long mergedSign : mMergedSigns) {
+                    notifySendStatus(mergedSign, sendStatus);
+                }
+            }
+
+            private void notifySendStatus(long sign, int sendStatus) {
                 switch (sendStatus) {
                     case IMConstants.SendStatus.IDLE:
                     case IMConstants.SendStatus.SENDING:
-                        ActionMessageObservable.DEFAULT.notifyActionMessageLoading(mSign);
+                        ActionMessageObservable.DEFAULT.notifyActionMessageLoading(sign);
                         break;
                     case IMConstants.SendStatus.SUCCESS:
-                        ActionMessageObservable.DEFAULT.notifyActionMessageSuccess(mSign);
+                        ActionMessageObservable.DEFAULT.notifyActionMessageSuccess(sign);
                         break;
                     case IMConstants.SendStatus.FAIL:
-                        ActionMessageObservable.DEFAULT.notifyActionMessageError(mSign, mErrorCode, mErrorMessage);
+                        ActionMessageObservable.DEFAULT.notifyActionMessageError(sign, mErrorCode, mErrorMessage);
                         break;
                     default:
                         final Throwable e = new IllegalStateException("unexpected send status:" + sendStatus);
@@ -378,24 +418,6 @@ public class IMActionMessageManager {
                 return null;
             }
 
-            private boolean dispatchTcpResponse(final long sign,
-                                                @NonNull final SessionProtoByteMessageWrapper target) {
-                final ActionMessagePacket actionMessagePacket = mActionMessagePacket;
-                if (actionMessagePacket == null) {
-                    final Throwable e = new IllegalStateException(Objects.defaultObjectTag(this) + " unexpected mActionMessagePacket is null");
-                    IMLog.e(e);
-                    return false;
-                }
-                if (mSign != sign) {
-                    final Throwable e = new IllegalStateException(Objects.defaultObjectTag(this) + " unexpected sign not match mSign:" + mSign + ", sign:" + sign);
-                    IMLog.e(e);
-                    return false;
-                }
-                final boolean result = actionMessagePacket.doProcess(target);
-                IMLog.v(Objects.defaultObjectTag(this) + " dispatchTcpResponse actionMessagePacket.doProcess result:%s", result);
-                return result;
-            }
-
             private static abstract class ActionMessagePacket extends NotNullTimeoutMessagePacket {
                 public ActionMessagePacket(ProtoByteMessage protoByteMessage, long sign) {
                     super(protoByteMessage, sign);
@@ -648,6 +670,15 @@ public class IMActionMessageManager {
             @NonNull
             private final ActionMessageObjectWrapper mActionMessageObjectWrapper;
 
+            private final AtomicBoolean mInFlight = new AtomicBoolean(false);
+            private final AtomicBoolean mEnd = new AtomicBoolean(false);
+
+            // 以下字段仅用于回执消息已读的合并，在 mMarkAsReadLock 中读写
+            private long mFirstEnqueueTimeMs;
+            @Nullable
+            private TimingWheel.Timeout mDebounceTimeout;
+            private boolean mSendStarted;
+
             private ActionMessageObjectWrapperTask(@NonNull ActionMessageObjectWrapper actionMessageObjectWrapper) {
                 mActionMessageObjectWrapper = actionMessageObjectWrapper;
             }
@@ -688,6 +719,7 @@ public class IMActionMessageManager {
 
             @Override
             public void run() {
+                boolean async = false;
                 try {
                     if (mActionMessageObjectWrapper.hasError()) {
                         return;
@@ -703,37 +735,30 @@ public class IMActionMessageManager {
                         }
                     }
 
+                    if (!markSendStarted()) {
+                        // 已经被新的同类指令取代
+                        return;
+                    }
+
                     final MessagePacket messagePacket = mActionMessageObjectWrapper.buildMessagePacket();
                     if (messagePacket == null) {
                         mActionMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_MESSAGE_PACKET_BUILD_FAIL);
                         return;
                     }
 
+                    // 等待响应结果的请求数量达到上限时在此等待
+                    mInFlightRequestLimiter.acquire();
+                    mInFlight.set(true);
+
                     // 通过长连接发送 proto buf
                     final SessionTcpClient sessionTcpClient = this.waitTcpClientConnected();
                     if (sessionTcpClient == null) {
                         return;
                     }
 
-                    sessionTcpClient.sendMessagePacketQuietly(messagePacket);
-                    if (messagePacket.getState() != MessagePacket.STATE_WAIT_RESULT) {
-                        mActionMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_MESSAGE_PACKET_SEND_FAIL);
-                        return;
-                    }
-
-                    // wait message packet result
-                    while (messagePacket.getState() == MessagePacket.STATE_WAIT_RESULT) {
-                        IMLog.v(Objects.defaultObjectTag(this) + " wait message packet result %s", messagePacket);
-                        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-                        synchronized (messagePacket) {
-                            try {
-                                messagePacket.wait(2000L);
-                            } catch (InterruptedException e) {
-                                IMLog.v("messagePacket wait interrupted %s", messagePacket);
-                            }
-                        }
-                    }
-                    IMLog.v(Objects.defaultObjectTag(this) + " body run end. %s", messagePacket);
+                    // 不在当前线程等待响应结果，消息包结束时回调 onMessagePacketEnd
+                    sessionTcpClient.sendMessagePacketAsync(messagePacket, this::onMessagePacketEnd);
+                    async = true;
                 } catch (Throwable e) {
                     IMLog.e(e);
                     if (e instanceof GeneralErrorCodeException) {
@@ -741,6 +766,74 @@ public class IMActionMessageManager {
                     } else if (mActionMessageObjectWrapper.mErrorCode == 0) {
                         mActionMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_UNKNOWN);
                     }
+                } finally {
+                    if (!async) {
+                        end();
+                    }
+                }
+            }
+
+            private void onMessagePacketEnd(@NonNull MessagePacket messagePacket) {
+                IMLog.v(Objects.defaultObjectTag(this) + " message packet end. %s", messagePacket);
+                if (!messagePacket.isSuccess() && !mActionMessageObjectWrapper.hasError()) {
+                    mActionMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_MESSAGE_PACKET_SEND_FAIL);
+                }
+                end();
+            }
+
+            /**
+             * 标记为开始发送，此后不能再被新的同类指令取代. 如果已经被取代，返回 false.
+             */
+            private boolean markSendStarted() {
+                if (mActionMessageObjectWrapper.mActionMessage.getActionType() != IMActionMessage.ACTION_TYPE_MARK_AS_READ) {
+                    return true;
+                }
+                synchronized (mMarkAsReadLock) {
+                    if (mActionMessageObjectWrapper.mSuperseded) {
+                        return false;
+                    }
+                    mSendStarted = true;
+                    removePendingMarkAsReadTask();
+                    return true;
+                }
+            }
+
+            private void removePendingMarkAsReadTask() {
+                final long targetUserId = mActionMessageObjectWrapper.getMarkAsReadTargetUserId();
+                if (mPendingMarkAsReadTasks.get(targetUserId) == this) {
+                    mPendingMarkAsReadTasks.remove(targetUserId);
+                }
+            }
+
+            /**
+             * 任务结束，至多执行一次
+             */
+            private void end() {
+                if (!mEnd.compareAndSet(false, true)) {
+                    return;
+                }
+                if (mActionMessageObjectWrapper.mActionMessage.getActionType() == IMActionMessage.ACTION_TYPE_MARK_AS_READ) {
+                    synchronized (mMarkAsReadLock) {
+                        // 已经结束的任务不能再被取代
+                        mSendStarted = true;
+                        removePendingMarkAsReadTask();
+                    }
+                }
+                if (mInFlight.compareAndSet(true, false)) {
+                    mInFlightRequestLimiter.release();
+                }
+
+                mActionMessageObjectWrapper.onTaskEnd();
+                final long sign = mActionMessageObjectWrapper.mSign;
+                synchronized (mAllRunningTasks) {
+                    final ActionMessageObjectWrapperTask existsTask = removeTask(sign);
+                    if (existsTask == null) {
+                        IMLog.e("unexpected removeTask return null sign:%s", sign);
+                    } else if (existsTask != this) {
+                        IMLog.e("unexpected removeTask return another value sign:%s", sign);
+                    } else {
+                        IMLog.v("success remove task sign:%s", sign);
+                    }
                 }
             }
         }
@@ -3,9 +3,14 @@ package com.masonsoft.imsdk.core;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.google.protobuf.MessageLite;
+import com.masonsoft.imsdk.core.message.ProtoByteMessageWrapper;
 import com.masonsoft.imsdk.core.message.SessionProtoByteMessageWrapper;
+import com.masonsoft.imsdk.core.message.packet.MessagePacket;
+import com.masonsoft.imsdk.core.message.packet.PendingMessagePacketRegistry;
 import com.masonsoft.imsdk.core.processor.InternalReceivedProtoMessageProtoTypeProcessor;
 import com.masonsoft.imsdk.core.processor.InternalSendSessionMessageTypeValidateProcessor;
+import com.masonsoft.imsdk.core.processor.ReceivedProtoMessageProtoTypeProcessor;
 import com.masonsoft.imsdk.core.processor.ReceivedProtoMessageResultIgnoreProcessor;
 import com.masonsoft.imsdk.core.processor.ReceivedProtoMessageSessionProcessor;
 import com.masonsoft.imsdk.core.processor.SendActionTypeDeleteConversationValidateProcessor;
@@ -13,11 +18,15 @@ import com.masonsoft.imsdk.core.processor.SendActionTypeMarkAsReadValidateProces
 import com.masonsoft.imsdk.core.processor.SendActionTypeRevokeValidateProcessor;
 import com.masonsoft.imsdk.core.processor.SendSessionMessageRecoveryProcessor;
 import com.masonsoft.imsdk.core.processor.SendSessionMessageWriteDatabaseProcessor;
+import com.masonsoft.imsdk.core.proto.ProtoMessage;
 import com.masonsoft.imsdk.lang.GeneralResult;
 import com.masonsoft.imsdk.lang.MultiProcessor;
 import com.masonsoft.imsdk.util.Objects;
 import com.masonsoft.imsdk.util.TimeDiffDebugHelper;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import io.github.idonans.core.Singleton;
 import io.github.idonans.core.thread.TaskQueue;
 import io.github.idonans.core.thread.Threads;
@@ -46,8 +55,14 @@ public class IMMessageQueueManager {
     ///////////////////////////////////////////////////////////////
     ///////////////////////////////////////////////////////////////
     // 处理服务器下发的消息
-    private final MultiProcessor<SessionProtoByteMessageWrapper> mReceivedMessageProcessor = new MultiProcessor<>();
-    private final TaskQueue mReceivedMessageQueue = new TaskQueue(1);
+    private final MultiProcessor<SessionProtoByteMessageWrapper> mReceivedMessageProcessor =
+            new MultiProcessor<>(ReceivedProtoMessageProtoTypeProcessor.ROUTE_KEY_PROVIDER);
+    // 按照接收顺序解析消息并分配到对应的处理队列
+    private final TaskQueue mReceivedMessageDispatchQueue = new TaskQueue(1);
+    // 按照会话分片的处理队列: 同一个会话(或者同一个用户)的消息总是在同一个队列中按顺序处理, 不同会话的消息并行处理
+    private final TaskQueue[] mReceivedMessageLaneQueues;
+    // 消息包的响应(Result, 以及无法确定所属会话的 ChatSR)在单独的队列中处理, 不会被其它会话的大量消息阻塞
+    private final TaskQueue mReceivedResponseQueue = new TaskQueue(1);
     ///////////////////////////////////////////////////////////////
     ///////////////////////////////////////////////////////////////
     // 处理本地发送的会话消息, 消息入库之后交由 IMSessionMessageUploadManager 处理
@@ -62,6 +77,12 @@ public class IMMessageQueueManager {
     ///////////////////////////////////////////////////////////////
 
     private IMMessageQueueManager() {
+        final int laneCount = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        mReceivedMessageLaneQueues = new TaskQueue[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            mReceivedMessageLaneQueues[i] = new TaskQueue(1);
+        }
+
         mReceivedMessageProcessor.addFirstProcessor(new ReceivedProtoMessageSessionProcessor());
         mReceivedMessageProcessor.addLastProcessor(new ReceivedProtoMessageResultIgnoreProcessor());
         mReceivedMessageProcessor.addLastProcessor(new InternalReceivedProtoMessageProtoTypeProcessor());
@@ -86,7 +107,160 @@ public class IMMessageQueueManager {
      * 收到服务器下发的消息
      */
     public void enqueueReceivedMessage(@NonNull SessionProtoByteMessageWrapper sessionProtoByteMessageWrapper) {
-        mReceivedMessageQueue.enqueue(new ReceivedMessageTask(sessionProtoByteMessageWrapper));
+        mReceivedMessageDispatchQueue.enqueue(() -> {
+            try {
+                dispatchReceivedMessage(sessionProtoByteMessageWrapper);
+            } catch (Throwable e) {
+                IMLog.e(e, "SessionProtoByteMessageWrapper:%s", sessionProtoByteMessageWrapper.toShortString());
+                RuntimeMode.fixme(e);
+            }
+        });
+    }
+
+    private void dispatchReceivedMessage(@NonNull SessionProtoByteMessageWrapper sessionProtoByteMessageWrapper) {
+        final int type = sessionProtoByteMessageWrapper.getProtoByteMessageWrapper().getType();
+        if (type == ProtoByteMessage.Type.CHAT_S_R) {
+            // ChatSR 需要在自己发送的消息的回显(相同 sign 的 ChatR)之前处理(回写 remote message id),
+            // 与该会话的消息在同一个分片队列中处理
+            final long laneKey = getChatSRLaneKey(sessionProtoByteMessageWrapper);
+            final TaskQueue queue = laneKey > 0 ? getReceivedMessageLaneQueue(laneKey) : mReceivedResponseQueue;
+            queue.enqueue(new ReceivedMessageTask(sessionProtoByteMessageWrapper, queue));
+            return;
+        }
+        if (type == ProtoByteMessage.Type.RESULT) {
+            mReceivedResponseQueue.enqueue(new ReceivedMessageTask(sessionProtoByteMessageWrapper, mReceivedResponseQueue));
+            return;
+        }
+
+        final long laneKey = getReceivedMessageLaneKey(sessionProtoByteMessageWrapper);
+        if (laneKey > 0) {
+            final TaskQueue laneQueue = getReceivedMessageLaneQueue(laneKey);
+            laneQueue.enqueue(new ReceivedMessageTask(sessionProtoByteMessageWrapper, laneQueue));
+            return;
+        }
+
+        // 无法确定所属的会话(如会话列表或者未知的消息类型), 需要与所有会话的消息保持顺序:
+        // 在所有的分片队列中排队，等所有分片队列中之前的消息都处理完成之后再处理
+        final ReceivedMessageTask task = new ReceivedMessageTask(sessionProtoByteMessageWrapper, null);
+        final AtomicInteger waitLaneCount = new AtomicInteger(mReceivedMessageLaneQueues.length);
+        final CountDownLatch doneLatch = new CountDownLatch(1);
+        for (TaskQueue laneQueue : mReceivedMessageLaneQueues) {
+            laneQueue.enqueue(() -> {
+                if (waitLaneCount.decrementAndGet() == 0) {
+                    try {
+                        task.run();
+                    } finally {
+                        doneLatch.countDown();
+                    }
+                } else {
+                    awaitUninterruptibly(doneLatch);
+                }
+            });
+        }
+    }
+
+    private static void awaitUninterruptibly(@NonNull CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @NonNull
+    private TaskQueue getReceivedMessageLaneQueue(long laneKey) {
+        return mReceivedMessageLaneQueues[(int) (laneKey % mReceivedMessageLaneQueues.length)];
+    }
+
+    private static final int[] CHAT_R_USER_ID_FIELD_NUMBERS = {
+            ProtoMessage.ChatR.FROM_UID_FIELD_NUMBER,
+            ProtoMessage.ChatR.TO_UID_FIELD_NUMBER
+    };
+
+    /**
+     * ChatSR 所属的分片: 在同一个长连接上等待该响应的 ChatS 发送的目标用户. 无法确定时返回 0.
+     */
+    private long getChatSRLaneKey(@NonNull SessionProtoByteMessageWrapper sessionProtoByteMessageWrapper) {
+        final long sign = sessionProtoByteMessageWrapper.getProtoByteMessageWrapper().getSign();
+        if (sign <= 0) {
+            return 0;
+        }
+        final MessagePacket messagePacket = PendingMessagePacketRegistry.getInstance().getPendingMessagePacket(
+                sessionProtoByteMessageWrapper.getSessionTcpClient(), sign);
+        if (messagePacket == null) {
+            return 0;
+        }
+        final ProtoByteMessage protoByteMessage = messagePacket.getProtoByteMessage();
+        if (protoByteMessage.getType() != ProtoByteMessage.Type.CHAT_S) {
+            return 0;
+        }
+        final MessageLite protoMessage = protoByteMessage.getProtoMessage();
+        if (protoMessage instanceof ProtoMessage.ChatS) {
+            return ((ProtoMessage.ChatS) protoMessage).getToUid();
+        }
+        return peekInt64Field(protoByteMessage, ProtoMessage.ChatS.TO_UID_FIELD_NUMBER);
+    }
+
+    /**
+     * 消息所属的分片: 聊天消息与会话为会话对方的 user id, 用户信息为对应的 user id. 无法确定时返回 0.
+     * 在分发线程上执行，只读取需要的字段，不完整解析消息(完整的解析在分片队列中进行).
+     */
+    private long getReceivedMessageLaneKey(@NonNull SessionProtoByteMessageWrapper sessionProtoByteMessageWrapper) {
+        final ProtoByteMessageWrapper protoByteMessageWrapper = sessionProtoByteMessageWrapper.getProtoByteMessageWrapper();
+        final ProtoByteMessage protoByteMessage = protoByteMessageWrapper.getOrigin();
+        switch (protoByteMessageWrapper.getType()) {
+            case ProtoByteMessage.Type.CHAT_R:
+                return peekChatRTargetUserId(sessionProtoByteMessageWrapper.getSessionUserId(), protoByteMessage, 0);
+            case ProtoByteMessage.Type.CHAT_R_BATCH:
+                // 只有带 sign 的 ChatRBatch(获取历史消息的结果)可以确定属于同一个会话, 使用第一条消息所属的会话
+                if (protoByteMessageWrapper.getSign() == 0) {
+                    return 0;
+                }
+                return peekChatRTargetUserId(
+                        sessionProtoByteMessageWrapper.getSessionUserId(),
+                        protoByteMessage,
+                        ProtoMessage.ChatRBatch.MSGS_FIELD_NUMBER);
+            case ProtoByteMessage.Type.CHAT_ITEM:
+                return peekInt64Field(protoByteMessage, ProtoMessage.ChatItem.UID_FIELD_NUMBER);
+            case ProtoByteMessage.Type.CHAT_ITEM_UPDATE:
+                return peekInt64Field(protoByteMessage, ProtoMessage.ChatItemUpdate.UID_FIELD_NUMBER);
+            case ProtoByteMessage.Type.PROFILE:
+                return peekInt64Field(protoByteMessage, ProtoMessage.Profile.UID_FIELD_NUMBER);
+            case ProtoByteMessage.Type.PROFILE_ONLINE:
+                return peekInt64Field(protoByteMessage, ProtoMessage.ProfileOnline.UID_FIELD_NUMBER);
+            case ProtoByteMessage.Type.USR_OFFLINE:
+                return peekInt64Field(protoByteMessage, ProtoMessage.UsrOffline.UID_FIELD_NUMBER);
+            default:
+                return 0;
+        }
+    }
+
+    private static long peekInt64Field(@NonNull ProtoByteMessage protoByteMessage, int fieldNumber) {
+        final long[] values = new long[1];
+        if (!ProtoByteMessage.Type.peekInt64Fields(protoByteMessage, 0, new int[]{fieldNumber}, values)) {
+            return 0;
+        }
+        return values[0];
+    }
+
+    /**
+     * @param embeddedFieldNumber 大于 0 时读取该编号的第一个内嵌 ChatR
+     */
+    private static long peekChatRTargetUserId(long sessionUserId, @NonNull ProtoByteMessage protoByteMessage, int embeddedFieldNumber) {
+        final long[] values = new long[2];
+        if (!ProtoByteMessage.Type.peekInt64Fields(protoByteMessage, embeddedFieldNumber, CHAT_R_USER_ID_FIELD_NUMBERS, values)) {
+            return 0;
+        }
+        final long fromUserId = values[0];
+        final long toUserId = values[1];
+        return fromUserId == sessionUserId ? toUserId : fromUserId;
     }
 
     private class ReceivedMessageTask implements Runnable {
@@ -94,9 +268,13 @@ public class IMMessageQueueManager {
         private final TimeDiffDebugHelper mTimeDiffDebugHelper;
         @NonNull
         private final SessionProtoByteMessageWrapper mSessionProtoByteMessageWrapper;
+        // 所在的处理队列, 需要在所有分片队列中排队时为 null
+        @Nullable
+        private final TaskQueue mQueue;
 
-        private ReceivedMessageTask(@NonNull SessionProtoByteMessageWrapper sessionProtoByteMessageWrapper) {
+        private ReceivedMessageTask(@NonNull SessionProtoByteMessageWrapper sessionProtoByteMessageWrapper, @Nullable TaskQueue queue) {
             mSessionProtoByteMessageWrapper = sessionProtoByteMessageWrapper;
+            mQueue = queue;
 
             mTimeDiffDebugHelper = new TimeDiffDebugHelper(Objects.defaultObjectTag(this)
                     + " [type:" + sessionProtoByteMessageWrapper.getProtoByteMessageWrapper().getOrigin().getType() + "]");
@@ -106,7 +284,13 @@ public class IMMessageQueueManager {
         private void markAndPrint(int step) {
             final StringBuilder builder = new StringBuilder();
             builder.append("[step:").append(step).append("]");
-            mReceivedMessageQueue.printDetail(builder);
+            if (mQueue != null) {
+                mQueue.printDetail(builder);
+            } else {
+                for (TaskQueue laneQueue : mReceivedMessageLaneQueues) {
+                    laneQueue.printDetail(builder);
+                }
+            }
             mTimeDiffDebugHelper.mark();
             final long diffWithLastMs = mTimeDiffDebugHelper.getDiffWithLastMs();
             if (diffWithLastMs > 10L) {
@@ -1,5 +1,7 @@
 package com.masonsoft.imsdk.core;
 
+import android.os.SystemClock;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -24,6 +26,9 @@ public class IMSessionMessage {
     @NonNull
     private final IMCallback<GeneralResult> mEnqueueCallback;
 
+    // 进入发送队列的时间点(SystemClock.elapsedRealtime), 用于统计发送耗时
+    private final long mEnqueueTimeMs = SystemClock.elapsedRealtime();
+
     public IMSessionMessage(
             long sessionUserId,
             long toUserId,
@@ -77,6 +82,10 @@ public class IMSessionMessage {
         return mEnqueueCallback;
     }
 
+    public long getEnqueueTimeMs() {
+        return mEnqueueTimeMs;
+    }
+
     @NonNull
     public String toShortString() {
         //noinspection StringBufferReplaceableByString
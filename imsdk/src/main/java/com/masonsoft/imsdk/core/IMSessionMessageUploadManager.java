@@ -4,6 +4,7 @@ import android.webkit.URLUtil;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.collection.LruCache;
 
 import com.masonsoft.imsdk.core.block.MessageBlock;
@@ -26,6 +27,8 @@ import com.masonsoft.imsdk.lang.GeneralErrorCodeException;
 import com.masonsoft.imsdk.lang.SafetyRunnable;
 import com.masonsoft.imsdk.util.Objects;
 
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -60,9 +63,31 @@ public class IMSessionMessageUploadManager {
 
     private final Map<Long, SessionWorker> mSessionUploaderMap = new HashMap<>();
 
+    /**
+     * 默认的发送窗口大小
+     */
+    private static final int DEFAULT_SEND_WINDOW_SIZE = 16;
+
+    /**
+     * 发送窗口大小: 每一个 Session 上已经发送但是还没有收到响应的 ChatS 的数量上限
+     */
+    private volatile int mSendWindowSize = DEFAULT_SEND_WINDOW_SIZE;
+
     private IMSessionMessageUploadManager() {
     }
 
+    /**
+     * 设置发送窗口大小(每一个 Session 上同时等待响应的 ChatS 的数量上限), 默认为 16. 同一个会话内的消息始终按顺序发送.
+     */
+    public void setSendWindowSize(int sendWindowSize) {
+        Preconditions.checkArgument(sendWindowSize > 0);
+        mSendWindowSize = sendWindowSize;
+    }
+
+    public int getSendWindowSize() {
+        return mSendWindowSize;
+    }
+
     @NonNull
     private SessionWorker getSessionUploader(final long sessionUserId) {
         SessionWorker sessionWorker = mSessionUploaderMap.get(sessionUserId);
@@ -86,10 +111,6 @@ public class IMSessionMessageUploadManager {
         getSessionUploader(sessionUserId).dispatchCheckIdleMessage();
     }
 
-    public boolean dispatchTcpResponse(final long sign, @NonNull final SessionProtoByteMessageWrapper wrapper) {
-        return getSessionUploader(wrapper.getSessionUserId()).dispatchTcpResponse(sign, wrapper);
-    }
-
     public void touch(final long sessionUserId) {
         getSessionUploader(sessionUserId);
     }
@@ -98,11 +119,37 @@ public class IMSessionMessageUploadManager {
         return getSessionUploader(sessionUserId).getUploadProgress(localSendingMessageLocalId);
     }
 
+    /**
+     * 取消还没有开始上传的消息，取消之后消息的发送状态为发送失败，可以重新发送.
+     *
+     * @return 消息已经开始上传，已经发送或者不存在时返回 false
+     */
+    @WorkerThread
+    public boolean cancelSendMessage(
+            final long sessionUserId,
+            final int conversationType,
+            final long targetUserId,
+            final long messageLocalId) {
+        final LocalSendingMessage localSendingMessage = LocalSendingMessageProvider.getInstance().getLocalSendingMessageByTargetMessage(
+                sessionUserId,
+                conversationType,
+                targetUserId,
+                messageLocalId
+        );
+        if (localSendingMessage == null) {
+            return false;
+        }
+        return getSessionUploader(sessionUserId).cancel(localSendingMessage.localId.get());
+    }
+
     private class SessionWorker implements DebugManager.DebugInfoProvider {
 
         private class SessionMessageObjectWrapper {
             private final long mSessionUserId;
-            private final long mSign;
+            /**
+             * 在 {@linkplain #loadMessage()} 中读取对应的消息之后确定
+             */
+            private long mSign;
             private final long mAbortId = SignGenerator.nextSign();
             @NonNull
             private LocalSendingMessage mLocalSendingMessage;
@@ -125,7 +172,10 @@ public class IMSessionMessageUploadManager {
 
                     boolean notify = false;
                     final ChatSMessagePacket chatSMessagePacket = (ChatSMessagePacket) packet;
-                    if (newState == MessagePacket.STATE_FAIL) {
+                    if (newState == MessagePacket.STATE_GOING) {
+                        // 已经通过写缓冲区的等待，即将提交到长连接. 响应可能在写入返回之前到达，此时记录时间点
+                        SendLatencyTracker.getInstance().mark(mSign, SendLatencyTracker.STAGE_WIRE_WRITE);
+                    } else if (newState == MessagePacket.STATE_FAIL) {
                         // 消息发送失败
                         notify = true;
                         IMLog.v("onStateChanged STATE_FAIL chatSMessagePacket errorCode:%s, errorMessage:%s, timeout:%s",
@@ -139,21 +189,28 @@ public class IMSessionMessageUploadManager {
                     } else if (newState == MessagePacket.STATE_SUCCESS) {
                         // 消息发送成功
                         notify = true;
+                        SendLatencyTracker.getInstance().mark(mSign, SendLatencyTracker.STAGE_ACK);
                         // 设置发送进度为 100%
                         setSendProgress(1f);
                         moveSendStatus(IMConstants.SendStatus.SUCCESS);
                     }
 
                     if (notify) {
-                        // @see MessageUploadObjectWrapperTask#run -> "// wait message packet result"
-                        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-                        synchronized (chatSMessagePacket) {
-                            chatSMessagePacket.notify();
+                        // 收到响应或者超时，结束发送任务
+                        final SessionMessageObjectWrapperTask task = mTask;
+                        if (task != null) {
+                            task.onMessagePacketEnd();
                         }
                     }
                 }
             };
 
+            /**
+             * 对应的发送任务
+             */
+            @Nullable
+            private SessionMessageObjectWrapperTask mTask;
+
             /**
              * abort id 与数据库中对应记录不相等.
              */
@@ -171,12 +228,29 @@ public class IMSessionMessageUploadManager {
             //////////////////////////////////////////////////////////////////////
             //////////////////////////////////////////////////////////////////////
 
-            public SessionMessageObjectWrapper(long sessionUserId, long sign, @NonNull LocalSendingMessage localSendingMessage) {
+            public SessionMessageObjectWrapper(long sessionUserId, @NonNull LocalSendingMessage localSendingMessage) {
                 this.mSessionUserId = sessionUserId;
-                this.mSign = sign;
                 this.mLocalSendingMessage = localSendingMessage;
             }
 
+            /**
+             * 读取对应的消息，并使用消息的 sign 作为消息包的 sign
+             */
+            private void loadMessage() {
+                final Message message = MessageDatabaseProvider.getInstance().getMessage(
+                        mSessionUserId,
+                        mLocalSendingMessage.conversationType.get(),
+                        mLocalSendingMessage.targetUserId.get(),
+                        mLocalSendingMessage.messageLocalId.get()
+                );
+                if (message == null) {
+                    this.mSign = SignGenerator.nextSign();
+                } else {
+                    this.mSign = message.sign.getOrDefault(SignGenerator.nextSign());
+                }
+                this.mMessage = message;
+            }
+
             private void setSendProgress(float sendProgress) {
                 mSendProgress = sendProgress;
                 mUnsafeProgress.put(mLocalSendingMessage.localId.get(), sendProgress);
@@ -461,8 +535,10 @@ public class IMSessionMessageUploadManager {
 
             private String uploadFile(final String fileUri, @NonNull final Progress progress) {
                 try {
+                    SendLatencyTracker.getInstance().mark(mSign, SendLatencyTracker.STAGE_UPLOAD_START);
                     final String accessUrl = FileUploadManager.getInstance().getFileUploadProvider()
                             .uploadFile(fileUri, null, progress);
+                    SendLatencyTracker.getInstance().mark(mSign, SendLatencyTracker.STAGE_UPLOAD_END);
                     IMLog.v("uploadFile success %s -> %s", fileUri, accessUrl);
                     return accessUrl;
                 } catch (Throwable e) {
@@ -471,23 +547,6 @@ public class IMSessionMessageUploadManager {
                 }
             }
 
-            private boolean dispatchTcpResponse(final long sign, @NonNull final SessionProtoByteMessageWrapper wrapper) {
-                final ChatSMessagePacket chatSMessagePacket = mChatSMessagePacket;
-                if (chatSMessagePacket == null) {
-                    final Throwable e = new IllegalStateException(Objects.defaultObjectTag(this) + " unexpected mChatSMessagePacket is null");
-                    IMLog.e(e);
-                    return false;
-                }
-                if (mSign != sign) {
-                    final Throwable e = new IllegalStateException(Objects.defaultObjectTag(this) + " unexpected sign not match mSign:" + mSign + ", sign:" + sign);
-                    IMLog.e(e);
-                    return false;
-                }
-                final boolean result = chatSMessagePacket.doProcess(wrapper);
-                IMLog.v(Objects.defaultObjectTag(this) + " dispatchTcpResponse chatSMessagePacket.doProcess result:%s", result);
-                return result;
-            }
-
             private class ChatSMessagePacket extends NotNullTimeoutMessagePacket {
 
                 public ChatSMessagePacket(ProtoByteMessage protoByteMessage, long sign) {
@@ -646,6 +705,46 @@ public class IMSessionMessageUploadManager {
                 return false;
             }
 
+            /**
+             * 在 mLongTimeTaskQueue 中的优先级: 语音 > 图片 > 视频
+             */
+            private int getSendPriority() {
+                final Message message = mMessage;
+                if (message == null || message.messageType.isUnset()) {
+                    return SEND_PRIORITY_IMAGE;
+                }
+                final int messageType = message.messageType.get();
+                if (messageType == IMConstants.MessageType.AUDIO) {
+                    return SEND_PRIORITY_AUDIO;
+                }
+                if (messageType == IMConstants.MessageType.VIDEO) {
+                    return SEND_PRIORITY_VIDEO;
+                }
+                return SEND_PRIORITY_IMAGE;
+            }
+
+            /**
+             * 预处理需要上传的字节数，无法估算时按照一轮的额度计算
+             */
+            private long getSendCost() {
+                final Message message = mMessage;
+                long cost = 0L;
+                if (message != null) {
+                    cost += getLocalFileLength(message.body.getOrDefault(null));
+                    if (message.messageType.getOrDefault(IMConstants.MessageType.TEXT) == IMConstants.MessageType.VIDEO) {
+                        cost += getLocalFileLength(message.thumb.getOrDefault(null));
+                    }
+                }
+                return cost > 0 ? cost : LONG_TIME_TASK_QUANTUM;
+            }
+
+            private long getLocalFileLength(@Nullable String path) {
+                if (path == null || URLUtil.isNetworkUrl(path)) {
+                    return 0L;
+                }
+                return new File(path).length();
+            }
+
             /**
              * 上传任务执行结束。如果任务执行成功，则从上传表中的删除。否则设置为上传失败。
              */
@@ -754,6 +853,18 @@ public class IMSessionMessageUploadManager {
          * 所有正在执行的消息任务数量上限
          */
         private static final int MAX_RUNNING_SIZE = 10;
+        /**
+         * 在 mLongTimeTaskQueue 中等待预处理的任务数量上限. 等待中的任务不计入正在执行的任务数量，不会阻塞新的消息.
+         */
+        private static final int MAX_WAITING_SIZE = 100;
+        /**
+         * mLongTimeTaskQueue 中每一个会话每一轮可以上传的字节数
+         */
+        private static final long LONG_TIME_TASK_QUANTUM = 1024 * 1024L;
+        // mLongTimeTaskQueue 中的优先级，数值越小越先执行. 文本消息不需要预处理，不进入 mLongTimeTaskQueue
+        private static final int SEND_PRIORITY_AUDIO = 1;
+        private static final int SEND_PRIORITY_IMAGE = 2;
+        private static final int SEND_PRIORITY_VIDEO = 3;
         /**
          * 所有正在执行的消息任务
          */
@@ -761,12 +872,30 @@ public class IMSessionMessageUploadManager {
 
         private final TaskQueue mCheckIdleActionQueue = new TaskQueue(1);
 
-        // 需要预处理上传数据的任务队列，如视频，音频，图片。通常是先用 http 协议上传预处理数据，再通过 tcp proto buf 发送消息
-        private final TaskQueue mLongTimeTaskQueue = new TaskQueue(2);
+        // 需要预处理上传数据的任务队列，如视频，音频，图片。通常是先用 http 协议上传预处理数据，再通过 tcp proto buf 发送消息。
+        // 按照消息类型的优先级执行，相同优先级的任务在会话之间按照上传的字节数公平轮转
+        private final FairTaskQueue mLongTimeTaskQueue = new FairTaskQueue(2, LONG_TIME_TASK_QUANTUM);
 
-        // 不需要预处理的任务队列。通常可以直接通过 tcp proto buf 发送消息
+        // 不需要预处理的任务队列。通常可以直接通过 tcp proto buf 发送消息。所有任务都先在此队列上读取对应的消息
         private final TaskQueue mShortTimeTaskQueue = new TaskQueue(1);
 
+        // 预处理完成之后，按照会话内的顺序依次发送(单线程保证写入长连接的顺序)
+        private final TaskQueue mSendQueue = new TaskQueue(1);
+
+        // 收到响应或者超时之后结束任务(删除上传表中的记录，检查新的待发送消息)
+        private final TaskQueue mTaskEndQueue = new TaskQueue(1);
+
+        /**
+         * 每一个会话内按照创建顺序排列的还没有发送的任务. key 为 conversationType_targetUserId
+         */
+        private final Map<String, ArrayDeque<SessionMessageObjectWrapperTask>> mConversationSendOrders = new HashMap<>();
+
+        private final Object mSendWindowLock = new Object();
+        /**
+         * 已经发送但是还没有收到响应(或者超时)的消息数量
+         */
+        private int mInFlightCount;
+
         // 记录消息的发送进度
         private final LruCache<Long, Float> mUnsafeProgress = new LruCache<>(MAX_RUNNING_SIZE * 10);
 
@@ -774,6 +903,7 @@ public class IMSessionMessageUploadManager {
             mSessionUserId = sessionUserId;
             LocalSendingMessageProvider.getInstance().updateMessageToFailIfNotSuccess(mSessionUserId);
             LocalSendingMessageProvider.getInstance().removeAllSuccessMessage(mSessionUserId);
+            LocalSendingMessageProvider.getInstance().hydrateIdleMessageOutbox(mSessionUserId);
 
             DebugManager.getInstance().addDebugInfoProvider(this);
         }
@@ -785,6 +915,14 @@ public class IMSessionMessageUploadManager {
             builder.append("mSessionUserId:").append(this.mSessionUserId).append("\n");
             builder.append("MAX_RUNNING_SIZE:").append(MAX_RUNNING_SIZE).append("\n");
             builder.append("mAllRunningTasks size:").append(this.mAllRunningTasks.size()).append("\n");
+            builder.append("idle message outbox size:").append(LocalSendingMessageProvider.getInstance().getIdleMessageOutboxSize(mSessionUserId)).append("\n");
+            builder.append("send window size:").append(getSendWindowSize()).append("\n");
+            synchronized (mSendWindowLock) {
+                builder.append("mInFlightCount:").append(this.mInFlightCount).append("\n");
+            }
+            synchronized (mConversationSendOrders) {
+                builder.append("mConversationSendOrders size:").append(this.mConversationSendOrders.size()).append("\n");
+            }
             builder.append("mCheckIdleActionQueue --:").append("\n");
             mCheckIdleActionQueue.printDetail(builder);
             builder.append("mCheckIdleActionQueue -- end").append("\n");
@@ -794,6 +932,12 @@ public class IMSessionMessageUploadManager {
             builder.append("mShortTimeTaskQueue --:").append("\n");
             mShortTimeTaskQueue.printDetail(builder);
             builder.append("mShortTimeTaskQueue -- end").append("\n");
+            builder.append("mSendQueue --:").append("\n");
+            mSendQueue.printDetail(builder);
+            builder.append("mSendQueue -- end").append("\n");
+            builder.append("mTaskEndQueue --:").append("\n");
+            mTaskEndQueue.printDetail(builder);
+            builder.append("mTaskEndQueue -- end").append("\n");
             builder.append("mUnsafeProgress size:").append(mUnsafeProgress.size()).append("\n");
             builder.append(tag).append(" -- end\n");
         }
@@ -809,21 +953,13 @@ public class IMSessionMessageUploadManager {
         }
 
         @Nullable
-        private SessionMessageObjectWrapperTask getTask(final long sign) {
-            synchronized (mAllRunningTasks) {
-                for (SessionMessageObjectWrapperTask task : mAllRunningTasks) {
-                    if (task.mSessionMessageObjectWrapper.mSign == sign) {
-                        return task;
-                    }
-                }
-            }
-            return null;
+        private SessionMessageObjectWrapperTask getTask(@NonNull LocalSendingMessage localSendingMessage) {
+            return getTask(localSendingMessage.localId.get());
         }
 
         @Nullable
-        private SessionMessageObjectWrapperTask getTask(@NonNull LocalSendingMessage localSendingMessage) {
+        private SessionMessageObjectWrapperTask getTask(final long localId) {
             synchronized (mAllRunningTasks) {
-                final long localId = localSendingMessage.localId.get();
                 for (SessionMessageObjectWrapperTask task : mAllRunningTasks) {
                     if (localId == task.mSessionMessageObjectWrapper.mLocalSendingMessage.localId.get()) {
                         return task;
@@ -847,17 +983,101 @@ public class IMSessionMessageUploadManager {
             return null;
         }
 
-        private boolean dispatchTcpResponse(final long sign, @NonNull final SessionProtoByteMessageWrapper wrapper) {
-            synchronized (mAllRunningTasks) {
-                final SessionMessageObjectWrapperTask task = getTask(sign);
-                if (task == null) {
-                    return false;
+        /**
+         * 正在执行的任务数量上限，至少能够填满发送窗口
+         */
+        private int getMaxRunningSize() {
+            return Math.max(MAX_RUNNING_SIZE, getSendWindowSize());
+        }
+
+        private void acquireSendWindow() {
+            synchronized (mSendWindowLock) {
+                while (mInFlightCount >= getSendWindowSize()) {
+                    IMLog.v(Objects.defaultObjectTag(this) + " wait send window, in flight count:%s", mInFlightCount);
+                    try {
+                        mSendWindowLock.wait(2000L);
+                    } catch (InterruptedException e) {
+                        IMLog.v("send window wait interrupted");
+                    }
+                }
+                mInFlightCount++;
+            }
+        }
+
+        private void releaseSendWindow() {
+            synchronized (mSendWindowLock) {
+                mInFlightCount--;
+                mSendWindowLock.notifyAll();
+            }
+        }
+
+        private void addToConversationSendOrder(@NonNull SessionMessageObjectWrapperTask task) {
+            synchronized (mConversationSendOrders) {
+                ArrayDeque<SessionMessageObjectWrapperTask> tasks = mConversationSendOrders.get(task.mConversationKey);
+                if (tasks == null) {
+                    tasks = new ArrayDeque<>();
+                    mConversationSendOrders.put(task.mConversationKey, tasks);
                 }
-                if (task.mSessionMessageObjectWrapper.dispatchTcpResponse(sign, wrapper)) {
+                tasks.addLast(task);
+            }
+        }
+
+        /**
+         * 任务预处理完成. 同一个会话内，只有在之前的任务都已经进入发送队列之后才会发送.
+         */
+        private void onTaskPrepared(@NonNull SessionMessageObjectWrapperTask task) {
+            synchronized (mConversationSendOrders) {
+                task.mPrepared = true;
+                final ArrayDeque<SessionMessageObjectWrapperTask> tasks = mConversationSendOrders.get(task.mConversationKey);
+                if (tasks == null) {
+                    IMLog.e(new IllegalStateException("unexpected conversation send order not found " + task.mConversationKey));
+                    mSendQueue.enqueue(new SafetyRunnable(task::send));
+                    return;
+                }
+                while (!tasks.isEmpty() && tasks.peekFirst().mPrepared) {
+                    final SessionMessageObjectWrapperTask readyTask = tasks.pollFirst();
+                    mSendQueue.enqueue(new SafetyRunnable(readyTask::send));
+                }
+                if (tasks.isEmpty()) {
+                    mConversationSendOrders.remove(task.mConversationKey);
+                }
+            }
+        }
+
+        /**
+         * 取消还没有开始执行的消息(在待发送队列中或者在 mLongTimeTaskQueue 中等待预处理)
+         */
+        private boolean cancel(final long localSendingMessageLocalId) {
+            final LocalSendingMessage idleMessage = LocalSendingMessageProvider.getInstance().pollIdleMessage(
+                    mSessionUserId, localSendingMessageLocalId);
+            if (idleMessage != null) {
+                final LocalSendingMessage localSendingMessageUpdate = new LocalSendingMessage();
+                localSendingMessageUpdate.localId.set(localSendingMessageLocalId);
+                localSendingMessageUpdate.localSendStatus.set(IMConstants.SendStatus.FAIL);
+                localSendingMessageUpdate.errorCode.set(GeneralErrorCode.ERROR_CODE_MESSAGE_SEND_CANCELED);
+                localSendingMessageUpdate.errorMessage.set(GeneralErrorCode.findDefaultErrorMessage(GeneralErrorCode.ERROR_CODE_MESSAGE_SEND_CANCELED));
+                if (LocalSendingMessageProvider.getInstance().updateLocalSendingMessage(mSessionUserId, localSendingMessageUpdate)) {
+                    IMLog.v("cancel idle localSendingMessage %s", idleMessage);
                     return true;
                 }
+                IMLog.e(new IllegalStateException("cancel idle localSendingMessage, updateLocalSendingMessage return false"));
+                return false;
             }
-            return false;
+
+            final SessionMessageObjectWrapperTask task = getTask(localSendingMessageLocalId);
+            if (task == null) {
+                return false;
+            }
+            final FairTaskQueue.Task longTimeTask = task.mLongTimeTask;
+            if (longTimeTask == null || !longTimeTask.cancel()) {
+                // 没有在 mLongTimeTaskQueue 中或者已经开始执行
+                return false;
+            }
+            IMLog.v("cancel waiting task %s", task.mSessionMessageObjectWrapper.mLocalSendingMessage);
+            task.mSessionMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_MESSAGE_SEND_CANCELED);
+            // 没有需要发送的消息包，按照会话内的顺序结束任务
+            onTaskPrepared(task);
+            return true;
         }
 
         private void dispatchCheckIdleMessage() {
@@ -867,15 +1087,21 @@ public class IMSessionMessageUploadManager {
             }
             mCheckIdleActionQueue.skipQueue();
             mCheckIdleActionQueue.enqueue(new SafetyRunnable(() -> {
-                if (mAllRunningTasks.size() >= MAX_RUNNING_SIZE) {
-                    IMLog.v("ignore, already has many running task size:%s", mAllRunningTasks.size());
+                final int maxRunningSize = getMaxRunningSize();
+                final int allTaskSize = mAllRunningTasks.size();
+                // 在 mLongTimeTaskQueue 中等待预处理的任务不计入正在执行的任务数量
+                final int runningTaskSize = allTaskSize - mLongTimeTaskQueue.getPendingCount();
+                final int limit = Math.min(maxRunningSize - runningTaskSize, maxRunningSize + MAX_WAITING_SIZE - allTaskSize);
+                if (limit <= 0) {
+                    IMLog.v("ignore, already has many running task size:%s, all task size:%s", runningTaskSize, allTaskSize);
                     return;
                 }
 
+                // 从内存中的待发送队列取出，不查询数据库
                 final List<LocalSendingMessage> localSendingMessageList =
                         LocalSendingMessageProvider
                                 .getInstance()
-                                .getIdleMessageList(mSessionUserId, MAX_RUNNING_SIZE);
+                                .pollIdleMessageList(mSessionUserId, limit);
 
                 synchronized (mAllRunningTasks) {
                     for (LocalSendingMessage localSendingMessage : localSendingMessageList) {
@@ -888,54 +1114,16 @@ public class IMSessionMessageUploadManager {
                         }
 
                         IMLog.v("found new idle localSendingMessage %s", localSendingMessage);
-                        final Message message = MessageDatabaseProvider.getInstance().getMessage(
-                                mSessionUserId,
-                                localSendingMessage.conversationType.get(),
-                                localSendingMessage.targetUserId.get(),
-                                localSendingMessage.messageLocalId.get()
-                        );
-                        final long sign;
-                        if (message == null) {
-                            sign = SignGenerator.nextSign();
-                        } else {
-                            sign = message.sign.getOrDefault(SignGenerator.nextSign());
-                        }
                         final SessionMessageObjectWrapper wrapper = new SessionMessageObjectWrapper(
                                 mSessionUserId,
-                                sign,
                                 localSendingMessage
                         );
-                        wrapper.mMessage = message;
-                        wrapper.bindAbortId();
-
-                        final SessionMessageObjectWrapperTask task = new SessionMessageObjectWrapperTask(wrapper) {
-                            @Override
-                            public void run() {
-                                try {
-                                    super.run();
-                                } catch (Throwable e) {
-                                    IMLog.e(e, "unexpected");
-                                }
-                                wrapper.onTaskEnd();
-                                synchronized (mAllRunningTasks) {
-                                    final SessionMessageObjectWrapperTask existsTask = removeTask(localSendingMessage);
-                                    if (existsTask == null) {
-                                        IMLog.e("unexpected removeTask return null %s", localSendingMessage);
-                                    } else if (existsTask != this) {
-                                        IMLog.e("unexpected removeTask return another value %s", localSendingMessage);
-                                    } else {
-                                        IMLog.v("success remove task %s", localSendingMessage);
-                                    }
-                                }
-                                dispatchCheckIdleMessage();
-                            }
-                        };
+                        final SessionMessageObjectWrapperTask task = new SessionMessageObjectWrapperTask(wrapper);
+                        wrapper.mTask = task;
+                        addToConversationSendOrder(task);
                         mAllRunningTasks.add(task);
-                        if (wrapper.isFastMessage()) {
-                            mShortTimeTaskQueue.enqueue(task);
-                        } else {
-                            mLongTimeTaskQueue.enqueue(task);
-                        }
+                        // 绑定 abort id 与读取消息在任务中执行
+                        mShortTimeTaskQueue.enqueue(new SafetyRunnable(task::load));
                     }
                 }
 
@@ -947,9 +1135,32 @@ public class IMSessionMessageUploadManager {
 
             @NonNull
             private final SessionMessageObjectWrapper mSessionMessageObjectWrapper;
+            @NonNull
+            private final String mConversationKey;
+
+            /**
+             * 是否已经完成预处理, 在 mConversationSendOrders 锁内读写
+             */
+            private boolean mPrepared;
+            /**
+             * 预处理完成之后待发送的消息包. 为 null 时表示预处理失败，不需要发送.
+             */
+            @Nullable
+            private MessagePacket mPreparedMessagePacket;
+
+            /**
+             * 在 mLongTimeTaskQueue 中的任务，还没有开始执行时可以取消
+             */
+            @Nullable
+            private volatile FairTaskQueue.Task mLongTimeTask;
+
+            private final AtomicBoolean mSendWindowAcquired = new AtomicBoolean(false);
+            private final AtomicBoolean mEnd = new AtomicBoolean(false);
 
             private SessionMessageObjectWrapperTask(@NonNull SessionMessageObjectWrapper sessionMessageObjectWrapper) {
                 mSessionMessageObjectWrapper = sessionMessageObjectWrapper;
+                final LocalSendingMessage localSendingMessage = sessionMessageObjectWrapper.mLocalSendingMessage;
+                mConversationKey = localSendingMessage.conversationType.get() + "_" + localSendingMessage.targetUserId.get();
             }
 
             @Nullable
@@ -986,6 +1197,36 @@ public class IMSessionMessageUploadManager {
                 return sessionTcpClient;
             }
 
+            /**
+             * 在 mShortTimeTaskQueue 上绑定 abort id 并读取对应的消息，需要预处理上传数据的消息转到 mLongTimeTaskQueue 上执行.
+             */
+            private void load() {
+                try {
+                    mSessionMessageObjectWrapper.bindAbortId();
+                    if (!mSessionMessageObjectWrapper.hasErrorOrAbort()) {
+                        mSessionMessageObjectWrapper.loadMessage();
+                        SendLatencyTracker.getInstance().mark(mSessionMessageObjectWrapper.mSign, SendLatencyTracker.STAGE_SCHEDULED);
+                    }
+                } catch (Throwable e) {
+                    IMLog.e(e);
+                    if (mSessionMessageObjectWrapper.mErrorCode == 0) {
+                        mSessionMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_UNKNOWN);
+                    }
+                }
+
+                if (mSessionMessageObjectWrapper.hasErrorOrAbort() || mSessionMessageObjectWrapper.isFastMessage()) {
+                    run();
+                } else {
+                    mLongTimeTask = mLongTimeTaskQueue.enqueue(
+                            mConversationKey,
+                            mSessionMessageObjectWrapper.getSendPriority(),
+                            mSessionMessageObjectWrapper.getSendCost(),
+                            this);
+                    // 等待预处理的任务不计入正在执行的任务数量，检查是否有新的消息可以开始执行
+                    dispatchCheckIdleMessage();
+                }
+            }
+
             @Override
             public void run() {
                 try {
@@ -1018,43 +1259,97 @@ public class IMSessionMessageUploadManager {
                         return;
                     }
 
-                    // 通过长连接发送 proto buf
-                    final SessionTcpClient sessionTcpClient = this.waitTcpClientConnected();
-                    if (sessionTcpClient == null) {
+                    if (mSessionMessageObjectWrapper.hasErrorOrAbort()) {
                         return;
                     }
 
-                    if (mSessionMessageObjectWrapper.hasErrorOrAbort()) {
+                    mPreparedMessagePacket = messagePacket;
+                    IMLog.v(Objects.defaultObjectTag(this) + " prepare end. %s", messagePacket);
+                } catch (Throwable e) {
+                    IMLog.e(e);
+                    if (e instanceof GeneralErrorCodeException) {
+                        mSessionMessageObjectWrapper.setError(((GeneralErrorCodeException) e).errorCode);
+                    } else if (mSessionMessageObjectWrapper.mErrorCode == 0) {
+                        mSessionMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_UNKNOWN);
+                    }
+                } finally {
+                    // 预处理结束(成功或者失败), 不在此处等待响应结果
+                    onTaskPrepared(this);
+                }
+            }
+
+            /**
+             * 在 mSendQueue 上按照会话内的顺序执行. 发送窗口已满时等待，发送之后不等待响应结果.
+             */
+            private void send() {
+                try {
+                    final MessagePacket messagePacket = mPreparedMessagePacket;
+                    if (messagePacket == null || mSessionMessageObjectWrapper.hasErrorOrAbort()) {
+                        onMessagePacketEnd();
                         return;
                     }
 
-                    sessionTcpClient.sendMessagePacketQuietly(messagePacket);
-                    if (messagePacket.getState() != MessagePacket.STATE_WAIT_RESULT) {
-                        mSessionMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_MESSAGE_PACKET_SEND_FAIL);
+                    final SessionTcpClient sessionTcpClient = this.waitTcpClientConnected();
+                    if (sessionTcpClient == null) {
+                        onMessagePacketEnd();
                         return;
                     }
 
-                    // wait message packet result
-                    while (messagePacket.getState() == MessagePacket.STATE_WAIT_RESULT) {
-                        IMLog.v(Objects.defaultObjectTag(this) + " wait message packet result %s", messagePacket);
-                        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-                        synchronized (messagePacket) {
-                            try {
-                                messagePacket.wait(2000L);
-                            } catch (InterruptedException e) {
-                                IMLog.v("messagePacket wait interrupted %s", messagePacket);
-                            }
+                    acquireSendWindow();
+                    mSendWindowAcquired.set(true);
+
+                    // 通过长连接发送 proto buf. 写入长连接的时间点在消息包进入 STATE_GOING 时记录(等待长连接可写之后)
+                    sessionTcpClient.sendMessagePacketQuietly(messagePacket);
+                    final int state = messagePacket.getState();
+                    if (state == MessagePacket.STATE_IDLE || state == MessagePacket.STATE_FAIL) {
+                        // 没有发送(如当前没有登录)或者写入失败
+                        if (mSessionMessageObjectWrapper.mErrorCode == 0) {
+                            mSessionMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_MESSAGE_PACKET_SEND_FAIL);
                         }
+                        onMessagePacketEnd();
+                        return;
                     }
-                    IMLog.v(Objects.defaultObjectTag(this) + " body run end. %s", messagePacket);
+                    // 响应结果或者超时通过 onMessagePacketEnd 异步结束任务
+                    IMLog.v(Objects.defaultObjectTag(this) + " send end. %s", messagePacket);
                 } catch (Throwable e) {
                     IMLog.e(e);
-                    if (e instanceof GeneralErrorCodeException) {
-                        mSessionMessageObjectWrapper.setError(((GeneralErrorCodeException) e).errorCode);
-                    } else if (mSessionMessageObjectWrapper.mErrorCode == 0) {
+                    if (mSessionMessageObjectWrapper.mErrorCode == 0) {
                         mSessionMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_UNKNOWN);
                     }
+                    onMessagePacketEnd();
+                }
+            }
+
+            /**
+             * 消息包已经结束(收到响应，超时或者发送失败)或者不需要发送. 可能在持有消息包状态锁的线程上调用，
+             * 任务的结束在 mTaskEndQueue 上执行. 可以重复调用.
+             */
+            private void onMessagePacketEnd() {
+                if (mSendWindowAcquired.compareAndSet(true, false)) {
+                    releaseSendWindow();
+                }
+                mTaskEndQueue.enqueue(new SafetyRunnable(this::end));
+            }
+
+            private void end() {
+                if (!mEnd.compareAndSet(false, true)) {
+                    return;
+                }
+
+                final LocalSendingMessage localSendingMessage = mSessionMessageObjectWrapper.mLocalSendingMessage;
+                mSessionMessageObjectWrapper.onTaskEnd();
+                SendLatencyTracker.getInstance().finish(mSessionMessageObjectWrapper.mSign);
+                synchronized (mAllRunningTasks) {
+                    final SessionMessageObjectWrapperTask existsTask = removeTask(localSendingMessage);
+                    if (existsTask == null) {
+                        IMLog.e("unexpected removeTask return null %s", localSendingMessage);
+                    } else if (existsTask != this) {
+                        IMLog.e("unexpected removeTask return another value %s", localSendingMessage);
+                    } else {
+                        IMLog.v("success remove task %s", localSendingMessage);
+                    }
                 }
+                dispatchCheckIdleMessage();
             }
         }
     }
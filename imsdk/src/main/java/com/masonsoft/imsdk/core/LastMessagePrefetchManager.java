@@ -0,0 +1,392 @@
+package com.masonsoft.imsdk.core;
+
+import androidx.annotation.NonNull;
+
+import com.masonsoft.imsdk.core.db.Conversation;
+import com.masonsoft.imsdk.core.db.ConversationDatabaseProvider;
+import com.masonsoft.imsdk.core.db.Message;
+import com.masonsoft.imsdk.core.db.MessageDatabaseProvider;
+import com.masonsoft.imsdk.core.observable.FetchMessageHistoryObservable;
+import com.masonsoft.imsdk.lang.SafetyRunnable;
+import com.masonsoft.imsdk.util.Objects;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.github.idonans.core.Singleton;
+import io.github.idonans.core.thread.TaskQueue;
+
+/**
+ * 会话列表同步之后预取每一个会话的最新一页消息. 同时进行中的预取数量有上限，等待中的会话按照优先级依次预取:
+ * 被打开的会话最优先，其次是界面上可见的会话，然后按照会话的 seq 从大到小.
+ * 最后一条消息(remoteMessageEnd)已经在本地的会话不需要预取.
+ *
+ * @since 1.0
+ */
+public class LastMessagePrefetchManager {
+
+    private static final Singleton<LastMessagePrefetchManager> INSTANCE = new Singleton<LastMessagePrefetchManager>() {
+        @Override
+        protected LastMessagePrefetchManager create() {
+            return new LastMessagePrefetchManager();
+        }
+    };
+
+    public static LastMessagePrefetchManager getInstance() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * 同时进行中的预取数量上限. 比 {@linkplain FetchMessageHistoryManager#MAX_IN_FLIGHT_COUNT} 小 1,
+     * 始终为用户主动获取历史消息的请求保留一个等待响应结果的名额.
+     */
+    private static final int MAX_PREFETCH_COUNT = FetchMessageHistoryManager.MAX_IN_FLIGHT_COUNT - 1;
+
+    private final Map<Long, SessionWorker> mSessionWorkerMap = new HashMap<>();
+
+    @SuppressWarnings("FieldCanBeLocal")
+    private final FetchMessageHistoryObservable.FetchMessageHistoryObserver mFetchMessageHistoryObserver = new FetchMessageHistoryObservable.FetchMessageHistoryObserver() {
+        @Override
+        public void onMessageHistoryFetchedLoading(long sign) {
+            // ignore
+        }
+
+        @Override
+        public void onMessageHistoryFetchedSuccess(long sign) {
+            onPrefetchEnd(sign);
+        }
+
+        @Override
+        public void onMessageHistoryFetchedError(long sign, int errorCode, String errorMessage) {
+            onPrefetchEnd(sign);
+        }
+    };
+
+    private LastMessagePrefetchManager() {
+        FetchMessageHistoryObservable.DEFAULT.registerObserver(mFetchMessageHistoryObserver);
+    }
+
+    @NonNull
+    private SessionWorker getSessionWorker(final long sessionUserId) {
+        synchronized (mSessionWorkerMap) {
+            SessionWorker sessionWorker = mSessionWorkerMap.get(sessionUserId);
+            if (sessionWorker == null) {
+                sessionWorker = new SessionWorker(sessionUserId);
+                mSessionWorkerMap.put(sessionUserId, sessionWorker);
+            }
+            return sessionWorker;
+        }
+    }
+
+    private void onPrefetchEnd(final long sign) {
+        final List<SessionWorker> sessionWorkerList;
+        synchronized (mSessionWorkerMap) {
+            sessionWorkerList = new ArrayList<>(mSessionWorkerMap.values());
+        }
+        for (SessionWorker sessionWorker : sessionWorkerList) {
+            if (sessionWorker.onPrefetchEnd(sign)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 预取会话的最新一页消息. 已经在等待中的会话会更新其 seq, 正在预取中的会话忽略.
+     */
+    public void enqueuePrefetch(final long sessionUserId, @NonNull final List<Conversation> conversationList) {
+        getSessionWorker(sessionUserId).enqueuePrefetch(conversationList);
+    }
+
+    /**
+     * 会话被打开时提升其预取优先级(如果该会话还在等待中). 后打开的会话比先打开的会话更优先.
+     */
+    public void boostPrefetch(final long sessionUserId, final int conversationType, final long targetUserId) {
+        getSessionWorker(sessionUserId).boostPrefetch(conversationType, targetUserId);
+    }
+
+    /**
+     * 设置界面上当前可见的会话，可见的会话优先预取. 每一次设置都会替换之前设置的可见会话.
+     */
+    public void setVisibleConversations(final long sessionUserId, final int conversationType, @NonNull final Collection<Long> targetUserIdList) {
+        getSessionWorker(sessionUserId).setVisibleConversations(conversationType, targetUserIdList);
+    }
+
+    @NonNull
+    private static String buildConversationKey(final int conversationType, final long targetUserId) {
+        return conversationType + "_" + targetUserId;
+    }
+
+    private static class PrefetchEntry {
+
+        private final int mConversationType;
+        private final long mTargetUserId;
+        // 加入等待队列的顺序，优先级相同时先加入的先预取
+        private final long mOrder;
+
+        private long mSeq;
+        // 最近一次被打开的顺序，为 0 表示没有被打开过
+        private long mBoostOrder;
+        private boolean mVisible;
+
+        private PrefetchEntry(int conversationType, long targetUserId, long order) {
+            mConversationType = conversationType;
+            mTargetUserId = targetUserId;
+            mOrder = order;
+        }
+
+        @NonNull
+        private String getConversationKey() {
+            return buildConversationKey(mConversationType, mTargetUserId);
+        }
+
+        private static int compare(@NonNull PrefetchEntry left, @NonNull PrefetchEntry right) {
+            if (left.mBoostOrder != right.mBoostOrder) {
+                return left.mBoostOrder > right.mBoostOrder ? -1 : 1;
+            }
+            if (left.mVisible != right.mVisible) {
+                return left.mVisible ? -1 : 1;
+            }
+            if (left.mSeq != right.mSeq) {
+                return left.mSeq > right.mSeq ? -1 : 1;
+            }
+            return Long.compare(left.mOrder, right.mOrder);
+        }
+    }
+
+    private static class SessionWorker implements DebugManager.DebugInfoProvider {
+
+        private final long mSessionUserId;
+        private final Object mLock = new Object();
+        // 等待中的会话, 按照优先级排序. 修改优先级时需要先移除，修改之后再重新加入
+        private final TreeSet<PrefetchEntry> mPendingEntrySet = new TreeSet<>(PrefetchEntry::compare);
+        private final Map<String, PrefetchEntry> mPendingEntryMap = new HashMap<>();
+        // 预取中的会话, key 为获取历史消息请求的 sign
+        private final Map<Long, PrefetchEntry> mRunningEntryMap = new HashMap<>();
+        private final Set<String> mVisibleConversationKeySet = new HashSet<>();
+        private long mNextOrder;
+        private long mNextBoostOrder;
+        private long mSkipCount;
+        private long mPrefetchCount;
+
+        private final TaskQueue mQueue = new TaskQueue(1);
+        private final AtomicBoolean mDispatchScheduled = new AtomicBoolean(false);
+
+        private SessionWorker(long sessionUserId) {
+            mSessionUserId = sessionUserId;
+
+            DebugManager.getInstance().addDebugInfoProvider(this);
+        }
+
+        @Override
+        public void fetchDebugInfo(@NonNull StringBuilder builder) {
+            final String tag = Objects.defaultObjectTag(this);
+            builder.append(tag).append(" --:\n");
+            builder.append("mSessionUserId:").append(this.mSessionUserId).append("\n");
+            synchronized (mLock) {
+                builder.append("mPendingEntrySet size:").append(this.mPendingEntrySet.size()).append("\n");
+                builder.append("mRunningEntryMap size:").append(this.mRunningEntryMap.size()).append("\n");
+                builder.append("mVisibleConversationKeySet size:").append(this.mVisibleConversationKeySet.size()).append("\n");
+                builder.append("mSkipCount:").append(this.mSkipCount).append("\n");
+                builder.append("mPrefetchCount:").append(this.mPrefetchCount).append("\n");
+            }
+            builder.append("mQueue --:").append("\n");
+            mQueue.printDetail(builder);
+            builder.append("mQueue -- end").append("\n");
+            builder.append(tag).append(" -- end\n");
+        }
+
+        private void enqueuePrefetch(@NonNull List<Conversation> conversationList) {
+            synchronized (mLock) {
+                for (Conversation conversation : conversationList) {
+                    if (conversation.localId.isUnset()) {
+                        continue;
+                    }
+                    final int conversationType = conversation.localConversationType.get();
+                    final long targetUserId = conversation.targetUserId.get();
+                    final long seq = conversation.localSeq.getOrDefault(0L);
+                    final String conversationKey = buildConversationKey(conversationType, targetUserId);
+
+                    PrefetchEntry entry = mPendingEntryMap.get(conversationKey);
+                    if (entry != null) {
+                        if (entry.mSeq != seq) {
+                            mPendingEntrySet.remove(entry);
+                            entry.mSeq = seq;
+                            mPendingEntrySet.add(entry);
+                        }
+                        continue;
+                    }
+
+                    if (isRunning(conversationKey)) {
+                        continue;
+                    }
+
+                    entry = new PrefetchEntry(conversationType, targetUserId, ++mNextOrder);
+                    entry.mSeq = seq;
+                    entry.mVisible = mVisibleConversationKeySet.contains(conversationKey);
+                    mPendingEntryMap.put(conversationKey, entry);
+                    mPendingEntrySet.add(entry);
+                }
+            }
+            scheduleDispatch();
+        }
+
+        private void boostPrefetch(int conversationType, long targetUserId) {
+            synchronized (mLock) {
+                final PrefetchEntry entry = mPendingEntryMap.get(buildConversationKey(conversationType, targetUserId));
+                if (entry == null) {
+                    return;
+                }
+                mPendingEntrySet.remove(entry);
+                entry.mBoostOrder = ++mNextBoostOrder;
+                mPendingEntrySet.add(entry);
+            }
+        }
+
+        private void setVisibleConversations(int conversationType, @NonNull Collection<Long> targetUserIdList) {
+            synchronized (mLock) {
+                final Set<String> visibleConversationKeySet = new HashSet<>();
+                for (Long targetUserId : targetUserIdList) {
+                    if (targetUserId != null) {
+                        visibleConversationKeySet.add(buildConversationKey(conversationType, targetUserId));
+                    }
+                }
+
+                for (String conversationKey : mVisibleConversationKeySet) {
+                    if (!visibleConversationKeySet.contains(conversationKey)) {
+                        updatePendingEntryVisible(conversationKey, false);
+                    }
+                }
+                for (String conversationKey : visibleConversationKeySet) {
+                    if (!mVisibleConversationKeySet.contains(conversationKey)) {
+                        updatePendingEntryVisible(conversationKey, true);
+                    }
+                }
+                mVisibleConversationKeySet.clear();
+                mVisibleConversationKeySet.addAll(visibleConversationKeySet);
+            }
+        }
+
+        private void updatePendingEntryVisible(@NonNull String conversationKey, boolean visible) {
+            final PrefetchEntry entry = mPendingEntryMap.get(conversationKey);
+            if (entry != null && entry.mVisible != visible) {
+                mPendingEntrySet.remove(entry);
+                entry.mVisible = visible;
+                mPendingEntrySet.add(entry);
+            }
+        }
+
+        private boolean isRunning(@NonNull String conversationKey) {
+            for (PrefetchEntry entry : mRunningEntryMap.values()) {
+                if (conversationKey.equals(entry.getConversationKey())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return 如果 sign 对应的是当前 session 的预取请求返回 true, 否则返回 false.
+         */
+        private boolean onPrefetchEnd(final long sign) {
+            synchronized (mLock) {
+                if (mRunningEntryMap.remove(sign) == null) {
+                    return false;
+                }
+            }
+            scheduleDispatch();
+            return true;
+        }
+
+        private void scheduleDispatch() {
+            if (mDispatchScheduled.compareAndSet(false, true)) {
+                mQueue.enqueue(new SafetyRunnable(() -> {
+                    mDispatchScheduled.set(false);
+                    dispatch();
+                }));
+            }
+        }
+
+        private void dispatch() {
+            while (true) {
+                final PrefetchEntry entry;
+                synchronized (mLock) {
+                    if (mRunningEntryMap.size() >= MAX_PREFETCH_COUNT) {
+                        return;
+                    }
+
+                    if (IMSessionManager.getInstance().getSessionUserId() != mSessionUserId) {
+                        // 已经切换了登录信息，丢弃所有等待中的会话
+                        if (!mPendingEntrySet.isEmpty()) {
+                            IMLog.v(Objects.defaultObjectTag(this) + " session changed, discard pending entry size:%s, mSessionUserId:%s",
+                                    mPendingEntrySet.size(), mSessionUserId);
+                            mPendingEntrySet.clear();
+                            mPendingEntryMap.clear();
+                        }
+                        return;
+                    }
+
+                    entry = mPendingEntrySet.pollFirst();
+                    if (entry == null) {
+                        return;
+                    }
+                    mPendingEntryMap.remove(entry.getConversationKey());
+                }
+
+                if (!isLastMessageMissing(entry)) {
+                    synchronized (mLock) {
+                        mSkipCount++;
+                    }
+                    continue;
+                }
+
+                final long sign = SignGenerator.nextSign();
+                synchronized (mLock) {
+                    mRunningEntryMap.put(sign, entry);
+                    mPrefetchCount++;
+                }
+                FetchMessageHistoryManager.getInstance().enqueueFetchMessageHistory(
+                        mSessionUserId,
+                        sign,
+                        entry.mConversationType,
+                        entry.mTargetUserId,
+                        0,
+                        true
+                );
+            }
+        }
+
+        /**
+         * 会话的最后一条消息是否不在本地(需要预取)
+         */
+        private boolean isLastMessageMissing(@NonNull PrefetchEntry entry) {
+            final Conversation conversation = ConversationDatabaseProvider.getInstance().getConversationByTargetUserId(
+                    mSessionUserId,
+                    entry.mConversationType,
+                    entry.mTargetUserId
+            );
+            if (conversation == null) {
+                return false;
+            }
+            final long remoteMessageEnd = conversation.remoteMessageEnd.getOrDefault(0L);
+            if (remoteMessageEnd <= 0) {
+                // 没有消息
+                return false;
+            }
+            final Message message = MessageDatabaseProvider.getInstance().getMessageWithRemoteMessageId(
+                    mSessionUserId,
+                    entry.mConversationType,
+                    entry.mTargetUserId,
+                    remoteMessageEnd
+            );
+            return message == null;
+        }
+    }
+
+}
@@ -0,0 +1,636 @@
+package com.masonsoft.imsdk.core;
+
+import android.net.Uri;
+import android.webkit.URLUtil;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import androidx.collection.LruCache;
+
+import com.masonsoft.imsdk.lang.ImageInfo;
+import com.masonsoft.imsdk.lang.MediaInfo;
+import com.masonsoft.imsdk.util.BitmapUtil;
+import com.masonsoft.imsdk.util.MediaUtil;
+import com.masonsoft.imsdk.util.Objects;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.github.idonans.core.Singleton;
+import io.github.idonans.core.thread.TaskQueue;
+import io.github.idonans.core.util.ContextUtil;
+import io.github.idonans.core.util.FileUtil;
+import io.github.idonans.core.util.IOUtil;
+import top.zibin.luban.Luban;
+
+/**
+ * 媒体文件预处理. 在上传之前完成图片压缩，视频信息(包括视频封面)解码等耗时的操作. 处理结果以源文件内容的 hash 为 key
+ * 缓存在磁盘上，按照最近访问时间清理. 选择媒体文件之后即可调用 {@linkplain #preprocess(String)} 提前开始处理,
+ * 上传时通过 {@linkplain #get(String)} 获取处理结果.
+ *
+ * @since 1.0
+ */
+public class MediaPreprocessManager implements DebugManager.DebugInfoProvider {
+
+    private static final Singleton<MediaPreprocessManager> INSTANCE = new Singleton<MediaPreprocessManager>() {
+        @Override
+        protected MediaPreprocessManager create() {
+            return new MediaPreprocessManager();
+        }
+    };
+
+    public static MediaPreprocessManager getInstance() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * 媒体文件的预处理结果
+     */
+    public static final class Result {
+        /**
+         * 源文件内容的 hash
+         */
+        @NonNull
+        public final String contentHash;
+        /**
+         * 用于上传的本地文件路径(如压缩后的图片)
+         */
+        @NonNull
+        public final String filePath;
+        /**
+         * filePath 对应的文件内容的 hash
+         */
+        @NonNull
+        public final String fileHash;
+        /**
+         * 源文件的 mime 类型，不是图片，视频或者音频时为 null
+         */
+        @Nullable
+        public final String mimeType;
+        /**
+         * 源文件是视频或者音频时的媒体信息. 多个调用方共享，使用前需要复制. 视频封面在磁盘缓存中，见 {@linkplain MediaInfo#thumbFilePath}
+         */
+        @Nullable
+        public final MediaInfo mediaInfo;
+
+        private Result(@NonNull String contentHash,
+                       @NonNull String filePath,
+                       @NonNull String fileHash,
+                       @Nullable String mimeType,
+                       @Nullable MediaInfo mediaInfo) {
+            this.contentHash = contentHash;
+            this.filePath = filePath;
+            this.fileHash = fileHash;
+            this.mimeType = mimeType;
+            this.mediaInfo = mediaInfo;
+        }
+
+        /**
+         * 处理结果对应的文件是否仍然存在(可能已经被磁盘缓存清理)
+         */
+        private boolean isFilesExists() {
+            if (!FileUtil.isFile(new File(this.filePath))) {
+                return false;
+            }
+            return this.mediaInfo == null
+                    || this.mediaInfo.thumbFilePath == null
+                    || FileUtil.isFile(new File(this.mediaInfo.thumbFilePath));
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "contentHash='" + contentHash + '\'' +
+                    ", filePath='" + filePath + '\'' +
+                    ", fileHash='" + fileHash + '\'' +
+                    ", mimeType='" + mimeType + '\'' +
+                    '}';
+        }
+    }
+
+    private static final String DISK_CACHE_DIR_NAME = "imsdk_media_preprocess_20210520";
+    private static final String DATA_SUFFIX = ".data";
+    private static final String THUMB_SUFFIX = ".thumb";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * 磁盘缓存的大小上限
+     */
+    private static final long MAX_DISK_CACHE_SIZE = 256 * 1024 * 1024L;
+    /**
+     * 最近一天内访问过的磁盘缓存不清理，等待上传的消息可能仍然在使用其中的文件. 消息中记录的视频封面在使用前复制到临时文件，不引用缓存中的文件.
+     */
+    private static final long MIN_DISK_CACHE_KEEP_MS = 24 * 60 * 60 * 1000L;
+    /**
+     * 超过该时间的临时文件是异常中断遗留的文件
+     */
+    private static final long TMP_FILE_EXPIRE_MS = 60 * 60 * 1000L;
+    /**
+     * 内存中记录的处理任务的数量上限
+     */
+    private static final int MAX_JOB_COUNT = 100;
+
+    // 图片解码与压缩占用较多的内存，同时处理的数量不超过 4 个
+    private final TaskQueue mTaskQueue = new TaskQueue(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    // key 为文件地址
+    private final LruCache<String, Job> mJobs = new LruCache<>(MAX_JOB_COUNT);
+
+    private final Object mDiskLock = new Object();
+    // 磁盘缓存的当前大小, 小于 0 表示尚未统计
+    private long mDiskCacheSize = -1L;
+
+    private MediaPreprocessManager() {
+        DebugManager.getInstance().addDebugInfoProvider(this);
+    }
+
+    /**
+     * 在后台开始预处理文件(如用户选择了图片或者视频之后). 网络地址忽略.
+     */
+    public void preprocess(@NonNull String fileUri) {
+        if (URLUtil.isNetworkUrl(fileUri)) {
+            return;
+        }
+        final Job job = obtainJob(fileUri);
+        if (!job.mStarted.get()) {
+            mTaskQueue.enqueue(job::runIfNotStarted);
+        }
+    }
+
+    /**
+     * 获取文件的预处理结果. 如果尚未开始处理，在当前线程处理；如果正在处理，等待处理完成.
+     */
+    @WorkerThread
+    @NonNull
+    public Result get(@NonNull String fileUri) throws Throwable {
+        final Job job = obtainJob(fileUri);
+        // 预处理任务可能仍在队列中等待，此时直接在当前线程处理
+        job.runIfNotStarted();
+        job.mDone.await();
+        if (job.mError != null) {
+            throw job.mError;
+        }
+        return job.mResult;
+    }
+
+    /**
+     * 获取已经处理完成的结果，不等待. 尚未处理完成时返回 null.
+     */
+    @Nullable
+    public Result peek(@NonNull String fileUri) {
+        final Job job;
+        synchronized (mJobs) {
+            job = mJobs.get(fileUri);
+        }
+        if (job == null || job.mDone.getCount() > 0) {
+            return null;
+        }
+        final Result result = job.mResult;
+        if (result == null || !result.isFilesExists()) {
+            return null;
+        }
+        return result;
+    }
+
+    @NonNull
+    private Job obtainJob(@NonNull String fileUri) {
+        synchronized (mJobs) {
+            final Job job = mJobs.get(fileUri);
+            if (job != null) {
+                if (job.mDone.getCount() > 0 || (job.mResult != null && job.mResult.isFilesExists())) {
+                    return job;
+                }
+                // 处理失败，或者处理结果已经被清理，重新处理
+            }
+            final Job newJob = new Job(fileUri);
+            mJobs.put(fileUri, newJob);
+            return newJob;
+        }
+    }
+
+    private class Job {
+        @NonNull
+        private final String mFileUri;
+        private final AtomicBoolean mStarted = new AtomicBoolean(false);
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        // mResult 与 mError 在 mDone 之前写入
+        private Result mResult;
+        private Throwable mError;
+
+        private Job(@NonNull String fileUri) {
+            mFileUri = fileUri;
+        }
+
+        private void runIfNotStarted() {
+            if (!mStarted.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                mResult = process(mFileUri);
+            } catch (Throwable e) {
+                IMLog.e(e, "preprocess %s fail", mFileUri);
+                mError = e;
+            } finally {
+                mDone.countDown();
+            }
+        }
+    }
+
+    @NonNull
+    private Result process(@NonNull String fileUri) throws Throwable {
+        final long startTimeMs = System.currentTimeMillis();
+        File copyFile = null;
+        try {
+            final Uri uri = Uri.parse(fileUri);
+            final String scheme = uri.getScheme();
+            final String localFilePath;
+            if ("content".equalsIgnoreCase(scheme)) {
+                // content 类型的地址先复制到磁盘缓存目录
+                copyFile = createTmpFile();
+                InputStream is = null;
+                try {
+                    is = ContextUtil.getContext().getContentResolver().openInputStream(uri);
+                    IOUtil.copy(is, copyFile, null, null);
+                } finally {
+                    IOUtil.closeQuietly(is);
+                }
+                localFilePath = copyFile.getAbsolutePath();
+            } else if ("file".equalsIgnoreCase(scheme)) {
+                localFilePath = fileUri.substring(7);
+            } else {
+                localFilePath = fileUri;
+            }
+            if (!FileUtil.isFile(new File(localFilePath))) {
+                throw new IllegalStateException(localFilePath + " is not a exists file");
+            }
+
+            final String contentHash = computeContentHash(localFilePath);
+            final Result cacheResult = readDiskCache(uri, contentHash, localFilePath, copyFile != null);
+            if (cacheResult != null) {
+                IMLog.v(Objects.defaultObjectTag(this) + " process %s disk cache hit %s", fileUri, cacheResult);
+                return cacheResult;
+            }
+
+            // 处理后用于上传的文件, 为 null 时使用源文件
+            File dataFile = null;
+            File thumbFile = null;
+            String mimeType = null;
+            MediaInfo mediaInfo = null;
+
+            final Uri localFileUri = Uri.fromFile(new File(localFilePath));
+            // 先猜测该文件是否是图片
+            final ImageInfo imageInfo = BitmapUtil.decodeImageInfo(localFileUri);
+            if (imageInfo != null) {
+                mimeType = imageInfo.mimeType;
+                // gif 图不压缩
+                if (!imageInfo.isGif()) {
+                    final File compressedFile = Luban.with(ContextUtil.getContext()).get(localFilePath);
+                    if (!compressedFile.getAbsolutePath().equals(localFilePath)) {
+                        dataFile = compressedFile;
+                    }
+                }
+            } else {
+                // 猜测该文件是否是视频或者音频, 视频或者音频不压缩
+                mediaInfo = MediaUtil.decodeMediaInfo(localFileUri);
+                if (mediaInfo != null) {
+                    mimeType = mediaInfo.mimeType;
+                    if (mediaInfo.thumbFilePath != null) {
+                        thumbFile = new File(mediaInfo.thumbFilePath);
+                    }
+                }
+            }
+
+            final String fileHash;
+            if (dataFile != null) {
+                fileHash = computeContentHash(dataFile.getAbsolutePath());
+            } else {
+                // 复制的文件需要保存在磁盘缓存中
+                dataFile = copyFile;
+                fileHash = contentHash;
+            }
+
+            final Result result = writeDiskCache(uri, contentHash, localFilePath, dataFile, fileHash, thumbFile, mimeType, mediaInfo);
+            IMLog.v(Objects.defaultObjectTag(this) + " process %s -> %s, time cost:%sms",
+                    fileUri, result, System.currentTimeMillis() - startTimeMs);
+            return result;
+        } finally {
+            // 已经移动到磁盘缓存中时，这里什么也不做
+            FileUtil.deleteFileQuietly(copyFile);
+        }
+    }
+
+    /**
+     * @param requireDataFile 源文件是临时复制的文件时，需要缓存中有对应的文件
+     */
+    @Nullable
+    private Result readDiskCache(@NonNull Uri uri, @NonNull String contentHash, @NonNull String localFilePath, boolean requireDataFile) {
+        synchronized (mDiskLock) {
+            final File dir = getDiskCacheDir();
+            final File metaFile = new File(dir, contentHash + META_SUFFIX);
+            if (!FileUtil.isFile(metaFile)) {
+                return null;
+            }
+            try {
+                final JSONObject meta = new JSONObject(readFileAsString(metaFile));
+                final boolean hasData = meta.getBoolean("hasData");
+                final File dataFile = new File(dir, contentHash + DATA_SUFFIX);
+                if (hasData ? !FileUtil.isFile(dataFile) : requireDataFile) {
+                    return null;
+                }
+                final MediaInfo mediaInfo = meta.isNull("mediaInfo") ? null : mediaInfoFromJson(meta.getJSONObject("mediaInfo"), uri);
+                if (mediaInfo != null && meta.getBoolean("hasThumb")) {
+                    final File thumbFile = new File(dir, contentHash + THUMB_SUFFIX);
+                    if (!FileUtil.isFile(thumbFile)) {
+                        return null;
+                    }
+                    mediaInfo.thumbFilePath = thumbFile.getAbsolutePath();
+                }
+
+                // 记录最近访问时间
+                //noinspection ResultOfMethodCallIgnored
+                metaFile.setLastModified(System.currentTimeMillis());
+                return new Result(
+                        contentHash,
+                        hasData ? dataFile.getAbsolutePath() : localFilePath,
+                        meta.getString("fileHash"),
+                        meta.isNull("mimeType") ? null : meta.getString("mimeType"),
+                        mediaInfo
+                );
+            } catch (Throwable e) {
+                IMLog.e(e);
+                return null;
+            }
+        }
+    }
+
+    @NonNull
+    private Result writeDiskCache(@NonNull Uri uri,
+                                  @NonNull String contentHash,
+                                  @NonNull String localFilePath,
+                                  @Nullable File dataFile,
+                                  @NonNull String fileHash,
+                                  @Nullable File thumbFile,
+                                  @Nullable String mimeType,
+                                  @Nullable MediaInfo mediaInfo) throws Throwable {
+        final JSONObject meta = new JSONObject();
+        meta.put("hasData", dataFile != null);
+        meta.put("fileHash", fileHash);
+        meta.put("mimeType", mimeType == null ? JSONObject.NULL : mimeType);
+        meta.put("mediaInfo", mediaInfo == null ? JSONObject.NULL : mediaInfoToJson(mediaInfo));
+        meta.put("hasThumb", thumbFile != null);
+        final File metaTmpFile = createTmpFile();
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(metaTmpFile);
+            os.write(meta.toString().getBytes(StandardCharsets.UTF_8));
+            os.flush();
+        } catch (Throwable e) {
+            FileUtil.deleteFileQuietly(metaTmpFile);
+            throw e;
+        } finally {
+            IOUtil.closeQuietly(os);
+        }
+
+        synchronized (mDiskLock) {
+            final File dir = getDiskCacheDir();
+            long size = 0L;
+            String filePath = localFilePath;
+            if (dataFile != null) {
+                final File targetDataFile = new File(dir, contentHash + DATA_SUFFIX);
+                moveFile(dataFile, targetDataFile);
+                filePath = targetDataFile.getAbsolutePath();
+                size += targetDataFile.length();
+            }
+            if (thumbFile != null) {
+                final File targetThumbFile = new File(dir, contentHash + THUMB_SUFFIX);
+                moveFile(thumbFile, targetThumbFile);
+                //noinspection ConstantConditions
+                mediaInfo.thumbFilePath = targetThumbFile.getAbsolutePath();
+                size += targetThumbFile.length();
+            }
+            if (mediaInfo != null) {
+                mediaInfo.uri = uri;
+            }
+            // meta 最后写入，没有 meta 的缓存是不完整的
+            final File metaFile = new File(dir, contentHash + META_SUFFIX);
+            moveFile(metaTmpFile, metaFile);
+            size += metaFile.length();
+
+            if (mDiskCacheSize < 0) {
+                trimDiskCache();
+            } else {
+                mDiskCacheSize += size;
+                if (mDiskCacheSize > MAX_DISK_CACHE_SIZE) {
+                    trimDiskCache();
+                }
+            }
+
+            return new Result(contentHash, filePath, fileHash, mimeType, mediaInfo);
+        }
+    }
+
+    /**
+     * 统计磁盘缓存的大小，超过上限时按照最近访问时间清理. 需要在 mDiskLock 中调用.
+     */
+    private void trimDiskCache() {
+        final File[] files = getDiskCacheDir().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final Map<String, DiskEntry> entries = new HashMap<>();
+        long totalSize = 0L;
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.endsWith(TMP_SUFFIX)) {
+                if (now - file.lastModified() > TMP_FILE_EXPIRE_MS) {
+                    FileUtil.deleteFileQuietly(file);
+                } else {
+                    totalSize += file.length();
+                }
+                continue;
+            }
+            final int index = name.indexOf('.');
+            if (index <= 0) {
+                continue;
+            }
+            final String contentHash = name.substring(0, index);
+            DiskEntry entry = entries.get(contentHash);
+            if (entry == null) {
+                entry = new DiskEntry(contentHash);
+                entries.put(contentHash, entry);
+            }
+            entry.mSize += file.length();
+            if (name.endsWith(META_SUFFIX)) {
+                entry.mLastAccessTimeMs = file.lastModified();
+            }
+            totalSize += file.length();
+        }
+
+        if (totalSize > MAX_DISK_CACHE_SIZE) {
+            final List<DiskEntry> entryList = new ArrayList<>(entries.values());
+            Collections.sort(entryList, (o1, o2) -> Long.compare(o1.mLastAccessTimeMs, o2.mLastAccessTimeMs));
+            int removedCount = 0;
+            for (DiskEntry entry : entryList) {
+                if (totalSize <= MAX_DISK_CACHE_SIZE
+                        || now - entry.mLastAccessTimeMs < MIN_DISK_CACHE_KEEP_MS) {
+                    break;
+                }
+                final File dir = getDiskCacheDir();
+                FileUtil.deleteFileQuietly(new File(dir, entry.mContentHash + META_SUFFIX));
+                FileUtil.deleteFileQuietly(new File(dir, entry.mContentHash + DATA_SUFFIX));
+                FileUtil.deleteFileQuietly(new File(dir, entry.mContentHash + THUMB_SUFFIX));
+                totalSize -= entry.mSize;
+                removedCount++;
+            }
+            IMLog.v(Objects.defaultObjectTag(this) + " trimDiskCache removed %s entries, size:%s", removedCount, totalSize);
+        }
+        mDiskCacheSize = totalSize;
+    }
+
+    private static class DiskEntry {
+        @NonNull
+        private final String mContentHash;
+        private long mSize;
+        // 没有 meta 的不完整缓存优先清理
+        private long mLastAccessTimeMs;
+
+        private DiskEntry(@NonNull String contentHash) {
+            mContentHash = contentHash;
+        }
+    }
+
+    @NonNull
+    private File getDiskCacheDir() {
+        final File dir = new File(ContextUtil.getContext().getCacheDir(), DISK_CACHE_DIR_NAME);
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IllegalStateException("fail to create dir " + dir.getAbsolutePath());
+        }
+        return dir;
+    }
+
+    /**
+     * 在磁盘缓存目录中创建临时文件，可以直接移动为缓存文件
+     */
+    @NonNull
+    private File createTmpFile() throws Throwable {
+        return File.createTempFile("preprocess_", TMP_SUFFIX, getDiskCacheDir());
+    }
+
+    private static void moveFile(@NonNull File from, @NonNull File to) throws Throwable {
+        if (from.renameTo(to)) {
+            return;
+        }
+        // 不在同一个文件系统中时复制
+        InputStream is = null;
+        try {
+            is = new FileInputStream(from);
+            IOUtil.copy(is, to, null, null);
+        } finally {
+            IOUtil.closeQuietly(is);
+        }
+        FileUtil.deleteFileQuietly(from);
+    }
+
+    @NonNull
+    private static String readFileAsString(@NonNull File file) throws Throwable {
+        final byte[] data = new byte[(int) file.length()];
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            int offset = 0;
+            while (offset < data.length) {
+                final int read = is.read(data, offset, data.length - offset);
+                if (read == -1) {
+                    break;
+                }
+                offset += read;
+            }
+        } finally {
+            IOUtil.closeQuietly(is);
+        }
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    @NonNull
+    private static JSONObject mediaInfoToJson(@NonNull MediaInfo mediaInfo) throws Throwable {
+        final JSONObject jsonObject = new JSONObject();
+        jsonObject.put("width", mediaInfo.width);
+        jsonObject.put("height", mediaInfo.height);
+        jsonObject.put("mimeType", mediaInfo.mimeType);
+        jsonObject.put("length", mediaInfo.length);
+        jsonObject.put("durationMs", mediaInfo.durationMs);
+        jsonObject.put("rotate", mediaInfo.rotate);
+        return jsonObject;
+    }
+
+    @NonNull
+    private static MediaInfo mediaInfoFromJson(@NonNull JSONObject jsonObject, @NonNull Uri uri) throws Throwable {
+        final MediaInfo mediaInfo = new MediaInfo();
+        mediaInfo.width = jsonObject.getInt("width");
+        mediaInfo.height = jsonObject.getInt("height");
+        mediaInfo.mimeType = jsonObject.getString("mimeType");
+        mediaInfo.length = jsonObject.getLong("length");
+        mediaInfo.durationMs = jsonObject.getLong("durationMs");
+        mediaInfo.rotate = jsonObject.getInt("rotate");
+        mediaInfo.uri = uri;
+        return mediaInfo;
+    }
+
+    /**
+     * 计算文件内容的 hash(SHA-256)
+     */
+    @NonNull
+    private static String computeContentHash(@NonNull String filePath) throws Throwable {
+        final MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        InputStream is = null;
+        try {
+            is = new FileInputStream(filePath);
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+            }
+        } finally {
+            IOUtil.closeQuietly(is);
+        }
+
+        final StringBuilder builder = new StringBuilder();
+        for (byte b : messageDigest.digest()) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public void fetchDebugInfo(@NonNull StringBuilder builder) {
+        final String tag = Objects.defaultObjectTag(this);
+        builder.append(tag).append(" --:\n");
+        builder.append("mTaskQueue wait count:").append(mTaskQueue.getWaitCount()).append("\n");
+        synchronized (mJobs) {
+            builder.append("mJobs size:").append(mJobs.size()).append("\n");
+        }
+        synchronized (mDiskLock) {
+            builder.append("mDiskCacheSize:").append(mDiskCacheSize).append("\n");
+        }
+        builder.append(tag).append(" -- end\n");
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.masonsoft.imsdk.core;
+
+import androidx.annotation.NonNull;
+
+import io.github.idonans.core.Singleton;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * 所有长连接共享的 netty event loop. 在第一次使用时创建，在整个 SDK 生命周期内保持可用，
+ * 断线重连时不再重复创建与销毁线程和 selector.
+ *
+ * @since 1.0
+ */
+public class NettyEventLoopManager {
+
+    private static final Singleton<NettyEventLoopManager> INSTANCE = new Singleton<NettyEventLoopManager>() {
+        @Override
+        protected NettyEventLoopManager create() {
+            return new NettyEventLoopManager();
+        }
+    };
+
+    public static NettyEventLoopManager getInstance() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * 同一时刻至多只有一个活跃的长连接，单线程足够.
+     */
+    private static final int EVENT_LOOP_THREADS = 1;
+
+    private final Object mEventLoopLock = new Object();
+    private EventLoopGroup mEventLoopGroup;
+    private boolean mNativeTransport;
+
+    /**
+     * 是否优先使用 native epoll transport (仅在 linux 且 native 库可用时生效), 默认为 false.
+     */
+    private boolean mPreferNativeTransport;
+
+    private NettyEventLoopManager() {
+    }
+
+    /**
+     * 设置是否优先使用 native epoll transport. 需要在第一次建立长连接之前设置，之后的设置会被忽略.
+     */
+    public void setPreferNativeTransport(boolean preferNativeTransport) {
+        synchronized (mEventLoopLock) {
+            if (mEventLoopGroup != null) {
+                IMLog.e(new IllegalStateException("event loop already created"),
+                        "setPreferNativeTransport:%s ignored, current native transport:%s",
+                        preferNativeTransport, mNativeTransport);
+                return;
+            }
+            mPreferNativeTransport = preferNativeTransport;
+        }
+    }
+
+    /**
+     * 获取共享的 event loop, 如果还没有创建则创建.
+     */
+    @NonNull
+    public EventLoopGroup getEventLoopGroup() {
+        synchronized (mEventLoopLock) {
+            if (mEventLoopGroup == null) {
+                final DefaultThreadFactory threadFactory = new DefaultThreadFactory("imsdk-netty", true);
+                if (mPreferNativeTransport && isNativeTransportAvailable()) {
+                    mEventLoopGroup = new EpollEventLoopGroup(EVENT_LOOP_THREADS, threadFactory);
+                    mNativeTransport = true;
+                } else {
+                    mEventLoopGroup = new NioEventLoopGroup(EVENT_LOOP_THREADS, threadFactory);
+                    mNativeTransport = false;
+                }
+                IMLog.v("NettyEventLoopManager create event loop, native transport:%s", mNativeTransport);
+            }
+            return mEventLoopGroup;
+        }
+    }
+
+    /**
+     * 与 {@linkplain #getEventLoopGroup()} 匹配的 channel 类型
+     */
+    @NonNull
+    public Class<? extends SocketChannel> getSocketChannelClass() {
+        synchronized (mEventLoopLock) {
+            getEventLoopGroup();
+            return mNativeTransport ? EpollSocketChannel.class : NioSocketChannel.class;
+        }
+    }
+
+    private static boolean isNativeTransportAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (Throwable e) {
+            // netty native 库不存在或者无法加载
+            IMLog.v(e, "native epoll transport not available");
+            return false;
+        }
+    }
+
+}
@@ -5,19 +5,26 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.google.protobuf.MessageLite;
+import com.masonsoft.imsdk.core.compress.MessageCompressorManager;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
+import io.github.idonans.core.thread.TaskQueue;
 import io.github.idonans.core.thread.Threads;
 import io.github.idonans.core.util.IOUtil;
-import io.github.idonans.core.util.ZipUtil;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelFuture;
@@ -25,9 +32,10 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.MessageToByteEncoder;
 import io.netty.handler.logging.LogLevel;
@@ -56,10 +64,6 @@ public abstract class NettyTcpClient extends TcpClient {
      */
     private static final int READ_IDLE_TIMEOUT_SECONDS = WRITE_IDLE_TIMEOUT_SECONDS * 2;
 
-    /**
-     * 如果数据长度(Message Data)超过此值，则会触发压缩.
-     */
-    private static final int MAX_PLAIN_DATA_LENGTH = 5000;
     /**
      * 数据包长度的上限
      */
@@ -67,26 +71,31 @@ public abstract class NettyTcpClient extends TcpClient {
     /**
      * 数据类型的最大值
      */
-    private static final int MAX_MESSAGE_TYPE_VALUE = 0x3ff;
+    private static final int MAX_MESSAGE_TYPE_VALUE = ProtoByteMessage.Type.MAX_TYPE_VALUE;
 
     @Nullable
-    private NioEventLoopGroup mEventLoopGroup;
+    private Channel mChannel;
     @Nullable
     private ChannelHandlerContext mChannelHandlerContext;
 
     public void connect(final String host, final int port) {
         checkState(STATE_IDLE);
 
-        mEventLoopGroup = new NioEventLoopGroup();
+        // 所有长连接共享同一个 event loop, 断线重连时不再重复创建线程
+        final NettyEventLoopManager eventLoopManager = NettyEventLoopManager.getInstance();
         final Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(mEventLoopGroup);
+        bootstrap.group(eventLoopManager.getEventLoopGroup());
         bootstrap.option(ChannelOption.TCP_NODELAY, true);
         bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
         bootstrap.option(ChannelOption.SO_KEEPALIVE, true);
-        bootstrap.channel(NioSocketChannel.class);
-        bootstrap.handler(new ChannelInitializer<NioSocketChannel>() {
+        // Android 平台上 netty 默认使用 unpooled 分配器，此处显式使用 pooled 分配器以减少收发消息时的内存分配
+        bootstrap.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+        bootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                new WriteBufferWaterMark(getWriteBufferLowWaterMark(), getWriteBufferHighWaterMark()));
+        bootstrap.channel(eventLoopManager.getSocketChannelClass());
+        bootstrap.handler(new ChannelInitializer<SocketChannel>() {
             @Override
-            protected void initChannel(NioSocketChannel ch) {
+            protected void initChannel(SocketChannel ch) {
                 if (debugNettyPackage()) {
                     ch.pipeline().addLast(new LoggingHandler(LogLevel.INFO));
                 }
@@ -111,7 +120,14 @@ public abstract class NettyTcpClient extends TcpClient {
             try {
                 final InetSocketAddress inetSocketAddress = new InetSocketAddress(host, port);
                 bootstrap.remoteAddress(inetSocketAddress);
-                final ChannelFuture channelFuture = bootstrap.connect().sync();
+                final ChannelFuture channelFuture = bootstrap.connect();
+                mChannel = channelFuture.channel();
+                if (getState() == STATE_CLOSED) {
+                    // 在发起连接的过程中已经被关闭
+                    channelFuture.channel().close();
+                    return;
+                }
+                channelFuture.sync();
                 if (!channelFuture.isSuccess()) {
                     channelFuture.channel().close();
                     dispatchDisconnected();
@@ -124,14 +140,16 @@ public abstract class NettyTcpClient extends TcpClient {
     }
 
     /**
-     * 关闭当前长连接
+     * 关闭当前长连接. 共享的 event loop 不会被关闭.
+     *
+     * @see NettyEventLoopManager
      */
     @Override
     public void close() throws IOException {
         try {
-            if (mEventLoopGroup != null) {
-                mEventLoopGroup.shutdownGracefully();
-                mEventLoopGroup = null;
+            if (mChannel != null) {
+                mChannel.close();
+                mChannel = null;
             }
         } catch (Throwable e) {
             e.printStackTrace();
@@ -153,13 +171,15 @@ public abstract class NettyTcpClient extends TcpClient {
     }
 
     /**
-     * 消息编码，将 Message 编码为 byte[] 并输出
+     * 消息编码，将 Message 编码后直接写入 (pooled) ByteBuf
      */
     private class MessageEncoder extends MessageToByteEncoder<ProtoByteMessage> {
         @Override
         protected void encode(ChannelHandlerContext ctx, ProtoByteMessage msg, ByteBuf out) throws Exception {
             IMLog.v("MessageEncoder %s", msg);
-            out.writeBytes(message2Bytes(msg));
+            final int writerIndex = out.writerIndex();
+            message2Bytes(msg, out);
+            mWriteBatcher.onEncoded(out.writerIndex() - writerIndex);
         }
     }
 
@@ -184,37 +204,69 @@ public abstract class NettyTcpClient extends TcpClient {
         return null;
     }
 
+    /**
+     * 该消息类型是否可能需要加密. 默认返回 false. 如果覆盖了 {@linkplain #encryptMessage(int, byte[])},
+     * 需要对加密的消息类型返回 true, 否则编码时会跳过加密直接将 proto buff 序列化到 ByteBuf 中.
+     */
+    protected boolean needEncryptMessage(int messageType) {
+        return false;
+    }
+
     /**
      * 对消息内容解密，返回解密后的内容。
      */
     @NonNull
     protected abstract byte[] decryptMessage(@NonNull byte[] messageData);
 
+    /**
+     * 对消息内容解密，返回解密后的内容. 不能修改 messageData 的 readerIndex, 返回的 ByteBuf 由调用者负责释放.
+     * 默认实现会复制一份密文并调用 {@linkplain #decryptMessage(byte[])}, 子类可以覆盖此方法直接在 ByteBuf 上解密.
+     */
+    @NonNull
+    protected ByteBuf decryptMessage(@NonNull ByteBuf messageData) {
+        return Unpooled.wrappedBuffer(decryptMessage(ByteBufUtil.getBytes(messageData)));
+    }
+
     /**
      * 对消息内容进行压缩，如果进行了压缩，返回压缩后的 data, 否则返回 null. 默认行为是当数据长度
-     * 较长时(超过 {@linkplain #MAX_PLAIN_DATA_LENGTH}), 返回压缩后的数据，否则返回 null.
+     * 较长时(超过该消息类型的阈值，默认为 {@linkplain MessageCompressorManager#DEFAULT_DEFLATE_THRESHOLD}),
+     * 使用当前协商的压缩算法返回压缩后的数据，否则返回 null.
      * 如果需要对不同的消息类型选择是否开启压缩，可以通过 messageType 判断消息类型。
+     *
+     * @see MessageCompressorManager#setDeflateThreshold(int, int)
      */
     protected byte[] deflateMessage(int messageType, @NonNull byte[] messageData) {
         final int length = messageData.length;
-        if (length > MAX_PLAIN_DATA_LENGTH) {
+        if (needDeflateMessage(messageType, length)) {
             // 数据超过阈值，开启压缩
-            final byte[] out = ZipUtil.deflate(messageData);
+            final byte[] out = MessageCompressorManager.getInstance().getCurrentCompressor().compress(messageData);
             IMLog.v("deflateMessage message type:%s, message data length: %s -> %s", messageType, length, out.length);
             return out;
         }
         return null;
     }
 
+    /**
+     * 该消息是否需要压缩. 默认当数据长度超过该消息类型的阈值时需要压缩.
+     * 如果覆盖了 {@linkplain #deflateMessage(int, byte[])}, 需要与其保持一致.
+     */
+    protected boolean needDeflateMessage(int messageType, int messageDataLength) {
+        return messageDataLength > MessageCompressorManager.getInstance().getDeflateThreshold(messageType);
+    }
+
     /**
      * 对消息内容解压，返回解压后的内容.
      */
     @NonNull
     protected byte[] inflateMessage(@NonNull byte[] messageData) {
-        return ZipUtil.inflate(messageData);
+        return MessageCompressorManager.getInstance().getCurrentCompressor().decompress(messageData);
     }
 
-    protected byte[] message2Bytes(ProtoByteMessage protoByteMessage) {
+    /**
+     * 将消息编码后直接写入 out(header 原地写入, 不会额外分配整帧的 byte[]).
+     * 不需要压缩与加密的 proto buff 实体对象直接序列化到 out 中，不会生成消息内容的 byte[].
+     */
+    protected void message2Bytes(ProtoByteMessage protoByteMessage, ByteBuf out) throws IOException {
         final int messageType = protoByteMessage.getType();
         if (messageType < 0) {
             throw new IllegalStateException("message2Bytes invalid message type " + messageType);
@@ -223,6 +275,28 @@ public abstract class NettyTcpClient extends TcpClient {
             throw new IllegalStateException("message2Bytes message type too large " + messageType + ", max:" + MAX_MESSAGE_TYPE_VALUE);
         }
 
+        final MessageLite protoMessage = protoByteMessage.getProtoMessage();
+        if (protoMessage != null && !needEncryptMessage(messageType)) {
+            final int protoMessageLength = protoMessage.getSerializedSize();
+            if (!needDeflateMessage(messageType, protoMessageLength)) {
+                final int messageDataLength = protoMessageLength + 4;
+                if (messageDataLength > MAX_MESSAGE_DATA_LENGTH) {
+                    throw new IllegalStateException("message2Bytes message data too large " + messageDataLength + ", max:" + MAX_MESSAGE_DATA_LENGTH);
+                }
+
+                // 没有加密，没有压缩
+                final int header = (messageDataLength << 12) + (messageType << 2);
+                out.ensureWritable(messageDataLength);
+                out.writeInt(header);
+                final int writerIndex = out.writerIndex();
+                protoMessage.writeTo(new ByteBufOutputStream(out));
+                if (out.writerIndex() - writerIndex != protoMessageLength) {
+                    throw new IllegalStateException("message2Bytes unexpected serialized length " + (out.writerIndex() - writerIndex) + ", expected:" + protoMessageLength);
+                }
+                return;
+            }
+        }
+
         byte[] tmpMessageData = protoByteMessage.getData();
         byte[] messageData = deflateMessage(messageType, tmpMessageData);
         // 是否压缩 0 or 1
@@ -249,37 +323,32 @@ public abstract class NettyTcpClient extends TcpClient {
             messageData = tmpMessageData;
         }
 
-        int messageDataLength = messageData.length + 4;
+        final int messageDataLength = messageData.length + 4;
         if (messageDataLength > MAX_MESSAGE_DATA_LENGTH) {
             throw new IllegalStateException("message2Bytes message data too large " + messageDataLength + ", max:" + MAX_MESSAGE_DATA_LENGTH);
         }
 
         final int header = (messageDataLength << 12) + (messageType << 2) + (isEncrypt << 1) + isZip;
-        final byte[] protoHeader = int2Bytes(header);
-        final byte[] protoMessage = new byte[protoHeader.length + messageData.length];
-        System.arraycopy(protoHeader, 0, protoMessage, 0, protoHeader.length);
-        System.arraycopy(messageData, 0, protoMessage, protoHeader.length, messageData.length);
-        return protoMessage;
+        out.ensureWritable(messageDataLength);
+        // ByteBuf 默认为 BIG_ENDIAN
+        out.writeInt(header);
+        out.writeBytes(messageData);
     }
 
     protected void bytes2Message(ByteBuf in, List<Object> out) {
         final int PACKET_HEADER_LENGTH = 4;
 
         while (in.readableBytes() > PACKET_HEADER_LENGTH) {
-            in.markReaderIndex();
-            byte[] headerBytes = new byte[PACKET_HEADER_LENGTH];
-            in.readBytes(headerBytes);
-            int header = bytes2Int(headerBytes);
-            int messageDataLength = (header >> 12) - 4;
-            int messageType = (header & 4095) >> 2;
-            int isEncrypt = (header >> 1) & 1;
-            int isZip = header & 1;
-
-            // 如果剩下的包体小于数据包的长度，重置读取索引，并返回
-            if (in.readableBytes() < messageDataLength) {
-                in.resetReaderIndex();
-
-
+            final int readerIndex = in.readerIndex();
+            // ByteBuf 默认为 BIG_ENDIAN, 此处仅读取不移动 readerIndex
+            final int header = in.getInt(readerIndex);
+            final int messageDataLength = (header >> 12) - 4;
+            final int messageType = (header & 4095) >> 2;
+            final int isEncrypt = (header >> 1) & 1;
+            final int isZip = header & 1;
+
+            // 如果剩下的包体小于数据包的长度，等待更多的数据
+            if (in.readableBytes() - PACKET_HEADER_LENGTH < messageDataLength) {
                 IMLog.v("bytes2Message header:%s, messageDataLength:%s, messageType:%s, isEncrypt:%s, isZip:%s. wait for more readable bytes...",
                         header, messageDataLength, messageType, isEncrypt, isZip);
                 return;
@@ -287,40 +356,64 @@ public abstract class NettyTcpClient extends TcpClient {
 
             IMLog.v("bytes2Message header:%s, messageDataLength:%s, messageType:%s, isEncrypt:%s, isZip:%s.",
                     header, messageDataLength, messageType, isEncrypt, isZip);
-            ByteBuf dataByteBuf = in.readBytes(messageDataLength);
-            int readableLen = dataByteBuf.readableBytes();
-            byte[] messageData = new byte[readableLen];
-            dataByteBuf.getBytes(dataByteBuf.readerIndex(), messageData, 0, readableLen);
-            dataByteBuf.release();
-
-            if (isEncrypt == 1) {
-                // 解密
-                messageData = decryptMessage(messageData);
-            }
-            if (isZip == 1) {
-                // 解压
-                messageData = inflateMessage(messageData);
-            }
+            in.skipBytes(PACKET_HEADER_LENGTH);
 
-            final ProtoByteMessage protoByteMessage = new ProtoByteMessage(messageType, messageData);
-            IMLog.v("bytes2Message %s", protoByteMessage);
-            out.add(protoByteMessage);
+            // I/O 线程上只进行分帧，不复制数据. 解密，解压与解析在 decode stage 中完成.
+            final Frame frame = new Frame(messageType, isEncrypt == 1, isZip == 1, in.readRetainedSlice(messageDataLength));
+            out.add(frame);
         }
     }
 
-    protected int bytes2Int(byte[] src) {
-        ByteBuffer buffer = ByteBuffer.wrap(src);
-        buffer.order(ByteOrder.BIG_ENDIAN);
-        return buffer.getInt();
+    /**
+     * 从长连接上读取到的一帧原始数据(可能是加密或者压缩的)
+     */
+    protected static final class Frame {
+        private final int mType;
+        private final boolean mEncrypt;
+        private final boolean mZip;
+        @NonNull
+        private final ByteBuf mData;
+
+        private Frame(int type, boolean encrypt, boolean zip, @NonNull ByteBuf data) {
+            mType = type;
+            mEncrypt = encrypt;
+            mZip = zip;
+            mData = data;
+        }
     }
 
-    protected byte[] int2Bytes(int x) {
-        ByteBuffer buffer = ByteBuffer.allocate(4);
-        buffer.order(ByteOrder.BIG_ENDIAN);
-        buffer.putInt(x);
-        return buffer.array();
-    }
+    /**
+     * 对一帧原始数据进行解密与解压, 在 decode stage 的工作线程上执行. 返回的 ProtoByteMessage 可能持有 ByteBuf,
+     * 使用完毕之后需要释放. frame 中的数据由调用者负责释放.
+     */
+    @NonNull
+    protected ProtoByteMessage frame2Message(@NonNull Frame frame) {
+        final int messageType = frame.mType;
+        final ByteBuf in = frame.mData;
+        if (frame.mEncrypt) {
+            // 解密, 直接从 in 中读取密文
+            final ByteBuf plainDataBuf = decryptMessage(in);
+            if (frame.mZip) {
+                // 解压
+                final byte[] messageData;
+                try {
+                    messageData = inflateMessage(ByteBufUtil.getBytes(plainDataBuf));
+                } finally {
+                    plainDataBuf.release();
+                }
+                return new ProtoByteMessage(messageType, messageData);
+            }
+            return new ProtoByteMessage(messageType, plainDataBuf);
+        }
 
+        if (frame.mZip) {
+            // 需要解压时，只复制一次数据
+            return new ProtoByteMessage(messageType, inflateMessage(ByteBufUtil.getBytes(in)));
+        }
+
+        // 明文数据不复制，直接持有 in
+        return new ProtoByteMessage(messageType, in.retain());
+    }
 
     /**
      * 处理读写超时。
@@ -391,6 +484,15 @@ public abstract class NettyTcpClient extends TcpClient {
             super.channelInactive(ctx);
 
             updateChannelHandlerContext(ctx, true);
+            notifyWritableChanged();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            super.channelWritabilityChanged(ctx);
+
+            IMLog.v("channelWritabilityChanged writable:%s", ctx.channel().isWritable());
+            notifyWritableChanged();
         }
 
         @Override
@@ -470,19 +572,164 @@ public abstract class NettyTcpClient extends TcpClient {
         IMLog.v("onDisconnected");
     }
 
-    private class MessageReader extends SimpleChannelInboundHandler<ProtoByteMessage> {
+    private class MessageReader extends SimpleChannelInboundHandler<Frame> {
         @Override
-        protected void channelRead0(ChannelHandlerContext ctx, ProtoByteMessage msg) throws Exception {
-            if (msg != null) {
-                onMessageReceived(msg);
+        protected void channelRead0(ChannelHandlerContext ctx, Frame frame) throws Exception {
+            if (frame != null) {
+                mDecodeStage.enqueue(ctx.channel(), frame);
+            }
+        }
+    }
+
+    /**
+     * 所有长连接共享的解码线程池
+     */
+    private static final TaskQueue DECODE_QUEUE = new TaskQueue(
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    private final DecodeStage mDecodeStage = new DecodeStage();
+
+    /**
+     * 在工作线程上并行地解密，解压与解析 Frame, 然后按照 Frame 的原始顺序分发 {@linkplain #onMessageReceived(ProtoByteMessage, Object)}.
+     * 待处理的 Frame 数量超过上限时暂停从长连接上读取数据.
+     */
+    private class DecodeStage {
+
+        /**
+         * 待处理的 Frame 数量超过此值时，暂停读取
+         */
+        private static final int HIGH_WATER_MARK = 256;
+        /**
+         * 暂停读取之后，待处理的 Frame 数量低于此值时，恢复读取
+         */
+        private static final int LOW_WATER_MARK = 64;
+
+        private final Object mLock = new Object();
+        // 下一个 Frame 的序号
+        private long mNextEnqueueSeq;
+        // 下一个需要分发的 Frame 的序号
+        private long mNextDispatchSeq;
+        // 已经解码完成，等待按照顺序分发的消息
+        private final Map<Long, DecodedFrame> mDecodedFrames = new HashMap<>();
+        // 是否有线程正在分发消息
+        private boolean mDispatching;
+        private int mPendingCount;
+        private boolean mReadPaused;
+        @Nullable
+        private Channel mChannel;
+
+        /**
+         * 在 I/O 线程上调用
+         */
+        private void enqueue(@NonNull Channel channel, @NonNull Frame frame) {
+            final long seq;
+            synchronized (mLock) {
+                seq = mNextEnqueueSeq++;
+                mPendingCount++;
+                mChannel = channel;
+                if (!mReadPaused && mPendingCount >= HIGH_WATER_MARK) {
+                    mReadPaused = true;
+                    IMLog.v("DecodeStage pause read, pending count:%s", mPendingCount);
+                    channel.config().setAutoRead(false);
+                }
+            }
+
+            // frame 中的数据由 decode stage 负责释放
+            DECODE_QUEUE.enqueue(() -> {
+                ProtoByteMessage protoByteMessage = null;
+                Object protoMessageObject = null;
+                try {
+                    protoByteMessage = frame2Message(frame);
+                    protoMessageObject = decodeMessage(protoByteMessage);
+                } catch (Throwable e) {
+                    IMLog.e(e, "DecodeStage fail to decode frame type:%s", frame.mType);
+                    if (protoByteMessage != null) {
+                        protoByteMessage.release();
+                        protoByteMessage = null;
+                    }
+                    // 数据异常，强制关闭长连接
+                    dispatchDisconnected();
+                } finally {
+                    frame.mData.release();
+                }
+                onDecoded(seq, new DecodedFrame(protoByteMessage, protoMessageObject));
+            });
+        }
+
+        private void onDecoded(long seq, @NonNull DecodedFrame decodedFrame) {
+            synchronized (mLock) {
+                mDecodedFrames.put(seq, decodedFrame);
+                if (mDispatching) {
+                    // 正在分发的线程会处理此消息
+                    return;
+                }
+                mDispatching = true;
+            }
+
+            while (true) {
+                final DecodedFrame target;
+                synchronized (mLock) {
+                    target = mDecodedFrames.remove(mNextDispatchSeq);
+                    if (target == null) {
+                        mDispatching = false;
+                        return;
+                    }
+                    mNextDispatchSeq++;
+                    mPendingCount--;
+                    if (mReadPaused && mPendingCount <= LOW_WATER_MARK) {
+                        mReadPaused = false;
+                        IMLog.v("DecodeStage resume read, pending count:%s", mPendingCount);
+                        if (mChannel != null) {
+                            mChannel.config().setAutoRead(true);
+                        }
+                    }
+                }
+
+                final ProtoByteMessage protoByteMessage = target.mProtoByteMessage;
+                if (protoByteMessage != null) {
+                    try {
+                        onMessageReceived(protoByteMessage, target.mProtoMessageObject);
+                    } catch (Throwable e) {
+                        IMLog.e(e);
+                        RuntimeMode.fixme(e);
+                    } finally {
+                        protoByteMessage.release();
+                    }
+                }
             }
         }
     }
 
+    private static class DecodedFrame {
+        // 解码失败时为 null
+        @Nullable
+        private final ProtoByteMessage mProtoByteMessage;
+        @Nullable
+        private final Object mProtoMessageObject;
+
+        private DecodedFrame(@Nullable ProtoByteMessage protoByteMessage, @Nullable Object protoMessageObject) {
+            mProtoByteMessage = protoByteMessage;
+            mProtoMessageObject = protoMessageObject;
+        }
+    }
+
     /**
-     * 读取到服务器发送的原始消息
+     * 将原始消息解析为具体的消息对象, 在 decode stage 的工作线程上并行执行(不保证顺序). 默认返回 null.
+     * 解析的结果会传递给 {@linkplain #onMessageReceived(ProtoByteMessage, Object)}.
+     */
+    @Nullable
+    protected Object decodeMessage(@NonNull ProtoByteMessage protoByteMessage) {
+        return null;
+    }
+
+    /**
+     * 读取到服务器发送的原始消息. 按照消息在长连接上的顺序依次调用，但不在 I/O 线程上.
+     * 消息内容可能直接引用网络层的 ByteBuf, 在此方法返回之后会被释放，
+     * 如果需要异步访问消息内容，需要先调用 {@linkplain ProtoByteMessage#retain()}.
+     *
+     * @param protoMessageObject {@linkplain #decodeMessage(ProtoByteMessage)} 的解析结果
      */
-    protected void onMessageReceived(@NonNull ProtoByteMessage protoByteMessage) {
+    protected void onMessageReceived(@NonNull ProtoByteMessage protoByteMessage, @Nullable Object protoMessageObject) {
         IMLog.v("onMessageReceived %s", protoByteMessage);
     }
 
@@ -497,12 +744,260 @@ public abstract class NettyTcpClient extends TcpClient {
         }
     }
 
+    /**
+     * 合并写的时间窗口，单位毫秒. 返回值小于等于 0 时表示不合并，每一次写入都立即 flush.
+     * 与上一次写入间隔超过此时间窗口的写入(例如单独的一条消息或者心跳)会立即 flush, 不会增加延迟;
+     * 只有持续写入时(与上一次写入的间隔在时间窗口内)才会等待此时间窗口，将多次写入合并为一次 flush.
+     */
+    protected long getWriteBatchWindowMs() {
+        return 5L;
+    }
+
+    /**
+     * 合并写时，等待 flush 的消息数量达到此值时立即 flush
+     */
+    protected int getWriteBatchMaxFrames() {
+        return 32;
+    }
+
+    /**
+     * 合并写时，等待 flush 的数据量(估算值)达到此值时立即 flush
+     */
+    protected int getWriteBatchMaxBytes() {
+        return 16 * 1024;
+    }
+
+    private final WriteBatcher mWriteBatcher = new WriteBatcher();
+
+    /**
+     * 将短时间内的多次写入合并为一次 flush, 减少系统调用与 TCP 分段数量.
+     * 写入与合并的状态都在 event loop 上处理，不需要加锁.
+     */
+    private class WriteBatcher implements DebugManager.DebugInfoProvider {
+
+        // 以下字段仅在 event loop 上访问
+        private boolean mFlushScheduled;
+        private int mPendingFrames;
+        private int mPendingBytes;
+        private long mLastWriteTimeMs;
+        // 上一次 flush 之后编码的消息数量与字节数
+        private int mEncodedFrames;
+        private long mEncodedBytes;
+        private long mFlushCount;
+        private long mFlushedFrames;
+        private long mFlushedBytes;
+        private int mMaxFramesPerFlush;
+
+        private WriteBatcher() {
+            DebugManager.getInstance().addDebugInfoProvider(this);
+        }
+
+        @NonNull
+        private ChannelFuture write(@NonNull ChannelHandlerContext ctx, @NonNull ProtoByteMessage protoByteMessage) {
+            final ChannelPromise channelPromise = ctx.newPromise();
+            if (ctx.executor().inEventLoop()) {
+                writeInEventLoop(ctx, protoByteMessage, channelPromise);
+            } else {
+                ctx.executor().execute(() -> writeInEventLoop(ctx, protoByteMessage, channelPromise));
+            }
+            return channelPromise;
+        }
+
+        /**
+         * 在 event loop 上调用
+         */
+        private void writeInEventLoop(@NonNull ChannelHandlerContext ctx, @NonNull ProtoByteMessage protoByteMessage, @NonNull ChannelPromise channelPromise) {
+            ctx.write(protoByteMessage, channelPromise);
+
+            final long windowMs = getWriteBatchWindowMs();
+            if (windowMs <= 0) {
+                flush(ctx);
+                return;
+            }
+
+            final long now = System.currentTimeMillis();
+            final boolean burst = now - mLastWriteTimeMs < windowMs;
+            mLastWriteTimeMs = now;
+
+            mPendingFrames++;
+            mPendingBytes += protoByteMessage.getDataLength() + 4;
+            if (mPendingFrames >= getWriteBatchMaxFrames() || mPendingBytes >= getWriteBatchMaxBytes()) {
+                flush(ctx);
+                return;
+            }
+
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                if (burst) {
+                    // 持续写入中，等待时间窗口合并后续的写入
+                    ctx.executor().schedule(() -> flush(ctx), windowMs, TimeUnit.MILLISECONDS);
+                } else {
+                    // 没有其它待合并的写入，不等待时间窗口. 在 flush 执行之前已经提交到 event loop 的写入仍然会合并到这一次 flush 中
+                    ctx.executor().execute(() -> flush(ctx));
+                }
+            }
+        }
+
+        /**
+         * 在 event loop 上调用
+         */
+        private void onEncoded(int bytes) {
+            mEncodedFrames++;
+            mEncodedBytes += bytes;
+        }
+
+        /**
+         * 在 event loop 上调用
+         */
+        private void flush(@NonNull ChannelHandlerContext ctx) {
+            mFlushScheduled = false;
+            mPendingFrames = 0;
+            mPendingBytes = 0;
+
+            final int frames = mEncodedFrames;
+            final long bytes = mEncodedBytes;
+            mEncodedFrames = 0;
+            mEncodedBytes = 0;
+            if (frames <= 0) {
+                return;
+            }
+
+            ctx.flush();
+
+            mFlushCount++;
+            mFlushedFrames += frames;
+            mFlushedBytes += bytes;
+            if (frames > mMaxFramesPerFlush) {
+                mMaxFramesPerFlush = frames;
+            }
+            IMLog.v("WriteBatcher flush frames:%s, bytes:%s", frames, bytes);
+        }
+
+        @Override
+        public void fetchDebugInfo(@NonNull StringBuilder builder) {
+            final String tag = com.masonsoft.imsdk.util.Objects.defaultObjectTag(NettyTcpClient.this);
+            builder.append(tag).append(" WriteBatcher --:\n");
+            builder.append("mFlushCount:").append(this.mFlushCount).append("\n");
+            builder.append("mFlushedFrames:").append(this.mFlushedFrames).append("\n");
+            builder.append("mFlushedBytes:").append(this.mFlushedBytes).append("\n");
+            builder.append("mMaxFramesPerFlush:").append(this.mMaxFramesPerFlush).append("\n");
+            builder.append(tag).append(" WriteBatcher -- end\n");
+        }
+    }
+
+    /**
+     * 写缓冲区的低水位线，单位字节. 写缓冲区中待发送的数据量从高水位线之上回落到此值之下时，长连接恢复为可写.
+     */
+    protected int getWriteBufferLowWaterMark() {
+        return 32 * 1024;
+    }
+
+    /**
+     * 写缓冲区的高水位线，单位字节. 写缓冲区中待发送的数据量超过此值时，长连接变为不可写.
+     *
+     * @see #awaitWritable()
+     */
+    protected int getWriteBufferHighWaterMark() {
+        return 64 * 1024;
+    }
+
+    /**
+     * 长连接不可写时，发送方最长的等待时间，单位毫秒.
+     */
+    protected long getSendGateTimeoutMs() {
+        return 10 * 1000L;
+    }
+
+    private final Object mWritableLock = new Object();
+
+    private void notifyWritableChanged() {
+        synchronized (mWritableLock) {
+            mWritableLock.notifyAll();
+        }
+    }
+
+    /**
+     * 如果当前长连接不可写(写缓冲区超过了高水位线), 阻塞等待直到长连接可写，或者等待超时，或者长连接已经断开.
+     * 在 I/O 线程上调用时不会等待.
+     *
+     * @return 如果长连接可写返回 true, 否则返回 false.
+     * @see #getSendGateTimeoutMs()
+     */
+    protected boolean awaitWritable() {
+        final ChannelHandlerContext context = mChannelHandlerContext;
+        if (context == null) {
+            return true;
+        }
+        final Channel channel = context.channel();
+        if (channel == null || channel.isWritable() || !channel.isActive()) {
+            return true;
+        }
+        if (channel.eventLoop().inEventLoop()) {
+            // 不能阻塞 I/O 线程, 直接写入(例如心跳包)
+            return true;
+        }
+
+        final long startTimeMs = System.currentTimeMillis();
+        final long timeoutMs = getSendGateTimeoutMs();
+        IMLog.v("awaitWritable channel is not writable, wait...");
+        synchronized (mWritableLock) {
+            while (!channel.isWritable() && channel.isActive()) {
+                final long remainMs = timeoutMs - (System.currentTimeMillis() - startTimeMs);
+                if (remainMs <= 0) {
+                    IMLog.e(new IllegalStateException("awaitWritable timeout"), "timeoutMs:%s", timeoutMs);
+                    return false;
+                }
+                try {
+                    mWritableLock.wait(remainMs);
+                } catch (InterruptedException e) {
+                    IMLog.e(e);
+                    return false;
+                }
+            }
+        }
+        IMLog.v("awaitWritable wait %s ms", System.currentTimeMillis() - startTimeMs);
+        return channel.isWritable();
+    }
+
+    /**
+     * 消息实际写入到 TCP 链接(flush 完成)或者写入失败时回调, 在 I/O 线程上执行.
+     */
+    public interface OnFlushListener {
+        void onFlush(boolean success);
+    }
+
     /**
      * 在长连接上发送消息，如果当前长连接处于不可发送的状态，将抛出异常.
      *
      * @see #sendMessageQuietly(ProtoByteMessage)
      */
     protected void sendMessage(@NonNull ProtoByteMessage protoByteMessage) throws Throwable {
+        sendMessage(protoByteMessage, null);
+    }
+
+    /**
+     * 在长连接上发送消息，如果当前长连接处于不可发送的状态，将抛出异常. 如果长连接写缓冲区已满，会阻塞等待.
+     *
+     * @param onFlushListener 消息实际写入到 TCP 链接或者写入失败时回调
+     * @see #sendMessageQuietly(ProtoByteMessage, OnFlushListener)
+     * @see #awaitWritable()
+     */
+    protected void sendMessage(@NonNull ProtoByteMessage protoByteMessage, @Nullable OnFlushListener onFlushListener) throws Throwable {
+        if (!awaitWritable()) {
+            // 写缓冲区已满，不强制关闭长连接
+            throw new IllegalStateException("channel is not writable");
+        }
+
+        writeMessage(protoByteMessage, onFlushListener);
+    }
+
+    /**
+     * 在长连接上写入消息，不等待长连接可写(不会阻塞), 如果当前长连接处于不可发送的状态，将抛出异常.
+     * 调用者需要在此之前(不持有其它锁时)通过 {@linkplain #awaitWritable()} 等待长连接可写.
+     *
+     * @see #sendMessage(ProtoByteMessage, OnFlushListener)
+     */
+    protected void writeMessage(@NonNull ProtoByteMessage protoByteMessage, @Nullable OnFlushListener onFlushListener) throws Throwable {
         try {
             checkState(STATE_CONNECTED);
             Objects.requireNonNull(mChannelHandlerContext);
@@ -511,7 +1006,10 @@ public abstract class NettyTcpClient extends TcpClient {
             if (!channel.isActive()) {
                 throw new IllegalStateException("channel is not active");
             }
-            mChannelHandlerContext.writeAndFlush(protoByteMessage);
+            final ChannelFuture channelFuture = mWriteBatcher.write(mChannelHandlerContext, protoByteMessage);
+            if (onFlushListener != null) {
+                channelFuture.addListener(future -> onFlushListener.onFlush(future.isSuccess()));
+            }
         } catch (Throwable e) {
             if (getState() == STATE_CONNECTED) {
                 // 如果当前链接状态为已连接，则强制关闭长连接.
@@ -530,8 +1028,16 @@ public abstract class NettyTcpClient extends TcpClient {
      * @see #sendMessage(ProtoByteMessage)
      */
     protected boolean sendMessageQuietly(@NonNull ProtoByteMessage protoByteMessage) {
+        return sendMessageQuietly(protoByteMessage, null);
+    }
+
+    /**
+     * @see #sendMessageQuietly(ProtoByteMessage)
+     * @see #sendMessage(ProtoByteMessage, OnFlushListener)
+     */
+    protected boolean sendMessageQuietly(@NonNull ProtoByteMessage protoByteMessage, @Nullable OnFlushListener onFlushListener) {
         try {
-            sendMessage(protoByteMessage);
+            sendMessage(protoByteMessage, onFlushListener);
             return true;
         } catch (Throwable e) {
             IMLog.v(e, "sendMessageQuietly fail");
@@ -539,4 +1045,17 @@ public abstract class NettyTcpClient extends TcpClient {
         return false;
     }
 
+    /**
+     * @see #writeMessage(ProtoByteMessage, OnFlushListener)
+     */
+    protected boolean writeMessageQuietly(@NonNull ProtoByteMessage protoByteMessage, @Nullable OnFlushListener onFlushListener) {
+        try {
+            writeMessage(protoByteMessage, onFlushListener);
+            return true;
+        } catch (Throwable e) {
+            IMLog.v(e, "writeMessageQuietly fail");
+        }
+        return false;
+    }
+
 }
@@ -3,11 +3,11 @@ package com.masonsoft.imsdk.core;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.masonsoft.imsdk.core.message.SessionProtoByteMessageWrapper;
 import com.masonsoft.imsdk.core.message.packet.MessagePacket;
 import com.masonsoft.imsdk.core.message.packet.TimeoutMessagePacket;
 import com.masonsoft.imsdk.core.observable.MessagePacketStateObservable;
 import com.masonsoft.imsdk.core.observable.OtherMessageObservable;
+import com.masonsoft.imsdk.core.session.InFlightRequestLimiter;
 import com.masonsoft.imsdk.core.session.SessionTcpClient;
 import com.masonsoft.imsdk.lang.GeneralErrorCode;
 import com.masonsoft.imsdk.lang.GeneralErrorCodeException;
@@ -67,16 +67,18 @@ public class OtherMessageManager {
         getSessionWorker(sessionUserId).enqueueOtherMessage(sign, otherMessage);
     }
 
-    public boolean dispatchTcpResponse(final long sign, @NonNull final SessionProtoByteMessageWrapper wrapper) {
-        return getSessionWorker(wrapper.getSessionUserId()).dispatchTcpResponse(sign, wrapper);
-    }
-
     private static class SessionWorker implements DebugManager.DebugInfoProvider {
 
+        private static final int MAX_IN_FLIGHT_COUNT = 16;
+
         private final long mSessionUserId;
         private final List<OtherMessageObjectWrapperTask> mAllRunningTasks = new ArrayList<>();
         private final TaskQueue mActionQueue = new TaskQueue(1);
-        private final TaskQueue mQueue = new TaskQueue(5);
+        private final TaskQueue mQueue = new TaskQueue(1);
+        /**
+         * 同时等待响应结果的请求数量上限
+         */
+        private final InFlightRequestLimiter mInFlightRequestLimiter = new InFlightRequestLimiter(MAX_IN_FLIGHT_COUNT);
 
         private SessionWorker(long sessionUserId) {
             mSessionUserId = sessionUserId;
@@ -96,6 +98,7 @@ public class OtherMessageManager {
             builder.append("mQueue --:").append("\n");
             mQueue.printDetail(builder);
             builder.append("mQueue -- end").append("\n");
+            mInFlightRequestLimiter.printDetail(builder);
             builder.append(tag).append(" -- end\n");
         }
 
@@ -110,27 +113,7 @@ public class OtherMessageManager {
                         sign,
                         otherMessage
                 );
-                final OtherMessageObjectWrapperTask task = new OtherMessageObjectWrapperTask(otherMessageObjectWrapper) {
-                    @Override
-                    public void run() {
-                        try {
-                            super.run();
-                        } catch (Throwable e) {
-                            IMLog.e(e, "unexpected");
-                        }
-                        otherMessageObjectWrapper.onTaskEnd();
-                        synchronized (mAllRunningTasks) {
-                            final OtherMessageObjectWrapperTask existsTask = removeTask(sign);
-                            if (existsTask == null) {
-                                IMLog.e("unexpected removeTask return null sign:%s", sign);
-                            } else if (existsTask != this) {
-                                IMLog.e("unexpected removeTask return another value sign:%s", sign);
-                            } else {
-                                IMLog.v("success remove task sign:%s", sign);
-                            }
-                        }
-                    }
-                };
+                final OtherMessageObjectWrapperTask task = new OtherMessageObjectWrapperTask(otherMessageObjectWrapper);
 
                 synchronized (mAllRunningTasks) {
                     mAllRunningTasks.add(task);
@@ -139,31 +122,6 @@ public class OtherMessageManager {
             }));
         }
 
-        private boolean dispatchTcpResponse(final long sign, @NonNull final SessionProtoByteMessageWrapper wrapper) {
-            synchronized (mAllRunningTasks) {
-                final OtherMessageObjectWrapperTask task = getTask(sign);
-                if (task == null) {
-                    return false;
-                }
-                if (task.mOtherMessageObjectWrapper.dispatchTcpResponse(sign, wrapper)) {
-                    return true;
-                }
-            }
-            return false;
-        }
-
-        @Nullable
-        private OtherMessageObjectWrapperTask getTask(final long sign) {
-            synchronized (mAllRunningTasks) {
-                for (OtherMessageObjectWrapperTask task : mAllRunningTasks) {
-                    if (task.mOtherMessageObjectWrapper.mSign == sign) {
-                        return task;
-                    }
-                }
-            }
-            return null;
-        }
-
         @Nullable
         private OtherMessageObjectWrapperTask removeTask(final long sign) {
             synchronized (mAllRunningTasks) {
@@ -202,11 +160,9 @@ public class OtherMessageManager {
                         return;
                     }
 
-                    boolean notify = false;
                     final TimeoutMessagePacket otherMessagePacket = (TimeoutMessagePacket) packet;
                     if (newState == MessagePacket.STATE_FAIL) {
                         // 消息发送失败
-                        notify = true;
                         IMLog.v("onStateChanged STATE_FAIL otherMessagePacket errorCode:%s, errorMessage:%s, timeout:%s",
                                 otherMessagePacket.getErrorCode(),
                                 otherMessagePacket.getErrorMessage(),
@@ -219,17 +175,8 @@ public class OtherMessageManager {
                         notifySendStatus(IMConstants.SendStatus.FAIL);
                     } else if (newState == MessagePacket.STATE_SUCCESS) {
                         // 消息发送成功
-                        notify = true;
                         notifySendStatus(IMConstants.SendStatus.SUCCESS);
                     }
-
-                    if (notify) {
-                        // @see OtherMessageObjectWrapperTask#run -> "// wait message packet result"
-                        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-                        synchronized (otherMessagePacket) {
-                            otherMessagePacket.notify();
-                        }
-                    }
                 }
             };
 
@@ -295,23 +242,6 @@ public class OtherMessageManager {
                 mOtherMessagePacket.getMessagePacketStateObservable().registerObserver(mOtherMessagePacketStateObserver);
                 return mOtherMessagePacket;
             }
-
-            private boolean dispatchTcpResponse(final long sign, @NonNull final SessionProtoByteMessageWrapper wrapper) {
-                final MessagePacket otherMessagePacket = mOtherMessagePacket;
-                if (otherMessagePacket == null) {
-                    final Throwable e = new IllegalStateException(Objects.defaultObjectTag(this) + " unexpected mOtherMessagePacket is null");
-                    IMLog.e(e);
-                    return false;
-                }
-                if (mSign != sign) {
-                    final Throwable e = new IllegalStateException(Objects.defaultObjectTag(this) + " unexpected sign not match mSign:" + mSign + ", sign:" + sign);
-                    IMLog.e(e);
-                    return false;
-                }
-                final boolean result = otherMessagePacket.doProcess(wrapper);
-                IMLog.v(Objects.defaultObjectTag(this) + " dispatchTcpResponse otherMessagePacket.doProcess result:%s", result);
-                return result;
-            }
         }
 
         private class OtherMessageObjectWrapperTask implements Runnable {
@@ -319,6 +249,9 @@ public class OtherMessageManager {
             @NonNull
             private final OtherMessageObjectWrapper mOtherMessageObjectWrapper;
 
+            private final AtomicBoolean mInFlight = new AtomicBoolean(false);
+            private final AtomicBoolean mEnd = new AtomicBoolean(false);
+
             private OtherMessageObjectWrapperTask(@NonNull OtherMessageObjectWrapper otherMessageObjectWrapper) {
                 mOtherMessageObjectWrapper = otherMessageObjectWrapper;
             }
@@ -359,6 +292,7 @@ public class OtherMessageManager {
 
             @Override
             public void run() {
+                boolean async = false;
                 try {
                     if (mOtherMessageObjectWrapper.hasError()) {
                         return;
@@ -380,31 +314,19 @@ public class OtherMessageManager {
                         return;
                     }
 
+                    // 等待响应结果的请求数量达到上限时在此等待
+                    mInFlightRequestLimiter.acquire();
+                    mInFlight.set(true);
+
                     // 通过长连接发送 proto buf
                     final SessionTcpClient sessionTcpClient = this.waitTcpClientConnected();
                     if (sessionTcpClient == null) {
                         return;
                     }
 
-                    sessionTcpClient.sendMessagePacketQuietly(messagePacket);
-                    if (messagePacket.getState() != MessagePacket.STATE_WAIT_RESULT) {
-                        mOtherMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_MESSAGE_PACKET_SEND_FAIL);
-                        return;
-                    }
-
-                    // wait message packet result
-                    while (messagePacket.getState() == MessagePacket.STATE_WAIT_RESULT) {
-                        IMLog.v(Objects.defaultObjectTag(this) + " wait message packet result %s", messagePacket);
-                        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-                        synchronized (messagePacket) {
-                            try {
-                                messagePacket.wait(2000L);
-                            } catch (InterruptedException e) {
-                                IMLog.v("messagePacket wait interrupted %s", messagePacket);
-                            }
-                        }
-                    }
-                    IMLog.v(Objects.defaultObjectTag(this) + " body run end. %s", messagePacket);
+                    // 不在当前线程等待响应结果，消息包结束时回调 onMessagePacketEnd
+                    sessionTcpClient.sendMessagePacketAsync(messagePacket, this::onMessagePacketEnd);
+                    async = true;
                 } catch (Throwable e) {
                     IMLog.e(e);
                     if (e instanceof GeneralErrorCodeException) {
@@ -412,6 +334,43 @@ public class OtherMessageManager {
                     } else if (mOtherMessageObjectWrapper.mErrorCode == 0) {
                         mOtherMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_UNKNOWN);
                     }
+                } finally {
+                    if (!async) {
+                        end();
+                    }
+                }
+            }
+
+            private void onMessagePacketEnd(@NonNull MessagePacket messagePacket) {
+                IMLog.v(Objects.defaultObjectTag(this) + " message packet end. %s", messagePacket);
+                if (!messagePacket.isSuccess() && !mOtherMessageObjectWrapper.hasError()) {
+                    mOtherMessageObjectWrapper.setError(GeneralErrorCode.ERROR_CODE_MESSAGE_PACKET_SEND_FAIL);
+                }
+                end();
+            }
+
+            /**
+             * 任务结束，至多执行一次
+             */
+            private void end() {
+                if (!mEnd.compareAndSet(false, true)) {
+                    return;
+                }
+                if (mInFlight.compareAndSet(true, false)) {
+                    mInFlightRequestLimiter.release();
+                }
+
+                mOtherMessageObjectWrapper.onTaskEnd();
+                final long sign = mOtherMessageObjectWrapper.mSign;
+                synchronized (mAllRunningTasks) {
+                    final OtherMessageObjectWrapperTask existsTask = removeTask(sign);
+                    if (existsTask == null) {
+                        IMLog.e("unexpected removeTask return null sign:%s", sign);
+                    } else if (existsTask != this) {
+                        IMLog.e("unexpected removeTask return another value sign:%s", sign);
+                    } else {
+                        IMLog.v("success remove task sign:%s", sign);
+                    }
                 }
             }
         }
@@ -3,12 +3,22 @@ package com.masonsoft.imsdk.core;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.WireFormat;
 import com.masonsoft.imsdk.annotation.DemoOnly;
 import com.masonsoft.imsdk.core.proto.ProtoMessage;
 import com.masonsoft.imsdk.util.Objects;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import io.github.idonans.core.util.Preconditions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufUtil;
 
 /**
  * 传输于长连接上的原始消息
@@ -25,14 +35,50 @@ public class ProtoByteMessage {
     private final int mType;
 
     /**
-     * proto buff 的序列化数据
+     * proto buff 的序列化数据. 当消息内容由 {@linkplain #mDataBuf} 或 {@linkplain #mProtoMessage} 持有时，
+     * 仅在调用 {@linkplain #getData()} 时才会生成.
      */
-    @NonNull
-    private final byte[] mData;
+    @Nullable
+    private byte[] mData;
+
+    /**
+     * 直接引用网络层 ByteBuf 中的 proto buff 序列化数据(零拷贝), 使用完毕之后需要调用 {@linkplain #release()} 释放.
+     */
+    @Nullable
+    private final ByteBuf mDataBuf;
+
+    /**
+     * 待发送的 proto buff 实体对象. 编码时直接序列化到网络层的 ByteBuf 中，不需要生成中间的 byte[].
+     */
+    @Nullable
+    private final MessageLite mProtoMessage;
 
     public ProtoByteMessage(int type, @NonNull byte[] data) {
         this.mType = type;
         this.mData = data;
+        this.mDataBuf = null;
+        this.mProtoMessage = null;
+    }
+
+    /**
+     * @param protoMessage 待发送的消息内容, 在编码时才会序列化
+     */
+    public ProtoByteMessage(int type, @NonNull MessageLite protoMessage) {
+        this.mType = type;
+        this.mData = null;
+        this.mDataBuf = null;
+        this.mProtoMessage = protoMessage;
+    }
+
+    /**
+     * @param dataBuf 消息内容，通常是网络层 ByteBuf 的 retained slice. 此 ProtoByteMessage 将持有该 dataBuf 的引用，
+     *                需要在使用完毕之后调用 {@linkplain #release()}.
+     */
+    public ProtoByteMessage(int type, @NonNull ByteBuf dataBuf) {
+        this.mType = type;
+        this.mData = null;
+        this.mDataBuf = dataBuf;
+        this.mProtoMessage = null;
     }
 
     /**
@@ -42,9 +88,92 @@ public class ProtoByteMessage {
         return mType;
     }
 
+    /**
+     * 获取消息内容. 如果消息内容由 ByteBuf 或者 proto buff 实体对象持有，此方法会复制(序列化)一份数据(并缓存).
+     *
+     * @see #newCodedInputStream()
+     */
     @NonNull
     public byte[] getData() {
-        return mData;
+        byte[] data = mData;
+        if (data == null) {
+            if (mProtoMessage != null) {
+                data = mProtoMessage.toByteArray();
+            } else {
+                //noinspection ConstantConditions
+                data = ByteBufUtil.getBytes(mDataBuf, mDataBuf.readerIndex(), mDataBuf.readableBytes(), false);
+            }
+            mData = data;
+        }
+        return data;
+    }
+
+    /**
+     * 消息内容由 ByteBuf 持有时返回该 ByteBuf, 否则返回 null. 返回的 ByteBuf 的 readerIndex 不应该被修改.
+     */
+    @Nullable
+    public ByteBuf getDataBuf() {
+        return mDataBuf;
+    }
+
+    /**
+     * 待发送的 proto buff 实体对象, 如果消息内容不是由实体对象持有则返回 null.
+     */
+    @Nullable
+    public MessageLite getProtoMessage() {
+        return mProtoMessage;
+    }
+
+    public int getDataLength() {
+        if (mDataBuf != null) {
+            return mDataBuf.readableBytes();
+        }
+        if (mProtoMessage != null) {
+            return mProtoMessage.getSerializedSize();
+        }
+        //noinspection ConstantConditions
+        return mData.length;
+    }
+
+    /**
+     * 在消息内容上创建一个用于 proto buff 解析的输入流, 不会复制消息内容.
+     */
+    @NonNull
+    public CodedInputStream newCodedInputStream() {
+        if (mDataBuf == null) {
+            return CodedInputStream.newInstance(getData());
+        }
+
+        //noinspection ConstantConditions
+        final ByteBuf dataBuf = mDataBuf;
+        if (dataBuf.hasArray()) {
+            return CodedInputStream.newInstance(
+                    dataBuf.array(),
+                    dataBuf.arrayOffset() + dataBuf.readerIndex(),
+                    dataBuf.readableBytes());
+        }
+        return CodedInputStream.newInstance(new ByteBufInputStream(dataBuf.duplicate()));
+    }
+
+    /**
+     * 增加持有的 ByteBuf 的引用计数。如果消息内容不是由 ByteBuf 持有，则不做任何处理。
+     */
+    @NonNull
+    public ProtoByteMessage retain() {
+        if (mDataBuf != null) {
+            mDataBuf.retain();
+        }
+        return this;
+    }
+
+    /**
+     * 释放持有的 ByteBuf. 如果消息内容不是由 ByteBuf 持有，则不做任何处理。释放之后如果仍需要访问消息内容，
+     * 需要在释放之前调用 {@linkplain #getData()}.
+     */
+    public void release() {
+        if (mDataBuf != null) {
+            mDataBuf.release();
+        }
     }
 
     @NonNull
@@ -52,7 +181,7 @@ public class ProtoByteMessage {
         final StringBuilder builder = new StringBuilder();
         builder.append(Objects.defaultObjectTag(this));
         builder.append(" type:").append(this.mType);
-        builder.append(" data length:").append(mData.length);
+        builder.append(" data length:").append(getDataLength());
         return builder.toString();
     }
 
@@ -69,15 +198,106 @@ public class ProtoByteMessage {
      */
     public static class Type {
 
-        private interface Transform {
-            @Nullable
-            Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException;
+        /**
+         * 消息类型的最大值(由消息头中的位数决定)
+         */
+        public static final int MAX_TYPE_VALUE = 0x3ff;
 
-            @Nullable
-            ProtoByteMessage encode(@NonNull Object protoMessageObject);
+        /**
+         * 将消息内容解析为 ProtoMessage 实体对象
+         */
+        public interface Decoder<T extends MessageLite> {
+            @NonNull
+            T decode(@NonNull CodedInputStream input) throws IOException;
         }
 
-        private static final List<Transform> TRANSFORM_LIST = new ArrayList<>();
+        private static final class Entry {
+            private final int mType;
+            @NonNull
+            private final Class<? extends MessageLite> mProtoClass;
+            @NonNull
+            private final Decoder<? extends MessageLite> mDecoder;
+            private final int mSignFieldNumber;
+
+            private Entry(int type, @NonNull Class<? extends MessageLite> protoClass, @NonNull Decoder<? extends MessageLite> decoder, int signFieldNumber) {
+                mType = type;
+                mProtoClass = protoClass;
+                mDecoder = decoder;
+                mSignFieldNumber = signFieldNumber;
+            }
+        }
+
+        /**
+         * 约定的 sign 字段编号(int64 sign = 1)
+         */
+        public static final int SIGN_FIELD_NUMBER = 1;
+
+        /**
+         * 消息中没有 sign 字段
+         */
+        public static final int NO_SIGN_FIELD = 0;
+
+        private static final Object REGISTER_LOCK = new Object();
+        /**
+         * 按照消息类型索引的解码表
+         */
+        private static final AtomicReferenceArray<Entry> DECODE_TABLE = new AtomicReferenceArray<>(MAX_TYPE_VALUE + 1);
+        /**
+         * 按照 ProtoMessage 实体类型索引的编码表. 注册时整体替换(copy on write), 读取时不需要加锁.
+         */
+        private static volatile Map<Class<?>, Entry> sEncodeTable = new IdentityHashMap<>();
+
+        /**
+         * 注册一种消息类型, 消息的 sign 字段编号为 {@linkplain #SIGN_FIELD_NUMBER}.
+         *
+         * @see #register(int, Class, Decoder, int)
+         */
+        public static <T extends MessageLite> void register(int type, @NonNull Class<T> protoClass, @NonNull Decoder<T> decoder) {
+            register(type, protoClass, decoder, SIGN_FIELD_NUMBER);
+        }
+
+        /**
+         * 注册一种消息类型. 业务方可以通过此方法扩展自定义的 proto 消息类型.
+         *
+         * @param type            消息类型, 取值范围 [0, {@linkplain #MAX_TYPE_VALUE}]
+         * @param protoClass      消息类型对应的 ProtoMessage 实体类型
+         * @param decoder         通常是 protoClass 的 parseFrom(CodedInputStream) 方法
+         * @param signFieldNumber 消息中 int64 sign 字段的编号, 没有 sign 字段时为 {@linkplain #NO_SIGN_FIELD}
+         * @throws IllegalArgumentException 如果 type 超出范围
+         * @throws IllegalStateException    如果 type 或者 protoClass 已经注册为其它的类型
+         */
+        public static <T extends MessageLite> void register(int type, @NonNull Class<T> protoClass, @NonNull Decoder<T> decoder, int signFieldNumber) {
+            Preconditions.checkNotNull(protoClass);
+            Preconditions.checkNotNull(decoder);
+            if (type < 0 || type > MAX_TYPE_VALUE) {
+                throw new IllegalArgumentException("invalid type " + type + ", max:" + MAX_TYPE_VALUE);
+            }
+
+            synchronized (REGISTER_LOCK) {
+                final Entry oldEntry = DECODE_TABLE.get(type);
+                if (oldEntry != null && oldEntry.mProtoClass != protoClass) {
+                    throw new IllegalStateException("type " + type + " already registered with " + oldEntry.mProtoClass);
+                }
+                final Entry oldEncodeEntry = sEncodeTable.get(protoClass);
+                if (oldEncodeEntry != null && oldEncodeEntry.mType != type) {
+                    throw new IllegalStateException(protoClass + " already registered with type " + oldEncodeEntry.mType);
+                }
+
+                final Entry entry = new Entry(type, protoClass, decoder, signFieldNumber);
+                final Map<Class<?>, Entry> encodeTable = new IdentityHashMap<>(sEncodeTable);
+                encodeTable.put(protoClass, entry);
+                DECODE_TABLE.set(type, entry);
+                sEncodeTable = encodeTable;
+            }
+        }
+
+        @Nullable
+        private static Entry getDecodeEntry(int type) {
+            if (type < 0 || type > MAX_TYPE_VALUE) {
+                return null;
+            }
+            return DECODE_TABLE.get(type);
+        }
 
         /**
          * 心跳
@@ -85,23 +305,7 @@ public class ProtoByteMessage {
         public static final int PING = 0;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == PING) {
-                        return ProtoMessage.Ping.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.Ping) {
-                        return new ProtoByteMessage(PING, ((ProtoMessage.Ping) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(PING, ProtoMessage.Ping.class, ProtoMessage.Ping::parseFrom, NO_SIGN_FIELD);
         }
 
         /**
@@ -110,23 +314,7 @@ public class ProtoByteMessage {
         public static final int IM_LOGIN = 1;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == IM_LOGIN) {
-                        return ProtoMessage.ImLogin.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.ImLogin) {
-                        return new ProtoByteMessage(IM_LOGIN, ((ProtoMessage.ImLogin) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(IM_LOGIN, ProtoMessage.ImLogin.class, ProtoMessage.ImLogin::parseFrom);
         }
 
         /**
@@ -135,23 +323,7 @@ public class ProtoByteMessage {
         public static final int IM_LOGOUT = 2;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == IM_LOGOUT) {
-                        return ProtoMessage.ImLogout.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.ImLogout) {
-                        return new ProtoByteMessage(IM_LOGOUT, ((ProtoMessage.ImLogout) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(IM_LOGOUT, ProtoMessage.ImLogout.class, ProtoMessage.ImLogout::parseFrom);
         }
 
         /**
@@ -160,23 +332,7 @@ public class ProtoByteMessage {
         public static final int RESULT = 3;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == RESULT) {
-                        return ProtoMessage.Result.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.Result) {
-                        return new ProtoByteMessage(RESULT, ((ProtoMessage.Result) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(RESULT, ProtoMessage.Result.class, ProtoMessage.Result::parseFrom);
         }
 
         /**
@@ -185,23 +341,7 @@ public class ProtoByteMessage {
         public static final int CHAT_S = 4;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == CHAT_S) {
-                        return ProtoMessage.ChatS.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.ChatS) {
-                        return new ProtoByteMessage(CHAT_S, ((ProtoMessage.ChatS) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(CHAT_S, ProtoMessage.ChatS.class, ProtoMessage.ChatS::parseFrom);
         }
 
         /**
@@ -210,23 +350,7 @@ public class ProtoByteMessage {
         public static final int CHAT_S_R = 5;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == CHAT_S_R) {
-                        return ProtoMessage.ChatSR.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.ChatSR) {
-                        return new ProtoByteMessage(CHAT_S_R, ((ProtoMessage.ChatSR) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(CHAT_S_R, ProtoMessage.ChatSR.class, ProtoMessage.ChatSR::parseFrom);
         }
 
         /**
@@ -235,23 +359,7 @@ public class ProtoByteMessage {
         public static final int CHAT_R = 6;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == CHAT_R) {
-                        return ProtoMessage.ChatR.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.ChatR) {
-                        return new ProtoByteMessage(CHAT_R, ((ProtoMessage.ChatR) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(CHAT_R, ProtoMessage.ChatR.class, ProtoMessage.ChatR::parseFrom);
         }
 
         /**
@@ -260,23 +368,7 @@ public class ProtoByteMessage {
         public static final int CHAT_R_BATCH = 7;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == CHAT_R_BATCH) {
-                        return ProtoMessage.ChatRBatch.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.ChatRBatch) {
-                        return new ProtoByteMessage(CHAT_R_BATCH, ((ProtoMessage.ChatRBatch) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(CHAT_R_BATCH, ProtoMessage.ChatRBatch.class, ProtoMessage.ChatRBatch::parseFrom);
         }
 
         /**
@@ -285,23 +377,7 @@ public class ProtoByteMessage {
         public static final int GET_HISTORY = 8;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == GET_HISTORY) {
-                        return ProtoMessage.GetHistory.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.GetHistory) {
-                        return new ProtoByteMessage(GET_HISTORY, ((ProtoMessage.GetHistory) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(GET_HISTORY, ProtoMessage.GetHistory.class, ProtoMessage.GetHistory::parseFrom);
         }
 
         /**
@@ -310,23 +386,7 @@ public class ProtoByteMessage {
         public static final int REVOKE = 9;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == REVOKE) {
-                        return ProtoMessage.Revoke.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.Revoke) {
-                        return new ProtoByteMessage(REVOKE, ((ProtoMessage.Revoke) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(REVOKE, ProtoMessage.Revoke.class, ProtoMessage.Revoke::parseFrom);
         }
 
         /**
@@ -335,23 +395,7 @@ public class ProtoByteMessage {
         public static final int MSG_READ = 10;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == MSG_READ) {
-                        return ProtoMessage.MsgRead.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.MsgRead) {
-                        return new ProtoByteMessage(MSG_READ, ((ProtoMessage.MsgRead) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(MSG_READ, ProtoMessage.MsgRead.class, ProtoMessage.MsgRead::parseFrom);
         }
 
         /**
@@ -360,23 +404,7 @@ public class ProtoByteMessage {
         public static final int DEL_CHAT = 11;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == DEL_CHAT) {
-                        return ProtoMessage.DelChat.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.DelChat) {
-                        return new ProtoByteMessage(DEL_CHAT, ((ProtoMessage.DelChat) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(DEL_CHAT, ProtoMessage.DelChat.class, ProtoMessage.DelChat::parseFrom);
         }
 
         /**
@@ -385,23 +413,7 @@ public class ProtoByteMessage {
         public static final int GET_CHAT_LIST = 12;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == GET_CHAT_LIST) {
-                        return ProtoMessage.GetChatList.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.GetChatList) {
-                        return new ProtoByteMessage(GET_CHAT_LIST, ((ProtoMessage.GetChatList) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(GET_CHAT_LIST, ProtoMessage.GetChatList.class, ProtoMessage.GetChatList::parseFrom);
         }
 
         /**
@@ -410,23 +422,7 @@ public class ProtoByteMessage {
         public static final int CHAT_ITEM = 13;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == CHAT_ITEM) {
-                        return ProtoMessage.ChatItem.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.ChatItem) {
-                        return new ProtoByteMessage(CHAT_ITEM, ((ProtoMessage.ChatItem) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(CHAT_ITEM, ProtoMessage.ChatItem.class, ProtoMessage.ChatItem::parseFrom);
         }
 
         /**
@@ -435,23 +431,7 @@ public class ProtoByteMessage {
         public static final int CHAT_ITEM_UPDATE = 14;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == CHAT_ITEM_UPDATE) {
-                        return ProtoMessage.ChatItemUpdate.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.ChatItemUpdate) {
-                        return new ProtoByteMessage(CHAT_ITEM_UPDATE, ((ProtoMessage.ChatItemUpdate) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(CHAT_ITEM_UPDATE, ProtoMessage.ChatItemUpdate.class, ProtoMessage.ChatItemUpdate::parseFrom);
         }
 
         /**
@@ -460,23 +440,7 @@ public class ProtoByteMessage {
         public static final int CHAT_LIST = 15;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == CHAT_LIST) {
-                        return ProtoMessage.ChatList.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.ChatList) {
-                        return new ProtoByteMessage(CHAT_LIST, ((ProtoMessage.ChatList) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(CHAT_LIST, ProtoMessage.ChatList.class, ProtoMessage.ChatList::parseFrom);
         }
 
         /**
@@ -485,23 +449,7 @@ public class ProtoByteMessage {
         public static final int GET_PROFILE = 16;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == GET_PROFILE) {
-                        return ProtoMessage.GetProfile.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.GetProfile) {
-                        return new ProtoByteMessage(GET_PROFILE, ((ProtoMessage.GetProfile) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(GET_PROFILE, ProtoMessage.GetProfile.class, ProtoMessage.GetProfile::parseFrom);
         }
 
         /**
@@ -510,23 +458,7 @@ public class ProtoByteMessage {
         public static final int GET_PROFILES = 17;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == GET_PROFILES) {
-                        return ProtoMessage.GetProfiles.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.GetProfiles) {
-                        return new ProtoByteMessage(GET_PROFILES, ((ProtoMessage.GetProfiles) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(GET_PROFILES, ProtoMessage.GetProfiles.class, ProtoMessage.GetProfiles::parseFrom);
         }
 
         /**
@@ -535,23 +467,7 @@ public class ProtoByteMessage {
         public static final int PROFILE = 18;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == PROFILE) {
-                        return ProtoMessage.Profile.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.Profile) {
-                        return new ProtoByteMessage(PROFILE, ((ProtoMessage.Profile) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(PROFILE, ProtoMessage.Profile.class, ProtoMessage.Profile::parseFrom);
         }
 
         /**
@@ -560,23 +476,7 @@ public class ProtoByteMessage {
         public static final int PROFILE_LIST = 19;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == PROFILE_LIST) {
-                        return ProtoMessage.ProfileList.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.ProfileList) {
-                        return new ProtoByteMessage(PROFILE_LIST, ((ProtoMessage.ProfileList) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(PROFILE_LIST, ProtoMessage.ProfileList.class, ProtoMessage.ProfileList::parseFrom, NO_SIGN_FIELD);
         }
 
         /**
@@ -586,23 +486,7 @@ public class ProtoByteMessage {
         public static final int PROFILE_ONLINE = 50;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == PROFILE_ONLINE) {
-                        return ProtoMessage.ProfileOnline.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.ProfileOnline) {
-                        return new ProtoByteMessage(PROFILE_ONLINE, ((ProtoMessage.ProfileOnline) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(PROFILE_ONLINE, ProtoMessage.ProfileOnline.class, ProtoMessage.ProfileOnline::parseFrom, NO_SIGN_FIELD);
         }
 
         /**
@@ -612,23 +496,7 @@ public class ProtoByteMessage {
         public static final int USR_OFFLINE = 52;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == USR_OFFLINE) {
-                        return ProtoMessage.UsrOffline.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.UsrOffline) {
-                        return new ProtoByteMessage(USR_OFFLINE, ((ProtoMessage.UsrOffline) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(USR_OFFLINE, ProtoMessage.UsrOffline.class, ProtoMessage.UsrOffline::parseFrom, NO_SIGN_FIELD);
         }
 
         /**
@@ -638,23 +506,7 @@ public class ProtoByteMessage {
         public static final int SIGN_UP = 53;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == SIGN_UP) {
-                        return ProtoMessage.Signup.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.Signup) {
-                        return new ProtoByteMessage(SIGN_UP, ((ProtoMessage.Signup) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(SIGN_UP, ProtoMessage.Signup.class, ProtoMessage.Signup::parseFrom);
         }
 
         /**
@@ -664,23 +516,7 @@ public class ProtoByteMessage {
         public static final int FETCH_SPARK = 54;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == FETCH_SPARK) {
-                        return ProtoMessage.FetchSpark.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.FetchSpark) {
-                        return new ProtoByteMessage(FETCH_SPARK, ((ProtoMessage.FetchSpark) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(FETCH_SPARK, ProtoMessage.FetchSpark.class, ProtoMessage.FetchSpark::parseFrom);
         }
 
         /**
@@ -690,23 +526,7 @@ public class ProtoByteMessage {
         public static final int SPARK = 55;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == SPARK) {
-                        return ProtoMessage.Spark.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.Spark) {
-                        return new ProtoByteMessage(SPARK, ((ProtoMessage.Spark) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(SPARK, ProtoMessage.Spark.class, ProtoMessage.Spark::parseFrom, NO_SIGN_FIELD);
         }
 
         /**
@@ -716,23 +536,7 @@ public class ProtoByteMessage {
         public static final int SPARKS = 56;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == SPARKS) {
-                        return ProtoMessage.Sparks.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
-
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.Sparks) {
-                        return new ProtoByteMessage(SPARKS, ((ProtoMessage.Sparks) protoMessageObject).toByteArray());
-                    }
-                    return null;
-                }
-            });
+            register(SPARKS, ProtoMessage.Sparks.class, ProtoMessage.Sparks::parseFrom);
         }
 
         /**
@@ -742,23 +546,107 @@ public class ProtoByteMessage {
         public static final int GET_IM_TOKEN = 57;
 
         static {
-            TRANSFORM_LIST.add(new Transform() {
-                @Override
-                public Object decode(@NonNull ProtoByteMessage protoByteMessage) throws com.google.protobuf.InvalidProtocolBufferException {
-                    if (protoByteMessage.getType() == GET_IM_TOKEN) {
-                        return ProtoMessage.GetImToken.parseFrom(protoByteMessage.getData());
-                    }
-                    return null;
-                }
+            register(GET_IM_TOKEN, ProtoMessage.GetImToken.class, ProtoMessage.GetImToken::parseFrom);
+        }
 
-                @Override
-                public ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-                    if (protoMessageObject instanceof ProtoMessage.GetImToken) {
-                        return new ProtoByteMessage(GET_IM_TOKEN, ((ProtoMessage.GetImToken) protoMessageObject).toByteArray());
+        /**
+         * 获取消息类型对应的 ProtoMessage 实体类型. 如果消息类型没有注册，返回 null.
+         */
+        @Nullable
+        public static Class<? extends MessageLite> getProtoClass(int type) {
+            final Entry entry = getDecodeEntry(type);
+            return entry != null ? entry.mProtoClass : null;
+        }
+
+        /**
+         * 不解析完整的消息，只读取消息中的 sign 字段. 如果消息类型没有 sign 字段或者读取失败，返回 0.
+         * sign 通常是消息的第一个字段，读取时会跳过其它字段的内容，不会创建任何对象.
+         */
+        public static long peekSign(@NonNull ProtoByteMessage protoByteMessage) {
+            final Entry entry = getDecodeEntry(protoByteMessage.getType());
+            if (entry == null || entry.mSignFieldNumber == NO_SIGN_FIELD) {
+                return 0L;
+            }
+            try {
+                final CodedInputStream input = protoByteMessage.newCodedInputStream();
+                while (true) {
+                    final int tag = input.readTag();
+                    if (tag == 0) {
+                        return 0L;
                     }
-                    return null;
+                    if (WireFormat.getTagFieldNumber(tag) == entry.mSignFieldNumber
+                            && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT) {
+                        return input.readInt64();
+                    }
+                    input.skipField(tag);
                 }
-            });
+            } catch (Throwable e) {
+                IMLog.e(e, "fail to peek sign protoByteMessage:%s", protoByteMessage.toString());
+                return 0L;
+            }
+        }
+
+        /**
+         * 不解析完整的消息，只读取消息中指定编号的 int64 字段(varint), 读取到所有的字段或者到达消息末尾时结束.
+         * embeddedFieldNumber 大于 0 时，读取消息中第一个该编号的内嵌消息(如 repeated 字段的第一个元素)中的字段.
+         * 没有读取到的字段值为 0.
+         *
+         * @param values 与 fieldNumbers 一一对应，保存读取到的字段值
+         * @return 读取失败时返回 false
+         */
+        public static boolean peekInt64Fields(@NonNull ProtoByteMessage protoByteMessage,
+                                              int embeddedFieldNumber,
+                                              @NonNull int[] fieldNumbers,
+                                              @NonNull long[] values) {
+            Preconditions.checkArgument(fieldNumbers.length == values.length);
+            for (int i = 0; i < values.length; i++) {
+                values[i] = 0L;
+            }
+            try {
+                final CodedInputStream input = protoByteMessage.newCodedInputStream();
+                if (embeddedFieldNumber > 0) {
+                    while (true) {
+                        final int tag = input.readTag();
+                        if (tag == 0) {
+                            // 没有该内嵌消息
+                            return true;
+                        }
+                        if (WireFormat.getTagFieldNumber(tag) == embeddedFieldNumber
+                                && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                            input.pushLimit(input.readRawVarint32());
+                            break;
+                        }
+                        input.skipField(tag);
+                    }
+                }
+
+                int remainCount = fieldNumbers.length;
+                while (remainCount > 0) {
+                    final int tag = input.readTag();
+                    if (tag == 0) {
+                        break;
+                    }
+                    boolean read = false;
+                    if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT) {
+                        final int fieldNumber = WireFormat.getTagFieldNumber(tag);
+                        for (int i = 0; i < fieldNumbers.length; i++) {
+                            if (fieldNumbers[i] == fieldNumber) {
+                                values[i] = input.readInt64();
+                                remainCount--;
+                                read = true;
+                                break;
+                            }
+                        }
+                    }
+                    if (!read) {
+                        input.skipField(tag);
+                    }
+                }
+                return true;
+            } catch (Throwable e) {
+                IMLog.e(e, "fail to peek int64 fields protoByteMessage:%s", protoByteMessage.toString());
+                return false;
+            }
         }
 
         /**
@@ -766,15 +654,13 @@ public class ProtoByteMessage {
          */
         @Nullable
         public static Object decode(@NonNull ProtoByteMessage protoByteMessage) {
-            try {
-                for (Transform transform : TRANSFORM_LIST) {
-                    Object result = transform.decode(protoByteMessage);
-                    if (result != null) {
-                        return result;
-                    }
+            final Entry entry = getDecodeEntry(protoByteMessage.getType());
+            if (entry != null) {
+                try {
+                    return entry.mDecoder.decode(protoByteMessage.newCodedInputStream());
+                } catch (Throwable e) {
+                    IMLog.e(e);
                 }
-            } catch (Throwable e) {
-                IMLog.e(e);
             }
             IMLog.e(new IllegalStateException(), "fail to decode protoByteMessage:%s", protoByteMessage.toString());
             return null;
@@ -785,11 +671,9 @@ public class ProtoByteMessage {
          */
         @NonNull
         public static ProtoByteMessage encode(@NonNull Object protoMessageObject) {
-            for (Transform transform : TRANSFORM_LIST) {
-                ProtoByteMessage result = transform.encode(protoMessageObject);
-                if (result != null) {
-                    return result;
-                }
+            final Entry entry = sEncodeTable.get(protoMessageObject.getClass());
+            if (entry != null) {
+                return new ProtoByteMessage(entry.mType, (MessageLite) protoMessageObject);
             }
 
             final Throwable e = new IllegalArgumentException("unknown proto message object: " + protoMessageObject);
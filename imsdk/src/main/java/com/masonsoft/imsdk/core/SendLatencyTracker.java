@@ -0,0 +1,399 @@
+package com.masonsoft.imsdk.core;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+
+import com.masonsoft.imsdk.core.observable.SendLatencyObservable;
+import com.masonsoft.imsdk.util.Objects;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.idonans.core.Singleton;
+
+/**
+ * 统计消息发送的各个阶段的耗时. 以消息的 sign 为 key 记录每一个阶段的时间点，收到服务器的响应之后按照消息类型汇总到
+ * 各个分段的耗时分布中(p50/p95/p99), 并通过 {@linkplain SendLatencyObservable} 通知单个消息的耗时.
+ *
+ * @since 1.0
+ */
+public class SendLatencyTracker implements DebugManager.DebugInfoProvider {
+
+    private static final Singleton<SendLatencyTracker> INSTANCE = new Singleton<SendLatencyTracker>() {
+        @Override
+        protected SendLatencyTracker create() {
+            return new SendLatencyTracker();
+        }
+    };
+
+    public static SendLatencyTracker getInstance() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * 调用发送接口，进入发送队列
+     */
+    public static final int STAGE_ENQUEUE = 0;
+    /**
+     * 写入数据库(消息表与上传表)
+     */
+    public static final int STAGE_DB_WRITE = 1;
+    /**
+     * 从待发送队列中取出，开始执行发送任务
+     */
+    public static final int STAGE_SCHEDULED = 2;
+    /**
+     * 开始上传第一个文件
+     */
+    public static final int STAGE_UPLOAD_START = 3;
+    /**
+     * 最后一个文件上传结束(如视频消息需要上传视频与封面)
+     */
+    public static final int STAGE_UPLOAD_END = 4;
+    /**
+     * 消息包通过写缓冲区的等待之后提交到长连接(不包含等待长连接可写的时间)
+     */
+    public static final int STAGE_WIRE_WRITE = 5;
+    /**
+     * 收到服务器的响应(ChatSR)
+     */
+    public static final int STAGE_ACK = 6;
+    private static final int STAGE_COUNT = 7;
+
+    /**
+     * 从调用发送接口到收到服务器响应的总耗时
+     */
+    public static final int SEGMENT_TOTAL = 0;
+    /**
+     * 在发送队列中等待并写入数据库
+     */
+    public static final int SEGMENT_DB_WRITE = 1;
+    /**
+     * 写入数据库之后等待调度
+     */
+    public static final int SEGMENT_SCHEDULE = 2;
+    /**
+     * 文件上传(包括压缩等预处理)
+     */
+    public static final int SEGMENT_UPLOAD = 3;
+    /**
+     * 预处理完成之后等待写入长连接(会话内的发送顺序，发送窗口等)
+     */
+    public static final int SEGMENT_WIRE_WRITE = 4;
+    /**
+     * 写入长连接之后等待服务器响应
+     */
+    public static final int SEGMENT_ACK = 5;
+    private static final int SEGMENT_COUNT = 6;
+
+    // 每一个分段的开始与结束阶段，预处理的开始阶段不存在时(如文本消息没有上传)依次向前查找
+    private static final int[][] SEGMENT_STAGES = {
+            {STAGE_ENQUEUE, STAGE_ACK},
+            {STAGE_ENQUEUE, STAGE_DB_WRITE},
+            {STAGE_DB_WRITE, STAGE_SCHEDULED},
+            {STAGE_UPLOAD_START, STAGE_UPLOAD_END},
+            {STAGE_UPLOAD_END, STAGE_WIRE_WRITE},
+            {STAGE_WIRE_WRITE, STAGE_ACK},
+    };
+
+    /**
+     * 正在发送的消息数量上限，超过时最久没有更新的记录被丢弃(如发送之前进程被杀死)
+     */
+    private static final int MAX_TRACE_COUNT = 500;
+
+    /**
+     * 单个消息的发送耗时记录
+     */
+    public static class Record {
+        private final long mSign;
+        private final int mMessageType;
+        // 各个阶段的时间点(SystemClock.elapsedRealtime), 没有经过的阶段为 0
+        private final long[] mStageTimeMs = new long[STAGE_COUNT];
+
+        private Record(long sign, int messageType) {
+            mSign = sign;
+            mMessageType = messageType;
+        }
+
+        public long getSign() {
+            return mSign;
+        }
+
+        public int getMessageType() {
+            return mMessageType;
+        }
+
+        /**
+         * 阶段的时间点(SystemClock.elapsedRealtime). 没有经过该阶段时返回 0.
+         */
+        public long getStageTimeMs(int stage) {
+            return mStageTimeMs[stage];
+        }
+
+        /**
+         * 分段的耗时. 分段的开始或者结束阶段没有经过时返回 -1.
+         */
+        public long getSegmentMs(int segment) {
+            final int endStage = SEGMENT_STAGES[segment][1];
+            final long endTimeMs = mStageTimeMs[endStage];
+            if (endTimeMs <= 0) {
+                return -1L;
+            }
+            if (segment == SEGMENT_UPLOAD) {
+                final long startTimeMs = mStageTimeMs[STAGE_UPLOAD_START];
+                return startTimeMs > 0 ? Math.max(0L, endTimeMs - startTimeMs) : -1L;
+            }
+            for (int stage = SEGMENT_STAGES[segment][0]; stage >= 0; stage--) {
+                final long startTimeMs = mStageTimeMs[stage];
+                if (startTimeMs > 0) {
+                    return Math.max(0L, endTimeMs - startTimeMs);
+                }
+            }
+            return -1L;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Record{" +
+                    "mSign=" + mSign +
+                    ", mMessageType=" + mMessageType +
+                    ", mStageTimeMs=" + Arrays.toString(mStageTimeMs) +
+                    '}';
+        }
+    }
+
+    /**
+     * 某一个消息类型的某一个分段的耗时分布
+     */
+    public static class Stats {
+        public final int messageType;
+        public final int segment;
+        public final long count;
+        public final long p50Ms;
+        public final long p95Ms;
+        public final long p99Ms;
+        public final long maxMs;
+
+        private Stats(int messageType, int segment, @NonNull LatencyHistogram histogram) {
+            this.messageType = messageType;
+            this.segment = segment;
+            this.count = histogram.mCount;
+            this.p50Ms = histogram.getPercentileMs(50);
+            this.p95Ms = histogram.getPercentileMs(95);
+            this.p99Ms = histogram.getPercentileMs(99);
+            this.maxMs = histogram.mMaxMs;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "messageType=" + messageType +
+                    ", segment=" + segment +
+                    ", count=" + count +
+                    ", p50Ms=" + p50Ms +
+                    ", p95Ms=" + p95Ms +
+                    ", p99Ms=" + p99Ms +
+                    ", maxMs=" + maxMs +
+                    '}';
+        }
+    }
+
+    /**
+     * 按照指数增长的区间统计耗时的分布，百分位数的误差不超过区间的宽度(约 20%)
+     */
+    private static class LatencyHistogram {
+
+        // 区间的上界(ms), 最后一个区间没有上界
+        private static final long[] BUCKET_BOUNDS;
+
+        static {
+            final List<Long> bounds = new ArrayList<>();
+            long bound = 1L;
+            // 最大统计到 10 分钟
+            while (bound < 10 * 60 * 1000L) {
+                bounds.add(bound);
+                bound = Math.max(bound + 1, bound * 6 / 5);
+            }
+            BUCKET_BOUNDS = new long[bounds.size()];
+            for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                BUCKET_BOUNDS[i] = bounds.get(i);
+            }
+        }
+
+        private final long[] mBuckets = new long[BUCKET_BOUNDS.length + 1];
+        private long mCount;
+        private long mMaxMs;
+
+        private void add(long ms) {
+            int index = Arrays.binarySearch(BUCKET_BOUNDS, ms);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            mBuckets[index]++;
+            mCount++;
+            mMaxMs = Math.max(mMaxMs, ms);
+        }
+
+        /**
+         * 百分位数所在区间的上界，不超过最大值
+         */
+        private long getPercentileMs(int percentile) {
+            if (mCount == 0) {
+                return 0L;
+            }
+            final long rank = (mCount * percentile + 99) / 100;
+            long seen = 0L;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return i < BUCKET_BOUNDS.length ? Math.min(BUCKET_BOUNDS[i], mMaxMs) : mMaxMs;
+                }
+            }
+            return mMaxMs;
+        }
+    }
+
+    // key 为消息的 sign
+    private final LruCache<Long, Record> mRecords = new LruCache<>(MAX_TRACE_COUNT);
+
+    private final Object mHistogramLock = new Object();
+    // key 为消息类型
+    private final Map<Integer, LatencyHistogram[]> mHistograms = new HashMap<>();
+    private long mFailCount;
+
+    private SendLatencyTracker() {
+        DebugManager.getInstance().addDebugInfoProvider(this);
+    }
+
+    /**
+     * 开始记录一个消息的发送耗时(消息写入数据库之后确定 sign)
+     *
+     * @param enqueueTimeMs 调用发送接口的时间点(SystemClock.elapsedRealtime)
+     */
+    public void start(long sign, int messageType, long enqueueTimeMs) {
+        final Record record = new Record(sign, messageType);
+        record.mStageTimeMs[STAGE_ENQUEUE] = enqueueTimeMs;
+        mRecords.put(sign, record);
+    }
+
+    /**
+     * 记录消息到达某一个阶段的时间点. 除了 {@linkplain #STAGE_UPLOAD_END} 记录最后一次之外，都只记录第一次.
+     * 没有开始记录的消息(如进程重启之前的消息)忽略.
+     */
+    public void mark(long sign, int stage) {
+        final Record record = mRecords.get(sign);
+        if (record == null) {
+            return;
+        }
+        synchronized (record) {
+            if (stage == STAGE_UPLOAD_END || record.mStageTimeMs[stage] == 0) {
+                record.mStageTimeMs[stage] = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+    /**
+     * 消息发送结束. 收到服务器响应的消息计入耗时分布并通知，其它的(发送失败，取消等)只计数.
+     */
+    public void finish(long sign) {
+        final Record record = mRecords.remove(sign);
+        if (record == null) {
+            return;
+        }
+
+        synchronized (record) {
+            if (record.mStageTimeMs[STAGE_ACK] <= 0) {
+                synchronized (mHistogramLock) {
+                    mFailCount++;
+                }
+                return;
+            }
+
+            synchronized (mHistogramLock) {
+                LatencyHistogram[] histograms = mHistograms.get(record.mMessageType);
+                if (histograms == null) {
+                    histograms = new LatencyHistogram[SEGMENT_COUNT];
+                    for (int i = 0; i < SEGMENT_COUNT; i++) {
+                        histograms[i] = new LatencyHistogram();
+                    }
+                    mHistograms.put(record.mMessageType, histograms);
+                }
+                for (int segment = 0; segment < SEGMENT_COUNT; segment++) {
+                    final long segmentMs = record.getSegmentMs(segment);
+                    if (segmentMs >= 0) {
+                        histograms[segment].add(segmentMs);
+                    }
+                }
+            }
+        }
+
+        IMLog.v(Objects.defaultObjectTag(this) + " finish %s, total:%sms", record, record.getSegmentMs(SEGMENT_TOTAL));
+        SendLatencyObservable.DEFAULT.notifySendLatency(record);
+    }
+
+    /**
+     * 获取所有消息类型的所有分段的耗时分布
+     */
+    @NonNull
+    public List<Stats> getStatsList() {
+        final List<Stats> statsList = new ArrayList<>();
+        synchronized (mHistogramLock) {
+            for (Map.Entry<Integer, LatencyHistogram[]> entry : mHistograms.entrySet()) {
+                for (int segment = 0; segment < SEGMENT_COUNT; segment++) {
+                    final LatencyHistogram histogram = entry.getValue()[segment];
+                    if (histogram.mCount > 0) {
+                        statsList.add(new Stats(entry.getKey(), segment, histogram));
+                    }
+                }
+            }
+        }
+        return statsList;
+    }
+
+    /**
+     * 获取指定消息类型的分段的耗时分布，没有记录时返回 null.
+     */
+    @Nullable
+    public Stats getStats(int messageType, int segment) {
+        synchronized (mHistogramLock) {
+            final LatencyHistogram[] histograms = mHistograms.get(messageType);
+            if (histograms == null || histograms[segment].mCount <= 0) {
+                return null;
+            }
+            return new Stats(messageType, segment, histograms[segment]);
+        }
+    }
+
+    /**
+     * 清空已经统计的耗时分布
+     */
+    public void resetStats() {
+        synchronized (mHistogramLock) {
+            mHistograms.clear();
+            mFailCount = 0L;
+        }
+    }
+
+    @Override
+    public void fetchDebugInfo(@NonNull StringBuilder builder) {
+        final String tag = Objects.defaultObjectTag(this);
+        builder.append(tag).append(" --:\n");
+        builder.append("mRecords size:").append(mRecords.size()).append("\n");
+        synchronized (mHistogramLock) {
+            builder.append("mFailCount:").append(mFailCount).append("\n");
+        }
+        for (Stats stats : getStatsList()) {
+            builder.append(stats).append("\n");
+        }
+        builder.append(tag).append(" -- end\n");
+    }
+
+}
@@ -0,0 +1,268 @@
+package com.masonsoft.imsdk.core;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.masonsoft.imsdk.util.Objects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.idonans.core.Singleton;
+import io.github.idonans.core.util.Preconditions;
+
+/**
+ * 哈希时间轮. 添加和取消定时任务都是 O(1), 每一个 tick 只处理当前槽位中的任务，不会遍历全部任务.
+ * 超过一圈的任务记录剩余圈数，在对应的槽位中逐圈递减. 没有任何待执行的任务时挂起计时，不会周期性地唤醒.
+ * 定时任务在时间轮的线程上执行，应当尽快返回.
+ *
+ * @since 1.0
+ */
+public class TimingWheel implements DebugManager.DebugInfoProvider {
+
+    private static final Singleton<TimingWheel> INSTANCE = new Singleton<TimingWheel>() {
+        @Override
+        protected TimingWheel create() {
+            final TimingWheel timingWheel = new TimingWheel("TimingWheel", DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE);
+            DebugManager.getInstance().addDebugInfoProvider(timingWheel);
+            return timingWheel;
+        }
+    };
+
+    public static TimingWheel getInstance() {
+        return INSTANCE.get();
+    }
+
+    // 每一个槽位对应的时间，毫秒
+    private static final long DEFAULT_TICK_MS = 50L;
+    // 槽位数量(2 的整数次幂), 一圈对应 51.2 秒
+    private static final int DEFAULT_WHEEL_SIZE = 1024;
+
+    private final long mTickMs;
+    private final Bucket[] mWheel;
+    private final int mMask;
+
+    private final HandlerThread mWorkerThread;
+    private final Handler mWorker;
+
+    private final Object mLock = new Object();
+    // 时间轮开始计时的时间点(SystemClock.uptimeMillis), 从挂起状态恢复时重置
+    private long mStartTimeMs;
+    // 已经处理过的 tick
+    private long mTick;
+    private int mPendingCount;
+    private boolean mTicking;
+
+    private final Runnable mTickTask = this::onTick;
+
+    TimingWheel(@NonNull String name, long tickMs, int wheelSize) {
+        Preconditions.checkArgument(tickMs > 0);
+        Preconditions.checkArgument(wheelSize > 0 && (wheelSize & (wheelSize - 1)) == 0);
+
+        mTickMs = tickMs;
+        mWheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            mWheel[i] = new Bucket();
+        }
+        mMask = wheelSize - 1;
+
+        mWorkerThread = new HandlerThread(name);
+        mWorkerThread.start();
+        mWorker = new Handler(mWorkerThread.getLooper());
+    }
+
+    /**
+     * 在 delayMs 毫秒之后执行 task. 实际执行时间不早于 delayMs, 并且至多延后一个 tick.
+     */
+    @NonNull
+    public Timeout schedule(@NonNull Runnable task, long delayMs) {
+        final Timeout timeout = new Timeout(task);
+        synchronized (mLock) {
+            final long now = SystemClock.uptimeMillis();
+            if (!mTicking) {
+                // 从挂起状态恢复，重新开始计时
+                mStartTimeMs = now;
+                mTick = 0;
+            }
+
+            // 向上取整，保证不会提前执行
+            final long deadlineMs = now + Math.max(0L, delayMs);
+            long deadlineTick = (deadlineMs - mStartTimeMs + mTickMs - 1) / mTickMs;
+            if (deadlineTick <= mTick) {
+                deadlineTick = mTick + 1;
+            }
+            timeout.mRemainingRounds = (deadlineTick - mTick - 1) / mWheel.length;
+            mWheel[(int) (deadlineTick & mMask)].add(timeout);
+            mPendingCount++;
+
+            if (!mTicking) {
+                mTicking = true;
+                mWorker.postAtTime(mTickTask, mStartTimeMs + mTickMs);
+            }
+        }
+        return timeout;
+    }
+
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPendingCount;
+        }
+    }
+
+    private void onTick() {
+        final List<Timeout> expiredList = new ArrayList<>();
+        synchronized (mLock) {
+            final long targetTick = (SystemClock.uptimeMillis() - mStartTimeMs) / mTickMs;
+            // 线程被延迟调度时，补齐错过的 tick
+            while (mTick < targetTick && mPendingCount > 0) {
+                mTick++;
+                final int expiredSize = expiredList.size();
+                mWheel[(int) (mTick & mMask)].expire(expiredList);
+                mPendingCount -= expiredList.size() - expiredSize;
+            }
+
+            if (mPendingCount > 0) {
+                mWorker.postAtTime(mTickTask, mStartTimeMs + (mTick + 1) * mTickMs);
+            } else {
+                mTicking = false;
+            }
+        }
+
+        for (Timeout timeout : expiredList) {
+            try {
+                timeout.mTask.run();
+            } catch (Throwable e) {
+                IMLog.e(e);
+                RuntimeMode.fixme(e);
+            }
+        }
+    }
+
+    @Override
+    public void fetchDebugInfo(@NonNull StringBuilder builder) {
+        final String tag = Objects.defaultObjectTag(this);
+        builder.append(tag).append(" --:\n");
+        synchronized (mLock) {
+            builder.append("tick ms:").append(mTickMs).append(", wheel size:").append(mWheel.length).append("\n");
+            builder.append("mTick:").append(mTick).append(", mTicking:").append(mTicking).append("\n");
+            builder.append("mPendingCount:").append(mPendingCount).append("\n");
+        }
+        builder.append(tag).append(" -- end\n");
+    }
+
+    /**
+     * 时间轮中的一个定时任务
+     */
+    public class Timeout {
+
+        @NonNull
+        private final Runnable mTask;
+        private long mRemainingRounds;
+
+        @Nullable
+        private Bucket mBucket;
+        @Nullable
+        private Timeout mPrev;
+        @Nullable
+        private Timeout mNext;
+
+        private boolean mExpired;
+        private boolean mCancelled;
+
+        private Timeout(@NonNull Runnable task) {
+            mTask = task;
+        }
+
+        /**
+         * 取消定时任务. 如果任务已经执行或者已经取消，返回 false.
+         */
+        public boolean cancel() {
+            synchronized (mLock) {
+                if (mExpired || mCancelled) {
+                    return false;
+                }
+                mCancelled = true;
+                if (mBucket != null) {
+                    mBucket.remove(this);
+                    mPendingCount--;
+                }
+                return true;
+            }
+        }
+
+        public boolean isExpired() {
+            synchronized (mLock) {
+                return mExpired;
+            }
+        }
+
+        public boolean isCancelled() {
+            synchronized (mLock) {
+                return mCancelled;
+            }
+        }
+    }
+
+    /**
+     * 一个槽位中的定时任务，双向链表. 所有操作都在 mLock 中执行.
+     */
+    private static class Bucket {
+
+        @Nullable
+        private Timeout mHead;
+        @Nullable
+        private Timeout mTail;
+
+        private void add(@NonNull Timeout timeout) {
+            timeout.mBucket = this;
+            if (mTail == null) {
+                mHead = mTail = timeout;
+            } else {
+                mTail.mNext = timeout;
+                timeout.mPrev = mTail;
+                mTail = timeout;
+            }
+        }
+
+        private void remove(@NonNull Timeout timeout) {
+            final Timeout prev = timeout.mPrev;
+            final Timeout next = timeout.mNext;
+            if (prev != null) {
+                prev.mNext = next;
+            } else {
+                mHead = next;
+            }
+            if (next != null) {
+                next.mPrev = prev;
+            } else {
+                mTail = prev;
+            }
+            timeout.mPrev = null;
+            timeout.mNext = null;
+            timeout.mBucket = null;
+        }
+
+        /**
+         * 取出所有到期的任务，其它任务的剩余圈数减一
+         */
+        private void expire(@NonNull List<Timeout> expiredList) {
+            Timeout timeout = mHead;
+            while (timeout != null) {
+                final Timeout next = timeout.mNext;
+                if (timeout.mRemainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.mExpired = true;
+                    expiredList.add(timeout);
+                } else {
+                    timeout.mRemainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+package com.masonsoft.imsdk.core.compress;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 长连接上消息内容的压缩算法. 对应消息头中的 isZip 标记位，具体使用哪一种压缩算法需要与服务器协商一致.
+ *
+ * @see MessageCompressorManager
+ * @since 1.0
+ */
+public interface MessageCompressor {
+
+    /**
+     * 压缩算法的标识，与服务器协商使用.
+     */
+    int getCodecId();
+
+    /**
+     * 压缩. 可能在多个线程上同时调用，实现需要保证线程安全.
+     */
+    @NonNull
+    byte[] compress(@NonNull byte[] input);
+
+    /**
+     * 解压. 可能在多个线程上同时调用，实现需要保证线程安全.
+     */
+    @NonNull
+    byte[] decompress(@NonNull byte[] input);
+
+}
@@ -0,0 +1,119 @@
+package com.masonsoft.imsdk.core.compress;
+
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.masonsoft.imsdk.core.IMLog;
+import com.masonsoft.imsdk.core.ProtoByteMessage;
+
+import java.util.Arrays;
+
+import io.github.idonans.core.Singleton;
+import io.github.idonans.core.util.Preconditions;
+
+/**
+ * 管理长连接上可用的压缩算法，当前使用的压缩算法以及每一种消息类型触发压缩的阈值.
+ *
+ * @since 1.0
+ */
+public class MessageCompressorManager {
+
+    private static final Singleton<MessageCompressorManager> INSTANCE = new Singleton<MessageCompressorManager>() {
+        @Override
+        protected MessageCompressorManager create() {
+            return new MessageCompressorManager();
+        }
+    };
+
+    public static MessageCompressorManager getInstance() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * 默认情况下，如果数据长度(Message Data)超过此值，则会触发压缩.
+     */
+    public static final int DEFAULT_DEFLATE_THRESHOLD = 5000;
+
+    private final Object mLock = new Object();
+    private final SparseArray<MessageCompressor> mCompressors = new SparseArray<>();
+    @NonNull
+    private volatile MessageCompressor mCurrentCompressor;
+    /**
+     * 按照消息类型索引的压缩阈值
+     */
+    private final int[] mDeflateThresholds = new int[ProtoByteMessage.Type.MAX_TYPE_VALUE + 1];
+
+    private MessageCompressorManager() {
+        final MessageCompressor zlib = new ZlibMessageCompressor();
+        mCompressors.put(zlib.getCodecId(), zlib);
+        mCurrentCompressor = zlib;
+        Arrays.fill(mDeflateThresholds, DEFAULT_DEFLATE_THRESHOLD);
+    }
+
+    /**
+     * 注册一种压缩算法, 如果 codecId 已经存在则替换.
+     */
+    public void registerCompressor(@NonNull MessageCompressor compressor) {
+        Preconditions.checkNotNull(compressor);
+        synchronized (mLock) {
+            mCompressors.put(compressor.getCodecId(), compressor);
+            if (mCurrentCompressor.getCodecId() == compressor.getCodecId()) {
+                mCurrentCompressor = compressor;
+            }
+        }
+    }
+
+    @Nullable
+    public MessageCompressor getCompressor(int codecId) {
+        synchronized (mLock) {
+            return mCompressors.get(codecId);
+        }
+    }
+
+    /**
+     * 切换到与服务器协商一致的压缩算法，如果 codecId 没有注册，返回 false.
+     */
+    public boolean setCurrentCodecId(int codecId) {
+        synchronized (mLock) {
+            final MessageCompressor compressor = mCompressors.get(codecId);
+            if (compressor == null) {
+                IMLog.e(new IllegalArgumentException("unknown codec id " + codecId));
+                return false;
+            }
+            mCurrentCompressor = compressor;
+            return true;
+        }
+    }
+
+    /**
+     * 当前长连接上使用的压缩算法
+     */
+    @NonNull
+    public MessageCompressor getCurrentCompressor() {
+        return mCurrentCompressor;
+    }
+
+    /**
+     * 设置指定消息类型触发压缩的阈值. 数据长度超过该值时压缩，取 Integer.MAX_VALUE 表示该类型不压缩.
+     */
+    public void setDeflateThreshold(int messageType, int threshold) {
+        if (messageType < 0 || messageType > ProtoByteMessage.Type.MAX_TYPE_VALUE) {
+            throw new IllegalArgumentException("invalid message type " + messageType);
+        }
+        synchronized (mLock) {
+            mDeflateThresholds[messageType] = threshold;
+        }
+    }
+
+    public int getDeflateThreshold(int messageType) {
+        if (messageType < 0 || messageType > ProtoByteMessage.Type.MAX_TYPE_VALUE) {
+            return DEFAULT_DEFLATE_THRESHOLD;
+        }
+        synchronized (mLock) {
+            return mDeflateThresholds[messageType];
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.masonsoft.imsdk.core.compress;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib 压缩. 按照线程复用 Deflater, Inflater 与输出缓冲区，避免每一帧数据都重新分配.
+ *
+ * @since 1.0
+ */
+public class ZlibMessageCompressor implements MessageCompressor {
+
+    public static final int CODEC_ID = 0;
+
+    /**
+     * 复用的输出缓冲区超过此值时不再缓存，避免长期占用大块内存
+     */
+    private static final int MAX_CACHED_BUFFER_SIZE = 256 * 1024;
+    private static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    private final int mCodecId;
+    @Nullable
+    private final byte[] mDictionary;
+
+    private final ThreadLocal<Deflater> mDeflater = new ThreadLocal<>();
+    private final ThreadLocal<Inflater> mInflater = new ThreadLocal<>();
+    private final ThreadLocal<byte[]> mBuffer = new ThreadLocal<>();
+
+    public ZlibMessageCompressor() {
+        this(CODEC_ID, null);
+    }
+
+    /**
+     * @param codecId    压缩算法标识
+     * @param dictionary 预置字典(需要与服务器使用相同的字典), 例如针对 ChatR 消息训练的字典. 为 null 时不使用字典.
+     */
+    public ZlibMessageCompressor(int codecId, @Nullable byte[] dictionary) {
+        mCodecId = codecId;
+        mDictionary = dictionary;
+    }
+
+    @Override
+    public int getCodecId() {
+        return mCodecId;
+    }
+
+    @NonNull
+    private byte[] obtainBuffer(int minSize) {
+        byte[] buffer = mBuffer.get();
+        if (buffer == null || buffer.length < minSize) {
+            buffer = new byte[Math.max(MIN_BUFFER_SIZE, minSize)];
+            if (buffer.length <= MAX_CACHED_BUFFER_SIZE) {
+                mBuffer.set(buffer);
+            }
+        }
+        return buffer;
+    }
+
+    @NonNull
+    @Override
+    public byte[] compress(@NonNull byte[] input) {
+        Deflater deflater = mDeflater.get();
+        if (deflater == null) {
+            deflater = new Deflater();
+            mDeflater.set(deflater);
+        } else {
+            deflater.reset();
+        }
+
+        if (mDictionary != null) {
+            deflater.setDictionary(mDictionary);
+        }
+        deflater.setInput(input);
+        deflater.finish();
+
+        byte[] buffer = obtainBuffer(input.length / 2 + 64);
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @NonNull
+    @Override
+    public byte[] decompress(@NonNull byte[] input) {
+        Inflater inflater = mInflater.get();
+        if (inflater == null) {
+            inflater = new Inflater();
+            mInflater.set(inflater);
+        } else {
+            inflater.reset();
+        }
+
+        try {
+            inflater.setInput(input);
+
+            byte[] buffer = obtainBuffer(input.length * 4);
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                final int count = inflater.inflate(buffer, length, buffer.length - length);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (mDictionary == null) {
+                            throw new IllegalStateException("dictionary required");
+                        }
+                        inflater.setDictionary(mDictionary);
+                        continue;
+                    }
+                    if (inflater.needsInput()) {
+                        throw new IllegalStateException("unexpected end of zlib input");
+                    }
+                }
+                length += count;
+            }
+            return Arrays.copyOf(buffer, length);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.masonsoft.imsdk.core.db;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import io.github.idonans.core.util.IOUtil;
+
+/**
+ * 批量写入时复用编译好的 insert 与 update 语句. ContentValues 中包含的列(排序后)相同的行共用同一个语句,
+ * 通常在一个事务内使用，结束时需要 close.
+ *
+ * @since 1.0
+ */
+class ContentValuesStatementCache implements Closeable {
+
+    @NonNull
+    private final SQLiteDatabase mDatabase;
+    @NonNull
+    private final String mTableName;
+    @NonNull
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<>();
+
+    ContentValuesStatementCache(@NonNull SQLiteDatabase database, @NonNull String tableName) {
+        mDatabase = database;
+        mTableName = tableName;
+    }
+
+    /**
+     * @return 新插入的行的 rowId, 失败时返回 -1
+     */
+    long executeInsert(@NonNull ContentValues contentValues) {
+        final List<String> columns = new ArrayList<>(new TreeSet<>(contentValues.keySet()));
+        final String columnsKey = TextUtils.join(",", columns);
+        final String key = "insert:" + columnsKey;
+        SQLiteStatement statement = mStatements.get(key);
+        if (statement == null) {
+            final StringBuilder sql = new StringBuilder();
+            sql.append("insert into ").append(mTableName).append("(").append(columnsKey).append(") values(");
+            for (int i = 0; i < columns.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(")");
+            statement = mDatabase.compileStatement(sql.toString());
+            mStatements.put(key, statement);
+        }
+
+        statement.clearBindings();
+        for (int i = 0; i < columns.size(); i++) {
+            bindValue(statement, i + 1, contentValues.get(columns.get(i)));
+        }
+        return statement.executeInsert();
+    }
+
+    /**
+     * 更新 whereColumn 等于 whereValue 的行
+     *
+     * @return 受影响的行数
+     */
+    int executeUpdate(@NonNull ContentValues contentValues, @NonNull String whereColumn, long whereValue) {
+        final List<String> columns = new ArrayList<>(new TreeSet<>(contentValues.keySet()));
+        final String key = "update:" + TextUtils.join(",", columns) + ":" + whereColumn;
+        SQLiteStatement statement = mStatements.get(key);
+        if (statement == null) {
+            final StringBuilder sql = new StringBuilder();
+            sql.append("update ").append(mTableName).append(" set ");
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    sql.append(",");
+                }
+                sql.append(columns.get(i)).append("=?");
+            }
+            sql.append(" where ").append(whereColumn).append("=?");
+            statement = mDatabase.compileStatement(sql.toString());
+            mStatements.put(key, statement);
+        }
+
+        statement.clearBindings();
+        for (int i = 0; i < columns.size(); i++) {
+            bindValue(statement, i + 1, contentValues.get(columns.get(i)));
+        }
+        statement.bindLong(columns.size() + 1, whereValue);
+        return statement.executeUpdateDelete();
+    }
+
+    private static void bindValue(@NonNull SQLiteStatement statement, int index, @Nullable Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    @Override
+    public void close() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            IOUtil.closeQuietly(statement);
+        }
+        mStatements.clear();
+    }
+
+}
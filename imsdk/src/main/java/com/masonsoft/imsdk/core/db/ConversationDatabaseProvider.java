@@ -15,7 +15,11 @@ import com.masonsoft.imsdk.core.observable.ConversationObservable;
 import com.masonsoft.imsdk.util.CursorUtil;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import io.github.idonans.core.Singleton;
 import io.github.idonans.core.util.IOUtil;
@@ -547,4 +551,160 @@ public class ConversationDatabaseProvider {
         return false;
     }
 
+    /**
+     * 批量写入会话(在一个事务中完成): 按照会话类型与 targetUserId 判断会话在本地是否已经存在, 不存在的会话插入并设置 localId,
+     * 已经存在的会话回写 localId 并更新. 写入成功之后只发送一次 {@linkplain ConversationObservable#notifyMultiConversationChanged(long, List)}.
+     *
+     * @param conversationList 每一个会话都需要设置 localConversationType 与 targetUserId, 并且 localId 未设置
+     * @return 全部写入成功返回 true. 失败时返回 false, 此时所有的改动都已回滚.
+     */
+    public boolean upsertConversations(
+            final long sessionUserId,
+            @NonNull final List<Conversation> conversationList) {
+        if (conversationList.isEmpty()) {
+            return true;
+        }
+
+        for (Conversation conversation : conversationList) {
+            if (conversation == null
+                    || !conversation.localId.isUnset()
+                    || conversation.localConversationType.isUnset()
+                    || conversation.targetUserId.isUnset()) {
+                final Throwable e = new IllegalArgumentException("invalid conversation " + conversation);
+                IMLog.e(e);
+                RuntimeMode.fixme(e);
+                return false;
+            }
+        }
+
+        // 事务提交成功之后才回写 localId
+        final Map<Conversation, Long> localIdMap = new IdentityHashMap<>();
+        final List<Long> updatedLocalIdList = new ArrayList<>();
+        boolean unreadCountChanged = false;
+        ContentValuesStatementCache statementCache = null;
+        SQLiteDatabase db = null;
+        boolean inTransaction = false;
+        try {
+            DatabaseHelper dbHelper = DatabaseProvider.getInstance().getDBHelper(sessionUserId);
+            db = dbHelper.getDBHelper().getWritableDatabase();
+            db.beginTransaction();
+            inTransaction = true;
+            statementCache = new ContentValuesStatementCache(db, DatabaseHelper.TABLE_NAME_CONVERSATION);
+
+            final Map<String, Long> dbLocalIdMap = queryConversationLocalIdMap(db, conversationList);
+            final long now = System.currentTimeMillis();
+            for (Conversation conversation : conversationList) {
+                final String key = conversation.localConversationType.get() + "_" + conversation.targetUserId.get();
+                // 设置 last modify
+                conversation.localLastModifyMs.set(now);
+                final Long dbLocalId = dbLocalIdMap.get(key);
+                if (dbLocalId == null) {
+                    final long rowId = statementCache.executeInsert(conversation.toContentValues());
+                    if (rowId == -1) {
+                        throw new IllegalStateException("fail to insert conversation " + conversation);
+                    }
+                    localIdMap.put(conversation, rowId);
+                    // 同一批会话中可能有重复的会话
+                    dbLocalIdMap.put(key, rowId);
+                    if (!conversation.localUnreadCount.isUnset() && conversation.localUnreadCount.get() != 0) {
+                        unreadCountChanged = true;
+                    }
+                } else {
+                    final int rowsAffected = statementCache.executeUpdate(
+                            conversation.toContentValues(), DatabaseHelper.ColumnsConversation.C_LOCAL_ID, dbLocalId);
+                    if (rowsAffected != 1) {
+                        IMLog.e(new IllegalStateException("update conversation fail"),
+                                "unexpected. update conversation with sessionUserId:%s conversation localId:%s affected %s rows",
+                                sessionUserId,
+                                dbLocalId,
+                                rowsAffected
+                        );
+                    }
+                    localIdMap.put(conversation, dbLocalId);
+                    updatedLocalIdList.add(dbLocalId);
+                    if (!conversation.localUnreadCount.isUnset() || !conversation.delete.isUnset()) {
+                        unreadCountChanged = true;
+                    }
+                }
+            }
+
+            db.setTransactionSuccessful();
+        } catch (Throwable e) {
+            IMLog.e(e, "fail to upsert %s conversations with sessionUserId:%s", conversationList.size(), sessionUserId);
+            RuntimeMode.fixme(e);
+            return false;
+        } finally {
+            IOUtil.closeQuietly(statementCache);
+            if (inTransaction) {
+                db.endTransaction();
+            }
+        }
+
+        // 同一批会话中重复的会话只通知一次
+        final Map<Long, Conversation> changedConversationMap = new LinkedHashMap<>();
+        for (Conversation conversation : conversationList) {
+            final long localId = localIdMap.get(conversation);
+            conversation.localId.set(localId);
+            changedConversationMap.put(localId, conversation);
+        }
+        for (long localId : updatedLocalIdList) {
+            MemoryFullCache.DEFAULT.removeFullCache(sessionUserId, localId);
+        }
+        if (unreadCountChanged) {
+            MemoryAllUnreadCountCache.DEFAULT.removeAllUnreadCountCache(sessionUserId);
+        }
+
+        IMLog.v("upsertConversations with sessionUserId:%s, size:%s, updated:%s",
+                sessionUserId, conversationList.size(), updatedLocalIdList.size());
+        ConversationObservable.DEFAULT.notifyMultiConversationChanged(sessionUserId, new ArrayList<>(changedConversationMap.values()));
+        return true;
+    }
+
+    /**
+     * 批量查询已经存在的会话的 localId, key 为 conversationType + "_" + targetUserId
+     */
+    @NonNull
+    private Map<String, Long> queryConversationLocalIdMap(
+            @NonNull SQLiteDatabase db,
+            @NonNull List<Conversation> conversationList) {
+        final String[] queryColumns = new String[]{
+                DatabaseHelper.ColumnsConversation.C_LOCAL_ID,
+                DatabaseHelper.ColumnsConversation.C_LOCAL_CONVERSATION_TYPE,
+                DatabaseHelper.ColumnsConversation.C_TARGET_USER_ID
+        };
+        final Map<String, Long> localIdMap = new HashMap<>();
+        // 避免超过 sqlite 的参数数量限制
+        final int maxArgsCount = 500;
+        for (int start = 0; start < conversationList.size(); start += maxArgsCount) {
+            final int end = Math.min(start + maxArgsCount, conversationList.size());
+            final StringBuilder selection = new StringBuilder();
+            final String[] selectionArgs = new String[end - start];
+            selection.append(" " + DatabaseHelper.ColumnsConversation.C_TARGET_USER_ID + " in (");
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+                selectionArgs[i - start] = String.valueOf(conversationList.get(i).targetUserId.get());
+            }
+            selection.append(") ");
+
+            Cursor cursor = null;
+            try {
+                cursor = db.query(
+                        DatabaseHelper.TABLE_NAME_CONVERSATION,
+                        queryColumns,
+                        selection.toString(),
+                        selectionArgs,
+                        null,
+                        null,
+                        null
+                );
+                while (cursor.moveToNext()) {
+                    localIdMap.put(cursor.getInt(1) + "_" + cursor.getLong(2), cursor.getLong(0));
+                }
+            } finally {
+                IOUtil.closeQuietly(cursor);
+            }
+        }
+        return localIdMap;
+    }
+
 }
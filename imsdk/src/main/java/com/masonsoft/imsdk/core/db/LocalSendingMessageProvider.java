@@ -15,7 +15,11 @@ import com.masonsoft.imsdk.core.RuntimeMode;
 import com.masonsoft.imsdk.core.observable.MessageObservable;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
 import io.github.idonans.core.Singleton;
 import io.github.idonans.core.util.IOUtil;
@@ -127,11 +131,219 @@ public class LocalSendingMessageProvider {
 
     }
 
+    /**
+     * 待发送消息的内存队列(发件箱), 与 t_local_sending_message 表中发送状态为 IDLE 并且 abort id 为 RESET 的记录保持一致，
+     * 每一个会话内按照 last modify 升序排列. 每一个 sessionUserId 只从数据库加载一次，之后由写入操作同步更新.
+     */
+    private static class IdleMessageOutbox {
+
+        private static final IdleMessageOutbox DEFAULT = new IdleMessageOutbox();
+
+        private static class Entry implements Comparable<Entry> {
+            private final long mLocalId;
+            private final long mLastModifyMs;
+            @NonNull
+            private final String mConversationKey;
+            @NonNull
+            private final LocalSendingMessage mLocalSendingMessage;
+
+            private Entry(@NonNull LocalSendingMessage localSendingMessage) {
+                mLocalId = localSendingMessage.localId.get();
+                mLastModifyMs = localSendingMessage.localLastModifyMs.get();
+                mConversationKey = localSendingMessage.conversationType.get() + "_" + localSendingMessage.targetUserId.get();
+                mLocalSendingMessage = localSendingMessage;
+            }
+
+            @Override
+            public int compareTo(Entry o) {
+                if (mLastModifyMs != o.mLastModifyMs) {
+                    return mLastModifyMs < o.mLastModifyMs ? -1 : 1;
+                }
+                return Long.compare(mLocalId, o.mLocalId);
+            }
+        }
+
+        private static class SessionOutbox {
+            private boolean mHydrated;
+            // key 为 conversationType_targetUserId
+            private final Map<String, TreeSet<Entry>> mConversationQueues = new HashMap<>();
+            private final Map<Long, Entry> mIndex = new HashMap<>();
+
+            private void put(@NonNull LocalSendingMessage localSendingMessage) {
+                remove(localSendingMessage.localId.get());
+                final Entry entry = new Entry(localSendingMessage);
+                TreeSet<Entry> queue = mConversationQueues.get(entry.mConversationKey);
+                if (queue == null) {
+                    queue = new TreeSet<>();
+                    mConversationQueues.put(entry.mConversationKey, queue);
+                }
+                queue.add(entry);
+                mIndex.put(entry.mLocalId, entry);
+            }
+
+            private void remove(long localId) {
+                final Entry entry = mIndex.remove(localId);
+                if (entry != null) {
+                    final TreeSet<Entry> queue = mConversationQueues.get(entry.mConversationKey);
+                    if (queue != null) {
+                        queue.remove(entry);
+                        if (queue.isEmpty()) {
+                            mConversationQueues.remove(entry.mConversationKey);
+                        }
+                    }
+                }
+            }
+
+            private void clear() {
+                mConversationQueues.clear();
+                mIndex.clear();
+            }
+        }
+
+        private final Map<Long, SessionOutbox> mSessionOutboxMap = new HashMap<>();
+
+        private static boolean isIdle(@NonNull LocalSendingMessage localSendingMessage) {
+            return !localSendingMessage.localId.isUnset()
+                    && !localSendingMessage.localLastModifyMs.isUnset()
+                    && !localSendingMessage.localSendStatus.isUnset()
+                    && localSendingMessage.localSendStatus.get() == IMConstants.SendStatus.IDLE
+                    && !localSendingMessage.localAbortId.isUnset()
+                    && localSendingMessage.localAbortId.get() == IMConstants.AbortId.RESET;
+        }
+
+        @NonNull
+        private SessionOutbox getSessionOutbox(long sessionUserId) {
+            synchronized (mSessionOutboxMap) {
+                SessionOutbox sessionOutbox = mSessionOutboxMap.get(sessionUserId);
+                if (sessionOutbox == null) {
+                    sessionOutbox = new SessionOutbox();
+                    mSessionOutboxMap.put(sessionUserId, sessionOutbox);
+                }
+                return sessionOutbox;
+            }
+        }
+
+        /**
+         * 从数据库加载全部待发送的消息，已经加载过时忽略
+         */
+        private void hydrate(long sessionUserId) {
+            final SessionOutbox sessionOutbox = getSessionOutbox(sessionUserId);
+            synchronized (sessionOutbox) {
+                if (sessionOutbox.mHydrated) {
+                    return;
+                }
+                final List<LocalSendingMessage> localSendingMessageList =
+                        LocalSendingMessageProvider.getInstance().getIdleMessageList(sessionUserId, 0);
+                for (LocalSendingMessage localSendingMessage : localSendingMessageList) {
+                    sessionOutbox.put(localSendingMessage);
+                }
+                sessionOutbox.mHydrated = true;
+                IMLog.v("IdleMessageOutbox hydrate sessionUserId:%s, size:%s", sessionUserId, sessionOutbox.mIndex.size());
+            }
+        }
+
+        @NonNull
+        private List<LocalSendingMessage> poll(long sessionUserId, int limit) {
+            hydrate(sessionUserId);
+
+            final List<LocalSendingMessage> items = new ArrayList<>();
+            final SessionOutbox sessionOutbox = getSessionOutbox(sessionUserId);
+            synchronized (sessionOutbox) {
+                // 在会话之间轮流取出: 每一轮从每一个会话中取出一条，同一轮内按照会话队首消息的 last modify 排序
+                while (items.size() < limit && !sessionOutbox.mConversationQueues.isEmpty()) {
+                    final List<Entry> round = new ArrayList<>();
+                    for (TreeSet<Entry> queue : sessionOutbox.mConversationQueues.values()) {
+                        round.add(queue.first());
+                    }
+                    Collections.sort(round);
+                    for (Entry entry : round) {
+                        if (items.size() >= limit) {
+                            break;
+                        }
+                        sessionOutbox.remove(entry.mLocalId);
+                        items.add(entry.mLocalSendingMessage);
+                    }
+                }
+            }
+            return items;
+        }
+
+        @Nullable
+        private LocalSendingMessage poll(long sessionUserId, long localId) {
+            hydrate(sessionUserId);
+
+            final SessionOutbox sessionOutbox = getSessionOutbox(sessionUserId);
+            synchronized (sessionOutbox) {
+                final Entry entry = sessionOutbox.mIndex.get(localId);
+                if (entry == null) {
+                    return null;
+                }
+                sessionOutbox.remove(localId);
+                return entry.mLocalSendingMessage;
+            }
+        }
+
+        private int size(long sessionUserId) {
+            final SessionOutbox sessionOutbox = getSessionOutbox(sessionUserId);
+            synchronized (sessionOutbox) {
+                return sessionOutbox.mIndex.size();
+            }
+        }
+
+        /**
+         * 插入了一条完整的记录
+         */
+        private void onInsert(long sessionUserId, @NonNull LocalSendingMessage localSendingMessage) {
+            final SessionOutbox sessionOutbox = getSessionOutbox(sessionUserId);
+            synchronized (sessionOutbox) {
+                if (sessionOutbox.mHydrated && isIdle(localSendingMessage)) {
+                    sessionOutbox.put(localSendingMessage);
+                }
+            }
+        }
+
+        /**
+         * 记录被部分更新，重新读取完整的记录. 读取与同步在同一个锁内，保证以最后一次读取的结果为准.
+         */
+        private void onUpdate(long sessionUserId, long localId) {
+            final SessionOutbox sessionOutbox = getSessionOutbox(sessionUserId);
+            synchronized (sessionOutbox) {
+                if (!sessionOutbox.mHydrated) {
+                    return;
+                }
+                final LocalSendingMessage localSendingMessage =
+                        LocalSendingMessageProvider.getInstance().getLocalSendingMessage(sessionUserId, localId);
+                if (localSendingMessage != null && isIdle(localSendingMessage)) {
+                    sessionOutbox.put(localSendingMessage);
+                } else {
+                    sessionOutbox.remove(localId);
+                }
+            }
+        }
+
+        private void onRemove(long sessionUserId, long localId) {
+            final SessionOutbox sessionOutbox = getSessionOutbox(sessionUserId);
+            synchronized (sessionOutbox) {
+                sessionOutbox.remove(localId);
+            }
+        }
+
+        private void onRemoveAll(long sessionUserId) {
+            final SessionOutbox sessionOutbox = getSessionOutbox(sessionUserId);
+            synchronized (sessionOutbox) {
+                sessionOutbox.clear();
+            }
+        }
+
+    }
+
     private LocalSendingMessageProvider() {
     }
 
     /**
      * 查询一定数量的待发送的消息
+     *
+     * @param limit 小于等于 0 时表示不限制数量
      */
     @NonNull
     public List<LocalSendingMessage> getIdleMessageList(
@@ -162,7 +374,7 @@ public class LocalSendingMessageProvider {
                     null,
                     null,
                     DatabaseHelper.ColumnsLocalSendingMessage.C_LOCAL_LAST_MODIFY_MS + " asc",
-                    String.valueOf(limit)
+                    limit > 0 ? String.valueOf(limit) : null
             );
 
             while (cursor.moveToNext()) {
@@ -181,6 +393,43 @@ public class LocalSendingMessageProvider {
         return items;
     }
 
+    /**
+     * 加载待发送消息的内存队列. 之后的插入，更新与删除都会同步到内存队列中.
+     */
+    public void hydrateIdleMessageOutbox(final long sessionUserId) {
+        IdleMessageOutbox.DEFAULT.hydrate(sessionUserId);
+    }
+
+    /**
+     * 从内存队列中取出一定数量的待发送的消息(取出之后不会再次返回，除非记录再次被更新为待发送). 同一个会话内按照 last modify 升序，
+     * 不同的会话之间轮流取出，避免某一个会话中大量的待发送消息阻塞其它会话. 内存队列加载之后不再查询数据库.
+     */
+    @NonNull
+    public List<LocalSendingMessage> pollIdleMessageList(
+            final long sessionUserId,
+            final int limit) {
+        return IdleMessageOutbox.DEFAULT.poll(sessionUserId, limit);
+    }
+
+    /**
+     * 从内存队列中取出指定的待发送的消息
+     *
+     * @return 不在内存队列中(不是待发送的状态或者已经被取出)时返回 null
+     */
+    @Nullable
+    public LocalSendingMessage pollIdleMessage(
+            final long sessionUserId,
+            final long localSendingMessageLocalId) {
+        return IdleMessageOutbox.DEFAULT.poll(sessionUserId, localSendingMessageLocalId);
+    }
+
+    /**
+     * 内存队列中待发送的消息数量
+     */
+    public int getIdleMessageOutboxSize(final long sessionUserId) {
+        return IdleMessageOutbox.DEFAULT.size(sessionUserId);
+    }
+
     /**
      * @return 没有找到返回 null
      */
@@ -402,6 +651,7 @@ public class LocalSendingMessageProvider {
 
             // 自增主键
             localSendingMessage.localId.set(rowId);
+            IdleMessageOutbox.DEFAULT.onInsert(sessionUserId, localSendingMessage);
             MessageObservable.DEFAULT.notifyMessageChanged(
                     sessionUserId,
                     localSendingMessage.conversationType.get(),
@@ -490,6 +740,7 @@ public class LocalSendingMessageProvider {
                 );
 
                 MemoryFullCache.DEFAULT.clear();
+                IdleMessageOutbox.DEFAULT.onRemoveAll(sessionUserId);
                 MessageObservable.DEFAULT.notifyMultiMessageChanged(sessionUserId);
                 return true;
             }
@@ -551,6 +802,9 @@ public class LocalSendingMessageProvider {
 
             final LocalSendingMessage cache = getLocalSendingMessage(sessionUserId, localSendingMessage.localId.get());
             MemoryFullCache.DEFAULT.removeFullCache(sessionUserId, localSendingMessage.localId.get());
+            if (rowsAffected > 0) {
+                IdleMessageOutbox.DEFAULT.onUpdate(sessionUserId, localSendingMessage.localId.get());
+            }
             if (rowsAffected > 0 && cache != null) {
                 MessageObservable.DEFAULT.notifyMessageChanged(
                         sessionUserId,
@@ -615,6 +869,7 @@ public class LocalSendingMessageProvider {
             }
 
             MemoryFullCache.DEFAULT.removeFullCache(sessionUserId, localId);
+            IdleMessageOutbox.DEFAULT.onRemove(sessionUserId, localId);
             if (cache != null) {
                 MessageObservable.DEFAULT.notifyMessageChanged(
                         sessionUserId,
@@ -15,7 +15,12 @@ import com.masonsoft.imsdk.core.RuntimeMode;
 import com.masonsoft.imsdk.core.observable.MessageObservable;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import io.github.idonans.core.Singleton;
 import io.github.idonans.core.util.IOUtil;
@@ -888,6 +893,192 @@ public class MessageDatabaseProvider {
         return false;
     }
 
+    /**
+     * 批量写入同一个会话的消息(在一个事务中完成): 按照 remote message id 判断消息在本地是否已经存在, 不存在的消息插入并设置 localId,
+     * 已经存在的消息回写 localId, 并且当 message type 或者 block id 发生变化时更新这两个字段(消息的其它内容以本地为准).
+     * 事务提交成功之后, 为新插入的消息发送 {@linkplain MessageObservable#notifyMessageCreated(long, int, long, long)},
+     * 为发生了更新的消息发送 {@linkplain MessageObservable#notifyMessageChanged(long, int, long, long)}.
+     *
+     * @return 新插入的消息. 写入失败时返回 null, 此时所有的改动都已回滚.
+     * @see Message#localId
+     */
+    @Nullable
+    public List<Message> upsertMessages(
+            final long sessionUserId,
+            final int conversationType,
+            final long targetUserId,
+            @NonNull final List<Message> messageList) {
+        IMConstants.ConversationType.check(conversationType);
+
+        final List<Message> insertedMessageList = new ArrayList<>();
+        if (messageList.isEmpty()) {
+            return insertedMessageList;
+        }
+
+        for (Message message : messageList) {
+            if (message == null || message.remoteMessageId.isUnset() || !message.localId.isUnset()) {
+                final Throwable e = new IllegalArgumentException("invalid message " + message);
+                IMLog.e(e);
+                RuntimeMode.fixme(e);
+                return null;
+            }
+        }
+
+        // 同一批消息中可能多次更新同一条消息, 只通知一次
+        final Set<Long> updatedLocalIdSet = new LinkedHashSet<>();
+        // 事务提交成功之后才回写 localId
+        final Map<Message, Long> localIdMap = new IdentityHashMap<>();
+        ContentValuesStatementCache statementCache = null;
+        SQLiteDatabase db = null;
+        boolean inTransaction = false;
+        try {
+            DatabaseHelper dbHelper = DatabaseProvider.getInstance().getDBHelper(sessionUserId);
+            final String tableName = dbHelper.createTableMessageIfNeed(conversationType, targetUserId);
+            db = dbHelper.getDBHelper().getWritableDatabase();
+            db.beginTransaction();
+            inTransaction = true;
+            statementCache = new ContentValuesStatementCache(db, tableName);
+
+            final Map<Long, Message> dbMessageMap = queryMessageWithRemoteMessageIdList(db, tableName, messageList);
+            final long now = System.currentTimeMillis();
+            for (Message message : messageList) {
+                final long remoteMessageId = message.remoteMessageId.get();
+                final Message dbMessage = dbMessageMap.get(remoteMessageId);
+                if (dbMessage == null) {
+                    // 设置 last modify
+                    message.localLastModifyMs.set(now);
+                    final long rowId = statementCache.executeInsert(message.toContentValues());
+                    if (rowId == -1) {
+                        throw new IllegalStateException("fail to insert message " + message);
+                    }
+                    localIdMap.put(message, rowId);
+                    insertedMessageList.add(message);
+
+                    // 同一批消息中可能有重复的消息
+                    final Message insertedMessage = new Message();
+                    insertedMessage.localId.set(rowId);
+                    insertedMessage.messageType.apply(message.messageType);
+                    insertedMessage.localBlockId.apply(message.localBlockId);
+                    dbMessageMap.put(remoteMessageId, insertedMessage);
+                } else {
+                    final long localId = dbMessage.localId.get();
+                    localIdMap.put(message, localId);
+
+                    final int messageType = message.messageType.getOrDefault(dbMessage.messageType.getOrDefault(0));
+                    final long blockId = message.localBlockId.getOrDefault(dbMessage.localBlockId.getOrDefault(0L));
+                    if (messageType == dbMessage.messageType.getOrDefault(0)
+                            && blockId == dbMessage.localBlockId.getOrDefault(0L)) {
+                        continue;
+                    }
+
+                    final ContentValues contentValuesUpdate = new ContentValues();
+                    contentValuesUpdate.put(DatabaseHelper.ColumnsMessage.C_MSG_TYPE, messageType);
+                    contentValuesUpdate.put(DatabaseHelper.ColumnsMessage.C_LOCAL_BLOCK_ID, blockId);
+                    // 设置 last modify
+                    contentValuesUpdate.put(DatabaseHelper.ColumnsMessage.C_LOCAL_LAST_MODIFY_MS, now);
+                    final int rowsAffected = statementCache.executeUpdate(
+                            contentValuesUpdate, DatabaseHelper.ColumnsMessage.C_LOCAL_ID, localId);
+                    if (rowsAffected != 1) {
+                        IMLog.e(new IllegalStateException("unexpected update message"),
+                                "update message with sessionUserId:%s, message localId:%s, conversationType:%s, targetUserId:%s affected %s rows",
+                                sessionUserId,
+                                localId,
+                                conversationType,
+                                targetUserId,
+                                rowsAffected
+                        );
+                    }
+                    dbMessage.messageType.set(messageType);
+                    dbMessage.localBlockId.set(blockId);
+                    updatedLocalIdSet.add(localId);
+                }
+            }
+
+            db.setTransactionSuccessful();
+        } catch (Throwable e) {
+            IMLog.e(e, "fail to upsert %s messages with sessionUserId:%s, conversationType:%s, targetUserId:%s",
+                    messageList.size(), sessionUserId, conversationType, targetUserId);
+            RuntimeMode.fixme(e);
+            return null;
+        } finally {
+            IOUtil.closeQuietly(statementCache);
+            if (inTransaction) {
+                db.endTransaction();
+            }
+        }
+
+        for (Map.Entry<Message, Long> entry : localIdMap.entrySet()) {
+            entry.getKey().localId.set(entry.getValue());
+        }
+        for (long localId : updatedLocalIdSet) {
+            MemoryFullCache.DEFAULT.removeFullCache(sessionUserId, conversationType, targetUserId, localId);
+        }
+
+        IMLog.v("upsertMessages with sessionUserId:%s, conversationType:%s, targetUserId:%s, size:%s, inserted:%s, updated:%s",
+                sessionUserId, conversationType, targetUserId, messageList.size(), insertedMessageList.size(), updatedLocalIdSet.size());
+        for (Message message : insertedMessageList) {
+            MessageObservable.DEFAULT.notifyMessageCreated(sessionUserId, conversationType, targetUserId, message.localId.get());
+        }
+        for (long localId : updatedLocalIdSet) {
+            MessageObservable.DEFAULT.notifyMessageChanged(sessionUserId, conversationType, targetUserId, localId);
+        }
+        return insertedMessageList;
+    }
+
+    /**
+     * 按照 remote message id 批量查询已经存在的消息(只包含 localId, message type 与 block id)
+     */
+    @NonNull
+    private Map<Long, Message> queryMessageWithRemoteMessageIdList(
+            @NonNull SQLiteDatabase db,
+            @NonNull String tableName,
+            @NonNull List<Message> messageList) {
+        final String[] queryColumns = new String[]{
+                DatabaseHelper.ColumnsMessage.C_LOCAL_ID,
+                DatabaseHelper.ColumnsMessage.C_REMOTE_MSG_ID,
+                DatabaseHelper.ColumnsMessage.C_MSG_TYPE,
+                DatabaseHelper.ColumnsMessage.C_LOCAL_BLOCK_ID
+        };
+        final Map<Long, Message> dbMessageMap = new HashMap<>();
+        // 避免超过 sqlite 的参数数量限制
+        final int maxArgsCount = 500;
+        for (int start = 0; start < messageList.size(); start += maxArgsCount) {
+            final int end = Math.min(start + maxArgsCount, messageList.size());
+            final StringBuilder selection = new StringBuilder();
+            final String[] selectionArgs = new String[end - start];
+            selection.append(" " + DatabaseHelper.ColumnsMessage.C_REMOTE_MSG_ID + " in (");
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+                selectionArgs[i - start] = String.valueOf(messageList.get(i).remoteMessageId.get());
+            }
+            selection.append(") ");
+
+            Cursor cursor = null;
+            try {
+                cursor = db.query(
+                        tableName,
+                        queryColumns,
+                        selection.toString(),
+                        selectionArgs,
+                        null,
+                        null,
+                        null
+                );
+                while (cursor.moveToNext()) {
+                    final Message item = new Message();
+                    item.localId.set(cursor.getLong(0));
+                    item.remoteMessageId.set(cursor.getLong(1));
+                    item.messageType.set(cursor.getInt(2));
+                    item.localBlockId.set(cursor.getLong(3));
+                    dbMessageMap.put(item.remoteMessageId.get(), item);
+                }
+            } finally {
+                IOUtil.closeQuietly(cursor);
+            }
+        }
+        return dbMessageMap;
+    }
+
     /**
      * 更新 block id
      */
@@ -3,23 +3,65 @@ package com.masonsoft.imsdk.core.message;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.google.protobuf.MessageLite;
 import com.masonsoft.imsdk.core.ProtoByteMessage;
 import com.masonsoft.imsdk.util.Objects;
 
 /**
+ * 延迟解析的 ProtoByteMessage. 消息类型与 sign 可以在不解析完整消息的情况下读取，
+ * 完整的解析在第一次调用 {@linkplain #getProtoMessageObject()} 时执行，并缓存解析结果.
+ *
  * @since 1.0
  */
 public class ProtoByteMessageWrapper {
 
+    private static final long SIGN_UNSET = Long.MIN_VALUE;
+
     @NonNull
     private final ProtoByteMessage mOrigin;
 
+    /**
+     * 是否已经完整解析. 解析失败时 mProtoMessageObject 为 null.
+     */
+    private volatile boolean mDecoded;
+    @Nullable
+    private Object mProtoMessageObject;
+
+    private volatile long mSign = SIGN_UNSET;
+
+    /**
+     * 以流的方式解析时 repeated 字段对应的流, 此时 mProtoMessageObject 为不包含该 repeated 字段的消息头.
+     */
     @Nullable
-    private final Object mProtoMessageObject;
+    private final ProtoRepeatedFieldStream<?> mRepeatedFieldStream;
 
+    /**
+     * 延迟解析 origin
+     */
     public ProtoByteMessageWrapper(@NonNull ProtoByteMessage origin) {
         mOrigin = origin;
-        mProtoMessageObject = ProtoByteMessage.Type.decode(origin);
+        mRepeatedFieldStream = null;
+    }
+
+    /**
+     * @param protoMessageObject 已经解析好的 origin 对应的实体对象
+     */
+    public ProtoByteMessageWrapper(@NonNull ProtoByteMessage origin, @Nullable Object protoMessageObject) {
+        mOrigin = origin;
+        mProtoMessageObject = protoMessageObject;
+        mDecoded = true;
+        mRepeatedFieldStream = null;
+    }
+
+    /**
+     * @param repeatedFieldStream 以流的方式解析的 origin, 实体对象为该流的消息头
+     * @see ProtoRepeatedFieldStream#getHeader()
+     */
+    public ProtoByteMessageWrapper(@NonNull ProtoByteMessage origin, @NonNull ProtoRepeatedFieldStream<?> repeatedFieldStream) {
+        mOrigin = origin;
+        mProtoMessageObject = repeatedFieldStream.getHeader();
+        mDecoded = true;
+        mRepeatedFieldStream = repeatedFieldStream;
     }
 
     @NonNull
@@ -27,17 +69,90 @@ public class ProtoByteMessageWrapper {
         return mOrigin;
     }
 
+    /**
+     * 消息类型，不需要解析消息
+     *
+     * @see ProtoByteMessage.Type
+     */
+    public int getType() {
+        return mOrigin.getType();
+    }
+
+    /**
+     * 消息类型对应的 ProtoMessage 实体类型，不需要解析消息. 如果消息类型未知，返回 null.
+     */
+    @Nullable
+    public Class<? extends MessageLite> getProtoClass() {
+        return ProtoByteMessage.Type.getProtoClass(mOrigin.getType());
+    }
+
+    /**
+     * 消息中的 sign. 如果消息类型没有 sign 字段，返回 0. 在完整解析之前只读取 sign 字段.
+     *
+     * @see ProtoByteMessage.Type#peekSign(ProtoByteMessage)
+     */
+    public long getSign() {
+        long sign = mSign;
+        if (sign == SIGN_UNSET) {
+            sign = ProtoByteMessage.Type.peekSign(mOrigin);
+            mSign = sign;
+        }
+        return sign;
+    }
+
+    /**
+     * 判断消息类型对应的实体类型是否是 protoClass, 不需要解析消息
+     */
+    public boolean isProtoClass(@NonNull Class<?> protoClass) {
+        return getProtoClass() == protoClass;
+    }
+
     @Nullable
     public Object getProtoMessageObject() {
+        if (!mDecoded) {
+            synchronized (this) {
+                if (!mDecoded) {
+                    mProtoMessageObject = ProtoByteMessage.Type.decode(mOrigin);
+                    mDecoded = true;
+                }
+            }
+        }
         return mProtoMessageObject;
     }
 
+    /**
+     * 如果消息内容直接引用网络层的 ByteBuf 并且还没有完整解析，复制一份消息内容，
+     * 使得在 ByteBuf 释放之后仍然可以读取 sign 或者延迟解析.
+     */
+    public void detachFromNetworkBuffer() {
+        getSign();
+        if (!mDecoded) {
+            mOrigin.getData();
+        }
+    }
+
+    /**
+     * 如果 origin 是以流的方式解析的，并且 repeated 字段的元素类型与 elementClass 一致，返回对应的流. 否则返回 null,
+     * 此时 repeated 字段的内容已经完整地解析在 {@linkplain #getProtoMessageObject()} 中.
+     */
+    @Nullable
+    public <E extends MessageLite> ProtoRepeatedFieldStream<E> getRepeatedFieldStream(@NonNull Class<E> elementClass) {
+        if (mRepeatedFieldStream == null) {
+            return null;
+        }
+        return mRepeatedFieldStream.cast(elementClass);
+    }
+
     @NonNull
     public String toShortString() {
         final StringBuilder builder = new StringBuilder();
         builder.append(Objects.defaultObjectTag(this));
         builder.append(" mOrigin:").append(this.mOrigin);
+        builder.append(" mDecoded:").append(this.mDecoded);
         builder.append(" mProtoMessageObject:").append(Objects.defaultObjectTag(this.mProtoMessageObject));
+        if (this.mRepeatedFieldStream != null) {
+            builder.append(" mRepeatedFieldStream:").append(this.mRepeatedFieldStream.toShortString());
+        }
         return builder.toString();
     }
 
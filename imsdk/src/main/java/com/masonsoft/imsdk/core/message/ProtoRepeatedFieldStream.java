@@ -0,0 +1,304 @@
+package com.masonsoft.imsdk.core.message;
+
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import com.google.protobuf.WireFormat;
+import com.masonsoft.imsdk.core.IMLog;
+import com.masonsoft.imsdk.core.ProtoByteMessage;
+import com.masonsoft.imsdk.core.proto.ProtoMessage;
+import com.masonsoft.imsdk.util.Objects;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 以流的方式解析大消息中的 repeated 字段(如 ChatRBatch 的 msgs, ChatList 的 chat_items).
+ * 解析时只构建不包含该 repeated 字段的消息头(header), repeated 字段中的元素在消费时按批读取，
+ * 内存占用与批大小相关，而不是与整个消息的大小相关.
+ *
+ * @since 1.0
+ */
+public class ProtoRepeatedFieldStream<E extends MessageLite> {
+
+    /**
+     * 消费 repeated 字段时默认的批大小
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 50;
+
+    /**
+     * 消息内容的长度超过此值时才使用流的方式解析，较小的消息直接完整解析.
+     */
+    public static final int STREAMING_DATA_LENGTH_THRESHOLD = 64 * 1024;
+
+    private static final class Entry {
+        private final int mFieldNumber;
+        @NonNull
+        private final Parser<? extends MessageLite> mHeaderParser;
+        @NonNull
+        private final Class<? extends MessageLite> mElementClass;
+        @NonNull
+        private final Parser<? extends MessageLite> mElementParser;
+
+        private Entry(int fieldNumber,
+                      @NonNull Parser<? extends MessageLite> headerParser,
+                      @NonNull Class<? extends MessageLite> elementClass,
+                      @NonNull Parser<? extends MessageLite> elementParser) {
+            mFieldNumber = fieldNumber;
+            mHeaderParser = headerParser;
+            mElementClass = elementClass;
+            mElementParser = elementParser;
+        }
+    }
+
+    private static final SparseArray<Entry> STREAMING_TABLE = new SparseArray<>();
+
+    static {
+        register(
+                ProtoByteMessage.Type.CHAT_R_BATCH,
+                ProtoMessage.ChatRBatch.parser(),
+                ProtoMessage.ChatRBatch.MSGS_FIELD_NUMBER,
+                ProtoMessage.ChatR.class,
+                ProtoMessage.ChatR.parser());
+        register(
+                ProtoByteMessage.Type.CHAT_LIST,
+                ProtoMessage.ChatList.parser(),
+                ProtoMessage.ChatList.CHAT_ITEMS_FIELD_NUMBER,
+                ProtoMessage.ChatItem.class,
+                ProtoMessage.ChatItem.parser());
+    }
+
+    private static <H extends MessageLite, T extends MessageLite> void register(
+            int type,
+            @NonNull Parser<H> headerParser,
+            int fieldNumber,
+            @NonNull Class<T> elementClass,
+            @NonNull Parser<T> elementParser) {
+        STREAMING_TABLE.put(type, new Entry(fieldNumber, headerParser, elementClass, elementParser));
+    }
+
+    /**
+     * 如果 protoByteMessage 的类型支持流式解析并且内容足够大，则只解析消息头并返回对应的流，否则返回 null
+     * (此时应当按照 {@linkplain ProtoByteMessage.Type#decode(ProtoByteMessage)} 完整解析).
+     * 返回的流持有消息内容的 byte[] 副本，可以在 protoByteMessage 释放之后继续使用.
+     */
+    @Nullable
+    public static ProtoRepeatedFieldStream<?> decode(@NonNull ProtoByteMessage protoByteMessage) {
+        final Entry entry = STREAMING_TABLE.get(protoByteMessage.getType());
+        if (entry == null) {
+            return null;
+        }
+        if (protoByteMessage.getDataLength() < STREAMING_DATA_LENGTH_THRESHOLD) {
+            return null;
+        }
+
+        try {
+            //noinspection unchecked
+            return new ProtoRepeatedFieldStream<>(
+                    protoByteMessage.getData(),
+                    entry.mFieldNumber,
+                    entry.mHeaderParser,
+                    (Class<MessageLite>) entry.mElementClass,
+                    (Parser<MessageLite>) entry.mElementParser);
+        } catch (Throwable e) {
+            IMLog.e(e, "fail to decode protoByteMessage as stream:%s", protoByteMessage.toString());
+            return null;
+        }
+    }
+
+    @NonNull
+    private final byte[] mData;
+    private final int mFieldNumber;
+    @NonNull
+    private final Class<E> mElementClass;
+    @NonNull
+    private final Parser<E> mElementParser;
+    /**
+     * 不包含 repeated 字段的消息头
+     */
+    @NonNull
+    private final MessageLite mHeader;
+
+    private ProtoRepeatedFieldStream(
+            @NonNull byte[] data,
+            int fieldNumber,
+            @NonNull Parser<? extends MessageLite> headerParser,
+            @NonNull Class<E> elementClass,
+            @NonNull Parser<E> elementParser) throws IOException {
+        mData = data;
+        mFieldNumber = fieldNumber;
+        mElementClass = elementClass;
+        mElementParser = elementParser;
+        mHeader = headerParser.parseFrom(copyHeader());
+    }
+
+    /**
+     * 复制除 repeated 字段之外的所有字段
+     */
+    @NonNull
+    private byte[] copyHeader() throws IOException {
+        final ByteArrayOutputStream headerData = new ByteArrayOutputStream();
+        final CodedOutputStream output = CodedOutputStream.newInstance(headerData);
+        final CodedInputStream input = CodedInputStream.newInstance(mData);
+        while (true) {
+            final int tag = input.readTag();
+            if (tag == 0) {
+                break;
+            }
+            if (isElementTag(tag)) {
+                input.skipField(tag);
+            } else {
+                input.skipField(tag, output);
+            }
+        }
+        output.flush();
+        return headerData.toByteArray();
+    }
+
+    private boolean isElementTag(int tag) {
+        return WireFormat.getTagFieldNumber(tag) == mFieldNumber
+                && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    }
+
+    /**
+     * 不包含 repeated 字段的消息头, 如 sign, update_time 等字段都可以从消息头中读取.
+     */
+    @NonNull
+    public MessageLite getHeader() {
+        return mHeader;
+    }
+
+    @NonNull
+    public Class<E> getElementClass() {
+        return mElementClass;
+    }
+
+    /**
+     * 如果元素类型与 elementClass 一致，返回当前流，否则返回 null.
+     */
+    @Nullable
+    public <T extends MessageLite> ProtoRepeatedFieldStream<T> cast(@NonNull Class<T> elementClass) {
+        if (mElementClass == elementClass) {
+            //noinspection unchecked
+            return (ProtoRepeatedFieldStream<T>) this;
+        }
+        return null;
+    }
+
+    /**
+     * 统计 repeated 字段中元素的个数(跳过元素内容，不会解析元素)
+     */
+    public int countElements() throws IOException {
+        int count = 0;
+        final CodedInputStream input = CodedInputStream.newInstance(mData);
+        while (true) {
+            final int tag = input.readTag();
+            if (tag == 0) {
+                break;
+            }
+            if (isElementTag(tag)) {
+                count++;
+            }
+            input.skipField(tag);
+        }
+        return count;
+    }
+
+    /**
+     * 读取 repeated 字段中指定位置的元素(跳过之前的元素，不会解析). 如果 index 越界，返回 null.
+     */
+    @Nullable
+    public E readElement(int index) throws IOException {
+        int current = 0;
+        final CodedInputStream input = CodedInputStream.newInstance(mData);
+        while (true) {
+            final int tag = input.readTag();
+            if (tag == 0) {
+                return null;
+            }
+            if (isElementTag(tag)) {
+                if (current == index) {
+                    return input.readMessage(mElementParser, ExtensionRegistryLite.getEmptyRegistry());
+                }
+                current++;
+            }
+            input.skipField(tag);
+        }
+    }
+
+    /**
+     * 按批读取 repeated 字段中的元素, 每一批最多 chunkSize 个.
+     */
+    @NonNull
+    public ChunkReader<E> newChunkReader(int chunkSize) {
+        final CodedInputStream input = CodedInputStream.newInstance(mData);
+        return () -> {
+            final List<E> chunk = new ArrayList<>(chunkSize);
+            while (chunk.size() < chunkSize) {
+                final int tag = input.readTag();
+                if (tag == 0) {
+                    break;
+                }
+                if (isElementTag(tag)) {
+                    chunk.add(input.readMessage(mElementParser, ExtensionRegistryLite.getEmptyRegistry()));
+                } else {
+                    input.skipField(tag);
+                }
+            }
+            return chunk.isEmpty() ? null : chunk;
+        };
+    }
+
+    /**
+     * 将已经完整解析的 list 按批读取. 用于与流式解析的结果统一处理.
+     */
+    @NonNull
+    public static <T> ChunkReader<T> newChunkReader(@Nullable List<T> list, int chunkSize) {
+        final List<T> all = list != null ? list : Collections.emptyList();
+        final int[] offset = new int[1];
+        return () -> {
+            final int from = offset[0];
+            if (from >= all.size()) {
+                return null;
+            }
+            final int to = Math.min(all.size(), from + chunkSize);
+            offset[0] = to;
+            return all.subList(from, to);
+        };
+    }
+
+    public interface ChunkReader<T> {
+        /**
+         * 读取下一批元素，没有更多的元素时返回 null.
+         */
+        @Nullable
+        List<T> nextChunk() throws IOException;
+    }
+
+    @NonNull
+    public String toShortString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(Objects.defaultObjectTag(this));
+        builder.append(" data length:").append(this.mData.length);
+        builder.append(" field number:").append(this.mFieldNumber);
+        builder.append(" element class:").append(this.mElementClass.getSimpleName());
+        return builder.toString();
+    }
+
+    @Override
+    @NonNull
+    public String toString() {
+        return toShortString();
+    }
+
+}
@@ -10,6 +10,7 @@ import com.masonsoft.imsdk.core.RuntimeMode;
 import com.masonsoft.imsdk.core.SignGenerator;
 import com.masonsoft.imsdk.core.message.SessionProtoByteMessageWrapper;
 import com.masonsoft.imsdk.core.observable.MessagePacketStateObservable;
+import com.masonsoft.imsdk.core.session.SessionTcpClient;
 import com.masonsoft.imsdk.lang.Processor;
 import com.masonsoft.imsdk.util.Objects;
 
@@ -72,6 +73,12 @@ public abstract class MessagePacket implements Processor<SessionProtoByteMessage
     @SendState
     private int mState = STATE_IDLE;
 
+    /**
+     * 发送该消息包的长连接. 等待响应结果时按照 (长连接, sign) 注册，只接受同一个长连接上收到的响应
+     */
+    @Nullable
+    private SessionTcpClient mSessionTcpClient;
+
     private final MessagePacketStateObservable mMessagePacketStateObservable = new MessagePacketStateObservable();
 
     private int mErrorCode;
@@ -117,6 +124,22 @@ public abstract class MessagePacket implements Processor<SessionProtoByteMessage
         }
     }
 
+    /**
+     * 在发送之前(进入 {@linkplain #STATE_GOING} 之前)设置发送该消息包的长连接
+     */
+    public void setSessionTcpClient(@NonNull SessionTcpClient sessionTcpClient) {
+        synchronized (mStateLock) {
+            mSessionTcpClient = sessionTcpClient;
+        }
+    }
+
+    @Nullable
+    public SessionTcpClient getSessionTcpClient() {
+        synchronized (mStateLock) {
+            return mSessionTcpClient;
+        }
+    }
+
     /**
      * 判断当前数据包是否已经结束(数据包状态为成功或者失败)
      */
@@ -192,7 +215,11 @@ public abstract class MessagePacket implements Processor<SessionProtoByteMessage
         return mErrorMessage;
     }
 
-    protected final Object getStateLock() {
+    /**
+     * 状态锁. 需要原子地检查并修改状态时使用.
+     */
+    @NonNull
+    public final Object getStateLock() {
         return mStateLock;
     }
 
@@ -207,11 +234,25 @@ public abstract class MessagePacket implements Processor<SessionProtoByteMessage
             if (mState != state) {
                 final int oldState = mState;
                 mState = state;
+                if (isSignIndexed()) {
+                    if (state == STATE_WAIT_RESULT) {
+                        PendingMessagePacketRegistry.getInstance().register(this);
+                    } else if (state == STATE_SUCCESS || state == STATE_FAIL) {
+                        PendingMessagePacketRegistry.getInstance().unregister(this);
+                    }
+                }
                 this.onStateChanged(oldState, mState);
             }
         }
     }
 
+    /**
+     * 等待响应结果时是否按照 sign 注册到 {@linkplain PendingMessagePacketRegistry}. sign 不唯一的消息包需要返回 false.
+     */
+    protected boolean isSignIndexed() {
+        return true;
+    }
+
     /**
      * 消息包发送状态发生了迁移
      *
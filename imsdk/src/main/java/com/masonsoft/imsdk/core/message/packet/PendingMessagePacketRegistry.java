@@ -0,0 +1,111 @@
+package com.masonsoft.imsdk.core.message.packet;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.masonsoft.imsdk.core.DebugManager;
+import com.masonsoft.imsdk.core.IMLog;
+import com.masonsoft.imsdk.core.session.SessionTcpClient;
+import com.masonsoft.imsdk.util.Objects;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.github.idonans.core.Singleton;
+
+/**
+ * 所有等待响应结果的消息包, 按照 (发送消息包的长连接, sign) 索引. 消息包进入 {@linkplain MessagePacket#STATE_WAIT_RESULT} 时自动注册，
+ * 结束(成功或者失败)时自动移除. 收到带有 sign 的响应时通过一次查找即可找到同一个长连接上对应的消息包,
+ * 旧的长连接(或者旧的登录信息)上迟到的响应不会匹配到新的长连接上的消息包.
+ *
+ * @since 1.0
+ */
+public class PendingMessagePacketRegistry implements DebugManager.DebugInfoProvider {
+
+    private static final Singleton<PendingMessagePacketRegistry> INSTANCE = new Singleton<PendingMessagePacketRegistry>() {
+        @Override
+        protected PendingMessagePacketRegistry create() {
+            return new PendingMessagePacketRegistry();
+        }
+    };
+
+    public static PendingMessagePacketRegistry getInstance() {
+        return INSTANCE.get();
+    }
+
+    private final ConcurrentHashMap<Key, MessagePacket> mPendingMessagePackets = new ConcurrentHashMap<>();
+
+    private PendingMessagePacketRegistry() {
+        DebugManager.getInstance().addDebugInfoProvider(this);
+    }
+
+    void register(@NonNull MessagePacket messagePacket) {
+        final SessionTcpClient sessionTcpClient = messagePacket.getSessionTcpClient();
+        final long sign = messagePacket.getSign();
+        if (sessionTcpClient == null) {
+            IMLog.e(new IllegalStateException("unexpected message packet without session tcp client"),
+                    "sign:%s, messagePacket:%s", sign, messagePacket);
+            return;
+        }
+        final MessagePacket oldMessagePacket = mPendingMessagePackets.put(new Key(sessionTcpClient, sign), messagePacket);
+        if (oldMessagePacket != null && oldMessagePacket != messagePacket) {
+            IMLog.e(new IllegalStateException("unexpected sign already registered"),
+                    "sign:%s, old:%s, new:%s", sign, oldMessagePacket, messagePacket);
+        }
+    }
+
+    void unregister(@NonNull MessagePacket messagePacket) {
+        final SessionTcpClient sessionTcpClient = messagePacket.getSessionTcpClient();
+        if (sessionTcpClient != null) {
+            mPendingMessagePackets.remove(new Key(sessionTcpClient, messagePacket.getSign()), messagePacket);
+        }
+    }
+
+    /**
+     * 获取在 sessionTcpClient 上发送的 sign 对应的等待响应结果的消息包. 如果没有找到，返回 null.
+     */
+    @Nullable
+    public MessagePacket getPendingMessagePacket(@NonNull SessionTcpClient sessionTcpClient, long sign) {
+        return mPendingMessagePackets.get(new Key(sessionTcpClient, sign));
+    }
+
+    public int getPendingCount() {
+        return mPendingMessagePackets.size();
+    }
+
+    @Override
+    public void fetchDebugInfo(@NonNull StringBuilder builder) {
+        final String tag = Objects.defaultObjectTag(this);
+        builder.append(tag).append(" --:\n");
+        builder.append("mPendingMessagePackets size:").append(mPendingMessagePackets.size()).append("\n");
+        builder.append(tag).append(" -- end\n");
+    }
+
+    private static final class Key {
+        @NonNull
+        private final SessionTcpClient mSessionTcpClient;
+        private final long mSign;
+
+        private Key(@NonNull SessionTcpClient sessionTcpClient, long sign) {
+            mSessionTcpClient = sessionTcpClient;
+            mSign = sign;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return mSessionTcpClient == key.mSessionTcpClient && mSign == key.mSign;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(mSessionTcpClient) + (int) (mSign ^ (mSign >>> 32));
+        }
+    }
+
+}
@@ -4,6 +4,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.masonsoft.imsdk.core.ProtoByteMessage;
+import com.masonsoft.imsdk.core.message.ProtoByteMessageWrapper;
 import com.masonsoft.imsdk.core.message.SessionProtoByteMessageWrapper;
 import com.masonsoft.imsdk.core.proto.ProtoMessage;
 
@@ -23,15 +24,23 @@ public class ResultIgnoreMessagePacket extends MessagePacket {
         super(protoByteMessage, SIGN_IGNORE);
     }
 
+    /**
+     * 所有的 ResultIgnoreMessagePacket 使用相同的 sign, 不需要等待响应结果
+     */
+    @Override
+    protected boolean isSignIndexed() {
+        return false;
+    }
+
     @Override
     public boolean doProcess(@Nullable SessionProtoByteMessageWrapper target) {
         if (target == null) {
             return false;
         }
 
-        final Object protoMessageObject = target.getProtoByteMessageWrapper().getProtoMessageObject();
-        if (protoMessageObject instanceof ProtoMessage.Result) {
-            return ((ProtoMessage.Result) protoMessageObject).getSign() == SIGN_IGNORE;
+        final ProtoByteMessageWrapper protoByteMessageWrapper = target.getProtoByteMessageWrapper();
+        if (protoByteMessageWrapper.isProtoClass(ProtoMessage.Result.class)) {
+            return protoByteMessageWrapper.getSign() == SIGN_IGNORE;
         }
 
         return false;
@@ -5,6 +5,7 @@ import androidx.annotation.NonNull;
 import com.masonsoft.imsdk.core.IMLog;
 import com.masonsoft.imsdk.core.ProtoByteMessage;
 import com.masonsoft.imsdk.core.SignGenerator;
+import com.masonsoft.imsdk.core.message.ProtoByteMessageWrapper;
 import com.masonsoft.imsdk.core.message.SessionProtoByteMessageWrapper;
 import com.masonsoft.imsdk.core.proto.ProtoMessage;
 import com.masonsoft.imsdk.util.Objects;
@@ -36,7 +37,14 @@ public class SignInMessagePacket extends NotNullTimeoutMessagePacket {
     protected boolean doNotNullProcess(@NonNull SessionProtoByteMessageWrapper target) {
         Preconditions.checkArgument(!Threads.isUi());
 
-        final Object protoMessageObject = target.getProtoByteMessageWrapper().getProtoMessageObject();
+        // 只处理与当前 sign 相同的 Result, 其它消息不需要解析
+        final ProtoByteMessageWrapper protoByteMessageWrapper = target.getProtoByteMessageWrapper();
+        if (!protoByteMessageWrapper.isProtoClass(ProtoMessage.Result.class)
+                || protoByteMessageWrapper.getSign() != getSign()) {
+            return false;
+        }
+
+        final Object protoMessageObject = protoByteMessageWrapper.getProtoMessageObject();
         if (protoMessageObject == null) {
             return false;
         }
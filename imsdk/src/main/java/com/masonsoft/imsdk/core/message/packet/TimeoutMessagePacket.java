@@ -1,8 +1,10 @@
 package com.masonsoft.imsdk.core.message.packet;
 
+import androidx.annotation.Nullable;
+
 import com.masonsoft.imsdk.core.IMLog;
 import com.masonsoft.imsdk.core.ProtoByteMessage;
-import com.masonsoft.imsdk.core.observable.ClockObservable;
+import com.masonsoft.imsdk.core.TimingWheel;
 
 /**
  * 能够计算超时的消息发送包
@@ -37,6 +39,25 @@ public abstract class TimeoutMessagePacket extends MessagePacket {
      */
     private boolean mTimeoutTriggered;
 
+    /**
+     * 消息已经提交到长连接的写缓冲区，但是还没有实际写入到 TCP 链接. 此时不计算超时.
+     *
+     * @see #onWriteStart()
+     * @see #onWriteFlushed(boolean)
+     */
+    private boolean mWaitFlush;
+    /**
+     * 消息提交到长连接写缓冲区的时间，毫秒
+     */
+    private long mWriteStartTimeMs;
+    /**
+     * 消息写入 TCP 链接失败
+     *
+     * @see #onWriteFlushed(boolean)
+     * @see #dispatchWriteFail()
+     */
+    private boolean mWriteFail;
+
     public TimeoutMessagePacket(ProtoByteMessage protoByteMessage) {
         super(protoByteMessage);
     }
@@ -49,6 +70,58 @@ public abstract class TimeoutMessagePacket extends MessagePacket {
         return mSendTimeMs;
     }
 
+    /**
+     * 消息即将提交到长连接的写缓冲区，超时计时推迟到 {@linkplain #onWriteFlushed(boolean)} 时开始.
+     */
+    public void onWriteStart() {
+        synchronized (getStateLock()) {
+            mWaitFlush = true;
+            mWriteStartTimeMs = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 消息已经实际写入到 TCP 链接(或者写入失败), 在 I/O 线程上执行. 写入成功时开始计算超时，写入失败时只记录结果，
+     * 不在 I/O 线程上变更状态(状态变更会通知观察者，观察者中可能有数据库读写), 需要随后在工作线程上调用 {@linkplain #dispatchWriteFail()}.
+     *
+     * @return 写入失败并且需要调用 {@linkplain #dispatchWriteFail()} 时返回 true.
+     */
+    public boolean onWriteFlushed(boolean success) {
+        synchronized (getStateLock()) {
+            if (!mWaitFlush) {
+                return false;
+            }
+            mWaitFlush = false;
+            if (success) {
+                // 此时记录一个时间，用来计算超时。
+                mSendTimeMs = System.currentTimeMillis();
+                // 按照实际写入的时间重新计算超时
+                scheduleTimeout();
+                return false;
+            }
+            mWriteFail = true;
+            return true;
+        }
+    }
+
+    /**
+     * 如果消息写入失败，将状态置为发送失败. 不要在 I/O 线程上调用.
+     *
+     * @see #onWriteFlushed(boolean)
+     */
+    public void dispatchWriteFail() {
+        synchronized (getStateLock()) {
+            if (!mWriteFail) {
+                return;
+            }
+            final int state = getState();
+            if (state == STATE_GOING || state == STATE_WAIT_RESULT) {
+                IMLog.e("TimeoutMessagePacket[" + getSign() + "] write fail");
+                moveToState(STATE_FAIL);
+            }
+        }
+    }
+
     public void setTimeoutMs(long timeoutMs) {
         mTimeoutMs = timeoutMs;
     }
@@ -61,31 +134,58 @@ public abstract class TimeoutMessagePacket extends MessagePacket {
         return mTimeoutTriggered;
     }
 
-    // timeout 计时器监听
-    private final ClockObservable.ClockObserver mClockObserver = this::validateTimeout;
+    /**
+     * 超时检查的定时任务, 在 {@linkplain #getStateLock()} 中读写
+     */
+    @Nullable
+    private TimingWheel.Timeout mTimeout;
 
     @Override
     protected void onStateChanged(int oldState, int newState) {
         super.onStateChanged(oldState, newState);
 
         if (newState == STATE_WAIT_RESULT) {
-            // 消息已经从长连接上发送出去，等待服务器响应。此时记录一个时间，用来计算超时。
-            mSendTimeMs = System.currentTimeMillis();
+            // 消息已经从长连接上发送出去，等待服务器响应。
+            if (!mWaitFlush && mSendTimeMs <= 0) {
+                // 没有跟踪实际写入时间时，此时记录一个时间，用来计算超时。
+                mSendTimeMs = System.currentTimeMillis();
+            }
 
-            // 添加 timeout 计时器监听
-            registerClockObserver();
+            // 在时间轮上添加超时检查
+            scheduleTimeout();
+        } else if (newState == STATE_SUCCESS || newState == STATE_FAIL) {
+            // 已经结束，移除超时检查
+            cancelTimeout();
         }
     }
 
-    private void registerClockObserver() {
-        synchronized (mClockObserver) {
-            ClockObservable.DEFAULT.registerObserver(mClockObserver);
+    /**
+     * 按照当前的超时截止时间(重新)添加超时检查. 仅在处于 STATE_WAIT_RESULT 状态时有效.
+     */
+    private void scheduleTimeout() {
+        synchronized (getStateLock()) {
+            cancelTimeout();
+            if (getState() != STATE_WAIT_RESULT) {
+                return;
+            }
+
+            final long deadlineMs;
+            if (mWaitFlush) {
+                // 消息还在写缓冲区中，等待写入的时间上限
+                deadlineMs = mWriteStartTimeMs + mTimeoutMs * 2;
+            } else {
+                deadlineMs = mSendTimeMs + mTimeoutMs;
+            }
+            mTimeout = TimingWheel.getInstance().schedule(this::validateTimeout, deadlineMs - System.currentTimeMillis());
         }
     }
 
-    private void unregisterClockObserver() {
-        synchronized (mClockObserver) {
-            ClockObservable.DEFAULT.unregisterObserver(mClockObserver);
+    private void cancelTimeout() {
+        synchronized (getStateLock()) {
+            if (mTimeout != null) {
+                mTimeout.cancel();
+                mTimeout = null;
+            }
         }
     }
 
@@ -97,21 +197,35 @@ public abstract class TimeoutMessagePacket extends MessagePacket {
     }
 
     /**
-     * 验证消息是否超时，如果超时，则将状态置为发送失败
+     * 验证消息是否超时，如果超时，则将状态置为发送失败. 如果还没有超时(时钟误差或者超时时间被修改), 重新添加超时检查.
      */
     private void validateTimeout() {
         synchronized (getStateLock()) {
             if (getState() == STATE_WAIT_RESULT) {
                 // 仅在处于 STATE_WAIT_RESULT 状态时才检查 timeout
+                if (mWriteFail) {
+                    // 写入失败，等待 dispatchWriteFail 将状态置为发送失败
+                    return;
+                }
+                if (mWaitFlush) {
+                    // 消息还在写缓冲区中，不计算超时. 但是等待写入的时间也有上限.
+                    if (System.currentTimeMillis() - mWriteStartTimeMs > mTimeoutMs * 2) {
+                        IMLog.e("TimeoutMessagePacket[" + getSign() + "] wait flush timeout");
+                        mTimeoutTriggered = true;
+                        moveToState(STATE_FAIL);
+                    } else {
+                        scheduleTimeout();
+                    }
+                    return;
+                }
                 final long diff = System.currentTimeMillis() - mSendTimeMs;
                 if (diff > mTimeoutMs) {
                     // 已经超时，设置状态为发送失败
                     IMLog.e("TimeoutMessagePacket[" + getSign() + "] timeout");
                     mTimeoutTriggered = true;
                     moveToState(STATE_FAIL);
-
-                    // 移除 timeout 计时器监听
-                    unregisterClockObserver();
+                } else {
+                    scheduleTimeout();
                 }
             }
         }
@@ -1,7 +1,12 @@
 package com.masonsoft.imsdk.core.observable;
 
+import androidx.annotation.NonNull;
+
+import com.masonsoft.imsdk.core.db.Conversation;
 import com.masonsoft.imsdk.util.WeakObservable;
 
+import java.util.List;
+
 /**
  * @see com.masonsoft.imsdk.core.db.ConversationDatabaseProvider
  */
@@ -19,6 +24,12 @@ public class ConversationObservable extends WeakObservable<ConversationObservabl
                                    final long conversationId,
                                    final int conversationType,
                                    final long targetUserId);
+
+        /**
+         * 批量写入了多个会话(新增或者更新). 每一个会话都已经设置了 localId, localConversationType 与 targetUserId, 观察者不能修改.
+         */
+        void onMultiConversationChanged(final long sessionUserId,
+                                        @NonNull final List<Conversation> conversationList);
     }
 
     public void notifyConversationChanged(final long sessionUserId,
@@ -45,4 +56,12 @@ public class ConversationObservable extends WeakObservable<ConversationObservabl
         );
     }
 
+    public void notifyMultiConversationChanged(final long sessionUserId,
+                                               @NonNull final List<Conversation> conversationList) {
+        forEach(conversationObserver -> conversationObserver.onMultiConversationChanged(
+                sessionUserId,
+                conversationList)
+        );
+    }
+
 }
@@ -0,0 +1,25 @@
+package com.masonsoft.imsdk.core.observable;
+
+import androidx.annotation.NonNull;
+
+import com.masonsoft.imsdk.core.SendLatencyTracker;
+import com.masonsoft.imsdk.util.WeakObservable;
+
+/**
+ * 单个消息发送结束(收到服务器响应)之后的各个阶段耗时
+ *
+ * @see SendLatencyTracker
+ */
+public class SendLatencyObservable extends WeakObservable<SendLatencyObservable.SendLatencyObserver> {
+
+    public static final SendLatencyObservable DEFAULT = new SendLatencyObservable();
+
+    public interface SendLatencyObserver {
+        void onSendLatency(@NonNull SendLatencyTracker.Record record);
+    }
+
+    public void notifySendLatency(@NonNull SendLatencyTracker.Record record) {
+        forEach(sendLatencyObserver -> sendLatencyObserver.onSendLatency(record));
+    }
+
+}
@@ -12,11 +12,10 @@ import com.masonsoft.imsdk.lang.MultiProcessor;
 public class InternalReceivedProtoMessageProtoTypeProcessor extends MultiProcessor<SessionProtoByteMessageWrapper> {
 
     public InternalReceivedProtoMessageProtoTypeProcessor() {
-        // response 内容优先处理(有 sign)
-        addLastProcessor(new ReceivedProtoMessageActionMessageResponseProcessor());
-        addLastProcessor(new ReceivedProtoMessageFetchMessageHistoryResponseProcessor());
-        addLastProcessor(new ReceivedProtoMessageSessionMessageResponseProcessor());
-        addLastProcessor(new ReceivedProtoMessageOtherMessageResponseProcessor());
+        super(ReceivedProtoMessageProtoTypeProcessor.ROUTE_KEY_PROVIDER);
+
+        // response 内容优先处理(有 sign), 按照 sign 直接查找对应的消息包
+        addLastProcessor(new ReceivedProtoMessagePendingMessagePacketProcessor());
 
         // 处理没有 sign 的内容
         addLastProcessor(new ReceivedProtoMessageProtoTypeProfileProcessor());
@@ -2,22 +2,24 @@ package com.masonsoft.imsdk.core.processor;
 
 import androidx.annotation.NonNull;
 
-import com.masonsoft.imsdk.core.FetchMessageHistoryManager;
 import com.masonsoft.imsdk.core.IMConstants;
 import com.masonsoft.imsdk.core.IMLog;
-import com.masonsoft.imsdk.core.SignGenerator;
+import com.masonsoft.imsdk.core.LastMessagePrefetchManager;
 import com.masonsoft.imsdk.core.db.Conversation;
 import com.masonsoft.imsdk.core.db.ConversationDatabaseProvider;
 import com.masonsoft.imsdk.core.db.ConversationFactory;
 import com.masonsoft.imsdk.core.db.DatabaseHelper;
 import com.masonsoft.imsdk.core.db.DatabaseProvider;
 import com.masonsoft.imsdk.core.db.DatabaseSessionWriteLock;
+import com.masonsoft.imsdk.core.message.ProtoRepeatedFieldStream;
 import com.masonsoft.imsdk.core.message.SessionProtoByteMessageWrapper;
 import com.masonsoft.imsdk.core.observable.FetchConversationListObservable;
 import com.masonsoft.imsdk.core.proto.ProtoMessage;
+import com.masonsoft.imsdk.lang.GeneralErrorCode;
 import com.masonsoft.imsdk.user.UserInfoSyncManager;
 import com.masonsoft.imsdk.util.Objects;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -36,15 +38,38 @@ public class ReceivedProtoMessageConversationListProcessor extends ReceivedProto
     protected boolean doNotNullProtoMessageObjectProcess(@NonNull SessionProtoByteMessageWrapper target, @NonNull ProtoMessage.ChatList protoMessageObject) {
         final long sessionUserId = target.getSessionUserId();
         final long updateTime = protoMessageObject.getUpdateTime();
-        final List<ProtoMessage.ChatItem> chatItemList = protoMessageObject.getChatItemsList();
+
+        // 较大的会话列表以流的方式解析，按批转换并入库
+        final ProtoRepeatedFieldStream<ProtoMessage.ChatItem> stream = target.getProtoByteMessageWrapper()
+                .getRepeatedFieldStream(ProtoMessage.ChatItem.class);
+        final ProtoRepeatedFieldStream.ChunkReader<ProtoMessage.ChatItem> chunkReader;
+        if (stream != null) {
+            chunkReader = stream.newChunkReader(ProtoRepeatedFieldStream.DEFAULT_CHUNK_SIZE);
+        } else {
+            chunkReader = ProtoRepeatedFieldStream.newChunkReader(
+                    protoMessageObject.getChatItemsList(), ProtoRepeatedFieldStream.DEFAULT_CHUNK_SIZE);
+        }
+
+        // 按批转换，整页会话读取完整之后在一个事务中入库，只发送一次会话变更通知
         final List<Conversation> conversationList = new ArrayList<>();
-        if (chatItemList != null) {
-            for (ProtoMessage.ChatItem item : chatItemList) {
-                conversationList.add(ConversationFactory.create(item));
+        try {
+            List<ProtoMessage.ChatItem> chatItemList;
+            while ((chatItemList = chunkReader.nextChunk()) != null) {
+                for (ProtoMessage.ChatItem item : chatItemList) {
+                    conversationList.add(ConversationFactory.create(item));
+                }
             }
+        } catch (IOException e) {
+            // 会话列表不完整时不入库，也不更新会话同步的位置(下次同步时重新获取)
+            IMLog.e(e, "fail to read conversation list, read size:%s, sessionUserId:%s, updateTime:%s, stream:%s",
+                    conversationList.size(), sessionUserId, updateTime, stream);
+            final int errorCode = GeneralErrorCode.ERROR_CODE_UNKNOWN;
+            FetchConversationListObservable.DEFAULT.notifyConversationListFetchedError(
+                    errorCode, GeneralErrorCode.findDefaultErrorMessage(errorCode));
+            return true;
         }
-        IMLog.v(Objects.defaultObjectTag(this) + " received conversation list size:%s, sessionUserId:%s, updateTime:%s",
-                conversationList.size(), sessionUserId, updateTime);
+        IMLog.v(Objects.defaultObjectTag(this) + " received conversation list size:%s, sessionUserId:%s, updateTime:%s, stream:%s",
+                conversationList.size(), sessionUserId, updateTime, stream != null);
 
         if (!conversationList.isEmpty()) {
             syncConversationUserInfo(conversationList);
@@ -69,57 +94,28 @@ public class ReceivedProtoMessageConversationListProcessor extends ReceivedProto
     }
 
     private void updateConversationList(final long sessionUserId, @NonNull final List<Conversation> conversationList) {
+        final int conversationType = IMConstants.ConversationType.C2C;
+        for (Conversation conversation : conversationList) {
+            conversation.applyLogicField(sessionUserId);
+            // 设置会话的类型
+            conversation.localConversationType.set(conversationType);
+        }
+
         final DatabaseHelper databaseHelper = DatabaseProvider.getInstance().getDBHelper(sessionUserId);
         synchronized (DatabaseSessionWriteLock.getInstance().getSessionWriteLock(databaseHelper)) {
-            for (Conversation conversation : conversationList) {
-                conversation.applyLogicField(sessionUserId);
-                final long targetUserId = conversation.targetUserId.get();
-                final int conversationType = IMConstants.ConversationType.C2C;
-
-                // 设置会话的类型
-                conversation.localConversationType.set(conversationType);
-
-                final Conversation dbConversation = ConversationDatabaseProvider
-                        .getInstance()
-                        .getConversationByTargetUserId(sessionUserId, conversationType, targetUserId);
-
-                if (dbConversation == null) {
-                    // 会话在本地不存在
-                    if (!ConversationDatabaseProvider.getInstance().insertConversation(sessionUserId, conversation)) {
-                        final Throwable e = new IllegalStateException("unexpected insertConversation return false " + conversation);
-                        IMLog.e(e);
-                    }
-                } else {
-                    // 会话已经存在
-                    // 回写 localId
-                    conversation.localId.set(dbConversation.localId.get());
-                    if (!ConversationDatabaseProvider.getInstance().updateConversation(
-                            sessionUserId,
-                            conversation)) {
-                        final Throwable e = new IllegalStateException("unexpected updateConversation return false " + conversation);
-                        IMLog.e(e);
-                    }
-                }
+            // 已经存在的会话会回写 localId
+            if (!ConversationDatabaseProvider.getInstance().upsertConversations(sessionUserId, conversationList)) {
+                final Throwable e = new IllegalStateException("unexpected upsertConversations return false, size:" + conversationList.size());
+                IMLog.e(e);
             }
         }
     }
 
     /**
-     * 同步会话的最后一页消息数据
+     * 同步会话的最后一页消息数据. 由 {@linkplain LastMessagePrefetchManager} 按照优先级限量并发获取.
      */
     private void syncLastMessages(final long sessionUserId, @NonNull final List<Conversation> conversationList) {
-        for (Conversation conversation : conversationList) {
-            if (!conversation.localId.isUnset()) {
-                FetchMessageHistoryManager.getInstance().enqueueFetchMessageHistory(
-                        sessionUserId,
-                        SignGenerator.nextSign(),
-                        conversation.localConversationType.get(),
-                        conversation.targetUserId.get(),
-                        0,
-                        true
-                );
-            }
-        }
+        LastMessagePrefetchManager.getInstance().enqueuePrefetch(sessionUserId, conversationList);
     }
 
 }
@@ -0,0 +1,37 @@
+package com.masonsoft.imsdk.core.processor;
+
+import androidx.annotation.NonNull;
+
+import com.masonsoft.imsdk.core.IMLog;
+import com.masonsoft.imsdk.core.message.SessionProtoByteMessageWrapper;
+import com.masonsoft.imsdk.core.message.packet.MessagePacket;
+import com.masonsoft.imsdk.core.message.packet.PendingMessagePacketRegistry;
+import com.masonsoft.imsdk.util.Objects;
+
+/**
+ * 按照收到响应的长连接与 sign 查找等待响应结果的消息包，由该消息包处理响应结果(如 Result, ChatSR, ChatRBatch 等)
+ *
+ * @see PendingMessagePacketRegistry
+ * @since 1.0
+ */
+public class ReceivedProtoMessagePendingMessagePacketProcessor extends ReceivedProtoMessageNotNullProcessor {
+
+    @Override
+    protected boolean doNotNullProcess(@NonNull SessionProtoByteMessageWrapper target) {
+        final long sign = target.getProtoByteMessageWrapper().getSign();
+        if (sign <= 0) {
+            return false;
+        }
+
+        final MessagePacket messagePacket = PendingMessagePacketRegistry.getInstance().getPendingMessagePacket(target.getSessionTcpClient(), sign);
+        if (messagePacket == null) {
+            return false;
+        }
+
+        final boolean result = messagePacket.doProcess(target);
+        IMLog.v(Objects.defaultObjectTag(this) + " doProcess return:%s, sessionUserId:%s, sign:%s, messagePacket:%s",
+                result, target.getSessionUserId(), sign, messagePacket);
+        return result;
+    }
+
+}
@@ -4,13 +4,22 @@ import androidx.annotation.NonNull;
 
 import com.masonsoft.imsdk.core.message.ProtoByteMessageWrapper;
 import com.masonsoft.imsdk.core.message.SessionProtoByteMessageWrapper;
+import com.masonsoft.imsdk.lang.MultiProcessor;
 
 /**
  * 过滤收到消息的 proto type 为指定 proto type 的内容. 如指定只处理 ChatR 类型的消息.
+ * 添加到使用 {@linkplain #ROUTE_KEY_PROVIDER} 的 {@linkplain MultiProcessor} 中时, 只会收到指定 proto type 的消息.
  *
  * @since 1.0
  */
-public abstract class ReceivedProtoMessageProtoTypeProcessor<T> extends ReceivedProtoMessageNotNullProcessor {
+public abstract class ReceivedProtoMessageProtoTypeProcessor<T> extends ReceivedProtoMessageNotNullProcessor
+        implements MultiProcessor.RoutedProcessor<SessionProtoByteMessageWrapper> {
+
+    /**
+     * 以消息类型对应的 ProtoMessage 实体类型作为 route key, 不需要解析消息
+     */
+    public static final MultiProcessor.RouteKeyProvider<SessionProtoByteMessageWrapper> ROUTE_KEY_PROVIDER =
+            target -> target == null ? null : target.getProtoByteMessageWrapper().getProtoClass();
 
     @NonNull
     private final Class<T> mProtoMessageObjectType;
@@ -19,9 +28,19 @@ public abstract class ReceivedProtoMessageProtoTypeProcessor<T> extends Received
         mProtoMessageObjectType = protoMessageObjectType;
     }
 
+    @NonNull
+    @Override
+    public Object getRouteKey() {
+        return mProtoMessageObjectType;
+    }
+
     @Override
     protected final boolean doNotNullProcess(@NonNull SessionProtoByteMessageWrapper target) {
         final ProtoByteMessageWrapper wrapper = target.getProtoByteMessageWrapper();
+        // 消息类型不匹配时不需要解析消息
+        if (!wrapper.isProtoClass(mProtoMessageObjectType)) {
+            return false;
+        }
         final Object protoMessageObject = wrapper.getProtoMessageObject();
         if (protoMessageObject != null) {
             if (mProtoMessageObjectType.isInstance(protoMessageObject)) {
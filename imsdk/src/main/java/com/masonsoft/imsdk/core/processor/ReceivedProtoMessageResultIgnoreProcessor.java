@@ -2,6 +2,7 @@ package com.masonsoft.imsdk.core.processor;
 
 import androidx.annotation.NonNull;
 
+import com.masonsoft.imsdk.core.message.ProtoByteMessageWrapper;
 import com.masonsoft.imsdk.core.message.SessionProtoByteMessageWrapper;
 import com.masonsoft.imsdk.core.message.packet.ResultIgnoreMessagePacket;
 import com.masonsoft.imsdk.core.proto.ProtoMessage;
@@ -15,10 +16,10 @@ public class ReceivedProtoMessageResultIgnoreProcessor extends ReceivedProtoMess
 
     @Override
     protected boolean doNotNullProcess(@NonNull SessionProtoByteMessageWrapper target) {
-        final Object protoMessageObject = target.getProtoByteMessageWrapper().getProtoMessageObject();
+        final ProtoByteMessageWrapper protoByteMessageWrapper = target.getProtoByteMessageWrapper();
 
-        if (protoMessageObject instanceof ProtoMessage.Result) {
-            return ((ProtoMessage.Result) protoMessageObject).getSign() == ResultIgnoreMessagePacket.SIGN_IGNORE;
+        if (protoByteMessageWrapper.isProtoClass(ProtoMessage.Result.class)) {
+            return protoByteMessageWrapper.getSign() == ResultIgnoreMessagePacket.SIGN_IGNORE;
         }
 
         return false;
@@ -5,9 +5,12 @@ import android.text.TextUtils;
 import android.webkit.URLUtil;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.masonsoft.imsdk.core.IMConstants;
+import com.masonsoft.imsdk.core.IMLog;
 import com.masonsoft.imsdk.core.IMSessionMessage;
+import com.masonsoft.imsdk.core.MediaPreprocessManager;
 import com.masonsoft.imsdk.lang.GeneralResult;
 import com.masonsoft.imsdk.lang.ImageInfo;
 import com.masonsoft.imsdk.lang.MediaInfo;
@@ -15,7 +18,14 @@ import com.masonsoft.imsdk.lang.StateProp;
 import com.masonsoft.imsdk.util.BitmapUtil;
 import com.masonsoft.imsdk.util.MediaUtil;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import io.github.idonans.core.manager.TmpFileManager;
+import io.github.idonans.core.util.FileUtil;
 import io.github.idonans.core.util.HumanUtil;
+import io.github.idonans.core.util.IOUtil;
 
 /**
  * 发送视频类型的消息合法性检查
@@ -93,8 +103,15 @@ public class SendSessionMessageTypeVideoValidateProcessor extends SendSessionMes
                 return true;
             }
         } else {
-            // 分析视频信息
-            final MediaInfo mediaInfo = MediaUtil.decodeMediaInfo(videoUri);
+            // 分析视频信息, 优先使用选择视频之后已经完成的预处理结果(包括视频封面)
+            final MediaPreprocessManager.Result preprocessResult = MediaPreprocessManager.getInstance().peek(videoPath);
+            MediaInfo mediaInfo = null;
+            if (preprocessResult != null && preprocessResult.mediaInfo != null) {
+                mediaInfo = copyPreprocessMediaInfo(preprocessResult.mediaInfo, target.getMessage().thumb.isUnset());
+            }
+            if (mediaInfo == null) {
+                mediaInfo = MediaUtil.decodeMediaInfo(videoUri);
+            }
             if (mediaInfo == null || !mediaInfo.isVideo()) {
                 // 解码视频信息失败, 通常来说都是由于视频格式不支持导致(或者视频 Uri 指向的不是一个真实的视频)
                 target.getEnqueueCallback().onCallback(
@@ -133,6 +150,43 @@ public class SendSessionMessageTypeVideoValidateProcessor extends SendSessionMes
         return false;
     }
 
+    /**
+     * 预处理结果是共享的，复制之后再使用. 视频封面在预处理的磁盘缓存中(可能被清理), 需要时复制到临时文件.
+     *
+     * @param requireThumb 是否需要视频封面
+     * @return 复制视频封面失败时返回 null
+     */
+    @Nullable
+    private static MediaInfo copyPreprocessMediaInfo(@NonNull MediaInfo preprocessMediaInfo, boolean requireThumb) {
+        final MediaInfo mediaInfo = preprocessMediaInfo.copy();
+        if (!requireThumb || mediaInfo.thumbFilePath == null) {
+            return mediaInfo;
+        }
+
+        boolean success = false;
+        File thumbFile = null;
+        InputStream is = null;
+        try {
+            thumbFile = TmpFileManager.getInstance().createNewTmpFileQuietly("__video_thumb_", ".jpeg");
+            if (thumbFile == null) {
+                return null;
+            }
+            is = new FileInputStream(mediaInfo.thumbFilePath);
+            IOUtil.copy(is, thumbFile, null, null);
+            mediaInfo.thumbFilePath = thumbFile.getAbsolutePath();
+            success = true;
+            return mediaInfo;
+        } catch (Throwable e) {
+            IMLog.w(e, "fail to copy thumb %s", mediaInfo.thumbFilePath);
+            return null;
+        } finally {
+            IOUtil.closeQuietly(is);
+            if (!success) {
+                FileUtil.deleteFileQuietly(thumbFile);
+            }
+        }
+    }
+
     private boolean validateThumb(@NonNull IMSessionMessage target) {
         final StateProp<String> thumb = target.getMessage().thumb;
 
@@ -8,6 +8,7 @@ import com.masonsoft.imsdk.core.IMLog;
 import com.masonsoft.imsdk.core.IMMessage;
 import com.masonsoft.imsdk.core.IMSessionMessage;
 import com.masonsoft.imsdk.core.IMSessionMessageUploadManager;
+import com.masonsoft.imsdk.core.SendLatencyTracker;
 import com.masonsoft.imsdk.core.SignGenerator;
 import com.masonsoft.imsdk.core.db.DatabaseHelper;
 import com.masonsoft.imsdk.core.db.DatabaseProvider;
@@ -132,6 +133,7 @@ public class SendSessionMessageWriteDatabaseProcessor extends SendSessionMessage
 
             if (LocalSendingMessageProvider.getInstance().updateLocalSendingMessage(sessionUserId, localSendingMessageUpdate)) {
                 IMLog.v("success updateLocalSendingMessage: %s", localSendingMessageUpdate);
+                startSendLatency(target, dbMessage);
 
                 // 提示成功入队
                 target.getEnqueueCallback().onCallback(GeneralResult.success().withPayload(target));
@@ -217,6 +219,7 @@ public class SendSessionMessageWriteDatabaseProcessor extends SendSessionMessage
                         sessionUserId,
                         localSendingMessageInsert)) {
                     IMLog.v("success insertLocalSendingMessage: %s", localSendingMessageInsert);
+                    startSendLatency(target, dbMessageInsert);
 
                     // 提示成功入队
                     target.getEnqueueCallback().onCallback(GeneralResult.success().withPayload(target));
@@ -247,4 +250,13 @@ public class SendSessionMessageWriteDatabaseProcessor extends SendSessionMessage
         return false;
     }
 
+    /**
+     * 消息已经写入数据库，开始按照 sign 记录发送耗时
+     */
+    private void startSendLatency(@NonNull IMSessionMessage target, @NonNull Message dbMessage) {
+        final long sign = dbMessage.sign.get();
+        SendLatencyTracker.getInstance().start(sign, dbMessage.messageType.get(), target.getEnqueueTimeMs());
+        SendLatencyTracker.getInstance().mark(sign, SendLatencyTracker.STAGE_DB_WRITE);
+    }
+
 }
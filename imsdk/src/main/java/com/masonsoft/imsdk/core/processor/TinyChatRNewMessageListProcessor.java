@@ -187,76 +187,33 @@ public class TinyChatRNewMessageListProcessor implements Processor<List<SessionP
             boolean clearConversationDeleteFlag = false;
 
             for (Message message : messageList) {
-                final boolean actionMessage = message.localActionMessage.get() > 0;
-                final long remoteMessageId = message.remoteMessageId.get();
                 // 设置 block id
                 message.localBlockId.set(blockId);
+            }
 
-                final Message dbMessage = MessageDatabaseProvider.getInstance().getMessageWithRemoteMessageId(
-                        sessionUserId,
-                        conversationType,
-                        targetUserId,
-                        remoteMessageId);
-                if (dbMessage == null) {
-                    // 如果消息在本地不存在，则入库
-                    if (!MessageDatabaseProvider.getInstance().insertMessage(
-                            sessionUserId,
-                            conversationType,
-                            targetUserId,
-                            message)) {
-                        final Throwable e = new IllegalStateException("unexpected insertMessage return false " + message);
-                        IMLog.e(e);
-                    } else {
-                        // 新消息入库成功
-                        if (!actionMessage) {
-                            clearConversationDeleteFlag = true;
-                            if (message.fromUserId.get() != sessionUserId) {
-                                // 如果是收到的别人的消息，累加未读消息数
-                                conversationUnreadCountDiff++;
-                            }
-                            if (conversationBestShowMessage == null
-                                    || conversationBestShowMessage.localSeq.get() < message.localSeq.get()) {
-                                conversationBestShowMessage = message;
-                            }
-                        }
-                    }
-                } else {
-                    // 消息已经存在
-                    // 回写 localId
-                    message.localId.set(dbMessage.localId.get());
-
-                    // 更新必要字段
-                    boolean requireUpdate = false;
-                    final Message messageUpdate = new Message();
-                    messageUpdate.applyLogicField(sessionUserId, conversationType, targetUserId);
-                    messageUpdate.localId.set(dbMessage.localId.get());
-
-                    {
-                        // 校验是否需要更新 message type
-                        final int dbMessageType = dbMessage.messageType.get();
-                        final int newMessageType = message.messageType.get();
-                        if (dbMessageType != newMessageType) {
-                            requireUpdate = true;
-                            messageUpdate.messageType.set(newMessageType);
-                        }
+            // 已经存在的消息会回写 localId, 必要时更新 message type 与 block id
+            final List<Message> insertedMessageList = MessageDatabaseProvider.getInstance().upsertMessages(
+                    sessionUserId,
+                    conversationType,
+                    targetUserId,
+                    messageList);
+            if (insertedMessageList == null) {
+                final Throwable e = new IllegalStateException("unexpected upsertMessages return null, size:" + messageList.size());
+                IMLog.e(e);
+            } else {
+                for (Message message : insertedMessageList) {
+                    // 新消息入库成功
+                    if (message.localActionMessage.get() > 0) {
+                        continue;
                     }
-                    {
-                        // 校验是否需要更新 block id
-                        final long dbMessageBlockId = dbMessage.localBlockId.get();
-                        final long newMessageBlockId = message.localBlockId.get();
-                        Preconditions.checkArgument(newMessageBlockId > 0);
-                        if (dbMessageBlockId != newMessageBlockId) {
-                            requireUpdate = true;
-                            messageUpdate.localBlockId.set(newMessageBlockId);
-                        }
+                    clearConversationDeleteFlag = true;
+                    if (message.fromUserId.get() != sessionUserId) {
+                        // 如果是收到的别人的消息，累加未读消息数
+                        conversationUnreadCountDiff++;
                     }
-
-                    if (requireUpdate) {
-                        if (!MessageDatabaseProvider.getInstance().updateMessage(
-                                sessionUserId, conversationType, targetUserId, messageUpdate)) {
-                            final Throwable e = new IllegalStateException("unexpected updateMessage return false " + messageUpdate);
-                            IMLog.e(e);
-                        }
+                    if (conversationBestShowMessage == null
+                            || conversationBestShowMessage.localSeq.get() < message.localSeq.get()) {
+                        conversationBestShowMessage = message;
                     }
                 }
             }
@@ -0,0 +1,82 @@
+package com.masonsoft.imsdk.core.session;
+
+import androidx.annotation.NonNull;
+
+import com.masonsoft.imsdk.core.IMLog;
+import com.masonsoft.imsdk.util.Objects;
+
+import io.github.idonans.core.util.Preconditions;
+
+/**
+ * 限制同时等待响应结果的请求数量. 与 {@linkplain SessionTcpClient#sendMessagePacketAsync} 配合使用，
+ * 并发数量由此限制决定，而不是由工作线程的数量决定.
+ *
+ * @since 1.0
+ */
+public class InFlightRequestLimiter {
+
+    private final Object mLock = new Object();
+    private int mMaxInFlightCount;
+    private int mInFlightCount;
+
+    public InFlightRequestLimiter(int maxInFlightCount) {
+        Preconditions.checkArgument(maxInFlightCount > 0);
+        mMaxInFlightCount = maxInFlightCount;
+    }
+
+    public void setMaxInFlightCount(int maxInFlightCount) {
+        Preconditions.checkArgument(maxInFlightCount > 0);
+        synchronized (mLock) {
+            mMaxInFlightCount = maxInFlightCount;
+            mLock.notifyAll();
+        }
+    }
+
+    public int getMaxInFlightCount() {
+        synchronized (mLock) {
+            return mMaxInFlightCount;
+        }
+    }
+
+    public int getInFlightCount() {
+        synchronized (mLock) {
+            return mInFlightCount;
+        }
+    }
+
+    /**
+     * 占用一个请求名额，如果已经达到上限则等待. 每一次成功的 acquire 都需要对应一次 {@linkplain #release()}.
+     */
+    public void acquire() {
+        synchronized (mLock) {
+            while (mInFlightCount >= mMaxInFlightCount) {
+                IMLog.v(Objects.defaultObjectTag(this) + " wait in flight count:%s, max:%s", mInFlightCount, mMaxInFlightCount);
+                try {
+                    mLock.wait(2000L);
+                } catch (InterruptedException e) {
+                    IMLog.v("acquire wait interrupted");
+                }
+            }
+            mInFlightCount++;
+        }
+    }
+
+    public void release() {
+        synchronized (mLock) {
+            if (mInFlightCount <= 0) {
+                IMLog.e(new IllegalStateException("unexpected release, in flight count:" + mInFlightCount));
+                return;
+            }
+            mInFlightCount--;
+            mLock.notifyAll();
+        }
+    }
+
+    public void printDetail(@NonNull StringBuilder builder) {
+        synchronized (mLock) {
+            builder.append("in flight count:").append(mInFlightCount)
+                    .append(", max:").append(mMaxInFlightCount).append("\n");
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.masonsoft.imsdk.core.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.nio.ByteBuffer;
+import java.security.Provider;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import io.github.idonans.core.Charsets;
+import io.github.idonans.core.util.Preconditions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * 长连接上按照约定参数进行 AES 加密/解密. 同一个 Session 的密钥与向量只构建一次，
+ * Cipher 按照线程缓存，每一帧数据只需要重新 init.
+ *
+ * @since 1.0
+ */
+class SessionCryptoContext {
+
+    private static final String TRANSFORMATION = "AES/CBC/PKCS7Padding";
+    private static final String AES_IV = "3101238945674526";
+
+    /**
+     * 构建 BouncyCastleProvider 需要注册大量的算法，全局只构建一次
+     */
+    private static final class ProviderHolder {
+        private static final Provider PROVIDER = new BouncyCastleProvider();
+    }
+
+    @NonNull
+    private final SecretKeySpec mKeySpec;
+    @NonNull
+    private final IvParameterSpec mIvSpec;
+
+    private final ThreadLocal<Cipher> mCipher = new ThreadLocal<>();
+
+    SessionCryptoContext(@Nullable String key) {
+        Preconditions.checkNotNull(key);
+        //noinspection CharsetObjectCanBeUsed
+        mKeySpec = new SecretKeySpec(key.getBytes(Charsets.UTF8), "AES");
+        //noinspection CharsetObjectCanBeUsed
+        mIvSpec = new IvParameterSpec(AES_IV.getBytes(Charsets.UTF8));
+    }
+
+    @NonNull
+    private Cipher initCipher(boolean encrypt) throws Exception {
+        Cipher cipher = mCipher.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION, ProviderHolder.PROVIDER);
+            mCipher.set(cipher);
+        }
+        cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, mKeySpec, mIvSpec);
+        return cipher;
+    }
+
+    @NonNull
+    byte[] crypt(@NonNull byte[] input, boolean encrypt/*是否为加密模式*/) {
+        try {
+            return initCipher(encrypt).doFinal(input);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 直接从 input 解密/加密到新分配的 ByteBuf. 不会修改 input 的 readerIndex.
+     * 返回的 ByteBuf 由调用者负责释放.
+     */
+    @NonNull
+    ByteBuf crypt(@NonNull ByteBuf input, @NonNull ByteBufAllocator alloc, boolean encrypt/*是否为加密模式*/) {
+        ByteBuf output = null;
+        try {
+            final Cipher cipher = initCipher(encrypt);
+            final int inputLength = input.readableBytes();
+            final int outputSize = cipher.getOutputSize(inputLength);
+            output = alloc.heapBuffer(outputSize);
+            final ByteBuffer inputBuffer = input.nioBuffer(input.readerIndex(), inputLength);
+            final ByteBuffer outputBuffer = output.nioBuffer(output.writerIndex(), outputSize);
+            final int length = cipher.doFinal(inputBuffer, outputBuffer);
+            output.writerIndex(output.writerIndex() + length);
+            return output;
+        } catch (Throwable e) {
+            if (output != null) {
+                output.release();
+            }
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -4,17 +4,20 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
+import com.masonsoft.imsdk.core.IMCallback;
 import com.masonsoft.imsdk.core.IMLog;
 import com.masonsoft.imsdk.core.IMMessageQueueManager;
 import com.masonsoft.imsdk.core.IMSessionManager;
 import com.masonsoft.imsdk.core.NettyTcpClient;
 import com.masonsoft.imsdk.core.ProtoByteMessage;
 import com.masonsoft.imsdk.core.message.ProtoByteMessageWrapper;
+import com.masonsoft.imsdk.core.message.ProtoRepeatedFieldStream;
 import com.masonsoft.imsdk.core.message.SessionProtoByteMessageWrapper;
 import com.masonsoft.imsdk.core.message.packet.MessagePacket;
 import com.masonsoft.imsdk.core.message.packet.PingMessagePacket;
 import com.masonsoft.imsdk.core.message.packet.SignInMessagePacket;
 import com.masonsoft.imsdk.core.message.packet.SignOutMessagePacket;
+import com.masonsoft.imsdk.core.message.packet.TimeoutMessagePacket;
 import com.masonsoft.imsdk.core.observable.MessagePacketStateObservable;
 import com.masonsoft.imsdk.core.observable.SessionObservable;
 import com.masonsoft.imsdk.core.observable.SessionTcpClientObservable;
@@ -23,19 +26,18 @@ import com.masonsoft.imsdk.core.proto.ProtoMessage;
 import com.masonsoft.imsdk.lang.MultiProcessor;
 import com.masonsoft.imsdk.lang.NotNullProcessor;
 import com.masonsoft.imsdk.lang.Processor;
+import com.masonsoft.imsdk.lang.SafetyRunnable;
 import com.masonsoft.imsdk.util.Objects;
 
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import java.security.spec.AlgorithmParameterSpec;
-
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
-import io.github.idonans.core.Charsets;
+import io.github.idonans.core.thread.TaskQueue;
 import io.github.idonans.core.thread.Threads;
 import io.github.idonans.core.util.Preconditions;
+import io.netty.buffer.ByteBuf;
 
 /**
  * 维护长连接的可用性，包括在长连接上进行 Session 认证，发送心跳等。
@@ -44,10 +46,13 @@ import io.github.idonans.core.util.Preconditions;
  */
 public class SessionTcpClient extends NettyTcpClient {
 
-    private static final String AES_IV = "3101238945674526";
-
     @NonNull
     private final Session mSession;
+    /**
+     * 当前 Session 的加密/解密上下文，在第一次使用时创建
+     */
+    @Nullable
+    private SessionCryptoContext mCryptoContext;
     @SuppressWarnings("FieldCanBeLocal")
     private final SessionObservable.SessionObserver mSessionObserver;
 
@@ -84,6 +89,9 @@ public class SessionTcpClient extends NettyTcpClient {
     private final Processor<SessionProtoByteMessageWrapper> mKickedProcessor = new NotNullProcessor<SessionProtoByteMessageWrapper>() {
         @Override
         protected boolean doNotNullProcess(@NonNull SessionProtoByteMessageWrapper target) {
+            if (!target.getProtoByteMessageWrapper().isProtoClass(ProtoMessage.Result.class)) {
+                return false;
+            }
             final Object protoMessageObject = target.getProtoByteMessageWrapper().getProtoMessageObject();
             if (protoMessageObject instanceof ProtoMessage.Result) {
                 final long code = ((ProtoMessage.Result) protoMessageObject).getCode();
@@ -105,6 +113,16 @@ public class SessionTcpClient extends NettyTcpClient {
      */
     private final MultiProcessor<SessionProtoByteMessageWrapper> mLocalMessageProcessor;
 
+    /**
+     * 通过 {@linkplain #sendMessagePacketAsync(MessagePacket, IMCallback)} 发送并且还没有结束的请求
+     */
+    private final Set<MessagePacketRequest> mPendingRequests = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * 处理消息写入失败的状态变更，避免在 I/O 线程上执行消息包的状态观察者
+     */
+    private final TaskQueue mWriteFailQueue = new TaskQueue(1);
+
     public SessionTcpClient(@NonNull Session session) {
         mSession = session;
 
@@ -191,42 +209,43 @@ public class SessionTcpClient extends NettyTcpClient {
     /*
     @Override
     protected byte[] encryptMessage(int messageType, byte[] messageData) {
-        final String aesKey = mSession.getAesKey();
-
         // 请求登录的消息需要加密
         if (messageType == ProtoByteMessage.Type.IM_LOGIN) {
-            return crypt(messageData, aesKey, true);
+            return getCryptoContext().crypt(messageData, true);
         }
 
         return super.encryptMessage(messageType, messageData);
     }
+
+    @Override
+    protected boolean needEncryptMessage(int messageType) {
+        return messageType == ProtoByteMessage.Type.IM_LOGIN;
+    }
     */
 
     @NonNull
     @Override
     protected byte[] decryptMessage(@NonNull byte[] messageData) {
         // 解密消息内容
-        final String aesKey = mSession.getAesKey();
-        return crypt(messageData, aesKey, false);
+        return getCryptoContext().crypt(messageData, false);
+    }
+
+    @NonNull
+    @Override
+    protected ByteBuf decryptMessage(@NonNull ByteBuf messageData) {
+        // 解密消息内容, 直接从网络层的 ByteBuf 解密，不额外复制密文
+        return getCryptoContext().crypt(messageData, messageData.alloc(), false);
     }
 
-    /**
-     * 按照约定参数 AES 加密/解密
-     */
     @NonNull
-    private static byte[] crypt(@NonNull byte[] input, @Nullable String key, boolean encrypt/*是否为加密模式*/) {
-        try {
-            Preconditions.checkNotNull(key);
-            //noinspection CharsetObjectCanBeUsed
-            final AlgorithmParameterSpec ivSpec = new IvParameterSpec(AES_IV.getBytes(Charsets.UTF8));
-            //noinspection CharsetObjectCanBeUsed
-            final SecretKeySpec keySpec = new SecretKeySpec(key.getBytes(Charsets.UTF8), "AES");
-            final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS7Padding", new BouncyCastleProvider());
-            cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, keySpec, ivSpec);
-            return cipher.doFinal(input);
-        } catch (Throwable e) {
-            throw new IllegalStateException(e);
+    private SessionCryptoContext getCryptoContext() {
+        SessionCryptoContext cryptoContext = mCryptoContext;
+        if (cryptoContext == null) {
+            // 可能会并发创建多次，SessionCryptoContext 本身无状态共享问题
+            cryptoContext = new SessionCryptoContext(mSession.getAesKey());
+            mCryptoContext = cryptoContext;
         }
+        return cryptoContext;
     }
 
     @Override
@@ -299,13 +318,17 @@ public class SessionTcpClient extends NettyTcpClient {
         return mSignInMessagePacket.getSessionUserId();
     }
 
+    /**
+     * 写缓冲区已满时的等待在 {@linkplain #sendMessage(ProtoByteMessage, OnFlushListener)} 中(获取 mSession 锁之前)完成,
+     * 持有 mSession 锁时只写入，不会阻塞.
+     */
     @Override
-    protected void sendMessage(@NonNull ProtoByteMessage protoByteMessage) throws Throwable {
+    protected void writeMessage(@NonNull ProtoByteMessage protoByteMessage, @Nullable OnFlushListener onFlushListener) throws Throwable {
         // 在发送长连接消息之前，检查当前 Session 的状态
         validateSession();
 
         synchronized (mSession) {
-            super.sendMessage(protoByteMessage);
+            super.writeMessage(protoByteMessage, onFlushListener);
         }
     }
 
@@ -371,7 +394,65 @@ public class SessionTcpClient extends NettyTcpClient {
         this.sendMessagePacketQuietly(messagePacket, true);
     }
 
+    /**
+     * 异步发送消息包，不阻塞等待响应结果. 消息包结束(收到响应或者超时，状态为发送成功或者发送失败)时在后台线程回调 callback.
+     * 如果消息包没有能够发送出去(如当前不在线), 也会回调 callback, 此时消息包的状态可能仍为 {@linkplain MessagePacket#STATE_IDLE}.
+     * callback 至多回调一次. 需要超时的请求应当使用 {@linkplain TimeoutMessagePacket}, 否则可能一直等待响应结果.
+     */
+    public void sendMessagePacketAsync(@NonNull final MessagePacket messagePacket, @NonNull final IMCallback<MessagePacket> callback) {
+        final MessagePacketRequest request = new MessagePacketRequest(messagePacket, callback);
+        // 消息包的状态监听是弱引用，请求结束之前由 mPendingRequests 持有
+        mPendingRequests.add(request);
+        messagePacket.getMessagePacketStateObservable().registerObserver(request);
+
+        sendMessagePacketQuietly(messagePacket);
+        if (!messagePacket.isRunning()) {
+            request.complete();
+        }
+    }
+
+    /**
+     * 等待响应结果的异步请求数量
+     */
+    public int getPendingRequestCount() {
+        return mPendingRequests.size();
+    }
+
+    private class MessagePacketRequest implements MessagePacketStateObservable.MessagePacketStateObserver {
+
+        @NonNull
+        private final MessagePacket mMessagePacket;
+        @NonNull
+        private final IMCallback<MessagePacket> mCallback;
+        private final AtomicBoolean mComplete = new AtomicBoolean(false);
+
+        private MessagePacketRequest(@NonNull MessagePacket messagePacket, @NonNull IMCallback<MessagePacket> callback) {
+            mMessagePacket = messagePacket;
+            mCallback = callback;
+        }
+
+        @Override
+        public void onStateChanged(MessagePacket packet, int oldState, int newState) {
+            if (newState == MessagePacket.STATE_SUCCESS || newState == MessagePacket.STATE_FAIL) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            if (!mComplete.compareAndSet(false, true)) {
+                return;
+            }
+            mPendingRequests.remove(this);
+            mMessagePacket.getMessagePacketStateObservable().unregisterObserver(this);
+            // 状态变更在消息包的状态锁内通知，回调切换到后台线程执行
+            Threads.postBackground(new SafetyRunnable(() -> mCallback.onCallback(mMessagePacket)));
+        }
+    }
+
     protected void sendMessagePacketQuietly(@NonNull final MessagePacket messagePacket, boolean requireSignIn) {
+        // 写缓冲区已满时在获取 mSession 锁之前等待，避免阻塞其它发送方与消息接收
+        final boolean writable = awaitWritable();
+
         synchronized (mSession) {
             if (requireSignIn && !isOnline()) {
                 IMLog.e(new IllegalStateException("current is offline, abort send message."));
@@ -383,28 +464,75 @@ public class SessionTcpClient extends NettyTcpClient {
                 return;
             }
 
+            // 等待响应结果时只匹配此长连接上收到的响应
+            messagePacket.setSessionTcpClient(this);
             messagePacket.moveToState(MessagePacket.STATE_GOING);
-            final boolean writeSuccess = sendMessageQuietly(messagePacket.getProtoByteMessage());
-            if (writeSuccess) {
-                messagePacket.moveToState(MessagePacket.STATE_WAIT_RESULT);
-            } else {
+            if (!writable) {
                 IMLog.e(
-                        new IllegalStateException("current tcp state or connection is not ready or active"),
+                        new IllegalStateException("current tcp connection is not writable"),
                         "tcp state:%s",
                         stateToString(getState())
                 );
                 messagePacket.moveToState(MessagePacket.STATE_FAIL);
+                return;
+            }
+
+            OnFlushListener onFlushListener = null;
+            if (messagePacket instanceof TimeoutMessagePacket) {
+                // 消息实际写入 TCP 链接之后才开始计算超时
+                final TimeoutMessagePacket timeoutMessagePacket = (TimeoutMessagePacket) messagePacket;
+                timeoutMessagePacket.onWriteStart();
+                onFlushListener = success -> {
+                    // 在 I/O 线程上只记录写入结果，写入失败的状态变更切换到工作线程执行
+                    if (timeoutMessagePacket.onWriteFlushed(success)) {
+                        mWriteFailQueue.enqueue(new SafetyRunnable(timeoutMessagePacket::dispatchWriteFail));
+                    }
+                };
             }
+            // 已经在获取 mSession 锁之前等待过长连接可写，此处只写入不再等待
+            final boolean writeSuccess = writeMessageQuietly(messagePacket.getProtoByteMessage(), onFlushListener);
+            synchronized (messagePacket.getStateLock()) {
+                if (messagePacket.getState() != MessagePacket.STATE_GOING) {
+                    // 写入失败的回调可能已经先执行
+                    return;
+                }
+                if (writeSuccess) {
+                    messagePacket.moveToState(MessagePacket.STATE_WAIT_RESULT);
+                } else {
+                    IMLog.e(
+                            new IllegalStateException("current tcp state or connection is not ready or active"),
+                            "tcp state:%s",
+                            stateToString(getState())
+                    );
+                    messagePacket.moveToState(MessagePacket.STATE_FAIL);
+                }
+            }
+        }
+    }
+
+    @Nullable
+    @Override
+    protected Object decodeMessage(@NonNull ProtoByteMessage protoByteMessage) {
+        // 在 decode stage 的工作线程上执行，不占用 I/O 线程
+        // 较大的批量消息(如 ChatRBatch, ChatList)只解析消息头，repeated 字段在消费时按批读取
+        final ProtoRepeatedFieldStream<?> repeatedFieldStream = ProtoRepeatedFieldStream.decode(protoByteMessage);
+        if (repeatedFieldStream != null) {
+            return new ProtoByteMessageWrapper(protoByteMessage, repeatedFieldStream);
         }
+        // 其它消息延迟解析，只预先读取 sign. 仅用于按照 sign 分发或者被丢弃的消息不需要完整解析.
+        final ProtoByteMessageWrapper protoByteMessageWrapper = new ProtoByteMessageWrapper(protoByteMessage);
+        protoByteMessageWrapper.getSign();
+        return protoByteMessageWrapper;
     }
 
     @Override
-    protected void onMessageReceived(@NonNull ProtoByteMessage protoByteMessage) {
-        super.onMessageReceived(protoByteMessage);
+    protected void onMessageReceived(@NonNull ProtoByteMessage protoByteMessage, @Nullable Object protoMessageObject) {
+        super.onMessageReceived(protoByteMessage, protoMessageObject);
 
         // 在接收到长连接消息时，检查当前 Session 的状态
         validateSession();
 
+        // 只在 mSession 锁内检查长连接状态，解析与分发在锁外执行，不阻塞连接，断开与发送
         synchronized (mSession) {
             if (getState() != STATE_CONNECTED) {
                 IMLog.e(
@@ -416,27 +544,34 @@ public class SessionTcpClient extends NettyTcpClient {
                 );
                 return;
             }
+        }
 
-            final ProtoByteMessageWrapper protoByteMessageWrapper = new ProtoByteMessageWrapper(protoByteMessage);
-            final long sessionUserId = mSignInMessagePacket.getSessionUserId();
-            final SessionProtoByteMessageWrapper sessionProtoByteMessageWrapper = new SessionProtoByteMessageWrapper(this, sessionUserId, protoByteMessageWrapper);
+        final ProtoByteMessageWrapper protoByteMessageWrapper;
+        if (protoMessageObject instanceof ProtoByteMessageWrapper) {
+            protoByteMessageWrapper = (ProtoByteMessageWrapper) protoMessageObject;
+        } else {
+            protoByteMessageWrapper = new ProtoByteMessageWrapper(protoByteMessage);
+        }
+        final long sessionUserId = mSignInMessagePacket.getSessionUserId();
+        final SessionProtoByteMessageWrapper sessionProtoByteMessageWrapper = new SessionProtoByteMessageWrapper(this, sessionUserId, protoByteMessageWrapper);
 
-            // 优先本地消费(直接消费，快速响应)
-            if (mLocalMessageProcessor.doProcess(sessionProtoByteMessageWrapper)) {
-                return;
-            }
+        // 优先本地消费(直接消费，快速响应)
+        if (mLocalMessageProcessor.doProcess(sessionProtoByteMessageWrapper)) {
+            return;
+        }
 
-            // 其它消息，分发给消息队列处理
-            // 需要是已登录状态
-            if (!mSignInMessagePacket.isSignIn()) {
-                // 当前没有正确登录，但是收到了意外地消息
-                IMLog.e(new IllegalStateException(
-                        Objects.defaultObjectTag(SessionTcpClient.this) +
-                                " is not sign in, but received message"), "sessionProtoByteMessageWrapper:%s", sessionProtoByteMessageWrapper);
-                return;
-            }
-            IMMessageQueueManager.getInstance().enqueueReceivedMessage(sessionProtoByteMessageWrapper);
+        // 其它消息，分发给消息队列处理
+        // 需要是已登录状态
+        if (!mSignInMessagePacket.isSignIn()) {
+            // 当前没有正确登录，但是收到了意外地消息
+            IMLog.e(new IllegalStateException(
+                    Objects.defaultObjectTag(SessionTcpClient.this) +
+                            " is not sign in, but received message"), "sessionProtoByteMessageWrapper:%s", sessionProtoByteMessageWrapper);
+            return;
         }
+        // 消息队列异步处理，此方法返回之后网络层的 ByteBuf 会被释放
+        protoByteMessageWrapper.detachFromNetworkBuffer();
+        IMMessageQueueManager.getInstance().enqueueReceivedMessage(sessionProtoByteMessageWrapper);
     }
 
     /**
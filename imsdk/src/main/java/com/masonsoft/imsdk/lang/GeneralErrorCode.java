@@ -218,6 +218,11 @@ public class GeneralErrorCode {
      */
     public static final int ERROR_CODE_VIDEO_MESSAGE_VIDEO_THUMB_FORMAT_NOT_SUPPORT = sNextErrorCode++;
     //////////////////////////////////////////////////////////////////////
+    /**
+     * 消息发送已取消
+     */
+    public static final int ERROR_CODE_MESSAGE_SEND_CANCELED = sNextErrorCode++;
+    //////////////////////////////////////////////////////////////////////
     private static final Map<Integer, Integer> DEFAULT_ERROR_MESSAGE_LOCAL_MAP = new HashMap<>();
 
     static {
@@ -269,6 +274,7 @@ public class GeneralErrorCode {
         DEFAULT_ERROR_MESSAGE_LOCAL_MAP.put(ERROR_CODE_VIDEO_MESSAGE_VIDEO_WIDTH_OR_HEIGHT_INVALID, R.string.msimsdk_general_error_message_video_message_video_width_or_height_invalid);
         DEFAULT_ERROR_MESSAGE_LOCAL_MAP.put(ERROR_CODE_VIDEO_MESSAGE_VIDEO_FORMAT_NOT_SUPPORT, R.string.msimsdk_general_error_message_video_message_video_format_not_support);
         DEFAULT_ERROR_MESSAGE_LOCAL_MAP.put(ERROR_CODE_VIDEO_MESSAGE_VIDEO_THUMB_FORMAT_NOT_SUPPORT, R.string.msimsdk_general_error_message_video_message_video_thumb_format_not_support);
+        DEFAULT_ERROR_MESSAGE_LOCAL_MAP.put(ERROR_CODE_MESSAGE_SEND_CANCELED, R.string.msimsdk_general_error_message_message_send_canceled);
 
         Preconditions.checkArgument(DEFAULT_ERROR_MESSAGE_LOCAL_MAP.size() == sNextErrorCode - FIRST_ERROR_CODE + 1);
     }
@@ -40,6 +40,22 @@ public class MediaInfo {
      */
     public String thumbFilePath;
 
+    /**
+     * 复制一份媒体信息
+     */
+    public MediaInfo copy() {
+        final MediaInfo mediaInfo = new MediaInfo();
+        mediaInfo.width = this.width;
+        mediaInfo.height = this.height;
+        mediaInfo.mimeType = this.mimeType;
+        mediaInfo.uri = this.uri;
+        mediaInfo.length = this.length;
+        mediaInfo.durationMs = this.durationMs;
+        mediaInfo.rotate = this.rotate;
+        mediaInfo.thumbFilePath = this.thumbFilePath;
+        return mediaInfo;
+    }
+
     /**
      * 视觉上的视频宽度
      */
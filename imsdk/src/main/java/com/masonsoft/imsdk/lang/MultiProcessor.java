@@ -1,41 +1,146 @@
 package com.masonsoft.imsdk.lang;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
+ * 按顺序依次调用处理器，直到某一个处理器消费了 target. 处理器列表在修改时整体替换(copy on write), 处理时不需要加锁,
+ * 多个线程可以同时处理.<br>
+ * 如果设置了 {@linkplain RouteKeyProvider}, 实现了 {@linkplain RoutedProcessor} 的处理器只会收到 route key 相同的 target,
+ * 其它处理器仍然按照原有的顺序处理所有的 target.
+ *
  * @since 1.0
  */
 public class MultiProcessor<T> implements Processor<T> {
 
-    private final List<Processor<T>> mProcessorArray = new ArrayList<>();
+    /**
+     * 计算 target 的 route key
+     */
+    public interface RouteKeyProvider<T> {
+        /**
+         * @return 为 null 时 target 只交给没有 route key 的处理器处理
+         */
+        @Nullable
+        Object getRouteKey(@Nullable T target);
+    }
+
+    /**
+     * 只处理指定 route key 的 target 的处理器
+     */
+    public interface RoutedProcessor<T> extends Processor<T> {
+        @NonNull
+        Object getRouteKey();
+    }
+
+    private final Object mLock = new Object();
+    @Nullable
+    private final RouteKeyProvider<T> mRouteKeyProvider;
+    @NonNull
+    private volatile ProcessorChain<T> mProcessorChain = new ProcessorChain<>(Collections.emptyList(), false);
+
+    public MultiProcessor() {
+        this(null);
+    }
+
+    public MultiProcessor(@Nullable RouteKeyProvider<T> routeKeyProvider) {
+        mRouteKeyProvider = routeKeyProvider;
+    }
 
     public void addLastProcessor(Processor<T> processor) {
-        synchronized (mProcessorArray) {
-            mProcessorArray.add(processor);
+        synchronized (mLock) {
+            final List<Processor<T>> processorList = new ArrayList<>(mProcessorChain.mProcessorList);
+            processorList.add(processor);
+            mProcessorChain = new ProcessorChain<>(processorList, mRouteKeyProvider != null);
         }
     }
 
     public void addFirstProcessor(Processor<T> processor) {
-        synchronized (mProcessorArray) {
-            mProcessorArray.add(0, processor);
+        synchronized (mLock) {
+            final List<Processor<T>> processorList = new ArrayList<>(mProcessorChain.mProcessorList);
+            processorList.add(0, processor);
+            mProcessorChain = new ProcessorChain<>(processorList, mRouteKeyProvider != null);
         }
     }
 
     @Override
     public boolean doProcess(@Nullable T target) {
-        synchronized (mProcessorArray) {
-            for (Processor<T> processor : mProcessorArray) {
-                if (processor != null) {
-                    if (processor.doProcess(target)) {
-                        return true;
-                    }
+        final ProcessorChain<T> processorChain = mProcessorChain;
+        List<Processor<T>> processorList = processorChain.mProcessorList;
+        if (mRouteKeyProvider != null) {
+            final Object routeKey = mRouteKeyProvider.getRouteKey(target);
+            processorList = null;
+            if (routeKey != null) {
+                processorList = processorChain.mRoutedProcessorListMap.get(routeKey);
+            }
+            if (processorList == null) {
+                processorList = processorChain.mUnroutedProcessorList;
+            }
+        }
+
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < processorList.size(); i++) {
+            final Processor<T> processor = processorList.get(i);
+            if (processor != null) {
+                if (processor.doProcess(target)) {
+                    return true;
                 }
             }
         }
         return false;
     }
 
+    private static class ProcessorChain<T> {
+        // 所有的处理器
+        @NonNull
+        private final List<Processor<T>> mProcessorList;
+        // 没有 route key 的处理器
+        @NonNull
+        private final List<Processor<T>> mUnroutedProcessorList;
+        // 每一个 route key 对应的处理器, 包含所有没有 route key 的处理器, 保持原有的顺序
+        @NonNull
+        private final Map<Object, List<Processor<T>>> mRoutedProcessorListMap;
+
+        private ProcessorChain(@NonNull List<Processor<T>> processorList, boolean buildRouteIndex) {
+            mProcessorList = Collections.unmodifiableList(processorList);
+            if (!buildRouteIndex) {
+                mUnroutedProcessorList = mProcessorList;
+                mRoutedProcessorListMap = Collections.emptyMap();
+                return;
+            }
+
+            final List<Processor<T>> unroutedProcessorList = new ArrayList<>();
+            final Map<Object, List<Processor<T>>> routedProcessorListMap = new HashMap<>();
+            for (Processor<T> processor : processorList) {
+                if (processor instanceof RoutedProcessor) {
+                    final Object routeKey = ((RoutedProcessor<T>) processor).getRouteKey();
+                    if (!routedProcessorListMap.containsKey(routeKey)) {
+                        routedProcessorListMap.put(routeKey, null);
+                    }
+                } else {
+                    unroutedProcessorList.add(processor);
+                }
+            }
+            mUnroutedProcessorList = Collections.unmodifiableList(unroutedProcessorList);
+
+            for (Map.Entry<Object, List<Processor<T>>> entry : routedProcessorListMap.entrySet()) {
+                final Object routeKey = entry.getKey();
+                final List<Processor<T>> routedProcessorList = new ArrayList<>();
+                for (Processor<T> processor : processorList) {
+                    if (!(processor instanceof RoutedProcessor)
+                            || routeKey.equals(((RoutedProcessor<T>) processor).getRouteKey())) {
+                        routedProcessorList.add(processor);
+                    }
+                }
+                entry.setValue(Collections.unmodifiableList(routedProcessorList));
+            }
+            mRoutedProcessorListMap = routedProcessorListMap;
+        }
+    }
+
 }
@@ -72,6 +72,13 @@ public class SingleChatFragmentPresenter extends PagePresenter<UnionTypeItemObje
                 mConversationType,
                 mTargetUserId
         );
+
+        // 会话被打开，优先预取该会话的最新一页消息
+        MSIMManager.getInstance().getConversationManager().boostLastMessagePrefetch(
+                mSessionUserId,
+                mConversationType,
+                mTargetUserId
+        );
     }
 
     @Nullable
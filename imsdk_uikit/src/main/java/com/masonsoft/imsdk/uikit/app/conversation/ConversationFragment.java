@@ -22,6 +22,7 @@ import com.masonsoft.imsdk.uikit.widget.DividerItemDecoration;
 import com.masonsoft.imsdk.util.Objects;
 import com.masonsoft.imsdk.util.TimeDiffDebugHelper;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -66,6 +67,14 @@ public class ConversationFragment extends SystemInsetsFragment {
         recyclerView.setLayoutManager(layoutManager);
         recyclerView.setItemAnimator(null);
         recyclerView.setHasFixedSize(true);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    syncVisibleConversations();
+                }
+            }
+        });
 
         recyclerView.addItemDecoration(new DividerItemDecoration(
                 DividerItemDecoration.VERTICAL,
@@ -105,6 +114,36 @@ public class ConversationFragment extends SystemInsetsFragment {
         mViewImpl = null;
     }
 
+    /**
+     * 将当前可见的会话同步给 sdk, 可见的会话优先预取最新一页消息
+     */
+    private void syncVisibleConversations() {
+        final ImsdkSampleConversationFragmentBinding binding = mBinding;
+        final UnionTypeAdapter adapter = mDataAdapter;
+        final ConversationFragmentPresenter presenter = mPresenter;
+        if (binding == null || adapter == null || presenter == null) {
+            return;
+        }
+        //noinspection ConstantConditions
+        final LinearLayoutManager layoutManager = (LinearLayoutManager) binding.recyclerView.getLayoutManager();
+        final int firstPosition = layoutManager.findFirstVisibleItemPosition();
+        final int lastPosition = layoutManager.findLastVisibleItemPosition();
+        if (firstPosition < 0 || lastPosition < firstPosition) {
+            return;
+        }
+        final List<Long> targetUserIdList = new ArrayList<>();
+        for (int position = firstPosition; position <= lastPosition; position++) {
+            final UnionTypeItemObject itemObject = adapter.getItem(position);
+            if (itemObject != null && itemObject.itemObject instanceof DataObject) {
+                final Object object = ((DataObject<?>) itemObject.itemObject).object;
+                if (object instanceof MSIMConversation) {
+                    targetUserIdList.add(((MSIMConversation) object).getTargetUserId());
+                }
+            }
+        }
+        presenter.setVisibleConversations(targetUserIdList);
+    }
+
     private static void smoothScrollToPosition(RecyclerView recyclerView, int position) {
         IMUIKitLog.v("smoothScrollToPosition recyclerView:%s position:%s", recyclerView, position);
         recyclerView.smoothScrollToPosition(position);
@@ -212,6 +251,7 @@ public class ConversationFragment extends SystemInsetsFragment {
                         if (autoScrollToTop[0]) {
                             scrollToPosition(binding.recyclerView, 0);
                         }
+                        binding.recyclerView.post(ConversationFragment.this::syncVisibleConversations);
                     });
         }
     }
@@ -84,6 +84,18 @@ public class ConversationFragmentPresenter extends PagePresenter<UnionTypeItemOb
         return mSessionUserIdChangedViewHelper.getSessionUserId();
     }
 
+    /**
+     * 界面上可见的会话优先预取最新一页消息
+     */
+    @UiThread
+    public void setVisibleConversations(@NonNull List<Long> targetUserIdList) {
+        MSIMManager.getInstance().getConversationManager().setVisibleConversations(
+                getSessionUserId(),
+                mConversationType,
+                targetUserIdList
+        );
+    }
+
     private void reloadWithNewSessionUserId() {
         requestInit(true);
     }
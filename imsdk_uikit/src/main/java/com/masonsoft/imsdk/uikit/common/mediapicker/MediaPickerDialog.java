@@ -15,6 +15,7 @@ import androidx.recyclerview.widget.PagerSnapHelper;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.masonsoft.imsdk.core.I18nResources;
+import com.masonsoft.imsdk.core.MediaPreprocessManager;
 import com.masonsoft.imsdk.uikit.widget.GridItemDecoration;
 import com.masonsoft.imsdk.uikit.IMUIKitConstants;
 import com.masonsoft.imsdk.uikit.IMUIKitLog;
@@ -165,6 +166,20 @@ public class MediaPickerDialog implements MediaData.MediaLoaderCallback, ViewBac
         mGridView.updateConfirmNextStatus();
     }
 
+    void onMediaSelectChanged() {
+        mGridView.updateConfirmNextStatus();
+
+        if (mUnionTypeMediaData == null) {
+            return;
+        }
+        // 提前开始预处理已经选择的图片和视频，点击发送之后可以直接开始上传
+        for (MediaData.MediaInfo mediaInfo : mUnionTypeMediaData.mediaData.mediaInfoListSelected) {
+            if (mediaInfo.isImageMimeType() || mediaInfo.isVideoMimeType()) {
+                MediaPreprocessManager.getInstance().preprocess(mediaInfo.uri.toString());
+            }
+        }
+    }
+
     class GridView {
         private final View mGridTopBarClose;
         private final TextView mGridTopBarTitle;